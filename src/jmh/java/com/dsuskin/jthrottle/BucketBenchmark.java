@@ -0,0 +1,71 @@
+package com.dsuskin.jthrottle;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Taking tokens from a single bucket, with more and more threads fighting
+ * over it.
+ * 
+ * The bucket is big enough that it never runs dry during an iteration, so
+ * every call goes through the compare-and-set rather than the cheaper path
+ * for an empty bucket.
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BucketBenchmark {
+
+    private Bucket bucket;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        bucket = new Bucket("benchmark", 0, Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean throttle1() {
+        return bucket.throttle();
+    }
+
+    @Benchmark
+    @Threads(2)
+    public boolean throttle2() {
+        return bucket.throttle();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean throttle4() {
+        return bucket.throttle();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean throttle8() {
+        return bucket.throttle();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean throttleAllCores() {
+        return bucket.throttle();
+    }
+}
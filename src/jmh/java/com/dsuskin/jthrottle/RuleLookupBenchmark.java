@@ -0,0 +1,73 @@
+package com.dsuskin.jthrottle;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Finding the rule for a new bucket, which is what a throttler does each time
+ * it sees an operation name for the first time, against more and more rules.
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RuleLookupBenchmark {
+
+    private static final int NAMES = 1024;
+
+    @Param({ "10", "100", "1000", "10000", "100000" })
+    private int ruleCount;
+
+    private RuleTrie rules;
+    private String[] matchingNames;
+    private String[] missingNames;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        List<Rule> generated = TestUtils.generateRules(ruleCount);
+        rules = new RuleTrie(generated);
+
+        // seeded, so every run looks up the same names
+        Random random = new Random(42);
+        matchingNames = new String[NAMES];
+        missingNames = new String[NAMES];
+
+        for (int i = 0; i < NAMES; i++) {
+            Rule rule = generated.get(random.nextInt(ruleCount));
+            matchingNames[i] = rule.getOperationName() + "/user" + i;
+            missingNames[i] = "bar/test" + random.nextInt(ruleCount) + "/user"
+                    + i;
+        }
+    }
+
+    @Benchmark
+    public Rule matching() {
+        next = (next + 1) & (NAMES - 1);
+
+        return rules.findLongestPrefixRule(matchingNames[next]);
+    }
+
+    @Benchmark
+    public Rule missing() {
+        next = (next + 1) & (NAMES - 1);
+
+        return rules.findLongestPrefixRule(missingNames[next]);
+    }
+}
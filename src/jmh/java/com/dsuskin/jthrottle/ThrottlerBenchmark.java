@@ -0,0 +1,78 @@
+package com.dsuskin.jthrottle;
+
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throttling by operation name, for a name which already has a bucket and for
+ * names which are seen for the first time.
+ * 
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(2)
+public class ThrottlerBenchmark {
+
+    private static final int COLD_KEYS = 100000;
+
+    private Throttler throttler;
+    private String[] coldOperationNames;
+
+    @Setup(Level.Trial)
+    public void setUpNames() {
+        coldOperationNames = new String[COLD_KEYS];
+
+        for (int i = 0; i < COLD_KEYS; i++) {
+            coldOperationNames[i] = "benchmark/user" + i;
+        }
+    }
+
+    /**
+     * A fresh throttler each time, so that the cold names really are seen for
+     * the first time.
+     */
+    @Setup(Level.Iteration)
+    public void setUpThrottler() {
+        ConcurrentNavigableMap<String, Rule> rules = new ConcurrentSkipListMap<String, Rule>();
+        rules.put("benchmark", new Rule("benchmark", 0, Integer.MAX_VALUE));
+        throttler = new Throttler(rules);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Warmup(iterations = 5, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public boolean hotKey() {
+        return throttler.throttle("benchmark/hot");
+    }
+
+    /**
+     * Each invocation creates a bucket for every cold name, and is timed as a
+     * whole.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OperationsPerInvocation(COLD_KEYS)
+    @Warmup(iterations = 10)
+    @Measurement(iterations = 20)
+    public void coldKeys(Blackhole blackhole) {
+        for (String operationName : coldOperationNames) {
+            blackhole.consume(throttler.throttle(operationName));
+        }
+    }
+}
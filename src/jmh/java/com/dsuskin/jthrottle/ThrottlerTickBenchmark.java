@@ -0,0 +1,65 @@
+package com.dsuskin.jthrottle;
+
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One pass of {@link Throttler#tick()} over more and more buckets. Every
+ * bucket is one token short, so each tick has work to do.
+ * 
+ * Ten million buckets need several gigabytes of heap.
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx8g" })
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class ThrottlerTickBenchmark {
+
+    @Param({ "1000", "10000", "100000", "1000000", "10000000" })
+    private int bucketCount;
+
+    private Throttler throttler;
+    private RuleHandle handle;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ConcurrentNavigableMap<String, Rule> rules = new ConcurrentSkipListMap<String, Rule>();
+        rules.put("benchmark", new Rule("benchmark", 1000, 1000));
+        throttler = new Throttler(rules);
+        handle = throttler.ruleHandle("benchmark/");
+
+        for (long key = 0; key < bucketCount; key++) {
+            throttler.throttle(handle, key);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void drain() {
+        // cheap next to a tick, since keyed lookups don't allocate
+        for (long key = 0; key < bucketCount; key++) {
+            throttler.throttle(handle, key);
+        }
+    }
+
+    @Benchmark
+    public void tick() {
+        throttler.tick();
+    }
+}
@@ -0,0 +1,81 @@
+package com.dsuskin.jthrottle.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.dsuskin.jthrottle.Rule;
+import com.dsuskin.jthrottle.Throttler;
+
+/**
+ * Decisions over loopback, one at a time and in batches, with a server
+ * running on one I/O thread.
+ *
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ThrottleServerBenchmark {
+
+    private static final int BATCH_SIZE = 1024;
+
+    private ThrottleServer server;
+    private ThrottleClient client;
+    private String[] batch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ConcurrentNavigableMap<String, Rule> rules = new ConcurrentSkipListMap<String, Rule>();
+        rules.put("benchmark", new Rule("benchmark", 0, Integer.MAX_VALUE));
+
+        server = new ThrottleServer(new Throttler(rules),
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server.start();
+        client = new ThrottleClient(server.getAddress());
+
+        batch = new String[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            batch[i] = "benchmark/user" + (i % 64);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop();
+    }
+
+    /**
+     * A round trip per decision.
+     */
+    @Benchmark
+    public boolean single() throws IOException {
+        return client.throttle("benchmark/hot");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public boolean[] batched() throws IOException {
+        return client.throttleAll(batch);
+    }
+}
@@ -0,0 +1,52 @@
+package com.dsuskin.jthrottle;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The one thread, shared by every throttler, which completes asynchronous
+ * acquires once their wait is over. It only completes futures, so it is never
+ * busy for long, but anything slow chained onto those futures should run on
+ * another executor.
+ * 
+ */
+final class AcquireTimer {
+
+    private AcquireTimer() {
+    }
+
+    /**
+     * Created the first time anyone acquires asynchronously.
+     */
+    private static final class Holder {
+        private static final ScheduledExecutorService EXECUTOR = createExecutor();
+    }
+
+    /**
+     * 
+     * @param task
+     * @param delayNanos
+     */
+    static void schedule(final Runnable task, final long delayNanos) {
+        Holder.EXECUTOR.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static ScheduledExecutorService createExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+                1, new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                "jthrottle-acquire");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.setRemoveOnCancelPolicy(true);
+
+        return executor;
+    }
+}
@@ -0,0 +1,264 @@
+package com.dsuskin.jthrottle;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * {@link Algorithm#ADAPTIVE}: a {@link GcraLimiter} whose rate is moved by
+ * the latencies callers report. Each bucket gets its own copy (see
+ * {@link #forBucket()}), so that each operation finds its own rate.
+ *
+ * The rate is kept as the nanoseconds between tokens, and adjusted with
+ * additive increase, multiplicative decrease: a call slower than the target
+ * latency, or which failed, cuts the rate by a tenth, and one within it
+ * raises the rate by a hundredth of the maximum. Either happens at most once
+ * per target latency, and a slow call only counts if it started after the
+ * last change, so one overload doesn't cut the rate over and over. The
+ * capacity moves with the rate, so a full bucket is always the same length
+ * of time's worth of calls.
+ *
+ * Adjusting is a read of the time of the last change, and a compare-and-set
+ * of it when there is something to change, so it never blocks.
+ *
+ */
+final class AdaptiveLimiter implements Limiter {
+
+    /**
+     * How many steps it takes the rate to climb from nothing to the maximum.
+     */
+    private static final int INCREASE_STEPS = 100;
+
+    private static final AtomicLongFieldUpdater<AdaptiveLimiter> LAST_CHANGE_UPDATER = AtomicLongFieldUpdater
+            .newUpdater(AdaptiveLimiter.class, "lastChangeNanos");
+
+    private final long refillTokens;
+    private final long refillPeriodNanos;
+    private final long minRefillTokens;
+    private final long minRefillPeriodNanos;
+    private final int tokenCapacity;
+    private final long targetLatencyNanos;
+
+    /**
+     * The time between tokens at the maximum and minimum rates.
+     */
+    private final long minIntervalNanos;
+    private final long maxIntervalNanos;
+
+    /**
+     * How long a full bucket takes to fill at any rate.
+     */
+    private final long fillNanos;
+
+    private volatile long intervalNanos;
+    private volatile long lastChangeNanos;
+
+    /**
+     * Starts at the maximum rate.
+     *
+     * @param refillTokens
+     *            The maximum number of tokens added every refill period; must
+     *            be positive
+     * @param refillPeriodNanos
+     *            Must be positive
+     * @param minRefillTokens
+     *            Must be positive
+     * @param minRefillPeriodNanos
+     *            Must be positive, and make a rate no higher than the
+     *            maximum
+     * @param tokenCapacity
+     *            The capacity at the maximum rate
+     * @param targetLatencyNanos
+     *            Calls which take longer than this slow the rate down
+     */
+    AdaptiveLimiter(final long refillTokens, final long refillPeriodNanos,
+            final long minRefillTokens, final long minRefillPeriodNanos,
+            final int tokenCapacity, final long targetLatencyNanos) {
+        this.refillTokens = refillTokens;
+        this.refillPeriodNanos = refillPeriodNanos;
+        this.minRefillTokens = minRefillTokens;
+        this.minRefillPeriodNanos = minRefillPeriodNanos;
+        this.tokenCapacity = tokenCapacity;
+        this.targetLatencyNanos = targetLatencyNanos;
+        this.minIntervalNanos = Math.max(1, refillPeriodNanos / refillTokens);
+        this.maxIntervalNanos = Math.max(minIntervalNanos,
+                minRefillPeriodNanos / minRefillTokens);
+        this.fillNanos = GcraState.cost(tokenCapacity, 1, minIntervalNanos);
+        this.intervalNanos = minIntervalNanos;
+        this.lastChangeNanos = System.nanoTime();
+    }
+
+    /**
+     * Moves the rate according to how a call went.
+     *
+     * @param latencyNanos
+     *            How long the call took
+     * @param failed
+     *            Whether the call failed in a way which suggests overload
+     * @param nanoTime
+     *            A {@link System#nanoTime()} from when it finished
+     */
+    void onComplete(final long latencyNanos, final boolean failed,
+            final long nanoTime) {
+        long last = lastChangeNanos;
+
+        if (nanoTime - last < Math.max(targetLatencyNanos, latencyNanos)) {
+            return;
+        }
+
+        long interval = intervalNanos;
+        long next = failed || latencyNanos > targetLatencyNanos ? slower(interval)
+                : faster(interval);
+
+        if (next != interval
+                && LAST_CHANGE_UPDATER.compareAndSet(this, last, nanoTime)) {
+            intervalNanos = next;
+        }
+    }
+
+    private long slower(final long interval) {
+        // a tenth off the rate is a ninth on the interval
+        return Math.min(maxIntervalNanos, interval + Math.max(1, interval / 9));
+    }
+
+    private long faster(final long interval) {
+        // 1 / next = 1 / interval + 1 / (INCREASE_STEPS * minIntervalNanos)
+        long next = (long) (interval / (1 + interval
+                / ((double) INCREASE_STEPS * minIntervalNanos)));
+
+        return Math.max(minIntervalNanos, Math.min(interval - 1, next));
+    }
+
+    /**
+     *
+     * @return the current number of nanoseconds between tokens
+     */
+    long getIntervalNanos() {
+        return intervalNanos;
+    }
+
+    long getMinRefillTokens() {
+        return minRefillTokens;
+    }
+
+    long getMinRefillPeriodNanos() {
+        return minRefillPeriodNanos;
+    }
+
+    long getTargetLatencyNanos() {
+        return targetLatencyNanos;
+    }
+
+    private static int capacity(final long fillNanos, final long interval) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, fillNanos
+                / interval));
+    }
+
+    @Override
+    public Limiter forBucket() {
+        return new AdaptiveLimiter(refillTokens, refillPeriodNanos,
+                minRefillTokens, minRefillPeriodNanos, tokenCapacity,
+                targetLatencyNanos);
+    }
+
+    @Override
+    public Algorithm getAlgorithm() {
+        return Algorithm.ADAPTIVE;
+    }
+
+    @Override
+    public long now(final long nanoTime) {
+        return GcraState.at(nanoTime);
+    }
+
+    @Override
+    public long pack(final long tokens, final long now) {
+        long interval = intervalNanos;
+        int capacity = capacity(fillNanos, interval);
+
+        return GcraState.pack(Math.min(tokens, capacity), now, capacity, 1,
+                interval);
+    }
+
+    @Override
+    public long refill(final long state, final long now) {
+        return state;
+    }
+
+    @Override
+    public long tokens(final long state, final long now) {
+        long interval = intervalNanos;
+
+        return GcraState.tokens(state, now, capacity(fillNanos, interval), 1,
+                interval);
+    }
+
+    @Override
+    public long take(final long state, final long now, final long tokens) {
+        return GcraState.take(state, now, tokens, 1, intervalNanos);
+    }
+
+    @Override
+    public long waitNanos(final long state, final long nanoTime) {
+        long interval = intervalNanos;
+
+        return Math.max(0, state
+                - GcraState.cost(capacity(fillNanos, interval), 1, interval)
+                - GcraState.at(nanoTime));
+    }
+
+    @Override
+    public long refund(final long state, final long now, final long tokens) {
+        if (GcraState.isFull(state, now)) {
+            return state;
+        }
+
+        return Math.max(now, state - GcraState.cost(tokens, 1, intervalNanos));
+    }
+
+    @Override
+    public long drain(final long state, final long now, final long tokens) {
+        long interval = intervalNanos;
+        long empty = GcraState.take(now, now, capacity(fillNanos, interval),
+                1, interval);
+
+        return Math.max(state, Math.min(empty, GcraState.take(state, now,
+                tokens, 1, interval)));
+    }
+
+    @Override
+    public boolean isFull(final long state, final long now) {
+        return GcraState.isFull(state, now);
+    }
+
+    @Override
+    public boolean needsRefill() {
+        return false;
+    }
+
+    @Override
+    public long nextRefillNanos(final long state) {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     *
+     * @return the capacity at the maximum rate
+     */
+    @Override
+    public int getTokenCapacity() {
+        return tokenCapacity;
+    }
+
+    /**
+     *
+     * @return the maximum rate's tokens
+     */
+    @Override
+    public long getRefillTokens() {
+        return refillTokens;
+    }
+
+    @Override
+    public long getRefillPeriodNanos() {
+        return refillPeriodNanos;
+    }
+}
@@ -0,0 +1,151 @@
+package com.dsuskin.jthrottle;
+
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The shared buckets of aggregate rules (see {@link Rule#asAggregate()}), one
+ * for each rule, by operation name. There are never more of them than there
+ * are aggregate rules, so they aren't evicted. The shards of a
+ * {@link ShardedThrottler} share one of these, so that an aggregate limit
+ * holds across all of them.
+ *
+ */
+final class AggregateBuckets {
+
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+    private final ThrottlerMetrics metrics;
+
+    /**
+     *
+     * @param metrics
+     *            Where the rules' calls are counted
+     */
+    AggregateBuckets(final ThrottlerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     *
+     * @param rules
+     * @param operationName
+     * @param creator
+     *            Makes any shared buckets which don't exist yet
+     * @return the shared buckets of the aggregate rules covering the
+     *         operation, longest first
+     */
+    Bucket[] forOperation(final RuleIndex rules, final String operationName,
+            final Throttler creator) {
+        Rule[] aggregateRules = rules.findAggregateRules(operationName);
+
+        if (aggregateRules.length == 0) {
+            return Bucket.NO_AGGREGATES;
+        }
+
+        Bucket[] aggregates = new Bucket[aggregateRules.length];
+
+        for (int i = 0; i < aggregateRules.length; i++) {
+            aggregates[i] = getOrCreate(aggregateRules[i], creator);
+        }
+
+        return aggregates;
+    }
+
+    private Bucket getOrCreate(final Rule rule, final Throttler creator) {
+        String operationName = rule.getOperationName();
+        Bucket bucket = buckets.get(operationName);
+
+        if (bucket == null) {
+            Bucket newBucket = creator.newBucket(operationName, rule,
+                    Bucket.NO_AGGREGATES);
+            bucket = buckets.putIfAbsent(operationName, newBucket);
+
+            if (bucket == null) {
+                bucket = newBucket;
+                creator.created(bucket);
+            }
+        }
+
+        return bucket;
+    }
+
+    /**
+     * Replaces each shared bucket whose rule has changed with one holding the
+     * same proportion of its capacity, and evicts those whose rule is gone or
+     * no longer an aggregate. Callers then have to move their buckets on to
+     * the new shared buckets. Replacing a bucket which has already been
+     * replaced does nothing, so every shard can call this.
+     *
+     * @param rules
+     *            The new rules
+     * @param creator
+     *            Told about each replacement, so that it is refilled
+     */
+    synchronized void updateRules(final RuleIndex rules,
+            final Throttler creator) {
+        for (Entry<String, Bucket> entry : buckets.entrySet()) {
+            String operationName = entry.getKey();
+            Bucket bucket = entry.getValue();
+            Rule rule = rules.findLongestPrefixRule(operationName);
+
+            if (rule == null || !rule.isAggregate()
+                    || !rule.getOperationName().equals(operationName)) {
+                if (bucket.retire()) {
+                    buckets.remove(operationName, bucket);
+                }
+                continue;
+            }
+
+            if (Throttler.hasRule(bucket, rule, metrics)) {
+                continue;
+            }
+
+            int tokens = bucket.getTokens();
+            Bucket replacement = new Bucket(operationName, rule,
+                    metrics.forRule(rule), Throttler.scaleTokens(tokens,
+                            bucket.getTokenCapacity(),
+                            rule.getTokenBucketCapacity()));
+
+            if (buckets.replace(operationName, bucket, replacement)) {
+                int tokensLeft = bucket.retireAndGetTokens();
+
+                if (tokensLeft != Integer.MIN_VALUE && tokensLeft < tokens) {
+                    replacement.drain(Throttler.scaleTokens(tokens
+                            - tokensLeft, bucket.getTokenCapacity(),
+                            replacement.getTokenCapacity()));
+                }
+
+                creator.created(replacement);
+            }
+        }
+    }
+
+    /**
+     * Refills every shared bucket.
+     */
+    void tick() {
+        for (Bucket bucket : buckets.values()) {
+            bucket.tick();
+        }
+    }
+
+    /**
+     *
+     * @param saved
+     *            Where every shared bucket is added
+     */
+    void collectBuckets(final List<Bucket> saved) {
+        saved.addAll(buckets.values());
+    }
+
+    /**
+     *
+     * @return the number of shared buckets
+     */
+    int size() {
+        return buckets.size();
+    }
+}
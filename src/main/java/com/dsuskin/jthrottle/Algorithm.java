@@ -0,0 +1,76 @@
+package com.dsuskin.jthrottle;
+
+/**
+ * How a {@link Rule}'s buckets decide whether to let a call through. Every
+ * algorithm keeps a bucket's whole state in one long, and lets through
+ * refillRate calls a second on average, in bursts of up to capacity.
+ * 
+ */
+public enum Algorithm {
+
+    /**
+     * A token count, refilled in tenths of a second by ticking, scheduling or
+     * lazily, depending on the {@link RefillMode}. Rates are whole tokens per
+     * second.
+     */
+    TOKEN_BUCKET("tokenBucket"),
+
+    /**
+     * The generic cell rate algorithm: a token bucket kept as the time at
+     * which it will next be full. It needs no refilling at all, whatever the
+     * {@link RefillMode}, and is exact to the nanosecond at any rate.
+     */
+    GCRA("gcra"),
+
+    /**
+     * Counts calls in fixed windows, each capacity / refillRate long, and
+     * estimates the count over the last window's length by weighting the
+     * previous window's count by how much of it is still inside it. Unlike a
+     * token bucket, a burst is only forgiven once it has slid out of the
+     * window. Capacities are limited to about a million, and windows to an
+     * hour.
+     */
+    SLIDING_WINDOW("slidingWindow"),
+
+    /**
+     * GCRA at a rate which callers move between a minimum and the rule's
+     * refillRate by reporting how their calls went; see
+     * {@link Rule#asAdaptive(long, long, java.util.concurrent.TimeUnit, long, java.util.concurrent.TimeUnit)}
+     * and
+     * {@link Throttler#onComplete(String, long, java.util.concurrent.TimeUnit)}.
+     * The capacity moves with the rate. Until it is given a minimum, it stays
+     * at refillRate.
+     */
+    ADAPTIVE("adaptive");
+
+    private final String jsonName;
+
+    private Algorithm(final String jsonName) {
+        this.jsonName = jsonName;
+    }
+
+    /**
+     * 
+     * @return the name used for the algorithm in rule files
+     */
+    public String getJsonName() {
+        return jsonName;
+    }
+
+    /**
+     * 
+     * @param jsonName
+     * @return the algorithm with that name in rule files
+     * @throws IllegalArgumentException
+     *             if there isn't one
+     */
+    public static Algorithm forJsonName(final String jsonName) {
+        for (Algorithm algorithm : values()) {
+            if (algorithm.jsonName.equals(jsonName)) {
+                return algorithm;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown algorithm: " + jsonName);
+    }
+}
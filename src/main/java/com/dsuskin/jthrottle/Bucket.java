@@ -1,30 +1,69 @@
 package com.dsuskin.jthrottle;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 /**
+ * The bucket's whole state is packed into a single long, whose meaning is up
+ * to its rule's {@link Algorithm} (see {@link Limiter}), so every update is
+ * one compare-and-set and no thread ever blocks on a hot bucket.
  * 
  * @author dsuskin
  * 
  */
-public class Bucket {
+public class Bucket extends BucketRhsPadding {
 
-    /**
-     * We want a maximum number of divisions of the token refill rate, so we
-     * adjust tick times, rounding down to the nearest increment. Also limits
-     * the maximum number of ticks per second.
-     */
-    private static final long NANOS_PER_SECOND = 1000000000L;
-    private static final long NANOS_PER_MILLI = 1000000;
-    private static final long MILLIS_PER_SECOND = 1000;
-    private static final long TICK_SNAP_INCREMENT_NANOS = NANOS_PER_MILLI * 100;
-    private static final int MAX_TICKS_PER_SECOND = (int) (NANOS_PER_SECOND / TICK_SNAP_INCREMENT_NANOS);
+    static final Bucket[] NO_AGGREGATES = new Bucket[0];
+
+    private static final AtomicIntegerFieldUpdater<Bucket> SCHEDULED_UPDATER = AtomicIntegerFieldUpdater
+            .newUpdater(Bucket.class, "scheduled");
 
     private final String operationName;
     private final int refillTokensPerSecond;
-    private final double refillTokensPerTickIncrement;
     private final int tokenCapacity;
+    private final Limiter limiter;
+
+    /**
+     * The limiter, if the bucket's rate adapts; null otherwise.
+     */
+    private final AdaptiveLimiter adaptive;
+
+    /**
+     * The tokens each call takes; see {@link Rule#withCost(int)}.
+     */
+    private final int cost;
+
+    /**
+     * The shared buckets of the aggregate rules covering the operation,
+     * longest first, which every call takes from as well; see
+     * {@link Rule#asAggregate()}. Worked out once, when the bucket is made.
+     */
+    private final Bucket[] aggregates;
+
+    /**
+     * False if the bucket's own rule is an aggregate, in which case the
+     * rule's shared bucket, first in the aggregates, does the limiting, and
+     * this one is only there to hold them.
+     */
+    private final boolean limiting;
+
+    /**
+     * Where the throttler holding the bucket counts its calls; null for
+     * buckets used on their own.
+     */
+    private final RuleMetrics metrics;
 
-    private Integer tokenCount;
-    private Long lastTickTime;
+    /**
+     * Set whenever the bucket is used, and cleared by whoever is looking for
+     * buckets to evict; see {@link BucketEvictor}.
+     */
+    private volatile boolean referenced = true;
+    private volatile long idleSinceNanos;
+
+    /**
+     * 1 while the bucket is waiting on a {@link RefillScheduler}, 0 otherwise.
+     */
+    private volatile int scheduled;
 
     /**
      * 
@@ -34,106 +73,525 @@ public class Bucket {
      */
     public Bucket(final String operationName, final int refillTokensPerSecond,
             final int tokenCapacity) {
-        this.operationName = operationName;
-        this.refillTokensPerSecond = refillTokensPerSecond;
-        this.tokenCapacity = tokenCapacity;
+        this(operationName, new Rule(operationName, refillTokensPerSecond,
+                tokenCapacity), null, tokenCapacity);
+    }
 
-        tokenCount = tokenCapacity;
-        lastTickTime = Long.MIN_VALUE;
-        refillTokensPerTickIncrement = refillTokensPerSecond
-                / (double) MAX_TICKS_PER_SECOND;
+    /**
+     * A {@link Algorithm#GCRA} bucket, which is refilled to the nanosecond at
+     * any rate, such as 1 token a minute; see
+     * {@link Rule#Rule(String, long, long, TimeUnit, int)}. It never needs
+     * ticking, and refills itself whenever it's used.
+     * 
+     * @param operationName
+     * @param refillTokens
+     *            The number of tokens added every refill period; must be
+     *            positive
+     * @param refillPeriod
+     * @param unit
+     * @param tokenCapacity
+     */
+    public Bucket(final String operationName, final long refillTokens,
+            final long refillPeriod, final TimeUnit unit,
+            final int tokenCapacity) {
+        this(operationName, new Rule(operationName, refillTokens,
+                refillPeriod, unit, tokenCapacity), null, tokenCapacity);
+    }
+
+    /**
+     * 
+     * @param operationName
+     * @param rule
+     *            Where the bucket's algorithm, rate and capacity come from
+     * @param metrics
+     *            Told when the bucket is retired
+     * @param tokens
+     *            The number of tokens to start with
+     */
+    Bucket(final String operationName, final Rule rule,
+            final RuleMetrics metrics, final int tokens) {
+        this(operationName, rule, rule.getLimiter().forBucket(), metrics,
+                tokens, NO_AGGREGATES, true);
+    }
+
+    /**
+     * 
+     * @param operationName
+     * @param rule
+     *            Where the bucket's algorithm, rate and capacity come from
+     * @param metrics
+     *            Told when the bucket is retired
+     * @param tokens
+     *            The number of tokens to start with
+     * @param aggregates
+     *            The shared buckets of the aggregate rules covering the
+     *            operation, longest first, including the rule itself if it
+     *            is an aggregate
+     */
+    Bucket(final String operationName, final Rule rule,
+            final RuleMetrics metrics, final int tokens,
+            final Bucket[] aggregates) {
+        this(operationName, rule, rule.getLimiter().forBucket(), metrics,
+                tokens, aggregates, !rule.isAggregate());
+    }
+
+    private Bucket(final String operationName, final Rule rule,
+            final Limiter limiter, final RuleMetrics metrics,
+            final int tokens, final Bucket[] aggregates,
+            final boolean limiting) {
+        super(limiter.pack(Math.min(tokens, rule.getTokenBucketCapacity()),
+                limiter.now(System.nanoTime())));
+        this.operationName = operationName;
+        this.refillTokensPerSecond = rule.getTokenBucketRefilledTokensPerSecond();
+        this.tokenCapacity = rule.getTokenBucketCapacity();
+        this.limiter = limiter;
+        this.adaptive = limiter instanceof AdaptiveLimiter ? (AdaptiveLimiter) limiter
+                : null;
+        this.cost = rule.getCost(operationName);
+        this.metrics = metrics;
+        this.aggregates = aggregates;
+        this.limiting = limiting;
     }
 
     /**
      * Calls should only go through successfully while there are tokens left in
-     * the bucket.
+     * the bucket. Each call takes its rule's cost in tokens for the operation,
+     * which is 1 unless the rule says otherwise.
      * 
      * @return true if the call tracked by this bucket should be throttled,
      *         false otherwise
      */
     public boolean throttle() {
-        boolean shouldThrottle;
-        synchronized (tokenCount) {
-            shouldThrottle = tokenCount == 0;
-            tokenCount = Math.max(tokenCount - 1, 0);
-        }
+        return take(cost, cost, false) == 0;
+    }
+
+    /**
+     * Like {@link #throttle()}, but first adds the tokens the bucket has earned
+     * since it was last refilled. Buckets which are only ever used through this
+     * method don't need to be ticked at all, and the cost of a refill doesn't
+     * depend on how many other buckets there are.
+     * 
+     * @return true if the call tracked by this bucket should be throttled,
+     *         false otherwise
+     */
+    public boolean refillAndThrottle() {
+        return take(cost, cost, true) == 0;
+    }
+
+    /**
+     * Takes several tokens at once, or none at all.
+     * 
+     * @param permits
+     *            The number of tokens to take
+     * @return true if the tokens were taken, false if the bucket doesn't have
+     *         enough of them
+     */
+    public boolean tryAcquire(final int permits) {
+        checkPermits(permits);
+
+        return take(permits, permits, false) == permits;
+    }
+
+    /**
+     * Like {@link #tryAcquire(int)}, but refills the bucket first; see
+     * {@link #refillAndThrottle()}.
+     * 
+     * @param permits
+     *            The number of tokens to take
+     * @return true if the tokens were taken, false if the bucket doesn't have
+     *         enough of them
+     */
+    public boolean refillAndTryAcquire(final int permits) {
+        checkPermits(permits);
+
+        return take(permits, permits, true) == permits;
+    }
+
+    /**
+     * Takes as many tokens as it can, up to a maximum, in a single update.
+     * 
+     * @param minPermits
+     *            Nothing is taken unless at least this many tokens are left,
+     *            and tokens are taken in whole multiples of it
+     * @param maxPermits
+     *            The most tokens to take, which is a multiple of minPermits
+     * @param refillFirst
+     *            Whether to add the tokens earned since the last refill first
+     * @return the number of tokens taken
+     */
+    int take(final int minPermits, final int maxPermits,
+            final boolean refillFirst) {
+        boolean refill = refillFirst && limiter.needsRefill();
+        long now = now(refill);
+
+        long current;
+        int taken;
+        long updated;
+        do {
+            current = getState();
+
+            if (current == TokenBucketState.RETIRED) {
+                return 0;
+            }
+
+            long refilled = refill ? limiter.refill(current, now) : current;
+            long tokens = limiter.tokens(refilled, now);
+
+            // nothing to gain from storing a refill which still leaves the
+            // bucket short; the next call will work it out again from the same
+            // starting point
+            if (tokens < minPermits) {
+                return 0;
+            }
 
-        return shouldThrottle;
+            taken = (int) Math.min(tokens, maxPermits);
+            taken -= taken % minPermits;
+            updated = limiter.take(refilled, now, taken);
+        } while (!compareAndSetState(current, updated));
+
+        return taken;
+    }
+
+    /**
+     * Takes tokens whether or not the bucket has them, leaving it in debt, so
+     * that the caller can go ahead once refilling has paid the debt off.
+     * Later reservations queue up behind earlier ones, and calls which don't
+     * wait are throttled until the debt is paid.
+     * 
+     * @param permits
+     *            The number of tokens to take
+     * @param refillFirst
+     *            Whether to add the tokens earned since the last refill first
+     * @param maxWaitNanos
+     *            Nothing is taken if the caller would have to wait longer than
+     *            this
+     * @return how long the caller has to wait before going ahead, in
+     *         nanoseconds, or -1 if nothing was taken
+     */
+    long reserve(final int permits, final boolean refillFirst,
+            final long maxWaitNanos) {
+        boolean refill = refillFirst && limiter.needsRefill();
+        long nowNanos = System.nanoTime();
+        long now = limiter.now(nowNanos);
+
+        long current;
+        long waitNanos;
+        long updated;
+        do {
+            current = getState();
+
+            if (current == TokenBucketState.RETIRED) {
+                return -1;
+            }
+
+            long refilled = refill ? limiter.refill(current, now) : current;
+            long remaining = limiter.tokens(refilled, now) - permits;
+            updated = limiter.take(refilled, now, permits);
+            waitNanos = 0;
+
+            if (remaining < 0) {
+                // the lowest token counts are left alone, so that a bucket
+                // deep in debt can't be mistaken for a retired one
+                if (updated == Limiter.OVERFLOW
+                        || remaining <= Integer.MIN_VALUE / 2) {
+                    return -1;
+                }
+
+                waitNanos = limiter.waitNanos(updated, nowNanos);
+
+                // the bucket never refills
+                if (waitNanos == Long.MAX_VALUE) {
+                    return -1;
+                }
+            }
+
+            if (waitNanos > maxWaitNanos) {
+                return -1;
+            }
+        } while (!compareAndSetState(current, updated));
+
+        return waitNanos;
+    }
+
+    /**
+     * Gives back tokens which were taken but not used, up to the bucket's
+     * capacity.
+     * 
+     * @param permits
+     */
+    void refund(final int permits) {
+        long now = now(false);
+
+        long current;
+        long updated;
+        do {
+            current = getState();
+
+            if (current == TokenBucketState.RETIRED) {
+                return;
+            }
+
+            updated = limiter.refund(current, now, permits);
+
+            if (updated == current) {
+                return;
+            }
+        } while (!compareAndSetState(current, updated));
+    }
+
+    static void checkPermits(final int permits) {
+        if (permits <= 0) {
+            throw new IllegalArgumentException(
+                    "Permit count must be positive: " + permits);
+        }
     }
 
     /**
      * Occasionally tokens should be added to the bucket, at the rate to which
-     * this bucket is configured.
-     */
-    public synchronized void tick() {
-        long elapsedNanosSinceLastTick = getNanosSinceLastTickSnappedToGrid();
-
-        long elapsedMillisSinceLastTick = elapsedNanosSinceLastTick
-                / NANOS_PER_MILLI;
-        double tickIncrementsSinceLastTick = elapsedMillisSinceLastTick
-                / (double) MILLIS_PER_SECOND * MAX_TICKS_PER_SECOND;
-
-        // NOTE since some truncation of tokens to add occurs, if your refill rate
-        // doesn't divide evenly by your tick interval, your observed throttle rate
-        // may end up being slightly lower than the configured throttle rate.
-        // You can adjust it by calculating tokensToAdd / fractionalTokensToAdd * elapsedNanosSinceLastTick,
-        // and using that value instead of elapsedNanosSinceLastTick. However, that approach
-        // allows for a slightly *higher* observed rate than configured rate, since the long may be truncated
-        // and the tick will appear to have occurred on a shorter interval. I have taken
-        // the stance that it is better to err on the side of a slightly lower throttle rate
-        // than a higher one.
-        double fractionalTokensToAdd = tickIncrementsSinceLastTick * refillTokensPerTickIncrement;
-        int tokensToAdd = (int) fractionalTokensToAdd;
-
-        tryCompleteTick(tokensToAdd, elapsedNanosSinceLastTick);
-    }
-
-    /**
-     * Completes the tick operation, only updating the last tick time if tokens
-     * are to be added. If tokens are not to be added, the bucket will keep
-     * counting up for the time since the last tick, so that it counts the
-     * number of tokens to add correctly when it is time to add them.
-     * 
-     * @param tokensToAdd
-     *            The calculated number of tokens to add
-     * @param elapsedNanosSinceLastTick
-     *            The elapsed time since the previously applied tick
-     */
-    private void tryCompleteTick(int tokensToAdd, long elapsedNanosSinceLastTick) {
-        if (tokensToAdd > 0) {
-            synchronized (tokenCount) {
-                tokenCount += tokensToAdd;
-                tokenCount = Math.min(tokenCapacity, tokenCount);
+     * this bucket is configured. Does nothing for algorithms which don't need
+     * refilling.
+     */
+    public void tick() {
+        if (!limiter.needsRefill()) {
+            return;
+        }
+
+        long now = now(true);
+
+        long current;
+        long refilled;
+        do {
+            current = getState();
+
+            if (current == TokenBucketState.RETIRED) {
+                return;
             }
 
-            synchronized (lastTickTime) {
-                lastTickTime += elapsedNanosSinceLastTick;
+            refilled = limiter.refill(current, now);
+
+            if (refilled == current) {
+                return;
             }
+        } while (!compareAndSetState(current, refilled));
+    }
+
+    /**
+     * 
+     * @param refill
+     *            Whether the time is needed to refill the bucket
+     * @return the time in the limiter's units, or 0 if the limiter only needs
+     *         it to refill and the bucket isn't being refilled, which saves
+     *         reading the clock
+     */
+    private long now(final boolean refill) {
+        if (!refill && limiter.needsRefill()) {
+            return 0;
+        }
+
+        return limiter.now(System.nanoTime());
+    }
+
+    /**
+     * 
+     * @return true if the bucket has as many tokens as it can hold
+     */
+    boolean isFull() {
+        long current = getState();
+
+        return current != TokenBucketState.RETIRED
+                && limiter.isFull(current, now(false));
+    }
+
+    /**
+     * 
+     * @return the {@link System#nanoTime()} at which a tick will next add
+     *         tokens to the bucket, or {@link Long#MAX_VALUE} if it never will
+     *         or doesn't need ticking
+     */
+    long getNextRefillNanos() {
+        long current = getState();
+
+        if (current == TokenBucketState.RETIRED) {
+            return Long.MAX_VALUE;
         }
 
+        return limiter.nextRefillNanos(current);
+    }
+
+    boolean isScheduled() {
+        return scheduled != 0;
     }
 
     /**
      * 
-     * @return time elapsed since the last time this was called, rounded down to
-     *         the nearest specified increment
+     * @return true if the bucket wasn't already scheduled, and the caller
+     *         should schedule it
      */
-    private long getNanosSinceLastTickSnappedToGrid() {
-        long currentNanos = System.nanoTime();
+    boolean markScheduled() {
+        return SCHEDULED_UPDATER.compareAndSet(this, 0, 1);
+    }
 
-        synchronized (lastTickTime) {
-            if (lastTickTime == Long.MIN_VALUE) {
-                lastTickTime = currentNanos;
+    void clearScheduled() {
+        scheduled = 0;
+    }
+
+    /**
+     * Marks the bucket as evicted, if it would be full right now. A full
+     * bucket is indistinguishable from a newly created one, so nobody loses
+     * anything when it goes away.
+     * 
+     * @return true if the bucket was retired by this call
+     */
+    boolean retireIfFull() {
+        long now = now(true);
+
+        long current;
+        do {
+            current = getState();
+
+            if (current == TokenBucketState.RETIRED
+                    || !limiter.isFull(limiter.refill(current, now), now)) {
+                return false;
             }
+        } while (!compareAndSetState(current, TokenBucketState.RETIRED));
+
+        retired();
+        return true;
+    }
+
+    /**
+     * Marks the bucket as evicted, however many tokens it has left.
+     * 
+     * @return true if the bucket was retired by this call
+     */
+    boolean retire() {
+        return retireAndGetTokens() != Integer.MIN_VALUE;
+    }
+
+    /**
+     * Like {@link #retire()}, for when someone is taking over from the bucket
+     * and needs to know what it had left.
+     * 
+     * @return the number of tokens the bucket had when it was retired,
+     *         including any it had earned since it was last refilled, or
+     *         {@link Integer#MIN_VALUE} if it was already retired
+     */
+    int retireAndGetTokens() {
+        long now = now(true);
+
+        long current;
+        do {
+            current = getState();
+
+            if (current == TokenBucketState.RETIRED) {
+                return Integer.MIN_VALUE;
+            }
+        } while (!compareAndSetState(current, TokenBucketState.RETIRED));
+
+        retired();
+        return tokens(current, now);
+    }
+
+    /**
+     * 
+     * @return the number of tokens the bucket would have if it were refilled
+     *         right now
+     */
+    int getTokens() {
+        long current = getState();
+
+        if (current == TokenBucketState.RETIRED) {
+            return Integer.MIN_VALUE + 1;
         }
 
-        long elapsedNanosSinceLastTick = Math.max(0, currentNanos
-                - lastTickTime);
+        return tokens(current, now(true));
+    }
+
+    /**
+     * 
+     * @param current
+     *            Not retired
+     * @param now
+     * @return the number of tokens the bucket has in the given state, if it
+     *         were refilled right now
+     */
+    private int tokens(final long current, final long now) {
+        return (int) Math.max(Integer.MIN_VALUE + 1,
+                limiter.tokens(limiter.refill(current, now), now));
+    }
+
+    /**
+     * Takes tokens regardless of whether there are enough, leaving the bucket
+     * empty rather than short.
+     * 
+     * @param tokens
+     */
+    void drain(final int tokens) {
+        long now = now(false);
+
+        long current;
+        long updated;
+        do {
+            current = getState();
 
-        long roundedNanosSinceLastTick = (elapsedNanosSinceLastTick / TICK_SNAP_INCREMENT_NANOS)
-                * TICK_SNAP_INCREMENT_NANOS;
+            if (current == TokenBucketState.RETIRED) {
+                return;
+            }
 
-        return roundedNanosSinceLastTick;
+            updated = limiter.drain(current, now, tokens);
+        } while (!compareAndSetState(current, updated));
+    }
+
+    private void retired() {
+        if (metrics != null) {
+            metrics.bucketRemoved();
+        }
+    }
+
+    /**
+     * Callers which were throttled by a retired bucket should look up the
+     * bucket for their operation again.
+     * 
+     * @return true if the bucket has been evicted
+     */
+    boolean isRetired() {
+        return getState() == TokenBucketState.RETIRED;
+    }
+
+    /**
+     * Only writes if the flag isn't already set, so that a hot bucket doesn't
+     * keep invalidating the cache line it lives on.
+     */
+    void markReferenced() {
+        if (!referenced) {
+            referenced = true;
+        }
+    }
+
+    /**
+     * Clears the referenced flag, and if it was set, starts counting the time
+     * the bucket has been idle from now.
+     * 
+     * @param nowNanos
+     * @return true if the bucket had been used since the last time this was
+     *         called
+     */
+    boolean clearReferenced(long nowNanos) {
+        if (referenced) {
+            idleSinceNanos = nowNanos;
+            referenced = false;
+            return true;
+        }
+
+        return false;
+    }
+
+    long getIdleSinceNanos() {
+        return idleSinceNanos;
+    }
+
+    RuleMetrics getMetrics() {
+        return metrics;
     }
 
     public String getOperationName() {
@@ -147,4 +605,75 @@ public class Bucket {
     public int getTokenCapacity() {
         return tokenCapacity;
     }
+
+    public Algorithm getAlgorithm() {
+        return limiter.getAlgorithm();
+    }
+
+    long getRefillTokens() {
+        return limiter.getRefillTokens();
+    }
+
+    long getRefillPeriodNanos() {
+        return limiter.getRefillPeriodNanos();
+    }
+
+    /**
+     * Moves the bucket's rate according to how a call went, if its rule is
+     * adaptive; see {@link Rule#asAdaptive(long, long, TimeUnit, long, TimeUnit)}.
+     * 
+     * @param latencyNanos
+     * @param failed
+     * @param nanoTime
+     *            A {@link System#nanoTime()} from when the call finished
+     */
+    void onComplete(final long latencyNanos, final boolean failed,
+            final long nanoTime) {
+        if (adaptive != null) {
+            adaptive.onComplete(latencyNanos, failed, nanoTime);
+        }
+    }
+
+    /**
+     * 
+     * @param rule
+     * @return true unless the bucket adapts within different bounds to the
+     *         rule's
+     */
+    boolean adaptsLike(final Rule rule) {
+        return adaptive == null
+                || (adaptive.getMinRefillTokens() == rule.getMinRefillTokens()
+                        && adaptive.getMinRefillPeriodNanos() == rule
+                                .getMinRefillPeriodNanos() && adaptive
+                        .getTargetLatencyNanos() == rule.getTargetLatencyNanos());
+    }
+
+    /**
+     * 
+     * @return the nanoseconds between tokens at the bucket's current rate, if
+     *         it adapts, or 0
+     */
+    long getAdaptiveIntervalNanos() {
+        return adaptive == null ? 0 : adaptive.getIntervalNanos();
+    }
+
+    /**
+     * 
+     * @return the tokens each call takes
+     */
+    int getCost() {
+        return cost;
+    }
+
+    Bucket[] getAggregates() {
+        return aggregates;
+    }
+
+    /**
+     * 
+     * @return false if calls only take from the bucket's aggregates
+     */
+    boolean isLimiting() {
+        return limiting;
+    }
 }
@@ -0,0 +1,140 @@
+package com.dsuskin.jthrottle;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Removes buckets from a {@link Throttler} according to an
+ * {@link EvictionPolicy}.
+ * 
+ * Evicted buckets are retired before they are removed, so a caller which
+ * grabbed a bucket just before it was evicted finds out and looks again,
+ * rather than spending tokens nobody will ever see.
+ * 
+ */
+class BucketEvictor {
+
+    /**
+     * How far the clock hand moves on each insert.
+     */
+    private static final int SWEEP_STEPS = 8;
+
+    private final ConcurrentMap<String, Bucket> buckets;
+    private final long idleTimeoutNanos;
+    private final int maxBuckets;
+
+    /**
+     * Guards the clock hand. Threads which find it taken skip eviction rather
+     * than wait, since somebody else is already on it.
+     */
+    private final ReentrantLock clockLock = new ReentrantLock();
+    private Iterator<Entry<String, Bucket>> clockHand;
+
+    /**
+     * How far the hand has moved since it last evicted a full bucket.
+     */
+    private int stepsSinceFullVictim;
+
+    /**
+     * 
+     * @param buckets
+     * @param policy
+     */
+    BucketEvictor(final ConcurrentMap<String, Bucket> buckets,
+            final EvictionPolicy policy) {
+        this.buckets = buckets;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(policy
+                .getIdleTimeoutMillis());
+        this.maxBuckets = policy.getMaxBuckets();
+    }
+
+    /**
+     * Called after a bucket has been added. If there are now too many buckets,
+     * the clock hand moves on a few steps around the map, giving recently used
+     * buckets a second chance and evicting any full ones which haven't been
+     * used since the hand last passed them. Buckets which aren't full would
+     * come back full if they were evicted, so they're only evicted once the
+     * hand has gone a whole turn without finding a full one. It only takes a
+     * few steps so that no caller pays for a whole turn of the hand; later
+     * inserts and ticks carry on from where it stopped.
+     */
+    void afterInsert() {
+        sweep(SWEEP_STEPS);
+    }
+
+    /**
+     * Called when the throttler is ticked. Sweeps until there are no longer
+     * too many buckets.
+     */
+    void tick() {
+        // two full turns of the hand are enough to clear every reference
+        // flag and then find a victim, full or not
+        sweep(2 * buckets.size());
+    }
+
+    /**
+     * 
+     * @param steps
+     *            The most buckets to move the hand past
+     */
+    private void sweep(final int steps) {
+        if (buckets.size() <= maxBuckets || !clockLock.tryLock()) {
+            return;
+        }
+
+        try {
+            int budget = steps;
+
+            while (buckets.size() > maxBuckets && budget-- > 0) {
+                if (clockHand == null || !clockHand.hasNext()) {
+                    clockHand = buckets.entrySet().iterator();
+
+                    if (!clockHand.hasNext()) {
+                        return;
+                    }
+                }
+
+                Entry<String, Bucket> entry = clockHand.next();
+                Bucket bucket = entry.getValue();
+
+                stepsSinceFullVictim++;
+
+                if (bucket.clearReferenced(System.nanoTime())) {
+                    continue;
+                }
+
+                if (bucket.retireIfFull()) {
+                    stepsSinceFullVictim = 0;
+                    buckets.remove(entry.getKey(), bucket);
+                } else if (stepsSinceFullVictim > buckets.size()
+                        && bucket.retire()) {
+                    buckets.remove(entry.getKey(), bucket);
+                }
+            }
+        } finally {
+            clockLock.unlock();
+        }
+    }
+
+    /**
+     * Retires a bucket if it is full and hasn't been used for the idle
+     * timeout. Idle time is measured from the first call which finds the
+     * bucket unused, so it is only as precise as the interval between calls.
+     * 
+     * @param bucket
+     * @param nowNanos
+     * @return true if the bucket was retired, and should be removed by the
+     *         caller
+     */
+    boolean retireIfIdle(final Bucket bucket, final long nowNanos) {
+        if (idleTimeoutNanos == 0 || bucket.clearReferenced(nowNanos)) {
+            return false;
+        }
+
+        return nowNanos - bucket.getIdleSinceNanos() >= idleTimeoutNanos
+                && bucket.retireIfFull();
+    }
+}
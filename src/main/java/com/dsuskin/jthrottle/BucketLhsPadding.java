@@ -0,0 +1,11 @@
+package com.dsuskin.jthrottle;
+
+/**
+ * Cache line padding in front of {@link BucketState}. Fields are laid out
+ * superclass first, so keeping the padding in a superclass guarantees it ends
+ * up in front of the state word.
+ * 
+ */
+abstract class BucketLhsPadding {
+    long p01, p02, p03, p04, p05, p06, p07;
+}
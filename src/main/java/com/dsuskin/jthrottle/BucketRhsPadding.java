@@ -0,0 +1,15 @@
+package com.dsuskin.jthrottle;
+
+/**
+ * Cache line padding behind {@link BucketState}, so that the state word of a
+ * hot bucket doesn't share a cache line with whatever gets allocated next to
+ * it.
+ * 
+ */
+abstract class BucketRhsPadding extends BucketState {
+    long p11, p12, p13, p14, p15, p16, p17;
+
+    BucketRhsPadding(long initialState) {
+        super(initialState);
+    }
+}
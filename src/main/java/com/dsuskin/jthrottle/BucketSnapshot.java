@@ -0,0 +1,377 @@
+package com.dsuskin.jthrottle;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bucket state saved to a file, so that a restarted throttler doesn't hand
+ * every caller a full bucket straight away.
+ *
+ * The file is a header, a table of fixed-size entries sorted by the hash of
+ * each bucket's operation name, and then the names themselves. It is mapped
+ * rather than read, so opening a snapshot costs the same however many buckets
+ * it holds, and each bucket is found by a binary search the first time it's
+ * asked for. Refill times are saved against the wall clock, since
+ * {@link System#nanoTime()} means nothing to another process.
+ *
+ */
+final class BucketSnapshot {
+
+    private static final int MAGIC = 0x6A74736E;
+    private static final int VERSION = 1;
+
+    /**
+     * Magic, version, entry count, unused, time written and the time by which
+     * every bucket would be full again.
+     */
+    private static final int HEADER_SIZE = 32;
+    private static final int COUNT_OFFSET = 8;
+    private static final int WRITTEN_OFFSET = 16;
+    private static final int FULL_BY_OFFSET = 24;
+
+    /**
+     * Name hash, name position and length, tokens, capacity, and the time
+     * between the last refill and the snapshot.
+     */
+    private static final int ENTRY_SIZE = 24;
+    private static final int NAME_POSITION_OFFSET = 4;
+    private static final int NAME_LENGTH_OFFSET = 8;
+    private static final int TOKENS_OFFSET = 12;
+    private static final int CAPACITY_OFFSET = 16;
+    private static final int AGE_OFFSET = 20;
+
+    private static final long NANOS_PER_MILLI = 1000000;
+    private static final long MILLIS_PER_INCREMENT = TokenBucketState.TICK_SNAP_INCREMENT_NANOS
+            / NANOS_PER_MILLI;
+
+    /**
+     * Only ever read with absolute gets, so it can be shared between threads.
+     */
+    private final ByteBuffer buffer;
+    private final int count;
+    private final long writtenMillis;
+    private final long fullByMillis;
+
+    private BucketSnapshot(final ByteBuffer buffer, final Path file)
+            throws IOException {
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a bucket snapshot: " + file);
+        }
+
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unknown snapshot version "
+                    + buffer.getInt(4) + ": " + file);
+        }
+
+        this.buffer = buffer;
+        this.count = buffer.getInt(COUNT_OFFSET);
+        this.writtenMillis = buffer.getLong(WRITTEN_OFFSET);
+        this.fullByMillis = buffer.getLong(FULL_BY_OFFSET);
+
+        if (count < 0
+                || HEADER_SIZE + (long) count * ENTRY_SIZE > buffer.limit()) {
+            throw new IOException("Truncated snapshot: " + file);
+        }
+    }
+
+    /**
+     * Maps a snapshot. Nothing but the header is read until buckets are
+     * looked up.
+     *
+     * @param file
+     * @return the snapshot
+     * @throws IOException
+     *             if the file can't be mapped, or isn't a snapshot
+     */
+    static BucketSnapshot read(final Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+
+            if (size < HEADER_SIZE) {
+                throw new IOException("Not a bucket snapshot: " + file);
+            }
+
+            return new BucketSnapshot(channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, size), file);
+        } finally {
+            // the mapping outlives the channel
+            channel.close();
+        }
+    }
+
+    /**
+     * Saves the state of the given buckets. The snapshot is written next to
+     * the file and renamed over it, so a reader never sees half of one.
+     * Buckets retired while the snapshot is taken are saved as full.
+     *
+     * @param file
+     * @param buckets
+     * @throws IOException
+     *             if the snapshot can't be written, or would be more than 2GB
+     */
+    static void write(final Path file, final List<Bucket> buckets)
+            throws IOException {
+        final int count = buckets.size();
+        final long[] states = new long[count];
+        final long nowNanos = System.nanoTime();
+        final long nowMillis = System.currentTimeMillis();
+
+        // the hash in the upper half and the index in the lower, so that
+        // sorting these sorts the buckets by hash
+        final long[] order = new long[count];
+        long namesSize = 0;
+
+        for (int i = 0; i < count; i++) {
+            Bucket bucket = buckets.get(i);
+            states[i] = bucket.getState();
+            order[i] = ((long) bucket.getOperationName().hashCode() << 32) | i;
+            namesSize += 2L * bucket.getOperationName().length();
+        }
+
+        Arrays.sort(order);
+
+        long size = HEADER_SIZE + (long) count * ENTRY_SIZE + namesSize;
+
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Too many buckets to snapshot: " + count);
+        }
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        FileChannel channel = FileChannel.open(temp,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE,
+                    0, size);
+            int namePosition = HEADER_SIZE + count * ENTRY_SIZE;
+            long fullByMillis = nowMillis;
+
+            for (int i = 0; i < count; i++) {
+                int index = (int) order[i];
+                Bucket bucket = buckets.get(index);
+                String name = bucket.getOperationName();
+                long state = states[index];
+                int capacity = bucket.getTokenCapacity();
+                int tokens = capacity;
+                long ageMillis = 0;
+
+                if (state == TokenBucketState.RETIRED) {
+                    // saved as full
+                } else if (bucket.getAlgorithm() != Algorithm.TOKEN_BUCKET) {
+                    // the other algorithms are always up to date
+                    tokens = Math.max(0, bucket.getTokens());
+                } else {
+                    tokens = TokenBucketState.tokens(state);
+                    ageMillis = Math.min(Integer.MAX_VALUE, Math.max(0,
+                            (nowNanos - TokenBucketState.tickNanos(state))
+                                    / NANOS_PER_MILLI));
+                }
+
+                int position = HEADER_SIZE + i * ENTRY_SIZE;
+                out.putInt(position, name.hashCode());
+                out.putInt(position + NAME_POSITION_OFFSET, namePosition);
+                out.putInt(position + NAME_LENGTH_OFFSET, name.length());
+                out.putInt(position + TOKENS_OFFSET, tokens);
+                out.putInt(position + CAPACITY_OFFSET, capacity);
+                out.putInt(position + AGE_OFFSET, (int) ageMillis);
+
+                for (int c = 0; c < name.length(); c++) {
+                    out.putChar(namePosition, name.charAt(c));
+                    namePosition += 2;
+                }
+
+                fullByMillis = Math.max(fullByMillis, fullByMillis(tokens,
+                        capacity, bucket.getRefillTokens(),
+                        bucket.getRefillPeriodNanos(), nowMillis - ageMillis));
+            }
+
+            out.putInt(0, MAGIC);
+            out.putInt(4, VERSION);
+            out.putInt(COUNT_OFFSET, count);
+            out.putLong(WRITTEN_OFFSET, nowMillis);
+            out.putLong(FULL_BY_OFFSET, fullByMillis);
+            out.force();
+        } finally {
+            channel.close();
+        }
+
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     *
+     * @param tokens
+     * @param capacity
+     * @param refillTokens
+     * @param refillPeriodNanos
+     * @param lastRefillMillis
+     * @return the wall clock time by which the bucket will be full
+     */
+    private static long fullByMillis(final int tokens, final int capacity,
+            final long refillTokens, final long refillPeriodNanos,
+            final long lastRefillMillis) {
+        if (tokens >= capacity) {
+            return lastRefillMillis;
+        }
+
+        if (refillTokens <= 0) {
+            return Long.MAX_VALUE;
+        }
+
+        long refillMillis = GcraState.cost(
+                (long) capacity - tokens, refillTokens, refillPeriodNanos)
+                / NANOS_PER_MILLI;
+
+        if (refillMillis >= Long.MAX_VALUE - lastRefillMillis
+                - MILLIS_PER_INCREMENT - 1) {
+            return Long.MAX_VALUE;
+        }
+
+        // an extra increment, since most buckets only refill on increments
+        return lastRefillMillis + MILLIS_PER_INCREMENT + refillMillis + 1;
+    }
+
+    /**
+     * Once this is true, every bucket in the snapshot would have refilled
+     * completely, so it can be thrown away.
+     *
+     * @param nowMillis
+     * @return true if the snapshot no longer says anything a new bucket
+     *         doesn't
+     */
+    boolean isExpired(final long nowMillis) {
+        return nowMillis >= fullByMillis;
+    }
+
+    /**
+     * Works out how many tokens a new bucket should start with. Saved tokens
+     * are scaled to the bucket's capacity, in case its rule has changed since,
+     * and the bucket is given the tokens it has earned since it was last
+     * refilled.
+     *
+     * @param operationName
+     * @param rule
+     *            The rule the new bucket is for
+     * @param nowMillis
+     * @return the tokens to start with, which is the capacity if the snapshot
+     *         doesn't have the bucket
+     */
+    int restoreTokens(final String operationName, final Rule rule,
+            final long nowMillis) {
+        final int tokenCapacity = rule.getTokenBucketCapacity();
+        int entry = find(operationName);
+
+        if (entry < 0) {
+            return tokenCapacity;
+        }
+
+        int position = HEADER_SIZE + entry * ENTRY_SIZE;
+        int tokens = Throttler.scaleTokens(
+                buffer.getInt(position + TOKENS_OFFSET),
+                buffer.getInt(position + CAPACITY_OFFSET), tokenCapacity);
+        long lastRefillMillis = writtenMillis
+                - buffer.getInt(position + AGE_OFFSET);
+        long elapsedMillis = Math.min(Integer.MAX_VALUE,
+                Math.max(0, nowMillis - lastRefillMillis));
+        long earned;
+
+        if (rule.getAlgorithm() != Algorithm.TOKEN_BUCKET) {
+            earned = GcraState.tokensFor(elapsedMillis
+                    * NANOS_PER_MILLI, rule.getRefillTokens(),
+                    rule.getRefillPeriodNanos(), false);
+        } else {
+            earned = elapsedMillis / MILLIS_PER_INCREMENT
+                    * rule.getTokenBucketRefilledTokensPerSecond()
+                    / TokenBucketState.MAX_TICKS_PER_SECOND;
+        }
+
+        return (int) Math.min(tokenCapacity, tokens + earned);
+    }
+
+    /**
+     *
+     * @return the number of buckets in the snapshot
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     *
+     * @param operationName
+     * @return the entry for the operation, or -1 if there isn't one
+     */
+    private int find(final String operationName) {
+        int hash = operationName.hashCode();
+        int low = 0;
+        int high = count - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int middleHash = hashAt(middle);
+
+            if (middleHash < hash) {
+                low = middle + 1;
+            } else if (middleHash > hash) {
+                high = middle - 1;
+            } else {
+                // names with the same hash sit next to each other
+                for (int i = middle; i >= 0 && hashAt(i) == hash; i--) {
+                    if (nameEquals(i, operationName)) {
+                        return i;
+                    }
+                }
+
+                for (int i = middle + 1; i < count && hashAt(i) == hash; i++) {
+                    if (nameEquals(i, operationName)) {
+                        return i;
+                    }
+                }
+
+                return -1;
+            }
+        }
+
+        return -1;
+    }
+
+    private int hashAt(final int entry) {
+        return buffer.getInt(HEADER_SIZE + entry * ENTRY_SIZE);
+    }
+
+    /**
+     * Compares in place, so that looking up a bucket doesn't build a string.
+     *
+     * @param entry
+     * @param operationName
+     * @return true if the entry is for the operation
+     */
+    private boolean nameEquals(final int entry, final String operationName) {
+        int position = HEADER_SIZE + entry * ENTRY_SIZE;
+        int namePosition = buffer.getInt(position + NAME_POSITION_OFFSET);
+        int length = buffer.getInt(position + NAME_LENGTH_OFFSET);
+
+        if (length != operationName.length() || namePosition < 0
+                || namePosition + 2L * length > buffer.limit()) {
+            return false;
+        }
+
+        for (int c = 0; c < length; c++) {
+            if (buffer.getChar(namePosition + 2 * c) != operationName.charAt(c)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,29 @@
+package com.dsuskin.jthrottle;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * The mutable part of a {@link Bucket}: a single word which is only ever
+ * updated with compare-and-set, so readers and writers never block each
+ * other.
+ * 
+ */
+abstract class BucketState extends BucketLhsPadding {
+
+    private static final AtomicLongFieldUpdater<BucketState> STATE_UPDATER = AtomicLongFieldUpdater
+            .newUpdater(BucketState.class, "state");
+
+    private volatile long state;
+
+    BucketState(long initialState) {
+        this.state = initialState;
+    }
+
+    final long getState() {
+        return state;
+    }
+
+    final boolean compareAndSetState(long expect, long update) {
+        return STATE_UPDATER.compareAndSet(this, expect, update);
+    }
+}
@@ -0,0 +1,326 @@
+package com.dsuskin.jthrottle;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keyed buckets for when there are far too many keys to give each one a
+ * {@link Bucket} object. Every bucket is a slot in a few primitive arrays: its
+ * key, the index of its rule, and its state, packed the same way as a
+ * {@link Bucket}'s by the rule's {@link Limiter}, whatever its
+ * {@link Algorithm}. That is 20 bytes a slot, and there are about twice as
+ * many slots as keys, so tens of millions of keys take a few hundred
+ * megabytes and give the garbage collector nothing to trace.
+ *
+ * The table is set associative: a key can only live in one of the eight slots
+ * of the set it hashes to, so finding it never takes more than eight probes,
+ * and nothing in the table ever locks. A slot is taken over by swapping its
+ * state for a marker, after which its key and rule are written and then its
+ * new state is published; anyone who comes across a marked slot waits for it
+ * to be published. Buckets are refilled lazily, as they are used, since there
+ * is nothing to tick through.
+ *
+ * When a new key's set is full, it takes over the slot of a bucket in the set
+ * which is full. A full bucket is no different from one which has never been
+ * used, so nothing is lost; the evicted key gets a fresh bucket next time, as
+ * with the {@link EvictionPolicy} of a {@link Throttler}. If none of them are
+ * full, the new key's calls are throttled until one is, and counted as
+ * overflows; handing out a fresh bucket instead would let keys which are
+ * using theirs up take turns evicting each other and never be held back.
+ *
+ * Two calls for a new key can claim two slots at once, so before publishing a
+ * slot, a claim looks for the key in the rest of the set, and puts the slot
+ * back as it was if it's there.
+ *
+ */
+public class CompactBucketStore {
+
+    /**
+     * Leaves room for the table to be twice the size of the key limit.
+     */
+    private static final int MAX_KEYS = 1 << 29;
+
+    private static final int WAYS = 8;
+
+    private static final long EMPTY = 0;
+
+    /**
+     * State of a slot whose key is being written. No limiter ever packs a state
+     * this low.
+     */
+    private static final long CLAIMED = Long.MIN_VALUE + 1;
+
+    /**
+     * Permits which stand for the cost of a call under the rule; see
+     * {@link Rule#withCost(int)}.
+     */
+    private static final int RULE_COST = 0;
+
+    private final RuleTrie rules;
+    private final Map<Rule, Integer> ruleIndexes;
+    private final Limiter[] limiters;
+    private final int[] costs;
+
+    private final int setMask;
+    private final AtomicLongArray keys;
+    private final AtomicIntegerArray slotRules;
+    private final AtomicLongArray states;
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong overflows = new AtomicLong();
+
+    /**
+     *
+     * @param rules
+     * @param maxKeys
+     *            The number of keys to size the table for
+     */
+    public CompactBucketStore(final ConcurrentNavigableMap<String, Rule> rules,
+            final int maxKeys) {
+        if (maxKeys <= 0 || maxKeys > MAX_KEYS) {
+            throw new IllegalArgumentException("Key limit out of range: "
+                    + maxKeys);
+        }
+
+        this.rules = new RuleTrie(rules.values());
+        this.ruleIndexes = new HashMap<Rule, Integer>();
+        this.limiters = new Limiter[rules.size()];
+        this.costs = new int[rules.size()];
+
+        int index = 0;
+        for (Rule rule : rules.values()) {
+            ruleIndexes.put(rule, index);
+            limiters[index] = rule.getLimiter();
+            costs[index] = rule.getCost();
+            index++;
+        }
+
+        int sets = Math.max(1,
+                Integer.highestOneBit((maxKeys * 2 - 1) / WAYS) << 1);
+        this.setMask = sets - 1;
+        this.keys = new AtomicLongArray(sets * WAYS);
+        this.slotRules = new AtomicIntegerArray(sets * WAYS);
+        this.states = new AtomicLongArray(sets * WAYS);
+    }
+
+    /**
+     * Looks up the rule for an operation once, so that keyed calls don't need
+     * to match it each time.
+     *
+     * @param operationName
+     * @return the index to pass to {@link #throttle(int, long)}, or -1 if no
+     *         rule matches the operation
+     */
+    public int ruleIndex(final String operationName) {
+        Rule rule = rules.findLongestPrefixRule(operationName);
+
+        return rule == null ? -1 : ruleIndexes.get(rule);
+    }
+
+    /**
+     * Should a keyed call be throttled? Calls with no matching rule are. Each
+     * call takes the rule's cost in tokens; suffix costs don't apply, as keyed
+     * calls have no operation name of their own.
+     *
+     * @param ruleIndex
+     *            From {@link #ruleIndex(String)}
+     * @param key
+     * @return true if the call should be throttled
+     */
+    public boolean throttle(final int ruleIndex, final long key) {
+        return acquire(ruleIndex, key, RULE_COST) == 0;
+    }
+
+    /**
+     * Takes several tokens from a keyed bucket at once, or none at all.
+     *
+     * @param ruleIndex
+     *            From {@link #ruleIndex(String)}
+     * @param key
+     * @param permits
+     *            The number of tokens to take
+     * @return true if the call should go ahead, false if it should be
+     *         throttled
+     */
+    public boolean tryAcquire(final int ruleIndex, final long key,
+            final int permits) {
+        Bucket.checkPermits(permits);
+
+        return acquire(ruleIndex, key, permits) == permits;
+    }
+
+    /**
+     *
+     * @return the number of keys with a bucket
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     *
+     * @return the number of calls throttled because every bucket in their
+     *         key's set was in use
+     */
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    /**
+     *
+     * @param ruleIndex
+     * @param key
+     * @param permits
+     *            The tokens to take, or {@link #RULE_COST}
+     * @return the number of tokens taken, either 0 or all of them
+     */
+    private int acquire(final int ruleIndex, final long key, final int permits) {
+        if (ruleIndex < -1 || ruleIndex >= limiters.length) {
+            throw new IllegalArgumentException("No such rule index: "
+                    + ruleIndex);
+        }
+
+        if (ruleIndex == -1) {
+            return 0;
+        }
+
+        final int wanted = permits == RULE_COST ? costs[ruleIndex] : permits;
+
+        int set = (hash(key, ruleIndex) & setMask) * WAYS;
+
+        retry: while (true) {
+            long nanoTime = System.nanoTime();
+            int victim = -1;
+            long victimState = EMPTY;
+
+            for (int slot = set; slot < set + WAYS; slot++) {
+                long current = states.get(slot);
+
+                // slots are only ever taken over, never emptied, so the empty
+                // ones are all at the end of the set
+                if (current == EMPTY) {
+                    victim = slot;
+                    victimState = EMPTY;
+                    break;
+                }
+
+                if (current == CLAIMED) {
+                    Thread.yield();
+                    continue retry;
+                }
+
+                int slotRule = slotRules.get(slot);
+                Limiter limiter = limiters[slotRule];
+                long now = limiter.now(nanoTime);
+                long refilled = limiter.refill(current, now);
+                long tokens = limiter.tokens(refilled, now);
+
+                if (keys.get(slot) == key && slotRule == ruleIndex) {
+                    if (tokens < wanted) {
+                        return 0;
+                    }
+
+                    // the state is only swapped from what was read before the
+                    // key, so a slot taken over since then makes this fail;
+                    // unless it ended up in exactly the same state, in which
+                    // case the bucket it now holds is full anyway
+                    if (states.compareAndSet(slot, current,
+                            limiter.take(refilled, now, wanted))) {
+                        return wanted;
+                    }
+                    continue retry;
+                }
+
+                if (victim == -1 && tokens >= limiter.getTokenCapacity()) {
+                    victim = slot;
+                    victimState = current;
+                }
+            }
+
+            if (victim == -1) {
+                overflows.incrementAndGet();
+                return 0;
+            }
+
+            if (claim(set, victim, victimState, key, ruleIndex, nanoTime)
+                    && victimState == EMPTY) {
+                size.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Hands a slot over to a key, with a full bucket.
+     *
+     * @param set
+     *            The first slot of the slot's set
+     * @param slot
+     * @param expected
+     *            The state the slot has to be in to be taken over
+     * @param key
+     * @param ruleIndex
+     * @param nanoTime
+     * @return true if the slot was taken over
+     */
+    private boolean claim(final int set, final int slot, final long expected,
+            final long key, final int ruleIndex, final long nanoTime) {
+        if (!states.compareAndSet(slot, expected, CLAIMED)) {
+            return false;
+        }
+
+        long evictedKey = keys.get(slot);
+        int evictedRule = slotRules.get(slot);
+        slotRules.set(slot, ruleIndex);
+        keys.set(slot, key);
+
+        // the key is written before looking, and read before the rule, so of
+        // two claims for the same key which both get this far, at least one
+        // sees the other
+        if (holds(set, slot, key, ruleIndex)) {
+            keys.set(slot, evictedKey);
+            slotRules.set(slot, evictedRule);
+            states.set(slot, expected);
+            return false;
+        }
+
+        Limiter limiter = limiters[ruleIndex];
+        states.set(slot, limiter.pack(limiter.getTokenCapacity(),
+                limiter.now(nanoTime)));
+
+        return true;
+    }
+
+    /**
+     *
+     * @param set
+     *            The first slot of the set
+     * @param except
+     *            A slot not to look in
+     * @param key
+     * @param ruleIndex
+     * @return true if any other slot in the set holds the key, or is being
+     *         claimed for it
+     */
+    private boolean holds(final int set, final int except, final long key,
+            final int ruleIndex) {
+        for (int slot = set; slot < set + WAYS; slot++) {
+            if (slot != except && keys.get(slot) == key
+                    && slotRules.get(slot) == ruleIndex
+                    && states.get(slot) != EMPTY) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static int hash(final long key, final int ruleIndex) {
+        long mixed = (key + ruleIndex) * 0x9E3779B97F4A7C15L + ruleIndex;
+
+        return (int) (mixed ^ (mixed >>> 32));
+    }
+}
@@ -0,0 +1,533 @@
+package com.dsuskin.jthrottle;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rules compiled ahead of time into a file which is mapped and queried in
+ * place, for rule sets so big that parsing them, or even just building a
+ * {@link RuleTrie} of them, makes starting up slow. Opening compiled rules
+ * reads nothing but the header, so it costs the same however many rules
+ * there are, and only the rules operations actually match are ever turned
+ * into {@link Rule}s.
+ *
+ * The file is a header, a table of the position of each rule's record, and
+ * the records, sorted by the UTF-8 bytes of their operation names. Each
+ * record holds the index of its parent, the rule with the longest operation
+ * name which is a prefix of its own, so the longest prefix of an operation
+ * is found by a binary search for the last rule at or before it, and then a
+ * walk up its parents until one is a prefix of the operation.
+ *
+ * Compile rules with {@link #compile(Reader, Path)}, or from the command
+ * line:
+ *
+ * <pre>
+ * java -cp jthrottle.jar com.dsuskin.jthrottle.CompiledRules rules.json rules.bin
+ * </pre>
+ *
+ */
+public final class CompiledRules implements RuleIndex {
+
+    private static final int MAGIC = 0x6A747275;
+    private static final int VERSION = 1;
+
+    /**
+     * Magic, version, rule count and unused.
+     */
+    private static final int HEADER_SIZE = 16;
+    private static final int COUNT_OFFSET = 8;
+
+    /**
+     * Parent and name length, then the name, the algorithm and flags, the
+     * capacity, five longs of rate, minimum rate and target latency, the
+     * cost and the suffix cost count, then the suffix costs.
+     */
+    private static final int RECORD_FIXED_SIZE = 8 + 2 + 4 + 5 * 8 + 4 + 4;
+    private static final int NAME_OFFSET = 8;
+
+    private static final byte AGGREGATE_FLAG = 1;
+
+    private static final Rule[] NO_RULES = new Rule[0];
+
+    private static final Algorithm[] ALGORITHMS = Algorithm.values();
+
+    /**
+     * Only ever read with absolute gets, so it can be shared between threads.
+     */
+    private final ByteBuffer buffer;
+    private final int count;
+
+    /**
+     * The rules which have been looked up so far, by index, so that an
+     * operation always gets the same rule back.
+     */
+    private final ConcurrentMap<Integer, Rule> decoded = new ConcurrentHashMap<Integer, Rule>();
+
+    private CompiledRules(final ByteBuffer buffer, final Path file)
+            throws IOException {
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not compiled rules: " + file);
+        }
+
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unknown compiled rules version "
+                    + buffer.getInt(4) + ": " + file);
+        }
+
+        this.buffer = buffer;
+        this.count = buffer.getInt(COUNT_OFFSET);
+
+        if (count < 0 || HEADER_SIZE + 4L * count > buffer.limit()) {
+            throw new IOException("Truncated compiled rules: " + file);
+        }
+    }
+
+    /**
+     * Maps compiled rules. Nothing but the header is read until rules are
+     * looked up.
+     *
+     * @param file
+     * @return the rules
+     * @throws IOException
+     *             if the file can't be mapped, or isn't compiled rules
+     */
+    public static CompiledRules open(final Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+
+            if (size < HEADER_SIZE) {
+                throw new IOException("Not compiled rules: " + file);
+            }
+
+            return new CompiledRules(channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, size), file);
+        } finally {
+            // the mapping outlives the channel
+            channel.close();
+        }
+    }
+
+    /**
+     * Compiles a rule file; see {@link RuleFactory#parseRules(Reader)}.
+     *
+     * @param in
+     * @param file
+     * @throws IOException
+     *             if the compiled rules can't be written
+     */
+    public static void compile(final Reader in, final Path file)
+            throws IOException {
+        compile(RuleFactory.parseRules(in).values(), file);
+    }
+
+    /**
+     * Compiles rules. They are written next to the file and renamed over it,
+     * so a reader never sees half of them.
+     *
+     * @param rules
+     *            With different operation names
+     * @param file
+     * @throws IOException
+     *             if the compiled rules can't be written, or would be more
+     *             than 2GB
+     */
+    public static void compile(final Collection<Rule> rules, final Path file)
+            throws IOException {
+        final int count = rules.size();
+        final Rule[] sorted = rules.toArray(new Rule[count]);
+        final byte[][] names = new byte[count][];
+        final Integer[] order = new Integer[count];
+
+        for (int i = 0; i < count; i++) {
+            names[i] = utf8(sorted[i].getOperationName());
+            order[i] = i;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            @Override
+            public int compare(final Integer first, final Integer second) {
+                return compareNames(names[first], names[second]);
+            }
+        });
+
+        // the position of each record, and its parent
+        final int[] positions = new int[count];
+        final int[] parents = new int[count];
+        final int[] ancestors = new int[count];
+        int depth = 0;
+        long position = HEADER_SIZE + 4L * count;
+
+        for (int i = 0; i < count; i++) {
+            byte[] name = names[order[i]];
+
+            // sorted, a rule's descendants follow it, so its ancestors are
+            // the rules still on the stack which are prefixes of it
+            while (depth > 0
+                    && !isPrefix(names[order[ancestors[depth - 1]]], name)) {
+                depth--;
+            }
+
+            if (depth > 0 && Arrays.equals(names[order[ancestors[depth - 1]]],
+                    name)) {
+                throw new IllegalArgumentException(
+                        "Rules need different operation names: "
+                                + sorted[order[i]].getOperationName());
+            }
+
+            parents[i] = depth > 0 ? ancestors[depth - 1] : -1;
+            ancestors[depth++] = i;
+            // checked below, before anything is written
+            positions[i] = (int) position;
+            position += recordSize(name, sorted[order[i]]);
+        }
+
+        if (position > Integer.MAX_VALUE) {
+            throw new IOException("Too many rules to compile: " + count);
+        }
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            out.writeInt(0);
+
+            for (int i = 0; i < count; i++) {
+                out.writeInt(positions[i]);
+            }
+
+            for (int i = 0; i < count; i++) {
+                writeRecord(out, parents[i], names[order[i]], sorted[order[i]]);
+            }
+        } finally {
+            out.close();
+        }
+
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static long recordSize(final byte[] name, final Rule rule) {
+        long size = RECORD_FIXED_SIZE + name.length;
+
+        for (String suffix : rule.getSuffixCosts().keySet()) {
+            size += 8 + utf8(suffix).length;
+        }
+
+        return size;
+    }
+
+    private static void writeRecord(final DataOutputStream out,
+            final int parent, final byte[] name, final Rule rule)
+            throws IOException {
+        out.writeInt(parent);
+        out.writeInt(name.length);
+        out.write(name);
+        out.writeByte(rule.getAlgorithm().ordinal());
+        out.writeByte(rule.isAggregate() ? AGGREGATE_FLAG : 0);
+        out.writeInt(rule.getTokenBucketCapacity());
+        out.writeLong(rule.getRefillTokens());
+        out.writeLong(rule.getRefillPeriodNanos());
+        out.writeLong(rule.getMinRefillTokens());
+        out.writeLong(rule.getMinRefillPeriodNanos());
+        out.writeLong(rule.getTargetLatencyNanos());
+        out.writeInt(rule.getCost());
+        out.writeInt(rule.getSuffixCosts().size());
+
+        for (Map.Entry<String, Integer> suffixCost : rule.getSuffixCosts()
+                .entrySet()) {
+            byte[] suffix = utf8(suffixCost.getKey());
+            out.writeInt(suffix.length);
+            out.write(suffix);
+            out.writeInt(suffixCost.getValue());
+        }
+    }
+
+    @Override
+    public Rule findLongestPrefixRule(final CharSequence operationName) {
+        int rule = findLongestPrefix(utf8(operationName));
+
+        return rule < 0 ? null : ruleAt(rule);
+    }
+
+    @Override
+    public Rule[] findAggregateRules(final CharSequence operationName) {
+        List<Rule> found = null;
+
+        // every ancestor of the longest prefix is a prefix too
+        for (int rule = findLongestPrefix(utf8(operationName)); rule >= 0; rule = parent(rule)) {
+            if ((buffer.get(flagsPosition(rule)) & AGGREGATE_FLAG) != 0) {
+                if (found == null) {
+                    found = new ArrayList<Rule>();
+                }
+
+                found.add(ruleAt(rule));
+            }
+        }
+
+        return found == null ? NO_RULES : found.toArray(new Rule[found
+                .size()]);
+    }
+
+    /**
+     *
+     * @return the number of rules
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     *
+     * @param name
+     * @return the index of the rule whose operation name is the longest
+     *         prefix of the name, or -1 if there isn't one
+     */
+    private int findLongestPrefix(final byte[] name) {
+        int low = 0;
+        int high = count - 1;
+
+        // the last rule at or before the name
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int compared = compareName(middle, name);
+
+            if (compared < 0) {
+                low = middle + 1;
+            } else if (compared > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+
+        // anything sorted between a prefix of the name and the name starts
+        // with that prefix, so the longest prefix is this rule or one of its
+        // ancestors
+        int rule = high;
+
+        while (rule >= 0 && !isPrefix(rule, name)) {
+            rule = parent(rule);
+        }
+
+        return rule;
+    }
+
+    private Rule ruleAt(final int index) {
+        Rule rule = decoded.get(index);
+
+        if (rule == null) {
+            Rule newRule = decode(index);
+            rule = decoded.putIfAbsent(index, newRule);
+
+            if (rule == null) {
+                rule = newRule;
+            }
+        }
+
+        return rule;
+    }
+
+    private Rule decode(final int index) {
+        int position = recordPosition(index);
+        int nameLength = buffer.getInt(position + 4);
+        String name = string(position + NAME_OFFSET, nameLength);
+        position += NAME_OFFSET + nameLength;
+
+        Algorithm algorithm = ALGORITHMS[buffer.get(position)];
+        boolean aggregate = (buffer.get(position + 1) & AGGREGATE_FLAG) != 0;
+        int capacity = buffer.getInt(position + 2);
+        long refillTokens = buffer.getLong(position + 6);
+        long refillPeriodNanos = buffer.getLong(position + 14);
+        long minRefillTokens = buffer.getLong(position + 22);
+        long minRefillPeriodNanos = buffer.getLong(position + 30);
+        long targetLatencyNanos = buffer.getLong(position + 38);
+        int cost = buffer.getInt(position + 46);
+        int suffixCount = buffer.getInt(position + 50);
+        position += 54;
+
+        Rule rule;
+
+        if (algorithm == Algorithm.TOKEN_BUCKET) {
+            // which may not refill at all
+            rule = new Rule(name, (int) refillTokens, capacity);
+        } else {
+            rule = new Rule(name, algorithm, refillTokens, refillPeriodNanos,
+                    TimeUnit.NANOSECONDS, capacity);
+        }
+
+        if (algorithm == Algorithm.ADAPTIVE) {
+            rule = rule.asAdaptive(minRefillTokens, minRefillPeriodNanos,
+                    TimeUnit.NANOSECONDS, targetLatencyNanos,
+                    TimeUnit.NANOSECONDS);
+        }
+
+        if (aggregate) {
+            rule = rule.asAggregate();
+        }
+
+        if (cost != 1) {
+            rule = rule.withCost(cost);
+        }
+
+        for (int i = 0; i < suffixCount; i++) {
+            int suffixLength = buffer.getInt(position);
+            String suffix = string(position + 4, suffixLength);
+            position += 4 + suffixLength;
+            rule = rule.withSuffixCost(suffix, buffer.getInt(position));
+            position += 4;
+        }
+
+        return rule;
+    }
+
+    private int recordPosition(final int index) {
+        return buffer.getInt(HEADER_SIZE + 4 * index);
+    }
+
+    private int parent(final int index) {
+        return buffer.getInt(recordPosition(index));
+    }
+
+    private int flagsPosition(final int index) {
+        int position = recordPosition(index);
+
+        return position + NAME_OFFSET + buffer.getInt(position + 4) + 1;
+    }
+
+    /**
+     *
+     * @param index
+     * @param name
+     * @return how the rule's operation name compares to the name, as unsigned
+     *         bytes
+     */
+    private int compareName(final int index, final byte[] name) {
+        int position = recordPosition(index);
+        int length = buffer.getInt(position + 4);
+        position += NAME_OFFSET;
+
+        for (int i = 0; i < length && i < name.length; i++) {
+            int compared = (buffer.get(position + i) & 0xFF)
+                    - (name[i] & 0xFF);
+
+            if (compared != 0) {
+                return compared;
+            }
+        }
+
+        return length - name.length;
+    }
+
+    private boolean isPrefix(final int index, final byte[] name) {
+        int position = recordPosition(index);
+        int length = buffer.getInt(position + 4);
+        position += NAME_OFFSET;
+
+        if (length > name.length) {
+            return false;
+        }
+
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(position + i) != name[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private String string(final int position, final int length) {
+        byte[] bytes = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(position + i);
+        }
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] utf8(final CharSequence chars) {
+        return chars.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * UTF-8 sorted as unsigned bytes sorts by code point, the same however
+     * the names are read.
+     *
+     * @param first
+     * @param second
+     * @return
+     */
+    private static int compareNames(final byte[] first, final byte[] second) {
+        for (int i = 0; i < first.length && i < second.length; i++) {
+            int compared = (first[i] & 0xFF) - (second[i] & 0xFF);
+
+            if (compared != 0) {
+                return compared;
+            }
+        }
+
+        return first.length - second.length;
+    }
+
+    private static boolean isPrefix(final byte[] prefix, final byte[] name) {
+        if (prefix.length > name.length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (prefix[i] != name[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Compiles a rule file.
+     *
+     * @param args
+     *            The rule file, and the file to compile it to
+     * @throws IOException
+     *             if either file can't be read or written
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: CompiledRules <rules.json> <compiled>");
+            System.exit(1);
+        }
+
+        Reader in = Files.newBufferedReader(Paths.get(args[0]),
+                StandardCharsets.UTF_8);
+        try {
+            compile(in, Paths.get(args[1]));
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.dsuskin.jthrottle;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in power of two buckets of nanoseconds, which is coarse,
+ * but needs a fixed amount of memory and no allocation to record into.
+ * 
+ */
+final class DurationHistogram {
+
+    private final AtomicLongArray counts = new AtomicLongArray(Long.SIZE + 1);
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * 
+     * @param nanos
+     */
+    void record(final long nanos) {
+        long duration = Math.max(0, nanos);
+
+        // bucket b holds durations below 2^b
+        counts.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(duration));
+        totalNanos.addAndGet(duration);
+
+        long max;
+        do {
+            max = maxNanos.get();
+        } while (duration > max && !maxNanos.compareAndSet(max, duration));
+    }
+
+    long getCount() {
+        long count = 0;
+
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+
+        return count;
+    }
+
+    long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * 
+     * @param percentile
+     *            Between 0 and 100
+     * @return an upper bound on the given percentile of the recorded
+     *         durations, or 0 if there are none
+     */
+    long getPercentileNanos(final double percentile) {
+        long count = getCount();
+
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+
+            if (seen >= rank) {
+                return Math.min(getMaxNanos(), i == Long.SIZE ? Long.MAX_VALUE
+                        : (1L << i) - 1);
+            }
+        }
+
+        return getMaxNanos();
+    }
+}
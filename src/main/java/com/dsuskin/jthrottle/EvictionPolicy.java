@@ -0,0 +1,56 @@
+package com.dsuskin.jthrottle;
+
+/**
+ * Limits on how many buckets a {@link Throttler} holds on to. Without
+ * eviction, every distinct operation name passed to a throttler leaves a
+ * bucket behind for good.
+ * 
+ * Only full buckets are evicted for being idle, since a full bucket is
+ * recreated from its rule with exactly the same state. Buckets evicted to
+ * stay under the maximum bucket count are picked with a CLOCK (second
+ * chance) policy, and may not be full; their operations start over with a
+ * full bucket, so the maximum should be comfortably above the number of
+ * buckets in active use.
+ * 
+ */
+public final class EvictionPolicy {
+
+    /**
+     * Buckets are never evicted.
+     */
+    public static final EvictionPolicy NONE = new EvictionPolicy(0,
+            Integer.MAX_VALUE);
+
+    private final long idleTimeoutMillis;
+    private final int maxBuckets;
+
+    /**
+     * 
+     * @param idleTimeoutMillis
+     *            How long a full bucket must go unused before it is evicted by
+     *            {@link Throttler#tick()}, or 0 to never evict idle buckets
+     * @param maxBuckets
+     *            The most buckets the throttler should hold at once
+     */
+    public EvictionPolicy(final long idleTimeoutMillis, final int maxBuckets) {
+        if (idleTimeoutMillis < 0) {
+            throw new IllegalArgumentException(
+                    "Idle timeout must not be negative: " + idleTimeoutMillis);
+        }
+        if (maxBuckets <= 0) {
+            throw new IllegalArgumentException(
+                    "Maximum bucket count must be positive: " + maxBuckets);
+        }
+
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxBuckets = maxBuckets;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public int getMaxBuckets() {
+        return maxBuckets;
+    }
+}
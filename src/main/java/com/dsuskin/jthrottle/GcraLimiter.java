@@ -0,0 +1,129 @@
+package com.dsuskin.jthrottle;
+
+/**
+ * {@link Algorithm#GCRA}; see {@link GcraState}. Times are nanoseconds.
+ *
+ */
+final class GcraLimiter implements Limiter {
+
+    private final long refillTokens;
+    private final long refillPeriodNanos;
+    private final int tokenCapacity;
+
+    /**
+     * How long an empty bucket takes to fill.
+     */
+    private final long fillNanos;
+
+    /**
+     *
+     * @param refillTokens
+     *            Must be positive
+     * @param refillPeriodNanos
+     *            Must be positive, and multiplied by refillTokens must fit in
+     *            a long
+     * @param tokenCapacity
+     */
+    GcraLimiter(final long refillTokens, final long refillPeriodNanos,
+            final int tokenCapacity) {
+        this.refillTokens = refillTokens;
+        this.refillPeriodNanos = refillPeriodNanos;
+        this.tokenCapacity = tokenCapacity;
+        this.fillNanos = GcraState.cost(tokenCapacity, refillTokens,
+                refillPeriodNanos);
+    }
+
+    @Override
+    public Limiter forBucket() {
+        return this;
+    }
+
+    @Override
+    public Algorithm getAlgorithm() {
+        return Algorithm.GCRA;
+    }
+
+    @Override
+    public long now(final long nanoTime) {
+        return GcraState.at(nanoTime);
+    }
+
+    @Override
+    public long pack(final long tokens, final long now) {
+        return GcraState.pack(tokens, now, tokenCapacity, refillTokens,
+                refillPeriodNanos);
+    }
+
+    @Override
+    public long refill(final long state, final long now) {
+        return state;
+    }
+
+    @Override
+    public long tokens(final long state, final long now) {
+        return GcraState.tokens(state, now, tokenCapacity, refillTokens,
+                refillPeriodNanos);
+    }
+
+    @Override
+    public long take(final long state, final long now, final long tokens) {
+        return GcraState.take(state, now, tokens, refillTokens,
+                refillPeriodNanos);
+    }
+
+    @Override
+    public long waitNanos(final long state, final long nanoTime) {
+        // out of debt once the bucket is no more than a full bucket's worth
+        // of refilling away from full
+        return Math.max(0, state - fillNanos - GcraState.at(nanoTime));
+    }
+
+    @Override
+    public long refund(final long state, final long now, final long tokens) {
+        if (GcraState.isFull(state, now)) {
+            return state;
+        }
+
+        return Math.max(now, state
+                - GcraState.cost(tokens, refillTokens, refillPeriodNanos));
+    }
+
+    @Override
+    public long drain(final long state, final long now, final long tokens) {
+        long empty = GcraState.take(now, now, tokenCapacity, refillTokens,
+                refillPeriodNanos);
+
+        return Math.max(state, Math.min(empty, GcraState.take(state, now,
+                tokens, refillTokens, refillPeriodNanos)));
+    }
+
+    @Override
+    public boolean isFull(final long state, final long now) {
+        return GcraState.isFull(state, now);
+    }
+
+    @Override
+    public boolean needsRefill() {
+        return false;
+    }
+
+    @Override
+    public long nextRefillNanos(final long state) {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int getTokenCapacity() {
+        return tokenCapacity;
+    }
+
+    @Override
+    public long getRefillTokens() {
+        return refillTokens;
+    }
+
+    @Override
+    public long getRefillPeriodNanos() {
+        return refillPeriodNanos;
+    }
+}
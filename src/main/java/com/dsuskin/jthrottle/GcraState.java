@@ -0,0 +1,166 @@
+package com.dsuskin.jthrottle;
+
+/**
+ * The arithmetic behind the generic cell rate algorithm (GCRA), whose whole
+ * state is the {@link System#nanoTime()}, less an epoch, at which a bucket
+ * will next be full: its theoretical arrival time. Tokens are never stored; a
+ * bucket has as many as it has earned back since the state was in the past,
+ * so refills need no ticking and are exact to the nanosecond, with no 100ms
+ * grid. Otherwise it behaves exactly like a token bucket.
+ *
+ * A token is worth refillPeriodNanos / refillTokens nanoseconds, which all
+ * of the sums here keep as a fraction. Only the cost of each take is rounded,
+ * down to a whole nanosecond, so rates whose tokens are a whole number of
+ * nanoseconds apart are exact, and others are out by less than a nanosecond
+ * per token.
+ *
+ */
+final class GcraState {
+
+    /**
+     * States are nanoseconds since this point, which keeps them well away
+     * from {@link TokenBucketState#RETIRED}. It is a nanosecond in the past,
+     * so that no state is ever 0.
+     */
+    private static final long EPOCH_NANOS = System.nanoTime() - 1;
+
+    private GcraState() {
+    }
+
+    /**
+     *
+     * @param nanoTime
+     *            A {@link System#nanoTime()}
+     * @return the same time, in the same terms as a state
+     */
+    static long at(long nanoTime) {
+        // times read before the epoch was, while this class was loading,
+        // count as its first nanosecond
+        return Math.max(1, nanoTime - EPOCH_NANOS);
+    }
+
+    /**
+     *
+     * @param tokens
+     *            The tokens to start with, at most the capacity
+     * @param now
+     * @param tokenCapacity
+     * @param refillTokens
+     * @param refillPeriodNanos
+     * @return the state of a bucket which has that many tokens
+     */
+    static long pack(long tokens, long now, int tokenCapacity,
+            long refillTokens, long refillPeriodNanos) {
+        return add(now, cost(tokenCapacity - tokens, refillTokens,
+                refillPeriodNanos));
+    }
+
+    /**
+     *
+     * @param state
+     * @param now
+     * @param tokenCapacity
+     * @param refillTokens
+     * @param refillPeriodNanos
+     * @return the number of whole tokens the bucket has, which is negative if
+     *         it is in debt
+     */
+    static long tokens(long state, long now, int tokenCapacity,
+            long refillTokens, long refillPeriodNanos) {
+        if (state <= now) {
+            return tokenCapacity;
+        }
+
+        return tokenCapacity
+                - tokensFor(state - now, refillTokens, refillPeriodNanos, true);
+    }
+
+    /**
+     *
+     * @param state
+     * @param now
+     * @return true if the bucket has as many tokens as it can hold
+     */
+    static boolean isFull(long state, long now) {
+        return state <= now;
+    }
+
+    /**
+     *
+     * @param state
+     * @param now
+     * @param tokens
+     *            The number of tokens to take, however many there are
+     * @param refillTokens
+     * @param refillPeriodNanos
+     * @return the state once they are taken
+     */
+    static long take(long state, long now, long tokens, long refillTokens,
+            long refillPeriodNanos) {
+        return add(Math.max(state, now),
+                cost(tokens, refillTokens, refillPeriodNanos));
+    }
+
+    /**
+     *
+     * @param tokens
+     *            Must not be negative
+     * @param refillTokens
+     * @param refillPeriodNanos
+     * @return how long refilling takes to earn that many tokens, rounded
+     *         down to the nanosecond, or {@link Long#MAX_VALUE} if it's
+     *         longer than that
+     */
+    static long cost(long tokens, long refillTokens, long refillPeriodNanos) {
+        // tokens * period / refillTokens, split up so that no product can be
+        // bigger than refillTokens * period, which rules keep within a long
+        long wholePeriods = tokens / refillTokens;
+
+        if (wholePeriods > Long.MAX_VALUE / refillPeriodNanos) {
+            return Long.MAX_VALUE;
+        }
+
+        return add(wholePeriods * refillPeriodNanos, (tokens % refillTokens)
+                * refillPeriodNanos / refillTokens);
+    }
+
+    /**
+     *
+     * @param nanos
+     *            Must not be negative
+     * @param refillTokens
+     * @param refillPeriodNanos
+     * @param roundUp
+     *            Whether part of a token counts as a whole one
+     * @return the number of tokens refilling earns in that long, or
+     *         {@link Long#MAX_VALUE} if it's more than that
+     */
+    static long tokensFor(long nanos, long refillTokens,
+            long refillPeriodNanos, boolean roundUp) {
+        long wholePeriods = nanos / refillPeriodNanos;
+
+        if (wholePeriods > Long.MAX_VALUE / refillTokens) {
+            return Long.MAX_VALUE;
+        }
+
+        long part = (nanos % refillPeriodNanos) * refillTokens;
+
+        return add(wholePeriods * refillTokens, roundUp ? (part
+                + refillPeriodNanos - 1)
+                / refillPeriodNanos : part / refillPeriodNanos);
+    }
+
+    /**
+     *
+     * @param a
+     *            Must not be negative
+     * @param b
+     *            Must not be negative
+     * @return the sum, or {@link Long#MAX_VALUE} if it overflows
+     */
+    private static long add(long a, long b) {
+        long sum = a + b;
+
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+}
@@ -0,0 +1,258 @@
+package com.dsuskin.jthrottle;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Throttles against limits shared by a whole cluster. Each node leases
+ * tokens from a {@link TokenCoordinator} a chunk at a time and throttles
+ * calls against the tokens it holds, so a call only ever touches local
+ * state.
+ * 
+ * An operation's first call leases tokens there and then. After that, once a
+ * node is down to half a lease, more tokens are leased in the background, in
+ * a single batch for every operation which is running low. Leases nobody has
+ * used for a while are given back.
+ * 
+ * Since every token a node hands out was leased from the coordinator, the
+ * cluster never lets through more calls than the coordinator's buckets allow.
+ * It may let through fewer, as tokens sitting in other nodes' leases can't be
+ * used; that is at most the lease size for each node and operation, and only
+ * until idle leases are given back.
+ * 
+ */
+public class LeasedThrottler {
+
+    private static final long DEFAULT_RENEW_MILLIS = 10;
+    private static final long DEFAULT_IDLE_MILLIS = 1000;
+
+    private final TokenCoordinator coordinator;
+    private final int leaseSize;
+    private final long renewNanos;
+    private final long idleNanos;
+
+    private final ConcurrentMap<String, TokenLease> leases = new ConcurrentHashMap<String, TokenLease>();
+
+    /**
+     * Leases which are running low, waiting for the renewal thread.
+     */
+    private final Queue<TokenLease> renewals = new ConcurrentLinkedQueue<TokenLease>();
+    private final Thread worker;
+    private volatile boolean running;
+
+    /**
+     * Renews every 10ms, and gives back leases after a second of disuse.
+     * 
+     * @param coordinator
+     * @param leaseSize
+     *            How many tokens to lease at a time
+     */
+    public LeasedThrottler(final TokenCoordinator coordinator,
+            final int leaseSize) {
+        this(coordinator, leaseSize, DEFAULT_RENEW_MILLIS, DEFAULT_IDLE_MILLIS);
+    }
+
+    /**
+     * 
+     * @param coordinator
+     * @param leaseSize
+     *            How many tokens to lease at a time
+     * @param renewMillis
+     *            How often leases which are running low are renewed
+     * @param idleMillis
+     *            How long a lease can go unused before its tokens are given
+     *            back
+     */
+    public LeasedThrottler(final TokenCoordinator coordinator,
+            final int leaseSize, final long renewMillis, final long idleMillis) {
+        if (leaseSize <= 0) {
+            throw new IllegalArgumentException("Lease size must be positive: "
+                    + leaseSize);
+        }
+
+        if (renewMillis <= 0 || idleMillis <= 0) {
+            throw new IllegalArgumentException(
+                    "Renewal and idle intervals must be positive");
+        }
+
+        this.coordinator = coordinator;
+        this.leaseSize = leaseSize;
+        this.renewNanos = TimeUnit.MILLISECONDS.toNanos(renewMillis);
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.worker = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                runRenewals();
+            }
+        }, "jthrottle-lease");
+        this.worker.setDaemon(true);
+    }
+
+    /**
+     * Starts the renewal thread.
+     */
+    public void start() {
+        running = true;
+        worker.start();
+    }
+
+    /**
+     * Stops the renewal thread, and gives every lease back.
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(worker);
+
+        for (TokenLease lease : leases.values()) {
+            release(lease);
+        }
+    }
+
+    /**
+     * Should a call to an operation be throttled?
+     * 
+     * @param operationName
+     * @return true if the call should be throttled
+     */
+    public boolean throttle(final String operationName) {
+        while (true) {
+            TokenLease lease = getOrCreateLease(operationName);
+
+            if (lease.tryTake()) {
+                if (lease.getTokens() < (leaseSize + 1) / 2) {
+                    requestRenewal(lease);
+                }
+                return false;
+            }
+
+            if (!lease.isReleased()) {
+                requestRenewal(lease);
+                return true;
+            }
+
+            leases.remove(operationName, lease);
+        }
+    }
+
+    /**
+     * 
+     * @return the number of operations this node holds a lease for
+     */
+    int getLeaseCount() {
+        return leases.size();
+    }
+
+    /**
+     * Leases tokens for every operation which is running low, in one batch.
+     */
+    void renew() {
+        List<TokenLease> batch = new ArrayList<TokenLease>();
+
+        for (TokenLease lease = renewals.poll(); lease != null; lease = renewals
+                .poll()) {
+            lease.clearRenewing();
+
+            if (!lease.isReleased() && lease.getTokens() < leaseSize) {
+                batch.add(lease);
+            }
+        }
+
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        String[] operationNames = new String[batch.size()];
+        int[] wanted = new int[batch.size()];
+
+        for (int i = 0; i < batch.size(); i++) {
+            operationNames[i] = batch.get(i).getOperationName();
+            wanted[i] = leaseSize - batch.get(i).getTokens();
+        }
+
+        int[] granted = coordinator.lease(operationNames, wanted);
+
+        for (int i = 0; i < batch.size(); i++) {
+            addOrGiveBack(batch.get(i), granted[i]);
+        }
+    }
+
+    /**
+     * Gives back the tokens of leases which haven't been used since the given
+     * time.
+     * 
+     * @param idleSinceNanos
+     */
+    void releaseIdle(final long idleSinceNanos) {
+        for (TokenLease lease : leases.values()) {
+            if (lease.getLastUsedNanos() - idleSinceNanos < 0) {
+                release(lease);
+            }
+        }
+    }
+
+    private void release(final TokenLease lease) {
+        leases.remove(lease.getOperationName(), lease);
+        int left = lease.release();
+
+        if (left > 0) {
+            coordinator.release(lease.getOperationName(), left);
+        }
+    }
+
+    private TokenLease getOrCreateLease(final String operationName) {
+        TokenLease lease = leases.get(operationName);
+
+        if (lease == null) {
+            TokenLease newLease = new TokenLease(operationName);
+            lease = leases.putIfAbsent(operationName, newLease);
+
+            if (lease == null) {
+                lease = newLease;
+
+                // nothing to throttle against yet, so the first lease can't
+                // wait for the renewal thread
+                int granted = coordinator.lease(
+                        new String[] { operationName },
+                        new int[] { leaseSize })[0];
+                addOrGiveBack(lease, granted);
+            }
+        }
+
+        return lease;
+    }
+
+    private void addOrGiveBack(final TokenLease lease, final int granted) {
+        if (granted > 0 && !lease.add(granted)) {
+            coordinator.release(lease.getOperationName(), granted);
+        }
+    }
+
+    private void requestRenewal(final TokenLease lease) {
+        if (lease.markRenewing()) {
+            renewals.add(lease);
+        }
+    }
+
+    private void runRenewals() {
+        long lastIdleCheck = System.nanoTime();
+
+        while (running) {
+            renew();
+
+            long now = System.nanoTime();
+            if (now - lastIdleCheck >= idleNanos / 2) {
+                releaseIdle(now - idleNanos);
+                lastIdleCheck = now;
+            }
+
+            LockSupport.parkNanos(renewNanos);
+        }
+    }
+}
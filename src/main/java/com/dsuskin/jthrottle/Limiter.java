@@ -0,0 +1,142 @@
+package com.dsuskin.jthrottle;
+
+/**
+ * A limiting {@link Algorithm}, as pure functions over the single long a
+ * bucket keeps its state in. {@link Bucket}s and {@link CompactBucketStore}
+ * slots do the compare-and-set loops and leave the sums to their rule's
+ * limiter, so every algorithm works wherever buckets are kept. A compact
+ * store shares one limiter between all of a rule's slots, so an adaptive
+ * rule's rate never moves there.
+ *
+ * Times are in whatever units {@link #now(long)} gives. Limiters which need
+ * ticking only look at the time in {@link #refill(long, long)}. No state is
+ * ever 0, {@link TokenBucketState#RETIRED} or {@link #OVERFLOW}, and none of
+ * the functions are given a retired state.
+ *
+ */
+interface Limiter {
+
+    /**
+     * What {@link #take(long, long, long)} gives back when the bucket can't
+     * go that far into debt.
+     */
+    long OVERFLOW = Long.MAX_VALUE;
+
+    /**
+     *
+     * @return the limiter a new bucket should use: this one, unless the
+     *         limiter keeps state of its own for each bucket, as
+     *         {@link AdaptiveLimiter} does
+     */
+    Limiter forBucket();
+
+    Algorithm getAlgorithm();
+
+    /**
+     *
+     * @param nanoTime
+     *            A {@link System#nanoTime()}
+     * @return the same time, in the units the other functions take
+     */
+    long now(long nanoTime);
+
+    /**
+     *
+     * @param tokens
+     *            At most the capacity
+     * @param now
+     * @return the state of a bucket with that many tokens
+     */
+    long pack(long tokens, long now);
+
+    /**
+     *
+     * @param state
+     * @param now
+     * @return the state with whatever has been earned since it was last
+     *         refilled added
+     */
+    long refill(long state, long now);
+
+    /**
+     *
+     * @param state
+     * @param now
+     * @return the number of whole tokens in the bucket, which is negative if
+     *         it is in debt
+     */
+    long tokens(long state, long now);
+
+    /**
+     *
+     * @param state
+     * @param now
+     * @param tokens
+     *            How many to take, whether or not the bucket has them
+     * @return the state once they're taken, or {@link #OVERFLOW}
+     */
+    long take(long state, long now, long tokens);
+
+    /**
+     *
+     * @param state
+     *            A state in debt
+     * @param nanoTime
+     *            A {@link System#nanoTime()}
+     * @return how many nanoseconds after then the bucket will be out of debt,
+     *         or {@link Long#MAX_VALUE} if it never will
+     */
+    long waitNanos(long state, long nanoTime);
+
+    /**
+     *
+     * @param state
+     * @param now
+     * @param tokens
+     * @return the state with the tokens given back, up to the capacity
+     */
+    long refund(long state, long now, long tokens);
+
+    /**
+     *
+     * @param state
+     * @param now
+     * @param tokens
+     * @return the state with the tokens taken, leaving it empty rather than
+     *         in debt
+     */
+    long drain(long state, long now, long tokens);
+
+    /**
+     *
+     * @param state
+     * @param now
+     * @return true if the bucket has as many tokens as it can hold
+     */
+    boolean isFull(long state, long now);
+
+    /**
+     *
+     * @return true if buckets have to be refilled, by ticking or otherwise,
+     *         to earn tokens
+     */
+    boolean needsRefill();
+
+    /**
+     *
+     * @param state
+     * @return the {@link System#nanoTime()} at which a refill will next add
+     *         tokens, or {@link Long#MAX_VALUE} if it never will or needn't
+     */
+    long nextRefillNanos(long state);
+
+    int getTokenCapacity();
+
+    /**
+     *
+     * @return refillTokens every {@link #getRefillPeriodNanos()}
+     */
+    long getRefillTokens();
+
+    long getRefillPeriodNanos();
+}
@@ -0,0 +1,296 @@
+package com.dsuskin.jthrottle;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A concurrent map from primitive long keys to buckets, so that looking up a
+ * bucket doesn't box the key or allocate a map entry.
+ * 
+ * It is an open addressing table with linear probing. Lookups never lock: a
+ * slot's key is written before its bucket is published, so anyone who sees a
+ * bucket in a slot also sees its key. Inserts and removals take a lock, but
+ * only happen when a key is seen for the first time or evicted. Removed slots
+ * are left as tombstones until the table is next rebuilt, since reusing them
+ * could make a lookup which is part way through a probe pick up the wrong
+ * bucket.
+ * 
+ * When the map is full, inserts evict a bucket picked with the same CLOCK
+ * policy as {@link BucketEvictor}.
+ * 
+ */
+class LongBucketMap {
+
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * Stands in for a removed bucket.
+     */
+    private static final Bucket TOMBSTONE = new Bucket("", 0, 0);
+
+    private final int maxSize;
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private volatile Table table = new Table(MIN_CAPACITY);
+
+    /**
+     * Only written while holding the write lock. Used slots count tombstones
+     * as well as live buckets.
+     */
+    private volatile int size;
+    private int usedSlots;
+    private int clockHand;
+
+    /**
+     * 
+     * @param maxSize
+     *            The most buckets to hold at once
+     */
+    LongBucketMap(final int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 
+     * @param key
+     * @return the bucket for the key, or null if there isn't one
+     */
+    Bucket get(final long key) {
+        Table current = table;
+        int mask = current.keys.length - 1;
+
+        for (int slot = hash(key) & mask;; slot = (slot + 1) & mask) {
+            Bucket bucket = current.buckets.get(slot);
+
+            if (bucket == null) {
+                return null;
+            }
+
+            if (current.keys[slot] == key && bucket != TOMBSTONE) {
+                return bucket;
+            }
+        }
+    }
+
+    /**
+     * 
+     * @param key
+     * @param bucket
+     * @return the bucket already in the map for the key, or null if the given
+     *         bucket was added
+     */
+    Bucket putIfAbsent(final long key, final Bucket bucket) {
+        writeLock.lock();
+        try {
+            Bucket existing = get(key);
+
+            if (existing != null) {
+                return existing;
+            }
+
+            if (size >= maxSize) {
+                evictOne();
+            }
+
+            if ((usedSlots + 1) * 2 > table.keys.length) {
+                rebuild();
+            }
+
+            Table current = table;
+            int mask = current.keys.length - 1;
+            int slot = hash(key) & mask;
+
+            while (current.buckets.get(slot) != null) {
+                slot = (slot + 1) & mask;
+            }
+
+            current.keys[slot] = key;
+            current.buckets.set(slot, bucket);
+            size++;
+            usedSlots++;
+
+            return null;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the bucket for a key, if it's the given one.
+     * 
+     * @param key
+     * @param bucket
+     */
+    void remove(final long key, final Bucket bucket) {
+        writeLock.lock();
+        try {
+            int slot = findSlot(key, bucket);
+
+            if (slot != -1) {
+                table.buckets.set(slot, TOMBSTONE);
+                size--;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Swaps the bucket for a key for another one, if it's the given one.
+     * 
+     * @param key
+     * @param bucket
+     * @param replacement
+     * @return true if the bucket was replaced
+     */
+    boolean replace(final long key, final Bucket bucket,
+            final Bucket replacement) {
+        writeLock.lock();
+        try {
+            int slot = findSlot(key, bucket);
+
+            if (slot == -1) {
+                return false;
+            }
+
+            table.buckets.set(slot, replacement);
+            return true;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * 
+     * @return the number of buckets in the map
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Visits every bucket in the map. Buckets added or removed while this is
+     * running may or may not be visited.
+     * 
+     * @param visitor
+     */
+    void forEach(final Visitor visitor) {
+        Table current = table;
+
+        for (int slot = 0; slot < current.keys.length; slot++) {
+            Bucket bucket = current.buckets.get(slot);
+
+            if (bucket != null && bucket != TOMBSTONE) {
+                visitor.visit(current.keys[slot], bucket);
+            }
+        }
+    }
+
+    interface Visitor {
+        void visit(long key, Bucket bucket);
+    }
+
+    /**
+     * Sweeps the clock hand round the table until it finds a bucket which
+     * hasn't been used since the hand last passed it. Must hold the write
+     * lock.
+     */
+    private void evictOne() {
+        Table current = table;
+        long nowNanos = System.nanoTime();
+
+        // two full turns are enough to clear every reference flag and then
+        // find a victim
+        for (int step = 0; step < current.keys.length * 2; step++) {
+            int slot = clockHand;
+            clockHand = (clockHand + 1) & (current.keys.length - 1);
+            Bucket bucket = current.buckets.get(slot);
+
+            if (bucket == null || bucket == TOMBSTONE
+                    || bucket.clearReferenced(nowNanos) || !bucket.retire()) {
+                continue;
+            }
+
+            current.buckets.set(slot, TOMBSTONE);
+            size--;
+            return;
+        }
+    }
+
+    /**
+     * Must hold the write lock.
+     * 
+     * @param key
+     * @param bucket
+     * @return the slot holding the given bucket for the key, or -1 if it isn't
+     *         there
+     */
+    private int findSlot(final long key, final Bucket bucket) {
+        Table current = table;
+        int mask = current.keys.length - 1;
+
+        for (int slot = hash(key) & mask;; slot = (slot + 1) & mask) {
+            Bucket slotBucket = current.buckets.get(slot);
+
+            if (slotBucket == null) {
+                return -1;
+            }
+
+            if (slotBucket == bucket && current.keys[slot] == key) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Copies the live buckets into a new table, big enough to stay at most
+     * half full after the next insert. Must hold the write lock.
+     */
+    private void rebuild() {
+        Table current = table;
+        int capacity = MIN_CAPACITY;
+
+        while (capacity < (size + 1) * 4) {
+            capacity <<= 1;
+        }
+
+        Table rebuilt = new Table(capacity);
+        int mask = capacity - 1;
+
+        for (int i = 0; i < current.keys.length; i++) {
+            Bucket bucket = current.buckets.get(i);
+
+            if (bucket == null || bucket == TOMBSTONE) {
+                continue;
+            }
+
+            int slot = hash(current.keys[i]) & mask;
+            while (rebuilt.buckets.get(slot) != null) {
+                slot = (slot + 1) & mask;
+            }
+
+            rebuilt.keys[slot] = current.keys[i];
+            rebuilt.buckets.set(slot, bucket);
+        }
+
+        usedSlots = size;
+        clockHand = 0;
+        table = rebuilt;
+    }
+
+    private static int hash(final long key) {
+        long mixed = key * 0x9E3779B97F4A7C15L;
+
+        return (int) (mixed ^ (mixed >>> 32));
+    }
+
+    private static final class Table {
+        private final long[] keys;
+        private final AtomicReferenceArray<Bucket> buckets;
+
+        private Table(final int capacity) {
+            this.keys = new long[capacity];
+            this.buckets = new AtomicReferenceArray<Bucket>(capacity);
+        }
+    }
+}
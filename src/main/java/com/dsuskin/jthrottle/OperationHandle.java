@@ -0,0 +1,53 @@
+package com.dsuskin.jthrottle;
+
+/**
+ * An operation whose bucket has already been looked up, for throttling calls
+ * to a fixed operation on a hot path without hashing its name and looking it
+ * up on every call. Get one from {@link Throttler#handle(String)} and keep it
+ * in a field.
+ *
+ * The handle holds on to the operation's bucket. Buckets which are evicted,
+ * or replaced when the rules are updated, are retired, so the handle looks
+ * the operation up again the first time it finds its bucket retired, and
+ * otherwise goes straight to it. Calls through a handle share the bucket
+ * used for calls made by name.
+ *
+ */
+public final class OperationHandle {
+
+    private final Throttler throttler;
+    private final String operationName;
+
+    /**
+     * The operation's bucket when it was last looked up, or null if it
+     * hasn't been or no rule covered it.
+     */
+    private volatile Bucket bucket;
+
+    /**
+     *
+     * @param throttler
+     *            The throttler the handle was created by
+     * @param operationName
+     */
+    OperationHandle(final Throttler throttler, final String operationName) {
+        this.throttler = throttler;
+        this.operationName = operationName;
+    }
+
+    public String getOperationName() {
+        return operationName;
+    }
+
+    Throttler getThrottler() {
+        return throttler;
+    }
+
+    Bucket getBucket() {
+        return bucket;
+    }
+
+    void setBucket(final Bucket bucket) {
+        this.bucket = bucket;
+    }
+}
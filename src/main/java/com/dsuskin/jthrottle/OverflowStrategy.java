@@ -0,0 +1,30 @@
+package com.dsuskin.jthrottle;
+
+/**
+ * What a {@link ThrottledProcessor} does with elements which arrive faster
+ * than its rule lets them through.
+ *
+ */
+public enum OverflowStrategy {
+
+    /**
+     * Elements are requested from upstream as fast as it will send them, and
+     * those without a token, or which the subscriber hasn't asked for, are
+     * dropped.
+     */
+    DROP,
+
+    /**
+     * Up to a buffer's worth of elements are requested from upstream ahead
+     * of time, and let through as tokens come in, so that upstream can send
+     * in bursts.
+     */
+    BUFFER,
+
+    /**
+     * Elements are only requested from upstream once there are tokens for
+     * them, so upstream is held back to the rule's rate and nothing is
+     * buffered or dropped.
+     */
+    DELAY
+}
@@ -0,0 +1,28 @@
+package com.dsuskin.jthrottle;
+
+/**
+ * How a {@link Throttler} puts tokens back into its buckets.
+ * 
+ */
+public enum RefillMode {
+
+    /**
+     * Buckets are refilled in bulk whenever {@link Throttler#tick()} runs,
+     * usually from a {@link ThrottlerTick}. Every tick visits every bucket.
+     */
+    TICK,
+
+    /**
+     * Each bucket works out how many tokens it has earned when it is asked
+     * whether to throttle a call. No ticking is needed, and refilling costs
+     * the same no matter how many buckets there are.
+     */
+    LAZY,
+
+    /**
+     * Buckets which are below capacity are refilled by a
+     * {@link RefillScheduler} at the time they earn their next token. Use the
+     * {@link Throttler} constructors which take a scheduler for this mode.
+     */
+    SCHEDULED
+}
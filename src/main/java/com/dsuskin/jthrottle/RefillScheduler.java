@@ -0,0 +1,193 @@
+package com.dsuskin.jthrottle;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Refills buckets at the moment they earn their next token, instead of
+ * refilling every bucket on a fixed timer.
+ * 
+ * A bucket is handed to the scheduler when a call takes a token from it, and
+ * waits on a {@link TimingWheel} until it is due another token. After each
+ * refill it goes back on the wheel if it is still short of capacity, so only
+ * buckets which are below capacity are ever scheduled, and full buckets cost
+ * nothing. All refills happen on the scheduler's own thread, and one
+ * scheduler can be shared between several throttlers.
+ * 
+ */
+public class RefillScheduler {
+
+    private static final long DEFAULT_TICK_MILLIS = 10;
+
+    /**
+     * Buckets which have just been scheduled, waiting for the scheduler thread
+     * to put them on the wheel.
+     */
+    private final Queue<Bucket> incoming = new ConcurrentLinkedQueue<Bucket>();
+    private final TimingWheel<Bucket> wheel;
+    private final Thread worker;
+
+    private final AtomicInteger scheduledBuckets = new AtomicInteger();
+    private volatile long lagNanos;
+    private volatile long maxLagNanos;
+    private volatile boolean running;
+
+    /**
+     * Creates a scheduler with a 10ms resolution, which is well below the
+     * finest granularity buckets are refilled at.
+     */
+    public RefillScheduler() {
+        this(DEFAULT_TICK_MILLIS);
+    }
+
+    /**
+     * 
+     * @param tickMillis
+     *            How often the scheduler thread wakes up to look for buckets
+     *            which are due a refill
+     */
+    public RefillScheduler(final long tickMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException(
+                    "Tick interval must be positive: " + tickMillis);
+        }
+
+        this.wheel = new TimingWheel<Bucket>(
+                TimeUnit.MILLISECONDS.toNanos(tickMillis), System.nanoTime());
+        this.worker = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                runWheel();
+            }
+        }, "jthrottle-refill");
+        this.worker.setDaemon(true);
+    }
+
+    /**
+     * Starts the scheduler thread.
+     */
+    public void start() {
+        running = true;
+        worker.start();
+    }
+
+    /**
+     * Stops the scheduler thread. Buckets waiting on the wheel are not
+     * refilled any more.
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(worker);
+    }
+
+    /**
+     * 
+     * @return how many buckets are waiting for a refill
+     */
+    public int getScheduledBucketCount() {
+        return scheduledBuckets.get();
+    }
+
+    /**
+     * 
+     * @return how late the most recent refill was, compared to when the
+     *         bucket earned its token
+     */
+    public long getLagNanos() {
+        return lagNanos;
+    }
+
+    /**
+     * 
+     * @return how late the latest refill has been, since the scheduler
+     *         started
+     */
+    public long getMaxLagNanos() {
+        return maxLagNanos;
+    }
+
+    /**
+     * Schedules a bucket which has just had a token taken, unless it is
+     * already scheduled, never refills, or has an algorithm which refills
+     * itself.
+     * 
+     * @param bucket
+     */
+    void schedule(final Bucket bucket) {
+        if (bucket.isScheduled() || bucket.getRefillTokensPerSecond() <= 0
+                || bucket.getAlgorithm() != Algorithm.TOKEN_BUCKET
+                || !bucket.markScheduled()) {
+            return;
+        }
+
+        scheduledBuckets.incrementAndGet();
+        incoming.add(bucket);
+    }
+
+    private void runWheel() {
+        final TimingWheel.Expiry<Bucket> refill = new TimingWheel.Expiry<Bucket>() {
+
+            @Override
+            public void expired(Bucket bucket, long deadlineNanos) {
+                refill(bucket, deadlineNanos);
+            }
+        };
+
+        while (running) {
+            Bucket bucket;
+            while ((bucket = incoming.poll()) != null) {
+                long nextRefillNanos = bucket.getNextRefillNanos();
+
+                // retired before it got here, so it would never come due
+                if (nextRefillNanos == Long.MAX_VALUE) {
+                    unschedule(bucket);
+                } else {
+                    wheel.add(bucket, nextRefillNanos);
+                }
+            }
+
+            wheel.advance(System.nanoTime(), refill);
+
+            LockSupport.parkNanos(this,
+                    wheel.nextTickNanos() - System.nanoTime());
+        }
+    }
+
+    private void refill(final Bucket bucket, final long deadlineNanos) {
+        long lag = System.nanoTime() - deadlineNanos;
+        lagNanos = lag;
+        if (lag > maxLagNanos) {
+            maxLagNanos = lag;
+        }
+
+        bucket.tick();
+
+        if (bucket.isRetired()) {
+            unschedule(bucket);
+            return;
+        }
+
+        if (!bucket.isFull()) {
+            wheel.add(bucket, bucket.getNextRefillNanos());
+            return;
+        }
+
+        unschedule(bucket);
+
+        // a token may have been taken after we saw the bucket full but before
+        // it was unscheduled, by a caller who saw it still scheduled
+        if (!bucket.isFull() && bucket.markScheduled()) {
+            scheduledBuckets.incrementAndGet();
+            wheel.add(bucket, bucket.getNextRefillNanos());
+        }
+    }
+
+    private void unschedule(final Bucket bucket) {
+        bucket.clearScheduled();
+        scheduledBuckets.decrementAndGet();
+    }
+}
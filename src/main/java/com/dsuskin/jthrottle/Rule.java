@@ -1,7 +1,17 @@
 package com.dsuskin.jthrottle;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonGetter;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 /**
@@ -16,27 +26,464 @@ import com.fasterxml.jackson.annotation.JsonProperty;
  * 
  */
 public class Rule implements Comparable<Rule> {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
     private final String operationName;
     private final int tokenBucketRefilledTokensPerSecond;
     private final int tokenBucketCapacity;
 
     /**
-     * Apparently the 'required' field does not do what it's supposed to do yet;
-     * see http://jira.codehaus.org/browse/JACKSON-767
+     * The refill rate as a fraction in lowest terms: refillTokens tokens every
+     * refillPeriodNanos. Whole rates per second are refillTokens per second.
+     */
+    private final long refillTokens;
+    private final long refillPeriodNanos;
+
+    private final Algorithm algorithm;
+
+    /**
+     * Does the sums for the rule's buckets; see {@link Limiter}.
+     */
+    private final Limiter limiter;
+
+    /**
+     * Whether the rule limits every operation it covers as a whole, rather
+     * than each one separately; see {@link #asAggregate()}.
+     */
+    private final boolean aggregate;
+
+    /**
+     * The tokens each call takes, unless the operation name ends with one of
+     * the suffixes; see {@link #withCost(int)}.
+     */
+    private final int cost;
+    private final Map<String, Integer> suffixCosts;
+
+    /**
+     * The bounds of an {@link Algorithm#ADAPTIVE} rule, whose refill rate is
+     * the most it adapts up to; see
+     * {@link #asAdaptive(long, long, TimeUnit, long, TimeUnit)}. Otherwise
+     * the refill rate, as a fraction in lowest terms, and 0.
+     */
+    private final long minRefillTokens;
+    private final long minRefillPeriodNanos;
+    private final long targetLatencyNanos;
+
+    /**
      * 
      * @param operationName
      * @param tokenBucketRefilledTokensPerSecond
      * @param tokenBucketCapacity
      */
-    @JsonCreator
-    public Rule(
-            @JsonProperty(value = "operation", required = true) String operationName,
-            @JsonProperty(value = "refillRate", required = true) int tokenBucketRefilledTokensPerSecond,
-            @JsonProperty(value = "capacity", required = true) int tokenBucketCapacity) {
+    public Rule(String operationName, int tokenBucketRefilledTokensPerSecond,
+            int tokenBucketCapacity) {
         super();
         this.operationName = operationName;
         this.tokenBucketRefilledTokensPerSecond = tokenBucketRefilledTokensPerSecond;
         this.tokenBucketCapacity = tokenBucketCapacity;
+        this.refillTokens = tokenBucketRefilledTokensPerSecond;
+        this.refillPeriodNanos = NANOS_PER_SECOND;
+        this.algorithm = Algorithm.TOKEN_BUCKET;
+        this.limiter = new TokenBucketLimiter(
+                tokenBucketRefilledTokensPerSecond, tokenBucketCapacity);
+        this.aggregate = false;
+        this.cost = 1;
+        this.suffixCosts = Collections.emptyMap();
+        this.minRefillTokens = this.refillTokens;
+        this.minRefillPeriodNanos = this.refillPeriodNanos;
+        this.targetLatencyNanos = 0;
+    }
+
+    /**
+     * A {@link Algorithm#GCRA} rule, which can refill at any rate, such as 1
+     * token a minute or 3 tokens every 2 seconds.
+     * 
+     * @param operationName
+     * @param refillTokens
+     *            The number of tokens added every refill period; must be
+     *            positive
+     * @param refillPeriod
+     * @param unit
+     * @param tokenBucketCapacity
+     */
+    public Rule(String operationName, long refillTokens, long refillPeriod,
+            TimeUnit unit, int tokenBucketCapacity) {
+        this(operationName, Algorithm.GCRA, refillTokens, refillPeriod, unit,
+                tokenBucketCapacity);
+    }
+
+    /**
+     * 
+     * @param operationName
+     * @param algorithm
+     * @param refillTokens
+     *            The number of tokens added every refill period; must be
+     *            positive
+     * @param refillPeriod
+     * @param unit
+     * @param tokenBucketCapacity
+     * @throws IllegalArgumentException
+     *             if the rate is too fine, or isn't a whole number of tokens
+     *             a second for a token bucket, or if the algorithm can't
+     *             handle the capacity
+     */
+    public Rule(String operationName, Algorithm algorithm, long refillTokens,
+            long refillPeriod, TimeUnit unit, int tokenBucketCapacity) {
+        super();
+        long periodNanos = unit.toNanos(refillPeriod);
+
+        if (refillTokens <= 0 || periodNanos <= 0) {
+            throw new IllegalArgumentException(
+                    "Rules need a positive refill rate: " + operationName);
+        }
+
+        BigInteger[] perSecond = BigInteger.valueOf(refillTokens)
+                .multiply(BigInteger.valueOf(NANOS_PER_SECOND))
+                .divideAndRemainder(BigInteger.valueOf(periodNanos));
+
+        if (algorithm == Algorithm.TOKEN_BUCKET) {
+            if (perSecond[1].signum() != 0
+                    || perSecond[0].bitLength() >= Integer.SIZE) {
+                throw new IllegalArgumentException(
+                        "Token bucket rules need a whole number of tokens a second: "
+                                + operationName);
+            }
+
+            refillTokens = perSecond[0].longValue();
+            periodNanos = NANOS_PER_SECOND;
+        }
+
+        // token buckets keep a second as their period, the same as those made
+        // from a rate per second
+        long divisor = algorithm == Algorithm.TOKEN_BUCKET ? 1 : BigInteger
+                .valueOf(refillTokens).gcd(BigInteger.valueOf(periodNanos))
+                .longValue();
+
+        this.operationName = operationName;
+        this.tokenBucketCapacity = tokenBucketCapacity;
+        this.refillTokens = refillTokens / divisor;
+        this.refillPeriodNanos = periodNanos / divisor;
+        this.algorithm = algorithm;
+
+        if (BigInteger.valueOf(this.refillTokens)
+                .multiply(BigInteger.valueOf(this.refillPeriodNanos))
+                .bitLength() >= Long.SIZE - 2) {
+            throw new IllegalArgumentException("Refill rate too fine: "
+                    + operationName);
+        }
+
+        this.tokenBucketRefilledTokensPerSecond = (int) Math.min(
+                Integer.MAX_VALUE, perSecond[0].longValue());
+        this.limiter = newLimiter(algorithm, tokenBucketRefilledTokensPerSecond,
+                this.refillTokens, this.refillPeriodNanos, tokenBucketCapacity);
+        this.aggregate = false;
+        this.cost = 1;
+        this.suffixCosts = Collections.emptyMap();
+        this.minRefillTokens = this.refillTokens;
+        this.minRefillPeriodNanos = this.refillPeriodNanos;
+        this.targetLatencyNanos = 0;
+    }
+
+    private Rule(Rule source, boolean aggregate, int cost,
+            Map<String, Integer> suffixCosts) {
+        this(source, source.limiter, source.minRefillTokens,
+                source.minRefillPeriodNanos, source.targetLatencyNanos,
+                aggregate, cost, suffixCosts);
+    }
+
+    private Rule(Rule source, Limiter limiter, long minRefillTokens,
+            long minRefillPeriodNanos, long targetLatencyNanos,
+            boolean aggregate, int cost, Map<String, Integer> suffixCosts) {
+        super();
+        this.operationName = source.operationName;
+        this.tokenBucketRefilledTokensPerSecond = source.tokenBucketRefilledTokensPerSecond;
+        this.tokenBucketCapacity = source.tokenBucketCapacity;
+        this.refillTokens = source.refillTokens;
+        this.refillPeriodNanos = source.refillPeriodNanos;
+        this.algorithm = limiter.getAlgorithm();
+        this.limiter = limiter;
+        this.minRefillTokens = minRefillTokens;
+        this.minRefillPeriodNanos = minRefillPeriodNanos;
+        this.targetLatencyNanos = targetLatencyNanos;
+        this.aggregate = aggregate;
+        this.cost = cost;
+        this.suffixCosts = suffixCosts;
+    }
+
+    /**
+     * An aggregate rule has a single bucket, shared by every operation it
+     * covers, rather than one bucket per operation. A call takes from its own
+     * bucket and from the shared bucket of every aggregate rule whose
+     * operation name is a prefix of its own, so a rule for "myOperation/"
+     * can limit each user while an aggregate rule for "myOperation" limits
+     * them all together.
+     * 
+     * @return the same rule, as an aggregate
+     */
+    public Rule asAggregate() {
+        return new Rule(this, true, cost, suffixCosts);
+    }
+
+    /**
+     * Calls to an operation can cost more than one token, so that a bucket
+     * tracks the load they put on a backend rather than just how many there
+     * are: a bulk export might cost 100 where a point read costs 1. Each call
+     * takes all of its tokens in one step, or none. Callers who know the cost
+     * of a particular call, such as a number of bytes or rows, can ask for
+     * that many tokens with tryAcquire instead.
+     * 
+     * A call costs what the rule matching its operation says, whichever
+     * aggregates it also takes from. A cost above the capacity throttles
+     * every call.
+     * 
+     * @param cost
+     *            The tokens each call takes; must be positive
+     * @return the same rule, with that cost
+     */
+    public Rule withCost(int cost) {
+        checkCost(cost);
+
+        return new Rule(this, aggregate, cost, suffixCosts);
+    }
+
+    /**
+     * Calls to operations whose names end with the suffix, such as
+     * "/export", cost a different number of tokens to the rest of the
+     * rule's operations. If several suffixes match, the longest wins.
+     * 
+     * @param suffix
+     * @param cost
+     *            The tokens each call takes; must be positive
+     * @return the same rule, with that cost for the suffix
+     */
+    public Rule withSuffixCost(String suffix, int cost) {
+        checkCost(cost);
+
+        Map<String, Integer> costs = new LinkedHashMap<String, Integer>(
+                suffixCosts);
+        costs.put(suffix, cost);
+
+        return new Rule(this, aggregate, this.cost,
+                Collections.unmodifiableMap(costs));
+    }
+
+    /**
+     * An {@link Algorithm#ADAPTIVE} rule starts at the rule's rate, and is
+     * moved between that and a minimum by callers reporting how their calls
+     * went; see {@link Throttler#onComplete(String, long, TimeUnit)}. Calls
+     * slower than the target latency, or failures, slow it down, and calls
+     * within it speed it back up. Each bucket finds its own rate, so an
+     * aggregate rule is the way to adapt one rate for a whole backend.
+     * 
+     * @param minRefillTokens
+     *            The fewest tokens added every minimum refill period; must
+     *            be positive
+     * @param minRefillPeriod
+     *            Must be positive, and leave the minimum rate no higher than
+     *            the rule's rate
+     * @param periodUnit
+     * @param targetLatency
+     *            Must not be negative
+     * @param latencyUnit
+     * @return the same rule, adapting its rate
+     */
+    public Rule asAdaptive(long minRefillTokens, long minRefillPeriod,
+            TimeUnit periodUnit, long targetLatency, TimeUnit latencyUnit) {
+        long minPeriodNanos = periodUnit.toNanos(minRefillPeriod);
+        long targetNanos = latencyUnit.toNanos(targetLatency);
+
+        if (minRefillTokens <= 0
+                || minPeriodNanos <= 0
+                || targetNanos < 0
+                || BigInteger.valueOf(minRefillTokens)
+                        .multiply(BigInteger.valueOf(refillPeriodNanos))
+                        .compareTo(BigInteger.valueOf(refillTokens).multiply(
+                                BigInteger.valueOf(minPeriodNanos))) > 0) {
+            throw new IllegalArgumentException(
+                    "Adaptive rules need a minimum rate no higher than their rate, and a target latency: "
+                            + operationName);
+        }
+
+        long divisor = BigInteger.valueOf(minRefillTokens)
+                .gcd(BigInteger.valueOf(minPeriodNanos)).longValue();
+        minRefillTokens /= divisor;
+        minPeriodNanos /= divisor;
+
+        return new Rule(this, new AdaptiveLimiter(refillTokens,
+                refillPeriodNanos, minRefillTokens, minPeriodNanos,
+                tokenBucketCapacity, targetNanos), minRefillTokens,
+                minPeriodNanos, targetNanos, aggregate, cost, suffixCosts);
+    }
+
+    private static void checkCost(int cost) {
+        if (cost <= 0) {
+            throw new IllegalArgumentException("Costs must be positive: "
+                    + cost);
+        }
+    }
+
+    private static Limiter newLimiter(Algorithm algorithm,
+            int refillTokensPerSecond, long refillTokens,
+            long refillPeriodNanos, int tokenCapacity) {
+        switch (algorithm) {
+        case TOKEN_BUCKET:
+            return new TokenBucketLimiter(refillTokensPerSecond, tokenCapacity);
+        case GCRA:
+            return new GcraLimiter(refillTokens, refillPeriodNanos,
+                    tokenCapacity);
+        case SLIDING_WINDOW:
+            return new SlidingWindowLimiter(refillTokens, refillPeriodNanos,
+                    tokenCapacity);
+        case ADAPTIVE:
+            // stays at its rate until given bounds by asAdaptive
+            return new AdaptiveLimiter(refillTokens, refillPeriodNanos,
+                    refillTokens, refillPeriodNanos, tokenCapacity, 0);
+        default:
+            throw new IllegalArgumentException("Unknown algorithm: "
+                    + algorithm);
+        }
+    }
+
+    /**
+     * Apparently the 'required' field does not do what it's supposed to do yet;
+     * see http://jira.codehaus.org/browse/JACKSON-767
+     * 
+     * Rules which don't name an algorithm are token buckets, unless their
+     * rate isn't a whole number, or they have a refill period other than the
+     * default of one second, or they say they're precise, which makes them
+     * {@link Algorithm#GCRA}.
+     * 
+     * @param operationName
+     * @param algorithmName
+     *            See {@link Algorithm#getJsonName()}; may be null
+     * @param refillRate
+     *            Tokens per refill period
+     * @param refillPeriod
+     *            In seconds; null for one second
+     * @param tokenBucketCapacity
+     * @param precise
+     * @param aggregate
+     *            See {@link #asAggregate()}
+     * @param cost
+     *            See {@link #withCost(int)}; null for 1
+     * @param suffixCosts
+     *            See {@link #withSuffixCost(String, int)}; may be null
+     * @param minRefillRate
+     *            Tokens per minimum refill period; needed by adaptive rules
+     * @param minRefillPeriod
+     *            In seconds; null for the refill period
+     * @param targetLatency
+     *            In seconds; needed by adaptive rules
+     * @return the rule
+     */
+    @JsonCreator
+    static Rule fromJson(
+            @JsonProperty(value = "operation", required = true) String operationName,
+            @JsonProperty("algorithm") String algorithmName,
+            @JsonProperty(value = "refillRate", required = true) BigDecimal refillRate,
+            @JsonProperty("refillPeriod") BigDecimal refillPeriod,
+            @JsonProperty(value = "capacity", required = true) int tokenBucketCapacity,
+            @JsonProperty("precise") boolean precise,
+            @JsonProperty("aggregate") boolean aggregate,
+            @JsonProperty("cost") Integer cost,
+            @JsonProperty("suffixCosts") Map<String, Integer> suffixCosts,
+            @JsonProperty("minRefillRate") BigDecimal minRefillRate,
+            @JsonProperty("minRefillPeriod") BigDecimal minRefillPeriod,
+            @JsonProperty("targetLatency") BigDecimal targetLatency) {
+        Rule rule = fromJson(operationName, algorithmName, refillRate,
+                refillPeriod, tokenBucketCapacity, precise);
+
+        if (Algorithm.ADAPTIVE.getJsonName().equals(algorithmName)) {
+            rule = adaptiveFromJson(rule, minRefillRate,
+                    minRefillPeriod != null ? minRefillPeriod : refillPeriod,
+                    targetLatency);
+        }
+
+        if (aggregate) {
+            rule = rule.asAggregate();
+        }
+
+        if (cost != null) {
+            rule = rule.withCost(cost);
+        }
+
+        if (suffixCosts != null) {
+            for (Map.Entry<String, Integer> suffixCost : suffixCosts
+                    .entrySet()) {
+                rule = rule.withSuffixCost(suffixCost.getKey(),
+                        suffixCost.getValue());
+            }
+        }
+
+        return rule;
+    }
+
+    private static Rule fromJson(String operationName, String algorithmName,
+            BigDecimal refillRate, BigDecimal refillPeriod,
+            int tokenBucketCapacity, boolean precise) {
+        Algorithm algorithm;
+
+        if (algorithmName != null) {
+            algorithm = Algorithm.forJsonName(algorithmName);
+
+        } else if (precise || refillPeriod != null || !isWhole(refillRate)) {
+            algorithm = Algorithm.GCRA;
+        } else {
+            algorithm = Algorithm.TOKEN_BUCKET;
+        }
+
+        if (algorithm == Algorithm.TOKEN_BUCKET && refillPeriod == null
+                && isWhole(refillRate)) {
+            return new Rule(operationName, refillRate.intValueExact(),
+                    tokenBucketCapacity);
+        }
+
+        BigDecimal periodNanos = (refillPeriod == null ? BigDecimal.ONE
+                : refillPeriod).multiply(BigDecimal.valueOf(NANOS_PER_SECOND));
+        int scale = Math.max(0,
+                Math.max(refillRate.scale(), periodNanos.scale()));
+
+        try {
+            return new Rule(operationName, algorithm, refillRate
+                    .movePointRight(scale)
+                    .toBigIntegerExact().longValueExact(), periodNanos
+                    .movePointRight(scale).toBigIntegerExact()
+                    .longValueExact(), TimeUnit.NANOSECONDS,
+                    tokenBucketCapacity);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Refill rate too fine: "
+                    + operationName, e);
+        }
+    }
+
+    private static Rule adaptiveFromJson(Rule rule, BigDecimal minRefillRate,
+            BigDecimal minRefillPeriod, BigDecimal targetLatency) {
+        if (minRefillRate == null || targetLatency == null) {
+            throw new IllegalArgumentException(
+                    "Adaptive rules need a minRefillRate and a targetLatency: "
+                            + rule.getOperationName());
+        }
+
+        BigDecimal periodNanos = (minRefillPeriod == null ? BigDecimal.ONE
+                : minRefillPeriod).multiply(BigDecimal.valueOf(NANOS_PER_SECOND));
+        int scale = Math.max(0,
+                Math.max(minRefillRate.scale(), periodNanos.scale()));
+
+        try {
+            return rule.asAdaptive(minRefillRate.movePointRight(scale)
+                    .toBigIntegerExact().longValueExact(), periodNanos
+                    .movePointRight(scale).toBigIntegerExact()
+                    .longValueExact(), TimeUnit.NANOSECONDS, targetLatency
+                    .movePointRight(9).setScale(0, RoundingMode.CEILING)
+                    .longValueExact(), TimeUnit.NANOSECONDS);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Minimum rate too fine: "
+                    + rule.getOperationName(), e);
+        }
+    }
+
+    private static boolean isWhole(BigDecimal value) {
+        return value.signum() == 0 || value.stripTrailingZeros().scale() <= 0;
     }
 
     @JsonGetter("operation")
@@ -44,11 +491,173 @@ public class Rule implements Comparable<Rule> {
         return operationName;
     }
 
-    @JsonGetter("refillRate")
+    /**
+     * 
+     * @return the refill rate, rounded down for rules
+     *         which aren't token buckets
+     */
+    @JsonIgnore
     public int getTokenBucketRefilledTokensPerSecond() {
         return tokenBucketRefilledTokensPerSecond;
     }
 
+    /**
+     * 
+     * @return the number of tokens added every refill period
+     */
+    @JsonIgnore
+    public long getRefillTokens() {
+        return refillTokens;
+    }
+
+    /**
+     * 
+     * @return how often refillTokens are added, in nanoseconds
+     */
+    @JsonIgnore
+    public long getRefillPeriodNanos() {
+        return refillPeriodNanos;
+    }
+
+    @JsonIgnore
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    Limiter getLimiter() {
+        return limiter;
+    }
+
+    @JsonIgnore
+    public boolean isAggregate() {
+        return aggregate;
+    }
+
+    /**
+     * 
+     * @return the tokens each call takes, unless a suffix cost applies
+     */
+    @JsonIgnore
+    public int getCost() {
+        return cost;
+    }
+
+    /**
+     * 
+     * @param operationName
+     *            An operation the rule covers
+     * @return the tokens each call to the operation takes
+     */
+    public int getCost(String operationName) {
+        String longest = null;
+
+        for (String suffix : suffixCosts.keySet()) {
+            if (operationName.endsWith(suffix)
+                    && (longest == null || suffix.length() > longest.length())) {
+                longest = suffix;
+            }
+        }
+
+        return longest == null ? cost : suffixCosts.get(longest);
+    }
+
+    /**
+     * 
+     * @return the fewest tokens an adaptive rule adds every minimum refill
+     *         period, or the refill tokens for any other rule
+     */
+    @JsonIgnore
+    public long getMinRefillTokens() {
+        return minRefillTokens;
+    }
+
+    /**
+     * 
+     * @return how often an adaptive rule adds at least minRefillTokens, in
+     *         nanoseconds
+     */
+    @JsonIgnore
+    public long getMinRefillPeriodNanos() {
+        return minRefillPeriodNanos;
+    }
+
+    /**
+     * 
+     * @return the latency an adaptive rule slows down past, or 0 for any
+     *         other rule
+     */
+    @JsonIgnore
+    public long getTargetLatencyNanos() {
+        return targetLatencyNanos;
+    }
+
+    /**
+     * 
+     * @return the costs of operations by suffix
+     */
+    @JsonIgnore
+    public Map<String, Integer> getSuffixCosts() {
+        return suffixCosts;
+    }
+
+    @JsonGetter("refillRate")
+    private BigDecimal getJsonRefillRate() {
+        return BigDecimal.valueOf(refillTokens);
+    }
+
+    @JsonGetter("refillPeriod")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private BigDecimal getJsonRefillPeriod() {
+        return algorithm != Algorithm.TOKEN_BUCKET ? BigDecimal.valueOf(
+                refillPeriodNanos, 9).stripTrailingZeros() : null;
+    }
+
+    @JsonGetter("algorithm")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String getJsonAlgorithm() {
+        return algorithm != Algorithm.TOKEN_BUCKET ? algorithm.getJsonName()
+                : null;
+    }
+
+    @JsonGetter("minRefillRate")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private BigDecimal getJsonMinRefillRate() {
+        return algorithm == Algorithm.ADAPTIVE ? BigDecimal
+                .valueOf(minRefillTokens) : null;
+    }
+
+    @JsonGetter("minRefillPeriod")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private BigDecimal getJsonMinRefillPeriod() {
+        return algorithm == Algorithm.ADAPTIVE ? BigDecimal.valueOf(
+                minRefillPeriodNanos, 9).stripTrailingZeros() : null;
+    }
+
+    @JsonGetter("targetLatency")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private BigDecimal getJsonTargetLatency() {
+        return algorithm == Algorithm.ADAPTIVE ? BigDecimal.valueOf(
+                targetLatencyNanos, 9).stripTrailingZeros() : null;
+    }
+
+    @JsonGetter("aggregate")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Boolean getJsonAggregate() {
+        return aggregate ? Boolean.TRUE : null;
+    }
+
+    @JsonGetter("cost")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Integer getJsonCost() {
+        return cost != 1 ? Integer.valueOf(cost) : null;
+    }
+
+    @JsonGetter("suffixCosts")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Map<String, Integer> getJsonSuffixCosts() {
+        return suffixCosts.isEmpty() ? null : suffixCosts;
+    }
+
     @JsonGetter("capacity")
     public int getTokenBucketCapacity() {
         return tokenBucketCapacity;
@@ -2,13 +2,11 @@ package com.dsuskin.jthrottle;
 
 import java.io.IOException;
 import java.io.Reader;
-import java.util.List;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 
-import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
@@ -23,31 +21,43 @@ public class RuleFactory {
     /**
      * Parses and indexes rules so you don't have to!
      * 
+     * The rules are streamed: each one is indexed as soon as it has been
+     * parsed, so the file is never held in memory as a whole, only the rules
+     * made from it. For rule sets big enough that even that is too slow to
+     * start with, see {@link CompiledRules}.
+     * 
      * @param in
      * @return
      */
     public static ConcurrentNavigableMap<String, Rule> parseRules(Reader in) {
         ObjectMapper om = new ObjectMapper();
-
-        List<Rule> parsedRules = null;
+        ConcurrentNavigableMap<String, Rule> indexedRules = new ConcurrentSkipListMap<String, Rule>();
 
         try {
-            parsedRules = om.readValue(in, new TypeReference<List<Rule>>() {
-            });
-        } catch (JsonParseException e) {
-            throw new IllegalStateException(e);
-        } catch (JsonMappingException e) {
-            throw new IllegalStateException(e);
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
-        }
+            JsonParser parser = om.getFactory().createParser(in);
+            JsonToken token = parser.nextToken();
 
-        ConcurrentNavigableMap<String, Rule> indexedRules = new ConcurrentSkipListMap<String, Rule>();
+            if (token == JsonToken.VALUE_NULL) {
+                return indexedRules;
+            }
+
+            if (token != JsonToken.START_ARRAY) {
+                throw new IllegalStateException(
+                        "Expected an array of rules, not " + token);
+            }
 
-        if (parsedRules != null) {
-            for (Rule parsedRule : parsedRules) {
+            while ((token = parser.nextToken()) == JsonToken.START_OBJECT) {
+                Rule parsedRule = om.readValue(parser, Rule.class);
                 indexedRules.put(parsedRule.getOperationName(), parsedRule);
             }
+
+            if (token != JsonToken.END_ARRAY) {
+                throw new IllegalStateException("Expected a rule, not "
+                        + token);
+            }
+        } catch (IOException e) {
+            // parse and mapping exceptions too
+            throw new IllegalStateException(e);
         }
 
         return indexedRules;
@@ -0,0 +1,174 @@
+package com.dsuskin.jthrottle;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.ConcurrentNavigableMap;
+
+/**
+ * Watches a JSON rule file, in the format {@link RuleFactory} reads, and hands
+ * the rules to a listener (a {@link Throttler}, say) each time the file
+ * changes, so limits can be changed without a restart.
+ *
+ * The file is parsed in full before the listener sees any of it. If it can't
+ * be read or parsed, which can happen while it is half written, the listener
+ * keeps its current rules until the next change. Writing the new rules to
+ * another file and renaming it over the watched one avoids this.
+ *
+ */
+public class RuleFileWatcher {
+
+    private final Path file;
+    private final RuleListener listener;
+
+    private volatile WatchService watchService;
+    private volatile Thread thread;
+    private volatile int reloadCount;
+    private volatile Exception lastError;
+
+    /**
+     *
+     * @param file
+     * @param listener
+     *            Given the rules each time the file changes
+     */
+    public RuleFileWatcher(final Path file, final RuleListener listener) {
+        this.file = file.toAbsolutePath();
+        this.listener = listener;
+    }
+
+    /**
+     * Starts watching on a daemon thread. The rules already in the file are
+     * not reloaded.
+     *
+     * @throws IOException
+     *             if the file's directory can't be watched
+     */
+    public synchronized void start() throws IOException {
+        if (thread != null) {
+            return;
+        }
+
+        watchService = file.getFileSystem().newWatchService();
+        file.getParent().register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+
+        thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "jthrottle-rule-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching. The listener keeps the rules it was last given.
+     */
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            // nothing more we can do; the thread is stopping either way
+        }
+
+        thread.interrupt();
+        thread = null;
+    }
+
+    /**
+     * Reads the file and hands its rules to the listener, whether or not it
+     * has changed.
+     *
+     * @return true if the rules were handed over, false if the file couldn't
+     *         be read or parsed
+     */
+    public boolean reload() {
+        ConcurrentNavigableMap<String, Rule> rules;
+
+        try {
+            Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+            try {
+                rules = RuleFactory.parseRules(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            lastError = e;
+            return false;
+        } catch (IllegalStateException e) {
+            lastError = e;
+            return false;
+        }
+
+        listener.updateRules(rules);
+        reloadCount++;
+
+        return true;
+    }
+
+    /**
+     *
+     * @return the number of times the rules have been handed to the listener
+     */
+    public int getReloadCount() {
+        return reloadCount;
+    }
+
+    /**
+     *
+     * @return why the file last failed to load, or null if it never has
+     */
+    public Exception getLastError() {
+        return lastError;
+    }
+
+    private void watch() {
+        Path fileName = file.getFileName();
+
+        while (true) {
+            WatchKey key;
+
+            try {
+                key = watchService.take();
+            } catch (InterruptedException e) {
+                return;
+            } catch (ClosedWatchServiceException e) {
+                return;
+            }
+
+            boolean changed = false;
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                // an overflow means events were lost, and one of them may have
+                // been ours
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                        || fileName.equals(event.context())) {
+                    changed = true;
+                }
+            }
+
+            if (changed) {
+                reload();
+            }
+
+            if (!key.reset()) {
+                return;
+            }
+        }
+    }
+}
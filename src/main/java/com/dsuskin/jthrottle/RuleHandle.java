@@ -0,0 +1,60 @@
+package com.dsuskin.jthrottle;
+
+/**
+ * An operation whose rule has already been looked up, for throttling calls
+ * keyed by a number (a user id, say) without building an operation name
+ * string for each call. Get one from {@link Throttler#ruleHandle(String)}
+ * and keep it around.
+ * 
+ * The rule is resolved for the operation name the handle was created with,
+ * when the handle is created and again whenever the throttler's rules are
+ * updated, so rules which are longer than that name don't apply to keyed
+ * calls.
+ * Keyed buckets are separate from the buckets used for calls made by name.
+ * 
+ */
+public final class RuleHandle {
+
+    private final Throttler throttler;
+    private final String operationName;
+    private volatile Rule rule;
+    private final LongBucketMap buckets;
+
+    /**
+     * 
+     * @param throttler
+     *            The throttler the handle was created by
+     * @param operationName
+     * @param rule
+     *            The rule keyed buckets are created from, or null if no rule
+     *            covers the operation
+     * @param maxBuckets
+     */
+    RuleHandle(final Throttler throttler, final String operationName,
+            final Rule rule, final int maxBuckets) {
+        this.throttler = throttler;
+        this.operationName = operationName;
+        this.rule = rule;
+        this.buckets = new LongBucketMap(maxBuckets);
+    }
+
+    public String getOperationName() {
+        return operationName;
+    }
+
+    Throttler getThrottler() {
+        return throttler;
+    }
+
+    Rule getRule() {
+        return rule;
+    }
+
+    void setRule(final Rule rule) {
+        this.rule = rule;
+    }
+
+    LongBucketMap getBuckets() {
+        return buckets;
+    }
+}
@@ -0,0 +1,26 @@
+package com.dsuskin.jthrottle;
+
+/**
+ * Finds the rules which apply to an operation. Built in memory from a map of
+ * rules by {@link RuleTrie}, or queried in place in a file by
+ * {@link CompiledRules}.
+ * 
+ */
+interface RuleIndex {
+
+    /**
+     * 
+     * @param operationName
+     * @return the rule whose operation name is the longest prefix of the given
+     *         operation name, or null if there isn't one
+     */
+    Rule findLongestPrefixRule(CharSequence operationName);
+
+    /**
+     * 
+     * @param operationName
+     * @return the aggregate rules whose operation names are prefixes of the
+     *         given operation name, longest first
+     */
+    Rule[] findAggregateRules(CharSequence operationName);
+}
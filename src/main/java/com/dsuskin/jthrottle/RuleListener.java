@@ -0,0 +1,20 @@
+package com.dsuskin.jthrottle;
+
+import java.util.concurrent.ConcurrentNavigableMap;
+
+/**
+ * Something which can take a new set of rules while it is running, such as a
+ * {@link Throttler}; see {@link RuleFileWatcher}.
+ * 
+ */
+public interface RuleListener {
+
+    /**
+     * Replaces every rule, as if the listener had been created with the new
+     * ones, while keeping as much of the state of existing buckets as
+     * possible.
+     * 
+     * @param rules
+     */
+    void updateRules(ConcurrentNavigableMap<String, Rule> rules);
+}
@@ -0,0 +1,50 @@
+package com.dsuskin.jthrottle;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live counters for the calls made against one rule's buckets. Striped
+ * counters keep threads hitting the same rule from contending on a single
+ * cache line, and recording never allocates once a counter has grown its
+ * stripes.
+ * 
+ */
+final class RuleMetrics {
+
+    private final String operationName;
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder buckets = new LongAdder();
+
+    RuleMetrics(final String operationName) {
+        this.operationName = operationName;
+    }
+
+    /**
+     * 
+     * @param allowedCalls
+     * @param throttledCalls
+     */
+    void record(final int allowedCalls, final int throttledCalls) {
+        if (allowedCalls > 0) {
+            allowed.add(allowedCalls);
+        }
+
+        if (throttledCalls > 0) {
+            throttled.add(throttledCalls);
+        }
+    }
+
+    void bucketCreated() {
+        buckets.increment();
+    }
+
+    void bucketRemoved() {
+        buckets.decrement();
+    }
+
+    RuleStats snapshot() {
+        return new RuleStats(operationName, allowed.sum(), throttled.sum(),
+                buckets.sum());
+    }
+}
@@ -0,0 +1,54 @@
+package com.dsuskin.jthrottle;
+
+/**
+ * What has happened to the buckets created from one rule, as of the moment
+ * the stats were taken.
+ * 
+ */
+public final class RuleStats {
+
+    private final String operationName;
+    private final long allowedCount;
+    private final long throttledCount;
+    private final long bucketCount;
+
+    RuleStats(final String operationName, final long allowedCount,
+            final long throttledCount, final long bucketCount) {
+        this.operationName = operationName;
+        this.allowedCount = allowedCount;
+        this.throttledCount = throttledCount;
+        this.bucketCount = bucketCount;
+    }
+
+    /**
+     * 
+     * @return the operation name of the rule
+     */
+    public String getOperationName() {
+        return operationName;
+    }
+
+    /**
+     * 
+     * @return the number of calls which were let through
+     */
+    public long getAllowedCount() {
+        return allowedCount;
+    }
+
+    /**
+     * 
+     * @return the number of calls which were throttled
+     */
+    public long getThrottledCount() {
+        return throttledCount;
+    }
+
+    /**
+     * 
+     * @return the number of buckets currently held for the rule
+     */
+    public long getBucketCount() {
+        return bucketCount;
+    }
+}
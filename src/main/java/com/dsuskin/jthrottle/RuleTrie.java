@@ -0,0 +1,178 @@
+package com.dsuskin.jthrottle;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+
+/**
+ * An immutable prefix trie of rules, used to find the rule with the longest
+ * operation name which is a prefix of a given operation name. Unlike a floor
+ * lookup in a sorted map, this finds the right rule whether or not operation
+ * names use delimiters, and a lookup takes time proportional to the length of
+ * the operation name rather than the number of rules.
+ * 
+ * The trie is flattened into arrays once it is built. The edges leaving each
+ * node are stored contiguously and sorted by character, so finding a child is
+ * a binary search, and lookups don't allocate.
+ * 
+ */
+class RuleTrie implements RuleIndex {
+
+    private static final int ROOT = 0;
+
+    /**
+     * The edges of node n are at indexes edgeStart[n] (inclusive) to
+     * edgeStart[n + 1] (exclusive) of edgeChars and edgeTargets.
+     */
+    private final int[] edgeStart;
+    private final char[] edgeChars;
+    private final int[] edgeTargets;
+
+    /**
+     * The rule whose operation name ends at each node, if any.
+     */
+    private final Rule[] nodeRules;
+
+    /**
+     * 
+     * @param rules
+     */
+    RuleTrie(final Collection<Rule> rules) {
+        BuildNode root = new BuildNode();
+        int nodeCount = 1;
+
+        for (Rule rule : rules) {
+            BuildNode node = root;
+            String operationName = rule.getOperationName();
+
+            for (int i = 0; i < operationName.length(); i++) {
+                Character c = operationName.charAt(i);
+                BuildNode child = node.children.get(c);
+
+                if (child == null) {
+                    child = new BuildNode();
+                    node.children.put(c, child);
+                    nodeCount++;
+                }
+
+                node = child;
+            }
+
+            node.rule = rule;
+        }
+
+        edgeStart = new int[nodeCount + 1];
+        edgeChars = new char[nodeCount - 1];
+        edgeTargets = new int[nodeCount - 1];
+        nodeRules = new Rule[nodeCount];
+
+        // breadth first, so that node numbers are handed out in the same order
+        // the nodes are visited
+        Queue<BuildNode> queue = new ArrayDeque<BuildNode>();
+        queue.add(root);
+        int node = ROOT;
+        int edge = 0;
+        int nextNode = ROOT + 1;
+
+        while (!queue.isEmpty()) {
+            BuildNode current = queue.remove();
+            edgeStart[node] = edge;
+            nodeRules[node] = current.rule;
+
+            for (Map.Entry<Character, BuildNode> child : current.children
+                    .entrySet()) {
+                edgeChars[edge] = child.getKey();
+                edgeTargets[edge] = nextNode++;
+                edge++;
+                queue.add(child.getValue());
+            }
+
+            node++;
+        }
+
+        edgeStart[nodeCount] = edge;
+    }
+
+    @Override
+    public Rule findLongestPrefixRule(final CharSequence operationName) {
+        int node = ROOT;
+        Rule match = nodeRules[ROOT];
+
+        for (int i = 0; i < operationName.length(); i++) {
+            node = findChild(node, operationName.charAt(i));
+
+            if (node < 0) {
+                break;
+            }
+
+            if (nodeRules[node] != null) {
+                match = nodeRules[node];
+            }
+        }
+
+        return match;
+    }
+
+    @Override
+    public Rule[] findAggregateRules(final CharSequence operationName) {
+        List<Rule> found = new ArrayList<Rule>();
+        int node = ROOT;
+
+        for (int i = 0; node >= 0; i++) {
+            Rule rule = nodeRules[node];
+
+            if (rule != null && rule.isAggregate()) {
+                found.add(rule);
+            }
+
+            if (i == operationName.length()) {
+                break;
+            }
+
+            node = findChild(node, operationName.charAt(i));
+        }
+
+        Collections.reverse(found);
+        return found.toArray(new Rule[found.size()]);
+    }
+
+    /**
+     * 
+     * @param node
+     * @param c
+     * @return the node reached by following the edge labelled c, or -1 if
+     *         there is no such edge
+     */
+    private int findChild(final int node, final char c) {
+        int low = edgeStart[node];
+        int high = edgeStart[node + 1] - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            char midChar = edgeChars[mid];
+
+            if (midChar < c) {
+                low = mid + 1;
+            } else if (midChar > c) {
+                high = mid - 1;
+            } else {
+                return edgeTargets[mid];
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Only used while the trie is being built.
+     */
+    private static class BuildNode {
+        private final TreeMap<Character, BuildNode> children = new TreeMap<Character, BuildNode>();
+        private Rule rule;
+    }
+}
@@ -0,0 +1,440 @@
+package com.dsuskin.jthrottle;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits operations between several independent {@link Throttler}s, so that
+ * refilling and bucket creation can use more than one core.
+ * 
+ * Operation names are hashed to pick a shard. Each shard has its own buckets
+ * and its own {@link RefillScheduler} thread, and every shard is given the
+ * same rules, so throttling an operation behaves exactly as it would with a
+ * single throttler.
+ * 
+ */
+public class ShardedThrottler implements RuleListener {
+
+    private final Throttler[] shards;
+    private final RefillScheduler[] refillSchedulers;
+    private final int shardMask;
+
+    /**
+     * Shared by every shard.
+     */
+    private final ThrottlerMetrics metrics;
+
+    /**
+     * Shared by every shard, so that aggregate limits hold across all of
+     * them.
+     */
+    private final AggregateBuckets aggregateBuckets;
+
+    /**
+     * Creates a shard for each available processor.
+     * 
+     * @param rules
+     */
+    public ShardedThrottler(final ConcurrentNavigableMap<String, Rule> rules) {
+        this(rules, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * 
+     * @param rules
+     * @param shardCount
+     *            Rounded up to the next power of two
+     */
+    public ShardedThrottler(final ConcurrentNavigableMap<String, Rule> rules,
+            final int shardCount) {
+        this(rules, shardCount, EvictionPolicy.NONE);
+    }
+
+    /**
+     * 
+     * @param rules
+     * @param shardCount
+     *            Rounded up to the next power of two
+     * @param evictionPolicy
+     *            The maximum bucket count is split evenly between the shards
+     */
+    public ShardedThrottler(final ConcurrentNavigableMap<String, Rule> rules,
+            final int shardCount, final EvictionPolicy evictionPolicy) {
+        this(new RuleTrie(rules.values()), new ThrottlerMetrics(
+                rules.values()), shardCount, evictionPolicy);
+    }
+
+    /**
+     * Shards rules compiled ahead of time; see
+     * {@link Throttler#Throttler(CompiledRules)}.
+     * 
+     * @param rules
+     * @param shardCount
+     *            Rounded up to the next power of two
+     * @param evictionPolicy
+     *            The maximum bucket count is split evenly between the shards
+     */
+    public ShardedThrottler(final CompiledRules rules, final int shardCount,
+            final EvictionPolicy evictionPolicy) {
+        this(rules, new ThrottlerMetrics(Collections.<Rule> emptyList()),
+                shardCount, evictionPolicy);
+    }
+
+    private ShardedThrottler(final RuleIndex rules,
+            final ThrottlerMetrics metrics, final int shardCount,
+            final EvictionPolicy evictionPolicy) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException(
+                    "Shard count must be positive: " + shardCount);
+        }
+
+        int roundedShardCount = Integer.highestOneBit(shardCount);
+        if (roundedShardCount < shardCount) {
+            roundedShardCount <<= 1;
+        }
+
+        EvictionPolicy shardEvictionPolicy = evictionPolicy;
+        if (evictionPolicy.getMaxBuckets() != Integer.MAX_VALUE) {
+            shardEvictionPolicy = new EvictionPolicy(
+                    evictionPolicy.getIdleTimeoutMillis(), Math.max(1,
+                            evictionPolicy.getMaxBuckets() / roundedShardCount));
+        }
+
+        this.shards = new Throttler[roundedShardCount];
+        this.refillSchedulers = new RefillScheduler[roundedShardCount];
+        this.shardMask = roundedShardCount - 1;
+
+        this.metrics = metrics;
+        this.aggregateBuckets = new AggregateBuckets(metrics);
+
+        for (int i = 0; i < roundedShardCount; i++) {
+            refillSchedulers[i] = new RefillScheduler();
+            shards[i] = new Throttler(rules, RefillMode.SCHEDULED,
+                    refillSchedulers[i], shardEvictionPolicy, metrics,
+                    aggregateBuckets);
+        }
+
+        for (RefillScheduler refillScheduler : refillSchedulers) {
+            refillScheduler.start();
+        }
+    }
+
+    /**
+     * Should a call to an operation be throttled?
+     * 
+     * @param operationName
+     * @return
+     * @see Throttler#throttle(String)
+     */
+    public boolean throttle(final String operationName) {
+        return shardFor(operationName).throttle(operationName);
+    }
+
+    /**
+     * 
+     * @param operationName
+     * @param permits
+     * @return true if the call should go ahead, false if it should be
+     *         throttled
+     * @see Throttler#tryAcquire(String, int)
+     */
+    public boolean tryAcquire(final String operationName, final int permits) {
+        return shardFor(operationName).tryAcquire(operationName, permits);
+    }
+
+    /**
+     * 
+     * @param operationName
+     * @return true once the call may go ahead, or false if it never will
+     * @throws InterruptedException
+     * @see Throttler#acquire(String)
+     */
+    public boolean acquire(final String operationName)
+            throws InterruptedException {
+        return shardFor(operationName).acquire(operationName);
+    }
+
+    /**
+     * 
+     * @param operationName
+     * @param permits
+     * @param timeout
+     * @param unit
+     * @return true once the call may go ahead, or false if it would have to
+     *         wait longer than the timeout
+     * @throws InterruptedException
+     * @see Throttler#tryAcquire(String, int, long, TimeUnit)
+     */
+    public boolean tryAcquire(final String operationName, final int permits,
+            final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+        return shardFor(operationName).tryAcquire(operationName, permits,
+                timeout, unit);
+    }
+
+    /**
+     * 
+     * @param operationName
+     * @return a future which completes with true once the call may go ahead
+     * @see Throttler#acquireAsync(String)
+     */
+    public CompletableFuture<Boolean> acquireAsync(final String operationName) {
+        return shardFor(operationName).acquireAsync(operationName);
+    }
+
+    /**
+     *
+     * @param operationName
+     * @param latency
+     * @param unit
+     * @see Throttler#onComplete(String, long, TimeUnit)
+     */
+    public void onComplete(final String operationName, final long latency,
+            final TimeUnit unit) {
+        shardFor(operationName).onComplete(operationName, latency, unit);
+    }
+
+    /**
+     *
+     * @param operationName
+     * @param latency
+     * @param unit
+     * @see Throttler#onError(String, long, TimeUnit)
+     */
+    public void onError(final String operationName, final long latency,
+            final TimeUnit unit) {
+        shardFor(operationName).onError(operationName, latency, unit);
+    }
+
+    /**
+     * 
+     * @param operationName
+     * @return a handle for the operation, held by the shard which owns it
+     * @see Throttler#handle(String)
+     */
+    public OperationHandle handle(final String operationName) {
+        return shardFor(operationName).handle(operationName);
+    }
+
+    /**
+     * 
+     * @param handle
+     *            A handle from this throttler's {@link #handle(String)}
+     * @return true if the call should be throttled
+     * @see Throttler#throttle(OperationHandle)
+     */
+    public boolean throttle(final OperationHandle handle) {
+        return handle.getThrottler().throttle(handle);
+    }
+
+    /**
+     * 
+     * @param handle
+     *            A handle from this throttler's {@link #handle(String)}
+     * @param permits
+     * @return true if the call should go ahead, false if it should be
+     *         throttled
+     * @see Throttler#tryAcquire(OperationHandle, int)
+     */
+    public boolean tryAcquire(final OperationHandle handle, final int permits) {
+        return handle.getThrottler().tryAcquire(handle, permits);
+    }
+
+    /**
+     * Splits the batch up by shard, and hands each shard its part of it in
+     * one go.
+     * 
+     * @param operationNames
+     * @return for each operation name, true if that call should be throttled
+     * @see Throttler#throttleAll(String[])
+     */
+    public boolean[] throttleAll(final String[] operationNames) {
+        final int batchSize = operationNames.length;
+        final int[] shardIndexes = new int[batchSize];
+        final int[] shardOffsets = new int[shards.length + 1];
+
+        for (int i = 0; i < batchSize; i++) {
+            shardIndexes[i] = shardIndex(operationNames[i]);
+            shardOffsets[shardIndexes[i] + 1]++;
+        }
+
+        for (int shard = 0; shard < shards.length; shard++) {
+            shardOffsets[shard + 1] += shardOffsets[shard];
+        }
+
+        // the batch's indexes, grouped by shard but otherwise in order
+        final int[] grouped = new int[batchSize];
+        final int[] fill = new int[shards.length];
+        System.arraycopy(shardOffsets, 0, fill, 0, shards.length);
+
+        for (int i = 0; i < batchSize; i++) {
+            grouped[fill[shardIndexes[i]]++] = i;
+        }
+
+        final boolean[] shouldThrottle = new boolean[batchSize];
+
+        for (int shard = 0; shard < shards.length; shard++) {
+            int from = shardOffsets[shard];
+            int to = shardOffsets[shard + 1];
+
+            if (from == to) {
+                continue;
+            }
+
+            String[] shardBatch = new String[to - from];
+            for (int i = from; i < to; i++) {
+                shardBatch[i - from] = operationNames[grouped[i]];
+            }
+
+            boolean[] shardResults = shards[shard].throttleAll(shardBatch);
+            for (int i = from; i < to; i++) {
+                shouldThrottle[grouped[i]] = shardResults[i - from];
+            }
+        }
+
+        return shouldThrottle;
+    }
+
+    /**
+     * Stops the shards' refill threads.
+     */
+    public void stop() {
+        for (RefillScheduler refillScheduler : refillSchedulers) {
+            refillScheduler.stop();
+        }
+    }
+
+    /**
+     * Updates every shard's rules; see {@link Throttler#updateRules}. Each
+     * shard switches over separately, so for a moment some shards may be
+     * using the new rules while others are still using the old ones.
+     * 
+     * @param rules
+     */
+    @Override
+    public void updateRules(final ConcurrentNavigableMap<String, Rule> rules) {
+        metrics.addRules(rules.values());
+        updateRules(new RuleTrie(rules.values()));
+    }
+
+    /**
+     * Switches every shard to rules compiled ahead of time; see
+     * {@link #updateRules(ConcurrentNavigableMap)}.
+     * 
+     * @param rules
+     */
+    public void updateRules(final CompiledRules rules) {
+        updateRules((RuleIndex) rules);
+    }
+
+    private void updateRules(final RuleIndex rules) {
+        for (Throttler shard : shards) {
+            shard.updateRules(rules);
+        }
+    }
+
+    /**
+     * Saves every shard's buckets to one file; see
+     * {@link Throttler#writeSnapshot(Path)}. The snapshot doesn't depend on
+     * the shard count, so it can be restored into a different number of
+     * shards, or into a plain {@link Throttler}.
+     * 
+     * @param file
+     * @throws IOException
+     *             if the snapshot can't be written
+     */
+    public void writeSnapshot(final Path file) throws IOException {
+        List<Bucket> saved = new ArrayList<Bucket>(getBucketCount());
+
+        for (Throttler shard : shards) {
+            shard.collectBuckets(saved);
+        }
+
+        aggregateBuckets.collectBuckets(saved);
+        BucketSnapshot.write(file, saved);
+    }
+
+    /**
+     * Maps a snapshot once and shares it between the shards; see
+     * {@link Throttler#restoreSnapshot(Path)}.
+     * 
+     * @param file
+     * @throws IOException
+     *             if the file can't be mapped, or isn't a snapshot
+     */
+    public void restoreSnapshot(final Path file) throws IOException {
+        BucketSnapshot snapshot = BucketSnapshot.read(file);
+
+        for (Throttler shard : shards) {
+            shard.restoreSnapshot(snapshot);
+        }
+    }
+
+    /**
+     * 
+     * @return counts of the calls all of the shards have seen together
+     */
+    public ThrottlerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 
+     * @return the number of shards
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Buckets refill without ticking, so this only evicts idle buckets.
+     */
+    void tick() {
+        for (Throttler shard : shards) {
+            shard.tick();
+        }
+    }
+
+    /**
+     * 
+     * @return the number of buckets held by all of the shards
+     */
+    int getBucketCount() {
+        int bucketCount = 0;
+
+        for (Throttler shard : shards) {
+            bucketCount += shard.getBucketCount();
+        }
+
+        return bucketCount;
+    }
+
+    /**
+     * 
+     * @param operationName
+     * @return the shard which owns the operation's bucket
+     */
+    private Throttler shardFor(final String operationName) {
+        return shards[shardIndex(operationName)];
+    }
+
+    /**
+     * String hash codes are cached, so this is cheap after the first call for
+     * a given string. The high bits are folded in since only the low bits pick
+     * the shard.
+     * 
+     * @param operationName
+     * @return the index of the shard which owns the operation's bucket
+     */
+    private int shardIndex(final String operationName) {
+        int hash = operationName.hashCode();
+
+        return (hash ^ (hash >>> 16)) & shardMask;
+    }
+}
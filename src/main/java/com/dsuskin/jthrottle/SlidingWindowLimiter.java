@@ -0,0 +1,248 @@
+package com.dsuskin.jthrottle;
+
+/**
+ * {@link Algorithm#SLIDING_WINDOW}. Times are nanoseconds, as for
+ * {@link GcraState}.
+ *
+ * The state holds the index of the window it was last used in, and the
+ * counts for that window and the one before it. A call is let through if the
+ * count for the current window, plus the previous window's count scaled by
+ * how much of the previous window still lies within one window's length of
+ * now, leaves room for it. Counts above the capacity are debt, which is paid
+ * off as the calls slide out of the window.
+ *
+ * The window index only has 23 bits, so it wraps around. A bucket left alone
+ * for a whole multiple of that many windows would find its old counts again;
+ * at a window a second, that takes three months.
+ *
+ */
+final class SlidingWindowLimiter implements Limiter {
+
+    private static final int COUNT_BITS = 20;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    private static final int PREVIOUS_SHIFT = COUNT_BITS;
+    private static final int WINDOW_SHIFT = 2 * COUNT_BITS;
+
+    /**
+     * Window indexes run from 1 to this, so that no state is ever 0, and the
+     * top bit is never set, so that no state is ever negative.
+     */
+    private static final long WINDOWS = (1L << (Long.SIZE - 1 - WINDOW_SHIFT)) - 1;
+
+    /**
+     * One less than the largest count, so that no state is ever
+     * {@link #OVERFLOW}.
+     */
+    static final long MAX_COUNT = COUNT_MASK - 1;
+
+    /**
+     * Keeps the weighted count from overflowing.
+     */
+    static final long MAX_WINDOW_NANOS = 3600 * 1000000000L;
+
+    private final long refillTokens;
+    private final long refillPeriodNanos;
+    private final int tokenCapacity;
+    private final long windowNanos;
+
+    /**
+     *
+     * @param refillTokens
+     *            Must be positive
+     * @param refillPeriodNanos
+     *            Must be positive, and multiplied by refillTokens must fit in
+     *            a long
+     * @param tokenCapacity
+     * @throws IllegalArgumentException
+     *             if the capacity is more than {@link #MAX_COUNT}, or makes
+     *             the window longer than {@link #MAX_WINDOW_NANOS} or shorter
+     *             than a nanosecond
+     */
+    SlidingWindowLimiter(final long refillTokens, final long refillPeriodNanos,
+            final int tokenCapacity) {
+        if (tokenCapacity > MAX_COUNT) {
+            throw new IllegalArgumentException(
+                    "Sliding window capacity too large: " + tokenCapacity);
+        }
+
+        this.refillTokens = refillTokens;
+        this.refillPeriodNanos = refillPeriodNanos;
+        this.tokenCapacity = tokenCapacity;
+        this.windowNanos = GcraState.cost(tokenCapacity, refillTokens,
+                refillPeriodNanos);
+
+        if (windowNanos <= 0 || windowNanos > MAX_WINDOW_NANOS) {
+            throw new IllegalArgumentException(
+                    "Sliding window must be between a nanosecond and an hour: "
+                            + windowNanos + "ns");
+        }
+    }
+
+    @Override
+    public Limiter forBucket() {
+        return this;
+    }
+
+    @Override
+    public Algorithm getAlgorithm() {
+        return Algorithm.SLIDING_WINDOW;
+    }
+
+    @Override
+    public long now(final long nanoTime) {
+        return GcraState.at(nanoTime);
+    }
+
+    @Override
+    public long pack(final long tokens, final long now) {
+        return pack(windowAt(now), 0,
+                Math.min(MAX_COUNT, Math.max(0, tokenCapacity - tokens)));
+    }
+
+    @Override
+    public long refill(final long state, final long now) {
+        return state;
+    }
+
+    @Override
+    public long tokens(final long state, final long now) {
+        return tokenCapacity - estimate(roll(state, now), now);
+    }
+
+    @Override
+    public long take(final long state, final long now, final long tokens) {
+        long rolled = roll(state, now);
+        long current = current(rolled);
+
+        if (tokens > MAX_COUNT - current) {
+            return OVERFLOW;
+        }
+
+        return pack(window(rolled), previous(rolled), current + tokens);
+    }
+
+    @Override
+    public long waitNanos(final long state, final long nanoTime) {
+        long now = GcraState.at(nanoTime);
+        long rolled = roll(state, now);
+        long elapsed = now % windowNanos;
+        long current = current(rolled);
+        long previous = previous(rolled);
+
+        if (current > tokenCapacity) {
+            // only once this window's calls have become the previous
+            // window's, and enough of them have slid out
+            return windowNanos - elapsed + windowNanos - tokenCapacity
+                    * windowNanos / current;
+        }
+
+        if (previous == 0) {
+            return 0;
+        }
+
+        return Math.max(0, windowNanos - (tokenCapacity - current)
+                * windowNanos / previous - elapsed);
+    }
+
+    @Override
+    public long refund(final long state, final long now, final long tokens) {
+        long rolled = roll(state, now);
+
+        return pack(window(rolled), previous(rolled),
+                Math.max(0, current(rolled) - tokens));
+    }
+
+    @Override
+    public long drain(final long state, final long now, final long tokens) {
+        long rolled = roll(state, now);
+        long room = Math.max(0, tokenCapacity - estimate(rolled, now));
+
+        return pack(window(rolled), previous(rolled), current(rolled)
+                + Math.min(tokens, room));
+    }
+
+    @Override
+    public boolean isFull(final long state, final long now) {
+        return estimate(roll(state, now), now) <= 0;
+    }
+
+    @Override
+    public boolean needsRefill() {
+        return false;
+    }
+
+    @Override
+    public long nextRefillNanos(final long state) {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int getTokenCapacity() {
+        return tokenCapacity;
+    }
+
+    @Override
+    public long getRefillTokens() {
+        return refillTokens;
+    }
+
+    @Override
+    public long getRefillPeriodNanos() {
+        return refillPeriodNanos;
+    }
+
+    /**
+     *
+     * @param rolled
+     *            A state in the current window
+     * @param now
+     * @return the number of calls counted over the last window's length
+     */
+    private long estimate(final long rolled, final long now) {
+        long remaining = windowNanos - now % windowNanos;
+
+        return current(rolled)
+                + (previous(rolled) * remaining + windowNanos - 1)
+                / windowNanos;
+    }
+
+    /**
+     *
+     * @param state
+     * @param now
+     * @return the state moved on to the current window
+     */
+    private long roll(final long state, final long now) {
+        long window = windowAt(now);
+        long stored = window(state);
+
+        if (stored == window) {
+            return state;
+        }
+
+        long previous = stored % WINDOWS + 1 == window ? current(state) : 0;
+
+        return pack(window, previous, 0);
+    }
+
+    private long windowAt(final long now) {
+        return now / windowNanos % WINDOWS + 1;
+    }
+
+    private static long pack(final long window, final long previous,
+            final long current) {
+        return window << WINDOW_SHIFT | previous << PREVIOUS_SHIFT | current;
+    }
+
+    private static long window(final long state) {
+        return state >>> WINDOW_SHIFT;
+    }
+
+    private static long previous(final long state) {
+        return (state >>> PREVIOUS_SHIFT) & COUNT_MASK;
+    }
+
+    private static long current(final long state) {
+        return state & COUNT_MASK;
+    }
+}
@@ -0,0 +1,463 @@
+package com.dsuskin.jthrottle;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Passes a stream of elements on at the rate an operation's rule allows,
+ * each element being one call to the operation. What happens to elements
+ * which come too fast is up to the {@link OverflowStrategy}.
+ *
+ * Nothing sleeps. Tokens are taken as elements are let through, and turned
+ * into demand upstream, so with {@link OverflowStrategy#DELAY} upstream is
+ * only asked for elements which there are already tokens for. When the
+ * bucket runs dry, a token is reserved and the processor picks up again
+ * once it is due, on the timer {@link Throttler#acquireAsync(String)} uses,
+ * handing the work itself to an executor. Tokens and upstream demand are
+ * both handled in batches, so that at high rates there isn't a signal per
+ * element.
+ *
+ * There can be one subscriber. Signals to it are never concurrent.
+ *
+ * @param <T>
+ *            The type of the elements
+ */
+public final class ThrottledProcessor<T> implements Flow.Processor<T, T> {
+
+    private static final int DEFAULT_BATCH_SIZE = 32;
+
+    /**
+     * How long to wait before trying again when no token can be reserved,
+     * because no rule covers the operation or its rule never refills, in
+     * case the rules change.
+     */
+    private static final long RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Throttler throttler;
+    private final OperationHandle handle;
+    private final OverflowStrategy strategy;
+    private final int bufferSize;
+    private final int batchSize;
+    private final Executor executor;
+
+    private final AtomicReference<Flow.Subscription> upstream = new AtomicReference<Flow.Subscription>();
+    private final AtomicReference<Flow.Subscriber<? super T>> downstream = new AtomicReference<Flow.Subscriber<? super T>>();
+
+    /**
+     * Elements from upstream which haven't been let through yet, and how many
+     * there are, since counting a concurrent queue means walking it.
+     */
+    private final Queue<T> queue = new ConcurrentLinkedQueue<T>();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * Elements asked for by the subscriber which haven't been sent, and asked
+     * for from upstream which haven't arrived.
+     */
+    private final AtomicLong demand = new AtomicLong();
+    private final AtomicLong outstanding = new AtomicLong();
+
+    /**
+     * Calls whose tokens have been taken, but which haven't been let through
+     * yet.
+     */
+    private final AtomicInteger paidCalls = new AtomicInteger();
+
+    /**
+     * True while a reserved token is due.
+     */
+    private final AtomicBoolean waiting = new AtomicBoolean();
+
+    /**
+     * Signals that there's something to do; only one thread drains at a
+     * time, and it goes round again if it was signalled meanwhile.
+     */
+    private final AtomicInteger work = new AtomicInteger();
+
+    private final Runnable drainTask = new Runnable() {
+
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private volatile boolean subscribed;
+    private volatile boolean done;
+    private volatile Throwable error;
+    private volatile boolean cancelled;
+    private volatile long dropped;
+
+    /**
+     * Only read and written while draining.
+     */
+    private boolean terminated;
+
+    /**
+     * Buffers up to {@link Flow#defaultBufferSize()} elements, and runs on
+     * the common pool once it has waited for a token.
+     *
+     * @param handle
+     *            A handle for the operation to throttle elements as
+     * @param strategy
+     */
+    public ThrottledProcessor(final OperationHandle handle,
+            final OverflowStrategy strategy) {
+        this(handle, strategy, Flow.defaultBufferSize(), DEFAULT_BATCH_SIZE,
+                ForkJoinPool.commonPool());
+    }
+
+    /**
+     *
+     * @param handle
+     *            A handle for the operation to throttle elements as, from a
+     *            {@link Throttler} or a {@link ShardedThrottler}
+     * @param strategy
+     * @param bufferSize
+     *            The most elements {@link OverflowStrategy#BUFFER} asks for
+     *            ahead of time; must be positive
+     * @param batchSize
+     *            The most tokens taken, or elements asked for from upstream,
+     *            at once; must be positive
+     * @param executor
+     *            Runs the processor after it has waited for a token, and so
+     *            the subscriber's onNext
+     */
+    public ThrottledProcessor(final OperationHandle handle,
+            final OverflowStrategy strategy, final int bufferSize,
+            final int batchSize, final Executor executor) {
+        if (bufferSize <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException(
+                    "Buffer and batch sizes must be positive: " + bufferSize
+                            + ", " + batchSize);
+        }
+
+        this.throttler = handle.getThrottler();
+        this.handle = handle;
+        this.strategy = strategy;
+        this.bufferSize = bufferSize;
+        this.batchSize = batchSize;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(final Flow.Subscriber<? super T> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber");
+        }
+
+        if (!downstream.compareAndSet(null, subscriber)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException(
+                    "Already subscribed to"));
+            return;
+        }
+
+        subscriber.onSubscribe(new Subscription());
+        subscribed = true;
+        drain();
+    }
+
+    @Override
+    public void onSubscribe(final Flow.Subscription subscription) {
+        if (cancelled || !upstream.compareAndSet(null, subscription)) {
+            subscription.cancel();
+            return;
+        }
+
+        drain();
+    }
+
+    @Override
+    public void onNext(final T item) {
+        if (item == null) {
+            throw new NullPointerException("Item");
+        }
+
+        if (done) {
+            return;
+        }
+
+        if (outstanding.get() <= 0) {
+            fail(new IllegalStateException(
+                    "Sent more elements than were asked for"));
+            return;
+        }
+
+        queue.offer(item);
+        queued.incrementAndGet();
+        outstanding.decrementAndGet();
+        drain();
+    }
+
+    @Override
+    public void onError(final Throwable throwable) {
+        error = throwable;
+        done = true;
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        done = true;
+        drain();
+    }
+
+    /**
+     *
+     * @return the number of elements dropped by
+     *         {@link OverflowStrategy#DROP}
+     */
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    private void fail(final Throwable throwable) {
+        error = throwable;
+        done = true;
+
+        Flow.Subscription subscription = upstream.get();
+        if (subscription != null) {
+            subscription.cancel();
+        }
+
+        drain();
+    }
+
+    private void drain() {
+        if (work.getAndIncrement() != 0) {
+            return;
+        }
+
+        int missed = 1;
+
+        do {
+            drainOnce();
+            missed = work.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void drainOnce() {
+        if (!subscribed) {
+            return;
+        }
+
+        if (terminated || cancelled) {
+            // tokens can still come in from the timer afterwards
+            terminated = true;
+            clear();
+            return;
+        }
+
+        Flow.Subscriber<? super T> subscriber = downstream.get();
+
+        if (error != null) {
+            terminated = true;
+            clear();
+            subscriber.onError(error);
+            return;
+        }
+
+        emit(subscriber);
+
+        if (done && queued.get() == 0 && !cancelled) {
+            terminated = true;
+            clear();
+            subscriber.onComplete();
+            return;
+        }
+
+        if (!done && !cancelled) {
+            requestMore();
+        }
+    }
+
+    /**
+     * Lets through as many queued elements as there are tokens and demand
+     * for.
+     *
+     * @param subscriber
+     */
+    private void emit(final Flow.Subscriber<? super T> subscriber) {
+        while (queued.get() > 0 && !cancelled) {
+            boolean wanted = demand.get() > 0;
+
+            if (wanted && paidCalls.get() == 0 && !waiting.get()) {
+                paidCalls.addAndGet(throttler.throttleUpTo(handle, (int) Math
+                        .min(batchSize, Math.min(queued.get(), demand.get()))));
+            }
+
+            boolean allowed = wanted && paidCalls.get() > 0;
+
+            if (!allowed && strategy != OverflowStrategy.DROP) {
+                if (wanted) {
+                    awaitToken();
+                }
+                return;
+            }
+
+            T item = queue.poll();
+            queued.decrementAndGet();
+
+            if (allowed) {
+                paidCalls.decrementAndGet();
+                demand.decrementAndGet();
+                subscriber.onNext(item);
+            } else {
+                dropped++;
+            }
+        }
+    }
+
+    /**
+     * Asks upstream for more once there's room for at least half a batch.
+     */
+    private void requestMore() {
+        Flow.Subscription subscription = upstream.get();
+
+        if (subscription == null) {
+            return;
+        }
+
+        long inFlight = queued.get() + outstanding.get();
+        long window;
+
+        switch (strategy) {
+        case DROP:
+            window = batchSize;
+            break;
+        case BUFFER:
+            window = bufferSize;
+            break;
+        default:
+            window = Math.min(batchSize, demand.get());
+        }
+
+        long room = window - inFlight;
+
+        if (room <= 0 || room < (window + 1) / 2) {
+            return;
+        }
+
+        if (strategy == OverflowStrategy.DELAY) {
+            // everything in flight has been paid for already, and anything
+            // over that came from the timer
+            long unrequested = paidCalls.get() - inFlight;
+
+            if (unrequested < room && !waiting.get()) {
+                paidCalls.addAndGet(throttler.throttleUpTo(handle,
+                        (int) (room - unrequested)));
+            }
+
+            room = Math.min(room, paidCalls.get() - inFlight);
+
+            if (room <= 0) {
+                awaitToken();
+                return;
+            }
+        }
+
+        outstanding.addAndGet(room);
+        subscription.request(room);
+    }
+
+    /**
+     * Reserves a token, and drains again once it is due.
+     */
+    private void awaitToken() {
+        if (!waiting.compareAndSet(false, true)) {
+            return;
+        }
+
+        long waitNanos = throttler.reserve(handle.getOperationName(),
+                Throttler.CALL_COST, Long.MAX_VALUE);
+        final boolean reserved = waitNanos >= 0;
+
+        AcquireTimer.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                if (reserved) {
+                    paidCalls.incrementAndGet();
+                }
+
+                waiting.set(false);
+                executor.execute(drainTask);
+            }
+        }, reserved ? waitNanos : RETRY_NANOS);
+    }
+
+    /**
+     * Drops what's queued, and gives back the tokens which weren't used.
+     */
+    private void clear() {
+        queue.clear();
+        queued.set(0);
+
+        for (int unused = paidCalls.getAndSet(0); unused > 0; unused--) {
+            throttler.release(handle.getOperationName(), Throttler.CALL_COST);
+        }
+    }
+
+    private void addDemand(final long n) {
+        while (true) {
+            long current = demand.get();
+            long updated = current + n;
+
+            if (updated < 0) {
+                updated = Long.MAX_VALUE;
+            }
+
+            if (demand.compareAndSet(current, updated)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * The subscriber's side.
+     */
+    private final class Subscription implements Flow.Subscription {
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0) {
+                fail(new IllegalArgumentException(
+                        "Requests must be positive: " + n));
+                return;
+            }
+
+            addDemand(n);
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+
+            Flow.Subscription subscription = upstream.get();
+            if (subscription != null) {
+                subscription.cancel();
+            }
+
+            drain();
+        }
+    }
+}
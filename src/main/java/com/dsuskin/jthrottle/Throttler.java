@@ -1,11 +1,21 @@
 package com.dsuskin.jthrottle;
 
-import java.util.Collection;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
-import java.util.NavigableSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * We need a way of managing a set of buckets which are created based on a set
@@ -14,60 +24,1455 @@ import java.util.concurrent.ConcurrentNavigableMap;
  * @author dsuskin
  * 
  */
-public class Throttler {
+public class Throttler implements RuleListener {
+
+    /**
+     * Permits which stand for the cost of a call to the operation under its
+     * rule; see {@link Rule#withCost(int)}.
+     */
+    static final int CALL_COST = 0;
+
+    /**
+     * 
+     */
+    private final ConcurrentMap<String, Bucket> buckets;
+
+    /**
+     * Handles for keyed calls, so that asking for the same operation twice
+     * gives back the same buckets.
+     */
+    private final ConcurrentMap<String, RuleHandle> ruleHandles;
+
+    /**
+     * Compiled from the rules the throttler is created with, since they're
+     * only ever used to find the rule for a new bucket. Swapped whole when the
+     * rules are updated, so a lookup sees either the old rules or the new
+     * ones.
+     */
+    private volatile RuleIndex rules;
+
+    /**
+     * Held while buckets are moved over to updated rules.
+     */
+    private final ReentrantLock ruleUpdateLock = new ReentrantLock();
+
+    /**
+     * 
+     */
+    private final RefillMode refillMode;
+
+    /**
+     * Only set in {@link RefillMode#SCHEDULED}.
+     */
+    private final RefillScheduler refillScheduler;
+
+    /**
+     * 
+     */
+    private final EvictionPolicy evictionPolicy;
+
+    /**
+     * 
+     */
+    private final BucketEvictor evictor;
+
+    /**
+     * 
+     */
+    private final ThrottlerMetrics metrics;
+
+    /**
+     * Where new buckets get their tokens from after a restart, until every
+     * bucket in it would have refilled; null the rest of the time.
+     */
+    private volatile BucketSnapshot snapshot;
+
+    /**
+     * The shared buckets of aggregate rules, which may be shared with other
+     * throttlers.
+     */
+    private final AggregateBuckets aggregateBuckets;
+
+    /**
+     * Creates a throttler whose buckets are refilled by {@link #tick()}.
+     * 
+     * @param rules
+     */
+    public Throttler(final ConcurrentNavigableMap<String, Rule> rules) {
+        this(rules, RefillMode.TICK);
+    }
+
+    /**
+     * 
+     * @param rules
+     * @param refillMode
+     */
+    public Throttler(final ConcurrentNavigableMap<String, Rule> rules,
+            final RefillMode refillMode) {
+        this(rules, refillMode, EvictionPolicy.NONE);
+    }
+
+    /**
+     * 
+     * @param rules
+     * @param refillMode
+     * @param evictionPolicy
+     */
+    public Throttler(final ConcurrentNavigableMap<String, Rule> rules,
+            final RefillMode refillMode, final EvictionPolicy evictionPolicy) {
+        this(new RuleTrie(rules.values()), requireUnscheduled(refillMode),
+                null, evictionPolicy, new ThrottlerMetrics(rules.values()));
+    }
+
+    /**
+     * Creates a throttler whose buckets are refilled by the given scheduler.
+     * 
+     * @param rules
+     * @param refillScheduler
+     */
+    public Throttler(final ConcurrentNavigableMap<String, Rule> rules,
+            final RefillScheduler refillScheduler) {
+        this(rules, refillScheduler, EvictionPolicy.NONE);
+    }
+
+    /**
+     * 
+     * @param rules
+     * @param refillScheduler
+     * @param evictionPolicy
+     */
+    public Throttler(final ConcurrentNavigableMap<String, Rule> rules,
+            final RefillScheduler refillScheduler,
+            final EvictionPolicy evictionPolicy) {
+        this(new RuleTrie(rules.values()), RefillMode.SCHEDULED,
+                refillScheduler, evictionPolicy, new ThrottlerMetrics(
+                        rules.values()));
+    }
+
+    /**
+     * Creates a throttler over rules compiled ahead of time, which starts up
+     * just as quickly however many rules there are.
+     * 
+     * @param rules
+     * @see CompiledRules
+     */
+    public Throttler(final CompiledRules rules) {
+        this(rules, RefillMode.TICK, EvictionPolicy.NONE);
+    }
+
+    /**
+     * 
+     * @param rules
+     * @param refillMode
+     * @param evictionPolicy
+     */
+    public Throttler(final CompiledRules rules, final RefillMode refillMode,
+            final EvictionPolicy evictionPolicy) {
+        this(rules, requireUnscheduled(refillMode), null, evictionPolicy,
+                new ThrottlerMetrics(Collections.<Rule> emptyList()));
+    }
+
+    /**
+     * Lets throttlers share rules which have already been compiled.
+     * 
+     * @param rules
+     * @param refillMode
+     * @param refillScheduler
+     *            Only used with {@link RefillMode#SCHEDULED}
+     * @param evictionPolicy
+     * @param metrics
+     *            Where calls are counted, which may be shared with other
+     *            throttlers
+     */
+    Throttler(final RuleIndex rules, final RefillMode refillMode,
+            final RefillScheduler refillScheduler,
+            final EvictionPolicy evictionPolicy, final ThrottlerMetrics metrics) {
+        this(rules, refillMode, refillScheduler, evictionPolicy, metrics,
+                new AggregateBuckets(metrics));
+    }
+
+    /**
+     * Lets throttlers share aggregate limits.
+     * 
+     * @param rules
+     * @param refillMode
+     * @param refillScheduler
+     *            Only used with {@link RefillMode#SCHEDULED}
+     * @param evictionPolicy
+     * @param metrics
+     *            Where calls are counted, which may be shared with other
+     *            throttlers
+     * @param aggregateBuckets
+     *            The shared buckets of aggregate rules, which may be shared
+     *            with other throttlers
+     */
+    Throttler(final RuleIndex rules, final RefillMode refillMode,
+            final RefillScheduler refillScheduler,
+            final EvictionPolicy evictionPolicy,
+            final ThrottlerMetrics metrics,
+            final AggregateBuckets aggregateBuckets) {
+        super();
+        this.buckets = new ConcurrentHashMap<String, Bucket>();
+        this.ruleHandles = new ConcurrentHashMap<String, RuleHandle>();
+        this.rules = rules;
+        this.refillMode = refillMode;
+        this.refillScheduler = refillScheduler;
+        this.evictionPolicy = evictionPolicy;
+        this.evictor = new BucketEvictor(buckets, evictionPolicy);
+        this.metrics = metrics;
+        this.aggregateBuckets = aggregateBuckets;
+    }
+
+    private static RefillMode requireUnscheduled(final RefillMode refillMode) {
+        if (refillMode == RefillMode.SCHEDULED) {
+            throw new IllegalArgumentException(
+                    "Scheduled refills need a RefillScheduler");
+        }
+
+        return refillMode;
+    }
+
+    /**
+     * Should a call to an operation be throttled? The call takes as many
+     * tokens as its rule says it costs, which is 1 unless the rule says
+     * otherwise.
+     * 
+     * @param operationName
+     * @return
+     */
+    public boolean throttle(final String operationName) {
+        return acquire(operationName, 1, CALL_COST) == 0;
+    }
+
+    /**
+     * Takes several tokens from an operation's bucket at once, or none at all.
+     * This is how a call with a cost only known at the time, such as a number
+     * of bytes or rows, is throttled; the rule's cost doesn't apply.
+     * 
+     * @param operationName
+     * @param permits
+     *            The number of tokens to take
+     * @return true if the call should go ahead, false if it should be
+     *         throttled
+     */
+    public boolean tryAcquire(final String operationName, final int permits) {
+        Bucket.checkPermits(permits);
+
+        return acquire(operationName, 1, permits) == 1;
+    }
+
+    /**
+     * Waits for the call's tokens rather than being throttled; see
+     * {@link #throttle(String)}. The wait is worked out
+     * from the bucket's refill rate up front, and the thread parks for
+     * exactly that long, so there's no polling. Callers waiting on the same
+     * bucket go ahead in the order they arrived.
+     * 
+     * Parking doesn't hold any monitors, so this is fine to call from a
+     * virtual thread.
+     * 
+     * @param operationName
+     * @return true once the call may go ahead, or false straight away if it
+     *         never will, because no rule matches it or its bucket never
+     *         refills
+     * @throws InterruptedException
+     *             if interrupted while waiting, in which case the tokens are
+     *             given back
+     */
+    public boolean acquire(final String operationName)
+            throws InterruptedException {
+        return await(operationName, CALL_COST, Long.MAX_VALUE);
+    }
+
+    /**
+     * Waits for several tokens, but only if they'll be available within the
+     * timeout; see {@link #acquire(String)}. Nothing is taken if the wait
+     * would be too long.
+     * 
+     * @param operationName
+     * @param permits
+     *            The number of tokens to take
+     * @param timeout
+     * @param unit
+     * @return true once the call may go ahead, or false straight away if it
+     *         would have to wait longer than the timeout
+     * @throws InterruptedException
+     *             if interrupted while waiting, in which case the tokens are
+     *             given back
+     */
+    public boolean tryAcquire(final String operationName, final int permits,
+            final long timeout, final TimeUnit unit)
+            throws InterruptedException {
+        Bucket.checkPermits(permits);
+
+        return await(operationName, permits, unit.toNanos(timeout));
+    }
+
+    /**
+     * 
+     * @param operationName
+     * @param permits
+     *            The tokens to take, or {@link #CALL_COST}
+     * @param maxWaitNanos
+     * @return true once the call may go ahead, or false straight away if it
+     *         would have to wait longer than that
+     * @throws InterruptedException
+     */
+    private boolean await(final String operationName, final int permits,
+            final long maxWaitNanos) throws InterruptedException {
+        long waitNanos = reserve(operationName, permits, maxWaitNanos);
+
+        if (waitNanos < 0) {
+            return false;
+        }
+
+        try {
+            parkNanos(waitNanos);
+        } catch (InterruptedException e) {
+            release(operationName, permits);
+            throw e;
+        }
+
+        return true;
+    }
+
+    /**
+     * Like {@link #acquire(String)}, without blocking a thread. Waiting
+     * futures are completed by a single timer thread shared by every
+     * throttler, so dependent stages which do real work should be run
+     * asynchronously.
+     * 
+     * @param operationName
+     * @return a future which completes with true once the call may go ahead,
+     *         or is completed with false straight away if it never will.
+     *         Cancelling it gives the tokens back.
+     */
+    public CompletableFuture<Boolean> acquireAsync(final String operationName) {
+        long waitNanos = reserve(operationName, CALL_COST, Long.MAX_VALUE);
+
+        if (waitNanos < 0) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        if (waitNanos == 0) {
+            return CompletableFuture.completedFuture(true);
+        }
+
+        final CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+
+        AcquireTimer.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                if (!future.complete(true)) {
+                    release(operationName, CALL_COST);
+                }
+            }
+        }, waitNanos);
+
+        return future;
+    }
+
+    /**
+     * Tells an adaptive rule how a call went, so that it can move its rate;
+     * see {@link Rule#asAdaptive(long, long, TimeUnit, long, TimeUnit)}. The call's bucket
+     * and those of any adaptive aggregate rules covering it are adjusted.
+     * This never blocks, and does nothing for other rules, so it's fine to
+     * call after every call.
+     * 
+     * @param operationName
+     * @param latency
+     *            How long the call took
+     * @param unit
+     */
+    public void onComplete(final String operationName, final long latency,
+            final TimeUnit unit) {
+        onComplete(buckets.get(operationName), unit.toNanos(latency), false);
+    }
+
+    /**
+     * Tells an adaptive rule that a call failed in a way which suggests its
+     * backend is overloaded, such as a timeout or a rejection; see
+     * {@link #onComplete(String, long, TimeUnit)}.
+     * 
+     * @param operationName
+     * @param latency
+     *            How long the call took
+     * @param unit
+     */
+    public void onError(final String operationName, final long latency,
+            final TimeUnit unit) {
+        onComplete(buckets.get(operationName), unit.toNanos(latency), true);
+    }
+
+    /**
+     * 
+     * @param bucket
+     *            May be null, if the operation has no bucket
+     * @param latencyNanos
+     * @param failed
+     */
+    private static void onComplete(final Bucket bucket,
+            final long latencyNanos, final boolean failed) {
+        if (bucket == null) {
+            return;
+        }
+
+        long nowNanos = System.nanoTime();
+        bucket.onComplete(latencyNanos, failed, nowNanos);
+
+        for (Bucket aggregate : bucket.getAggregates()) {
+            aggregate.onComplete(latencyNanos, failed, nowNanos);
+        }
+    }
+
+    /**
+     * Looks up the rule for an operation once, so that calls to it can be
+     * throttled by a numeric key without building a string per call; see
+     * {@link #throttle(RuleHandle, long)}.
+     * 
+     * @param operationName
+     *            The operation name keyed calls share, such as "myOperation/"
+     * @return a handle for the operation, which is the same each time this is
+     *         called with the same name
+     */
+    public RuleHandle ruleHandle(final String operationName) {
+        RuleHandle handle = ruleHandles.get(operationName);
+
+        if (handle == null) {
+            RuleIndex currentRules = rules;
+            handle = new RuleHandle(this, operationName,
+                    currentRules.findLongestPrefixRule(operationName),
+                    evictionPolicy.getMaxBuckets());
+            RuleHandle existing = ruleHandles.putIfAbsent(operationName,
+                    handle);
+
+            if (existing != null) {
+                handle = existing;
+            } else if (currentRules != rules) {
+                // the rules were updated before the handle could be seen
+                ruleUpdateLock.lock();
+                try {
+                    handle.setRule(rules.findLongestPrefixRule(operationName));
+                } finally {
+                    ruleUpdateLock.unlock();
+                }
+            }
+        }
+
+        return handle;
+    }
+
+    /**
+     * Should a keyed call to an operation be throttled? Once the key has a
+     * bucket, this doesn't allocate anything. The call takes as many tokens
+     * as its rule says it costs; see {@link #throttle(String)}.
+     * 
+     * @param handle
+     *            A handle from this throttler's
+     *            {@link #ruleHandle(String)}
+     * @param key
+     * @return true if the call should be throttled
+     */
+    public boolean throttle(final RuleHandle handle, final long key) {
+        return acquire(handle, key, 1, CALL_COST) == 0;
+    }
+
+    /**
+     * Takes several tokens from a keyed bucket at once, or none at all.
+     * 
+     * @param handle
+     *            A handle from this throttler's
+     *            {@link #ruleHandle(String)}
+     * @param key
+     * @param permits
+     *            The number of tokens to take
+     * @return true if the call should go ahead, false if it should be
+     *         throttled
+     */
+    public boolean tryAcquire(final RuleHandle handle, final long key,
+            final int permits) {
+        Bucket.checkPermits(permits);
+
+        return acquire(handle, key, 1, permits) == 1;
+    }
+
+    /**
+     * Tells an adaptive rule how a keyed call went; see
+     * {@link #onComplete(String, long, TimeUnit)}.
+     * 
+     * @param handle
+     *            A handle from this throttler's {@link #ruleHandle(String)}
+     * @param key
+     * @param latency
+     * @param unit
+     */
+    public void onComplete(final RuleHandle handle, final long key,
+            final long latency, final TimeUnit unit) {
+        onComplete(handle.getBuckets().get(key), unit.toNanos(latency), false);
+    }
+
+    /**
+     * Tells an adaptive rule that a keyed call failed; see
+     * {@link #onError(String, long, TimeUnit)}.
+     * 
+     * @param handle
+     *            A handle from this throttler's {@link #ruleHandle(String)}
+     * @param key
+     * @param latency
+     * @param unit
+     */
+    public void onError(final RuleHandle handle, final long key,
+            final long latency, final TimeUnit unit) {
+        onComplete(handle.getBuckets().get(key), unit.toNanos(latency), true);
+    }
+
+    /**
+     * Looks up an operation's bucket once, so that calls to it go straight
+     * to the bucket without a map lookup; see
+     * {@link #throttle(OperationHandle)}. Handles stay valid while buckets
+     * are evicted and rules updated.
+     * 
+     * @param operationName
+     * @return a handle for the operation
+     */
+    public OperationHandle handle(final String operationName) {
+        OperationHandle handle = new OperationHandle(this, operationName);
+        handle.setBucket(getOrCreateBucket(operationName));
+
+        return handle;
+    }
+
+    /**
+     * Should a call to a handle's operation be throttled? The same as
+     * {@link #throttle(String)}, but without looking the bucket up unless it
+     * has been retired since the last call.
+     * 
+     * @param handle
+     *            A handle from this throttler's {@link #handle(String)}
+     * @return true if the call should be throttled
+     */
+    public boolean throttle(final OperationHandle handle) {
+        return acquire(handle, 1, CALL_COST) == 0;
+    }
+
+    /**
+     * Takes several tokens from a handle's bucket at once, or none at all;
+     * see {@link #tryAcquire(String, int)}.
+     * 
+     * @param handle
+     *            A handle from this throttler's {@link #handle(String)}
+     * @param permits
+     *            The number of tokens to take
+     * @return true if the call should go ahead, false if it should be
+     *         throttled
+     */
+    public boolean tryAcquire(final OperationHandle handle, final int permits) {
+        Bucket.checkPermits(permits);
+
+        return acquire(handle, 1, permits) == 1;
+    }
+
+    /**
+     * Tells an adaptive rule how long a call through a handle took; see
+     * {@link #onComplete(String, long, TimeUnit)}.
+     * 
+     * @param handle
+     *            A handle from this throttler's {@link #handle(String)}
+     * @param latency
+     * @param unit
+     */
+    public void onComplete(final OperationHandle handle, final long latency,
+            final TimeUnit unit) {
+        onComplete(handle.getBucket(), unit.toNanos(latency), false);
+    }
+
+    /**
+     * Tells an adaptive rule that a call through a handle failed; see
+     * {@link #onError(String, long, TimeUnit)}.
+     * 
+     * @param handle
+     *            A handle from this throttler's {@link #handle(String)}
+     * @param latency
+     * @param unit
+     */
+    public void onError(final OperationHandle handle, final long latency,
+            final TimeUnit unit) {
+        onComplete(handle.getBucket(), unit.toNanos(latency), true);
+    }
+
+    /**
+     * Takes as many tokens as the operation's bucket has, up to a maximum. The
+     * tokens are counted against the rule as a single call, allowed if any
+     * were taken, since they aren't calls themselves; see
+     * {@link ThrottlerTokenCoordinator}.
+     * 
+     * @param operationName
+     * @param maxPermits
+     * @return the number of tokens taken
+     */
+    int acquireUpTo(final String operationName, final int maxPermits) {
+        while (true) {
+            Bucket bucket = getOrCreateBucket(operationName);
+
+            if (bucket == null) {
+                metrics.recordUnmatched(1);
+                return 0;
+            }
+
+            bucket.markReferenced();
+
+            int taken = take(bucket, maxPermits, 1);
+
+            if (taken > 0 || !bucket.isRetired()) {
+                record(bucket, 1, taken > 0 ? 1 : 0);
+                return taken;
+            }
+
+            buckets.remove(operationName, bucket);
+        }
+    }
+
+    /**
+     * Lets as many calls through a handle as its bucket has tokens for, up to
+     * a maximum.
+     * 
+     * @param handle
+     * @param maxCalls
+     * @return the number of calls which may go ahead
+     */
+    int throttleUpTo(final OperationHandle handle, final int maxCalls) {
+        return acquire(handle, maxCalls, CALL_COST);
+    }
+
+    /**
+     * Decides whether to throttle a whole batch of calls at once. Each
+     * distinct operation's bucket is looked up once, and all of the tokens the
+     * batch wants from it are taken in a single update. When an operation
+     * appears several times and its bucket runs short, the earlier calls in
+     * the batch are the ones which go ahead. Each call takes as many tokens as
+     * its rule says it costs.
+     * 
+     * @param operationNames
+     * @return for each operation name, true if that call should be throttled
+     */
+    public boolean[] throttleAll(final String[] operationNames) {
+        final int batchSize = operationNames.length;
+        final boolean[] shouldThrottle = new boolean[batchSize];
+
+        // repeated operations are chained together from their first index
+        final Map<String, Integer> firstIndexes = new HashMap<String, Integer>();
+        final int[] nextIndexes = new int[batchSize];
+        final int[] lastIndexes = new int[batchSize];
+        final int[] counts = new int[batchSize];
+
+        for (int i = 0; i < batchSize; i++) {
+            nextIndexes[i] = -1;
+            Integer first = firstIndexes.get(operationNames[i]);
+
+            if (first == null) {
+                firstIndexes.put(operationNames[i], i);
+                lastIndexes[i] = i;
+                counts[i] = 1;
+            } else {
+                nextIndexes[lastIndexes[first]] = i;
+                lastIndexes[first] = i;
+                counts[first]++;
+            }
+        }
+
+        for (int i = 0; i < batchSize; i++) {
+            if (counts[i] == 0) {
+                continue;
+            }
+
+            int allowed = acquire(operationNames[i], counts[i], CALL_COST);
+
+            for (int j = i; j != -1; j = nextIndexes[j]) {
+                shouldThrottle[j] = allowed <= 0;
+                allowed--;
+            }
+        }
+
+        return shouldThrottle;
+    }
+
+    /**
+     * Swaps in a new set of rules. Lookups switch to the new rules all at
+     * once, and then each existing bucket whose rule has changed is replaced
+     * by one with the new capacity and refill rate, holding the same
+     * proportion of its capacity in tokens. Buckets whose operation no longer
+     * has a rule are evicted.
+     * 
+     * Calls which already hold the old bucket finish against it; whatever
+     * they take is taken from its replacement too.
+     * 
+     * @param rules
+     */
+    @Override
+    public void updateRules(final ConcurrentNavigableMap<String, Rule> rules) {
+        metrics.addRules(rules.values());
+        updateRules(new RuleTrie(rules.values()));
+    }
+
+    /**
+     * Switches to rules compiled ahead of time, moving buckets just as
+     * {@link #updateRules(ConcurrentNavigableMap)} does.
+     * 
+     * @param rules
+     */
+    public void updateRules(final CompiledRules rules) {
+        updateRules((RuleIndex) rules);
+    }
+
+    /**
+     * Lets throttlers share rules which have already been compiled.
+     * 
+     * @param updatedRules
+     */
+    void updateRules(final RuleIndex updatedRules) {
+        ruleUpdateLock.lock();
+        try {
+            rules = updatedRules;
+            aggregateBuckets.updateRules(updatedRules, this);
+
+            for (Entry<String, Bucket> entry : buckets.entrySet()) {
+                moveToRule(entry.getKey(), entry.getValue(),
+                        updatedRules.findLongestPrefixRule(entry.getKey()));
+            }
+
+            for (RuleHandle handle : ruleHandles.values()) {
+                final LongBucketMap keyedBuckets = handle.getBuckets();
+                final Rule rule = updatedRules.findLongestPrefixRule(handle
+                        .getOperationName());
+                final Bucket[] aggregates = aggregatesFor(handle
+                        .getOperationName());
+                handle.setRule(rule);
+
+                keyedBuckets.forEach(new LongBucketMap.Visitor() {
+
+                    @Override
+                    public void visit(long key, Bucket bucket) {
+                        moveToRule(keyedBuckets, key, bucket, rule,
+                                aggregates);
+                    }
+                });
+            }
+        } finally {
+            ruleUpdateLock.unlock();
+        }
+    }
+
+    /**
+     * Must hold the rule update lock.
+     * 
+     * @param operationName
+     * @param bucket
+     * @param rule
+     *            The bucket's rule under the new rules, or null if there
+     *            isn't one
+     */
+    private void moveToRule(final String operationName, final Bucket bucket,
+            final Rule rule) {
+        if (rule == null) {
+            if (bucket.retire()) {
+                buckets.remove(operationName, bucket);
+            }
+            return;
+        }
+
+        Bucket[] aggregates = aggregatesFor(operationName);
+
+        if (hasRule(bucket, rule, metrics)
+                && Arrays.equals(bucket.getAggregates(), aggregates)) {
+            return;
+        }
+
+        int tokens = bucket.getTokens();
+        Bucket replacement = replacementFor(bucket, rule, tokens, aggregates);
+
+        if (buckets.replace(operationName, bucket, replacement)) {
+            finishReplacing(bucket, replacement, tokens);
+        }
+    }
+
+    /**
+     * Must hold the rule update lock.
+     * 
+     * @param keyedBuckets
+     * @param key
+     * @param bucket
+     * @param rule
+     *            The handle's rule under the new rules, or null if there
+     *            isn't one
+     * @param aggregates
+     *            The handle's aggregates under the new rules
+     */
+    private void moveToRule(final LongBucketMap keyedBuckets, final long key,
+            final Bucket bucket, final Rule rule, final Bucket[] aggregates) {
+        if (rule == null) {
+            if (bucket.retire()) {
+                keyedBuckets.remove(key, bucket);
+            }
+            return;
+        }
+
+        if (hasRule(bucket, rule, metrics)
+                && Arrays.equals(bucket.getAggregates(), aggregates)) {
+            return;
+        }
+
+        int tokens = bucket.getTokens();
+        Bucket replacement = replacementFor(bucket, rule, tokens, aggregates);
+
+        if (keyedBuckets.replace(key, bucket, replacement)) {
+            finishReplacing(bucket, replacement, tokens);
+        }
+    }
+
+    /**
+     * 
+     * @param bucket
+     * @param rule
+     * @param metrics
+     * @return true if the bucket was made for the rule as it is now
+     */
+    static boolean hasRule(final Bucket bucket, final Rule rule,
+            final ThrottlerMetrics metrics) {
+        return bucket.getMetrics() == metrics.forRule(rule)
+                && bucket.getAlgorithm() == rule.getAlgorithm()
+                && bucket.getRefillTokens() == rule.getRefillTokens()
+                && bucket.getRefillPeriodNanos() == rule.getRefillPeriodNanos()
+                && bucket.getTokenCapacity() == rule.getTokenBucketCapacity()
+                && bucket.getCost() == rule.getCost(bucket.getOperationName())
+                && bucket.adaptsLike(rule);
+    }
+
+    /**
+     * 
+     * @param bucket
+     * @param rule
+     * @param tokens
+     *            The tokens the bucket has now
+     * @param aggregates
+     * @return a bucket for the rule, as full as the given bucket is
+     */
+    private Bucket replacementFor(final Bucket bucket, final Rule rule,
+            final int tokens, final Bucket[] aggregates) {
+        return bucket(bucket.getOperationName(), rule, scaleTokens(tokens,
+                bucket.getTokenCapacity(), rule.getTokenBucketCapacity()),
+                aggregates);
+    }
+
+    /**
+     * Retires a bucket once its replacement can be seen, and takes whatever
+     * was taken from the bucket in the meantime from the replacement.
+     * 
+     * @param bucket
+     * @param replacement
+     * @param tokens
+     *            The tokens the bucket had when the replacement was made
+     */
+    private void finishReplacing(final Bucket bucket,
+            final Bucket replacement, final int tokens) {
+        replacement.getMetrics().bucketCreated();
+
+        int tokensLeft = bucket.retireAndGetTokens();
+
+        if (tokensLeft != Integer.MIN_VALUE && tokensLeft < tokens
+                && replacement.isLimiting()) {
+            replacement.drain(scaleTokens(tokens - tokensLeft,
+                    bucket.getTokenCapacity(), replacement.getTokenCapacity()));
+        }
+
+        if (refillScheduler != null && !replacement.isFull()) {
+            refillScheduler.schedule(replacement);
+        }
+    }
 
     /**
      * 
+     * @param tokens
+     * @param fromCapacity
+     * @param toCapacity
+     * @return the same proportion of the new capacity as tokens is of the old
+     *         one
      */
-    private final ConcurrentMap<String, Bucket> buckets;
+    static int scaleTokens(final int tokens, final int fromCapacity,
+            final int toCapacity) {
+        if (fromCapacity <= 0) {
+            return toCapacity;
+        }
+
+        long clamped = Math.max(0, Math.min(tokens, fromCapacity));
+
+        return (int) (clamped * toCapacity / fromCapacity);
+    }
+
+    /**
+     * Update the numbers of tokens in the buckets, and evict the ones which
+     * have been idle for too long. Lazily refilled and scheduled buckets don't
+     * need ticking to be refilled, so for them this only evicts.
+     */
+    void tick() {
+        final boolean refill = refillMode == RefillMode.TICK;
+        final long nowNanos = System.nanoTime();
+
+        tickBuckets(refill, nowNanos);
+
+        metrics.recordTick(System.nanoTime() - nowNanos);
+    }
+
+    private void tickBuckets(final boolean refill, final long nowNanos) {
+        if (refill) {
+            aggregateBuckets.tick();
+        }
+
+        for (Entry<String, Bucket> entry : buckets.entrySet()) {
+            Bucket bucket = entry.getValue();
+
+            if (refill) {
+                bucket.tick();
+            }
+
+            if (evictor.retireIfIdle(bucket, nowNanos)) {
+                buckets.remove(entry.getKey(), bucket);
+            }
+        }
+
+        evictor.tick();
+
+        for (RuleHandle handle : ruleHandles.values()) {
+            final LongBucketMap keyedBuckets = handle.getBuckets();
+
+            keyedBuckets.forEach(new LongBucketMap.Visitor() {
+
+                @Override
+                public void visit(long key, Bucket bucket) {
+                    if (refill) {
+                        bucket.tick();
+                    }
+
+                    if (evictor.retireIfIdle(bucket, nowNanos)) {
+                        keyedBuckets.remove(key, bucket);
+                    }
+                }
+            });
+        }
+    }
 
     /**
-     * Technically this could be a {@link NavigableSet}, but with the String
-     * keys it makes the rules easier to grab when we're initializing buckets
-     * and only have the operation name.
+     * Reserves tokens from an operation's bucket, creating it if need be; see
+     * {@link Bucket#reserve(int, boolean, long)}.
+     * 
+     * @param operationName
+     * @param permits
+     *            The tokens to reserve, or {@link #CALL_COST}
+     * @param maxWaitNanos
+     * @return how long to wait before going ahead, or -1 if nothing was
+     *         reserved
      */
-    private final ConcurrentNavigableMap<String, Rule> rules;
+    long reserve(final String operationName, final int permits,
+            final long maxWaitNanos) {
+        while (true) {
+            Bucket bucket = getOrCreateBucket(operationName);
+
+            if (bucket == null) {
+                metrics.recordUnmatched(1);
+                return -1;
+            }
+
+            bucket.markReferenced();
+
+            long waitNanos = reserve(bucket, permits(bucket, permits),
+                    maxWaitNanos);
+
+            if (waitNanos >= 0) {
+                bucket.getMetrics().record(1, 0);
+                return waitNanos;
+            }
+
+            if (!bucket.isRetired()) {
+                bucket.getMetrics().record(0, 1);
+                return -1;
+            }
+
+            buckets.remove(operationName, bucket);
+        }
+    }
 
     /**
+     * Reserves tokens from a bucket and all of its aggregates, or from none
+     * of them.
      * 
-     * @param rules
+     * @param bucket
+     * @param permits
+     * @param maxWaitNanos
+     * @return how long to wait before going ahead, which is the longest wait
+     *         for any of the buckets, or -1 if nothing was reserved
      */
-    public Throttler(final ConcurrentNavigableMap<String, Rule> rules) {
-        super();
-        this.buckets = new ConcurrentHashMap<String, Bucket>();
-        this.rules = rules;
+    private long reserve(final Bucket bucket, final int permits,
+            final long maxWaitNanos) {
+        long waitNanos;
+
+        if (bucket.isLimiting()) {
+            waitNanos = bucket.reserve(permits, refillFirst(bucket),
+                    maxWaitNanos);
+        } else {
+            waitNanos = bucket.isRetired() ? -1 : 0;
+        }
+
+        if (waitNanos < 0) {
+            return -1;
+        }
+
+        Bucket[] aggregates = bucket.getAggregates();
+
+        for (int i = 0; i < aggregates.length; i++) {
+            long aggregateWaitNanos = aggregates[i].reserve(permits,
+                    refillFirst(aggregates[i]), maxWaitNanos);
+
+            if (aggregateWaitNanos < 0) {
+                refund(bucket, i, permits);
+                return -1;
+            }
+
+            waitNanos = Math.max(waitNanos, aggregateWaitNanos);
+        }
+
+        if (bucket.isLimiting()) {
+            schedule(bucket);
+        }
+
+        for (Bucket aggregate : aggregates) {
+            schedule(aggregate);
+        }
+
+        return waitNanos;
     }
 
     /**
-     * Should a call to an operation be throttled?
+     * Gives back tokens which were taken but not used. If the bucket has been
+     * evicted or replaced since, they're lost.
      * 
      * @param operationName
-     * @return
+     * @param permits
+     *            The tokens to give back, or {@link #CALL_COST}
      */
-    public boolean throttle(final String operationName) {
-        if (!buckets.containsKey(operationName)) {
-            Bucket newBucket = tryCreateBucket(operationName);
+    void release(final String operationName, final int permits) {
+        Bucket bucket = buckets.get(operationName);
+
+        if (bucket != null) {
+            refund(bucket, bucket.getAggregates().length, permits(bucket,
+                    permits));
+        }
+    }
+
+    /**
+     * 
+     * @param bucket
+     * @param permits
+     *            A number of tokens, or {@link #CALL_COST}
+     * @return the number of tokens
+     */
+    private static int permits(final Bucket bucket, final int permits) {
+        return permits == CALL_COST ? bucket.getCost() : permits;
+    }
+
+    /**
+     * Gives tokens back to a bucket and the first few of its aggregates.
+     * 
+     * @param bucket
+     * @param aggregateCount
+     *            How many of the aggregates to give them back to
+     * @param permits
+     */
+    private static void refund(final Bucket bucket, final int aggregateCount,
+            final int permits) {
+        if (bucket.isLimiting()) {
+            bucket.refund(permits);
+        }
+
+        Bucket[] aggregates = bucket.getAggregates();
+
+        for (int i = 0; i < aggregateCount; i++) {
+            aggregates[i].refund(permits);
+        }
+    }
 
-            if (newBucket != null) {
-                buckets.putIfAbsent(operationName, newBucket);
+    /**
+     * 
+     * @param waitNanos
+     * @throws InterruptedException
+     */
+    private static void parkNanos(final long waitNanos)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + waitNanos;
+
+        for (long remaining = waitNanos; remaining > 0; remaining = deadline
+                - System.nanoTime()) {
+            LockSupport.parkNanos(remaining);
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
             }
         }
+    }
+
+    /**
+     * Takes the tokens for as many of a number of calls to an operation as
+     * its bucket has them for, creating it if need be.
+     * 
+     * @param operationName
+     * @param calls
+     * @param permits
+     *            The tokens each call takes, or {@link #CALL_COST}
+     * @return the number of calls which may go ahead
+     */
+    private int acquire(final String operationName, final int calls,
+            final int permits) {
+        while (true) {
+            Bucket bucket = getOrCreateBucket(operationName);
+
+            if (bucket == null) {
+                metrics.recordUnmatched(calls);
+                return 0;
+            }
+
+            bucket.markReferenced();
+
+            int allowed = take(bucket, calls, permits(bucket, permits));
+
+            if (allowed > 0 || !bucket.isRetired()) {
+                return record(bucket, calls, allowed);
+            }
 
-        return !buckets.containsKey(operationName)
-                || buckets.get(operationName).throttle();
+            // the bucket was evicted out from under us; whoever evicted it
+            // will remove it, but there's no harm in helping
+            buckets.remove(operationName, bucket);
+        }
     }
 
     /**
-     * Update the numbers of tokens in the buckets.
+     * Takes tokens from a keyed bucket, creating it if need be.
+     * 
+     * @param handle
+     * @param key
+     * @param calls
+     * @param permits
+     *            The tokens each call takes, or {@link #CALL_COST}
+     * @return the number of calls which may go ahead
      */
-    void tick() {
-        final Collection<Bucket> bucketsToUpdate = buckets.values();
+    private int acquire(final RuleHandle handle, final long key,
+            final int calls, final int permits) {
+        if (handle.getThrottler() != this) {
+            throw new IllegalArgumentException(
+                    "Handle belongs to another throttler: "
+                            + handle.getOperationName());
+        }
 
-        if (bucketsToUpdate != null) {
-            for (Bucket bucket : bucketsToUpdate) {
-                bucket.tick();
+        Rule rule = handle.getRule();
+
+        if (rule == null) {
+            metrics.recordUnmatched(calls);
+            return 0;
+        }
+
+        LongBucketMap keyedBuckets = handle.getBuckets();
+
+        while (true) {
+            Bucket bucket = keyedBuckets.get(key);
+
+            if (bucket == null) {
+                Bucket newBucket = newBucket(handle.getOperationName() + key,
+                        rule, aggregateBuckets.forOperation(rules,
+                                handle.getOperationName(), this));
+                bucket = keyedBuckets.putIfAbsent(key, newBucket);
+
+                if (bucket == null) {
+                    bucket = newBucket;
+                    created(bucket);
+
+                    if (rule != handle.getRule()) {
+                        // the rules were updated before the bucket could be
+                        // seen
+                        ruleUpdateLock.lock();
+                        try {
+                            moveToRule(keyedBuckets, key, bucket,
+                                    handle.getRule(),
+                                    aggregatesFor(handle.getOperationName()));
+                        } finally {
+                            ruleUpdateLock.unlock();
+                        }
+                        return acquire(handle, key, calls, permits);
+                    }
+                }
+            }
+
+            bucket.markReferenced();
+
+            int allowed = take(bucket, calls, permits(bucket, permits));
+
+            if (allowed > 0 || !bucket.isRetired()) {
+                return record(bucket, calls, allowed);
+            }
+
+            keyedBuckets.remove(key, bucket);
+        }
+    }
+
+    /**
+     * Takes tokens from a handle's bucket, looking it up again if it has been
+     * retired.
+     * 
+     * @param handle
+     * @param calls
+     * @param permits
+     *            The tokens each call takes, or {@link #CALL_COST}
+     * @return the number of calls which may go ahead
+     */
+    private int acquire(final OperationHandle handle, final int calls,
+            final int permits) {
+        if (handle.getThrottler() != this) {
+            throw new IllegalArgumentException(
+                    "Handle belongs to another throttler: "
+                            + handle.getOperationName());
+        }
+
+        while (true) {
+            Bucket bucket = handle.getBucket();
+
+            if (bucket == null || bucket.isRetired()) {
+                // evicted, replaced by a rule update, or never created
+                bucket = getOrCreateBucket(handle.getOperationName());
+                handle.setBucket(bucket);
+
+                if (bucket == null) {
+                    metrics.recordUnmatched(calls);
+                    return 0;
+                }
+            }
+
+            bucket.markReferenced();
+
+            int allowed = take(bucket, calls, permits(bucket, permits));
+
+            if (allowed > 0 || !bucket.isRetired()) {
+                return record(bucket, calls, allowed);
+            }
+
+            buckets.remove(handle.getOperationName(), bucket);
+        }
+    }
+
+    /**
+     * Counts the outcome against the bucket's rule.
+     * 
+     * @param bucket
+     * @param calls
+     * @param allowed
+     * @return the number of calls which may go ahead
+     */
+    private static int record(final Bucket bucket, final int calls,
+            final int allowed) {
+        bucket.getMetrics().record(allowed, calls - allowed);
+
+        return allowed;
+    }
+
+    /**
+     * Takes the tokens for as many of the calls as it can from a bucket, and
+     * then the same number from each of its aggregates in turn. When an
+     * aggregate has fewer, the surplus is given back to the buckets before
+     * it. Each call's tokens are taken whole or not at all.
+     * 
+     * @param bucket
+     * @param calls
+     * @param permits
+     *            The tokens each call takes
+     * @return the number of calls whose tokens were taken from all of them
+     */
+    private int take(final Bucket bucket, final int calls, final int permits) {
+        final int minPermits = permits;
+        final int maxPermits = Math.min(calls, Integer.MAX_VALUE / permits)
+                * permits;
+        int taken;
+
+        if (bucket.isLimiting()) {
+            taken = bucket.take(minPermits, maxPermits, refillFirst(bucket));
+
+            if (taken > 0) {
+                schedule(bucket);
+            }
+        } else {
+            // a retired bucket's aggregates may be out of date
+            taken = bucket.isRetired() ? 0 : maxPermits;
+        }
+
+        Bucket[] aggregates = bucket.getAggregates();
+
+        for (int i = 0; i < aggregates.length && taken > 0; i++) {
+            int aggregateTaken = aggregates[i].take(minPermits, taken,
+                    refillFirst(aggregates[i]));
+
+            if (aggregateTaken < taken) {
+                refund(bucket, i, taken - aggregateTaken);
+            }
+
+            if (aggregateTaken > 0) {
+                schedule(aggregates[i]);
+            }
+
+            taken = aggregateTaken;
+        }
+
+        return taken / permits;
+    }
+
+    /**
+     * A bucket the scheduler isn't refilling was full when it last looked,
+     * but its last refill tick is as old as that; refilling it first moves
+     * the tick up to now, so the idle time isn't credited to it again once
+     * it's scheduled.
+     * 
+     * @param bucket
+     * @return whether to refill the bucket before taking from it
+     */
+    private boolean refillFirst(final Bucket bucket) {
+        return refillMode == RefillMode.LAZY
+                || (refillScheduler != null && !bucket.isScheduled());
+    }
+
+    private void schedule(final Bucket bucket) {
+        if (refillScheduler != null) {
+            refillScheduler.schedule(bucket);
+        }
+    }
+
+    /**
+     * Saves the state of every bucket to a file, so that a throttler started
+     * later can carry on from it with {@link #restoreSnapshot(Path)}. Calls
+     * aren't held up while it's written. See {@link ThrottlerSnapshotTask}
+     * for writing one regularly.
+     * 
+     * @param file
+     * @throws IOException
+     *             if the snapshot can't be written
+     */
+    public void writeSnapshot(final Path file) throws IOException {
+        List<Bucket> saved = new ArrayList<Bucket>(buckets.size());
+        collectBuckets(saved);
+        aggregateBuckets.collectBuckets(saved);
+        BucketSnapshot.write(file, saved);
+    }
+
+    /**
+     * Maps a snapshot written by {@link #writeSnapshot(Path)}, so that buckets
+     * created from now on start with the tokens they had when it was written,
+     * plus whatever they've earned since, rather than full. Nothing is read
+     * up front; each bucket is looked up the first time it's used. Buckets
+     * which already exist are left alone, so this is best called before the
+     * throttler is first used.
+     * 
+     * @param file
+     * @throws IOException
+     *             if the file can't be mapped, or isn't a snapshot
+     */
+    public void restoreSnapshot(final Path file) throws IOException {
+        restoreSnapshot(BucketSnapshot.read(file));
+    }
+
+    /**
+     * Lets throttlers share a snapshot.
+     * 
+     * @param restoring
+     */
+    void restoreSnapshot(final BucketSnapshot restoring) {
+        snapshot = restoring.isExpired(System.currentTimeMillis()) ? null
+                : restoring;
+    }
+
+    /**
+     * 
+     * @param saved
+     *            Where every bucket held is added, apart from shared buckets
+     *            and those which only hold them
+     */
+    void collectBuckets(final List<Bucket> saved) {
+        for (Bucket bucket : buckets.values()) {
+            if (bucket.isLimiting()) {
+                saved.add(bucket);
             }
         }
+
+        for (RuleHandle handle : ruleHandles.values()) {
+            handle.getBuckets().forEach(new LongBucketMap.Visitor() {
+
+                @Override
+                public void visit(long key, Bucket bucket) {
+                    if (bucket.isLimiting()) {
+                        saved.add(bucket);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * 
+     * @return counts of the calls this throttler has seen, which can also be
+     *         registered as an MBean
+     */
+    public ThrottlerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 
+     * @return the number of buckets currently held
+     */
+    int getBucketCount() {
+        return buckets.size();
+    }
+
+    /**
+     * 
+     * @param operationName
+     * @return the bucket for the operation, or null if no rule covers it
+     */
+    private Bucket getOrCreateBucket(final String operationName) {
+        Bucket bucket = buckets.get(operationName);
+
+        if (bucket == null) {
+            RuleIndex currentRules = rules;
+            Bucket newBucket = tryCreateBucket(operationName, currentRules);
+
+            if (newBucket == null) {
+                return null;
+            }
+
+            bucket = buckets.putIfAbsent(operationName, newBucket);
+
+            if (bucket == null) {
+                bucket = newBucket;
+                created(bucket);
+                evictor.afterInsert();
+
+                if (currentRules != rules) {
+                    // the rules were updated before the bucket could be seen
+                    ruleUpdateLock.lock();
+                    try {
+                        moveToRule(operationName, bucket, rules
+                                .findLongestPrefixRule(operationName));
+                    } finally {
+                        ruleUpdateLock.unlock();
+                    }
+                    return getOrCreateBucket(operationName);
+                }
+            }
+        }
+
+        return bucket;
     }
 
     /**
@@ -78,26 +1483,113 @@ public class Throttler {
      * For example, let there be two rules: one with an operation name of "rule"
      * and another with an operation name of "ruleLong". When a new bucket is
      * created for an operation with a name of "ruleLong/child", it takes the
-     * rules from the rule with the operation name of "ruleLong".
+     * rules from the rule with the operation name of "ruleLong". A bucket for
+     * "ruleOther" takes the rules from "rule".
      * 
      * @param sourceOperationName
+     * @param currentRules
      * @return A new bucket to throttle calls to the given operation, or null if
      *         no matching rule was found.
      */
-    private Bucket tryCreateBucket(final String sourceOperationName) {
-        Entry<String, Rule> operationRuleEntry = rules
-                .floorEntry(sourceOperationName);
+    private Bucket tryCreateBucket(final String sourceOperationName,
+            final RuleIndex currentRules) {
+        Rule operationRule = currentRules
+                .findLongestPrefixRule(sourceOperationName);
 
-        if (operationRuleEntry == null
-                || !sourceOperationName.startsWith(operationRuleEntry
-                        .getValue().getOperationName())) {
+        if (operationRule == null) {
             return null;
         }
 
-        Rule operationRule = operationRuleEntry.getValue();
+        return newBucket(sourceOperationName, operationRule,
+                aggregateBuckets.forOperation(currentRules,
+                        sourceOperationName, this));
+    }
+
+    /**
+     * Must hold the rule update lock, or the rules may change before the
+     * aggregates are used.
+     * 
+     * @param operationName
+     * @return the shared buckets of the aggregate rules covering the
+     *         operation
+     */
+    private Bucket[] aggregatesFor(final String operationName) {
+        return aggregateBuckets.forOperation(rules, operationName, this);
+    }
+
+    /**
+     * 
+     * @param operationName
+     * @param rule
+     * @param aggregates
+     *            The shared buckets of the aggregate rules covering the
+     *            operation
+     * @return a bucket for the rule, full unless a snapshot says otherwise
+     */
+    Bucket newBucket(final String operationName, final Rule rule,
+            final Bucket[] aggregates) {
+        int tokens = rule.getTokenBucketCapacity();
+        BucketSnapshot restoring = snapshot;
+
+        if (restoring != null && !isHolder(rule, aggregates)) {
+            long nowMillis = System.currentTimeMillis();
+
+            if (restoring.isExpired(nowMillis)) {
+                snapshot = null;
+            } else {
+                tokens = restoring.restoreTokens(operationName, rule,
+                        nowMillis);
+            }
+        }
+
+        return bucket(operationName, rule, tokens, aggregates);
+    }
+
+    /**
+     * 
+     * @param operationName
+     * @param rule
+     * @param tokens
+     * @param aggregates
+     * @return a bucket which takes from the aggregates too, if there are any
+     */
+    private Bucket bucket(final String operationName, final Rule rule,
+            final int tokens, final Bucket[] aggregates) {
+        if (aggregates.length == 0) {
+            return new Bucket(operationName, rule, metrics.forRule(rule),
+                    tokens);
+        }
+
+        // a bucket which only holds its aggregates stays full, so that it
+        // can be evicted
+        return new Bucket(operationName, rule, metrics.forRule(rule),
+                isHolder(rule, aggregates) ? rule.getTokenBucketCapacity()
+                        : tokens, aggregates);
+    }
+
+    /**
+     * 
+     * @param rule
+     * @param aggregates
+     * @return true if a bucket for the rule would only hold the aggregates
+     */
+    private static boolean isHolder(final Rule rule, final Bucket[] aggregates) {
+        return rule.isAggregate() && aggregates.length > 0;
+    }
+
+    /**
+     * A restored bucket may not be full, and a scheduler only hears about
+     * buckets which have had tokens taken, so it's told about these up
+     * front.
+     * 
+     * @param bucket
+     *            A bucket which has just been added
+     */
+    void created(final Bucket bucket) {
+        bucket.getMetrics().bucketCreated();
 
-        return new Bucket(sourceOperationName,
-                operationRule.getTokenBucketRefilledTokensPerSecond(),
-                operationRule.getTokenBucketCapacity());
+        if (refillScheduler != null && !bucket.isFull()) {
+            refillScheduler.schedule(bucket);
+        }
     }
 }
@@ -0,0 +1,195 @@
+package com.dsuskin.jthrottle;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts what a throttler does: calls allowed and throttled for each rule, the
+ * buckets held for each rule, and how long each {@link Throttler#tick()}
+ * takes.
+ * 
+ * Recording is always on. It is a striped counter increment on the path of a
+ * call, and nothing is added up until the metrics are read, either here, as a
+ * {@link #getRules()} snapshot, or over JMX.
+ * 
+ */
+public final class ThrottlerMetrics implements ThrottlerMetricsMXBean {
+
+    /**
+     * Keyed by operation name, so that a rule's counts carry on when the
+     * rules are updated.
+     */
+    private final ConcurrentMap<String, RuleMetrics> ruleMetrics = new ConcurrentSkipListMap<String, RuleMetrics>();
+    private final LongAdder unmatched = new LongAdder();
+    private final DurationHistogram tickDurations = new DurationHistogram();
+
+    /**
+     * 
+     * @param rules
+     *            Rules to count from the start, even before they have any
+     *            buckets
+     */
+    ThrottlerMetrics(final Collection<Rule> rules) {
+        addRules(rules);
+    }
+
+    /**
+     * Starts counting for any rules which aren't counted yet. Rules which
+     * have gone away keep their counts.
+     * 
+     * @param rules
+     */
+    void addRules(final Collection<Rule> rules) {
+        for (Rule rule : rules) {
+            ruleMetrics.putIfAbsent(rule.getOperationName(), new RuleMetrics(
+                    rule.getOperationName()));
+        }
+    }
+
+    /**
+     * 
+     * @param rule
+     * @return the metrics to record calls against the rule's buckets in
+     */
+    RuleMetrics forRule(final Rule rule) {
+        RuleMetrics metrics = ruleMetrics.get(rule.getOperationName());
+
+        if (metrics == null) {
+            // rules which weren't added up front, such as compiled ones, are
+            // counted from their first bucket
+            RuleMetrics newMetrics = new RuleMetrics(rule.getOperationName());
+            metrics = ruleMetrics.putIfAbsent(rule.getOperationName(),
+                    newMetrics);
+
+            if (metrics == null) {
+                metrics = newMetrics;
+            }
+        }
+
+        return metrics;
+    }
+
+    void recordUnmatched(final int calls) {
+        unmatched.add(calls);
+    }
+
+    void recordTick(final long nanos) {
+        tickDurations.record(nanos);
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server, under
+     * "com.dsuskin.jthrottle:type=Throttler,name=" followed by the quoted
+     * name.
+     * 
+     * @param name
+     *            Tells this throttler apart from any others
+     * @return the name the MBean was registered under
+     * @throws JMException
+     *             if the name is taken, or registration fails
+     */
+    public ObjectName registerMBean(final String name) throws JMException {
+        ObjectName objectName = new ObjectName(
+                "com.dsuskin.jthrottle:type=Throttler,name="
+                        + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                objectName);
+
+        return objectName;
+    }
+
+    @Override
+    public long getAllowedCount() {
+        long count = 0;
+
+        for (RuleStats stats : getRules()) {
+            count += stats.getAllowedCount();
+        }
+
+        return count;
+    }
+
+    @Override
+    public long getThrottledCount() {
+        long count = unmatched.sum();
+
+        for (RuleStats stats : getRules()) {
+            count += stats.getThrottledCount();
+        }
+
+        return count;
+    }
+
+    @Override
+    public long getUnmatchedCount() {
+        return unmatched.sum();
+    }
+
+    @Override
+    public long getBucketCount() {
+        long count = 0;
+
+        for (RuleStats stats : getRules()) {
+            count += stats.getBucketCount();
+        }
+
+        return count;
+    }
+
+    @Override
+    public long getTickCount() {
+        return tickDurations.getCount();
+    }
+
+    @Override
+    public long getTickMeanNanos() {
+        long count = tickDurations.getCount();
+
+        return count == 0 ? 0 : tickDurations.getTotalNanos() / count;
+    }
+
+    @Override
+    public long getTickP99Nanos() {
+        return tickDurations.getPercentileNanos(99);
+    }
+
+    @Override
+    public long getTickMaxNanos() {
+        return tickDurations.getMaxNanos();
+    }
+
+    /**
+     * 
+     * @param percentile
+     *            Between 0 and 100
+     * @return an upper bound on the given percentile of tick durations, which
+     *         are counted in power of two buckets
+     */
+    public long getTickPercentileNanos(final double percentile) {
+        return tickDurations.getPercentileNanos(percentile);
+    }
+
+    /**
+     * Takes a snapshot of each rule's counters. Counters are read one at a
+     * time while calls carry on, so the snapshot isn't atomic.
+     */
+    @Override
+    public List<RuleStats> getRules() {
+        List<RuleStats> stats = new ArrayList<RuleStats>(ruleMetrics.size());
+
+        for (RuleMetrics metrics : ruleMetrics.values()) {
+            stats.add(metrics.snapshot());
+        }
+
+        return Collections.unmodifiableList(stats);
+    }
+}
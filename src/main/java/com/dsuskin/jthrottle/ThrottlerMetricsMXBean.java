@@ -0,0 +1,34 @@
+package com.dsuskin.jthrottle;
+
+import java.util.List;
+
+/**
+ * How a throttler's metrics appear over JMX; see
+ * {@link ThrottlerMetrics#registerMBean(String)}. Every attribute is worked
+ * out afresh when it is read.
+ * 
+ */
+public interface ThrottlerMetricsMXBean {
+
+    long getAllowedCount();
+
+    long getThrottledCount();
+
+    /**
+     * 
+     * @return the number of calls throttled because no rule matched them
+     */
+    long getUnmatchedCount();
+
+    long getBucketCount();
+
+    long getTickCount();
+
+    long getTickMeanNanos();
+
+    long getTickP99Nanos();
+
+    long getTickMaxNanos();
+
+    List<RuleStats> getRules();
+}
@@ -0,0 +1,70 @@
+package com.dsuskin.jthrottle;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.TimerTask;
+
+/**
+ * Writes a throttler's buckets to a snapshot file each time it runs, so that
+ * after a restart the throttler can pick up where it left off; see
+ * {@link Throttler#restoreSnapshot(Path)}. Schedule it on a {@link java.util.Timer}
+ * every few seconds, say.
+ *
+ * A snapshot which fails to be written leaves the last one in place.
+ *
+ */
+public class ThrottlerSnapshotTask extends TimerTask {
+
+    private final Throttler throttler;
+    private final ShardedThrottler shardedThrottler;
+    private final Path file;
+
+    private volatile IOException lastError;
+
+    /**
+     * @param throttler
+     * @param file
+     */
+    public ThrottlerSnapshotTask(final Throttler throttler, final Path file) {
+        super();
+        this.throttler = throttler;
+        this.shardedThrottler = null;
+        this.file = file;
+    }
+
+    /**
+     * @param shardedThrottler
+     * @param file
+     */
+    public ThrottlerSnapshotTask(final ShardedThrottler shardedThrottler,
+            final Path file) {
+        super();
+        this.throttler = null;
+        this.shardedThrottler = shardedThrottler;
+        this.file = file;
+    }
+
+    /**
+     *
+     */
+    @Override
+    public void run() {
+        try {
+            if (throttler != null) {
+                throttler.writeSnapshot(file);
+            } else {
+                shardedThrottler.writeSnapshot(file);
+            }
+        } catch (IOException e) {
+            lastError = e;
+        }
+    }
+
+    /**
+     *
+     * @return why a snapshot last failed to be written, or null if none has
+     */
+    public IOException getLastError() {
+        return lastError;
+    }
+}
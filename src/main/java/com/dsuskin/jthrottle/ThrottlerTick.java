@@ -6,6 +6,9 @@ import java.util.TimerTask;
  * A {@link Throttler} needs to be poked at a regular interval so that it can
  * update the numbers of tokens in its buckets.
  * 
+ * Every tick visits every bucket; see {@link RefillScheduler} for refilling
+ * only the buckets which need it.
+ * 
  * @author dsuskin
  * 
  */
@@ -16,12 +19,30 @@ public class ThrottlerTick extends TimerTask {
      */
     private final Throttler throttler;
 
+    /**
+     * 
+     */
+    private final ShardedThrottler shardedThrottler;
+
     /**
      * @param throttler
      */
     public ThrottlerTick(Throttler throttler) {
         super();
         this.throttler = throttler;
+        this.shardedThrottler = null;
+    }
+
+    /**
+     * Sharded throttlers refill their own buckets, so ticking one only evicts
+     * idle buckets.
+     * 
+     * @param shardedThrottler
+     */
+    public ThrottlerTick(ShardedThrottler shardedThrottler) {
+        super();
+        this.throttler = null;
+        this.shardedThrottler = shardedThrottler;
     }
 
     /**
@@ -29,6 +50,10 @@ public class ThrottlerTick extends TimerTask {
      */
     @Override
     public void run() {
-        throttler.tick();
+        if (throttler != null) {
+            throttler.tick();
+        } else {
+            shardedThrottler.tick();
+        }
     }
 }
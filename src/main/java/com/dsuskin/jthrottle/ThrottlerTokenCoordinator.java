@@ -0,0 +1,61 @@
+package com.dsuskin.jthrottle;
+
+import java.util.concurrent.ConcurrentNavigableMap;
+
+/**
+ * A coordinator which keeps the cluster-wide buckets in an ordinary
+ * {@link Throttler}, for running several {@link LeasedThrottler}s in one
+ * process (in tests, say), or behind whatever remote interface a
+ * coordinator service exposes. The throttler's metrics count each lease of an
+ * operation's tokens as one call.
+ * 
+ */
+public class ThrottlerTokenCoordinator implements TokenCoordinator {
+
+    private final Throttler throttler;
+
+    /**
+     * 
+     * @param rules
+     *            The cluster-wide limits
+     */
+    public ThrottlerTokenCoordinator(
+            final ConcurrentNavigableMap<String, Rule> rules) {
+        this(new Throttler(rules, RefillMode.LAZY));
+    }
+
+    /**
+     * 
+     * @param throttler
+     *            Holds the cluster-wide buckets
+     */
+    public ThrottlerTokenCoordinator(final Throttler throttler) {
+        this.throttler = throttler;
+    }
+
+    @Override
+    public int[] lease(final String[] operationNames, final int[] tokens) {
+        if (operationNames.length != tokens.length) {
+            throw new IllegalArgumentException(
+                    "Need a token count for each operation");
+        }
+
+        int[] granted = new int[operationNames.length];
+
+        for (int i = 0; i < operationNames.length; i++) {
+            if (tokens[i] > 0) {
+                granted[i] = throttler.acquireUpTo(operationNames[i],
+                        tokens[i]);
+            }
+        }
+
+        return granted;
+    }
+
+    @Override
+    public void release(final String operationName, final int tokens) {
+        if (tokens > 0) {
+            throttler.release(operationName, tokens);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.dsuskin.jthrottle;
+
+/**
+ * A hierarchical timing wheel: items are dropped into slots by deadline, and
+ * advancing the wheel hands back the items whose deadlines have passed.
+ * Adding an item and expiring it are both constant time, no matter how many
+ * items are waiting.
+ * 
+ * The first level has a slot per tick. Each slot of the next level covers a
+ * whole turn of the level below it, and when the lower level comes round to
+ * the start of a new turn, the matching slot of the upper level is emptied
+ * back into the wheel, where its items land in finer slots. Deadlines past
+ * the end of the top level are parked at the end of it and placed again
+ * when they get there.
+ * 
+ * Not thread safe; a wheel belongs to the thread that advances it.
+ * 
+ * @param <T>
+ *            The type of item waiting on the wheel
+ */
+class TimingWheel<T> {
+
+    /**
+     * Told about each item whose deadline has passed.
+     * 
+     * @param <T>
+     */
+    interface Expiry<T> {
+        void expired(T item, long deadlineNanos);
+    }
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS_PER_LEVEL = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS_PER_LEVEL - 1;
+    private static final int LEVELS = 4;
+    private static final long MAX_TICKS_AHEAD = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private final long tickNanos;
+    private final long startNanos;
+    private final Node<T>[][] slots;
+
+    /**
+     * The last tick whose slot has been expired.
+     */
+    private long currentTick;
+    private int size;
+
+    /**
+     * 
+     * @param tickNanos
+     *            The resolution of the wheel
+     * @param startNanos
+     *            The {@link System#nanoTime()} at which tick 0 happens
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    TimingWheel(final long tickNanos, final long startNanos) {
+        this.tickNanos = tickNanos;
+        this.startNanos = startNanos;
+        this.slots = new Node[LEVELS][SLOTS_PER_LEVEL];
+    }
+
+    /**
+     * 
+     * @param item
+     * @param deadlineNanos
+     *            The {@link System#nanoTime()} after which the item should
+     *            expire
+     */
+    void add(final T item, final long deadlineNanos) {
+        place(new Node<T>(item, deadlineNanos), currentTick + 1);
+        size++;
+    }
+
+    /**
+     * Expires everything whose deadline is at or before the given time. The
+     * expiry may add items back onto the wheel.
+     * 
+     * @param nowNanos
+     * @param expiry
+     */
+    void advance(final long nowNanos, final Expiry<T> expiry) {
+        long nowTick = (nowNanos - startNanos) / tickNanos;
+
+        while (currentTick < nowTick) {
+            currentTick++;
+
+            for (int level = 1; level < LEVELS; level++) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                    break;
+                }
+
+                cascade(level, slotIndex(currentTick, level));
+            }
+
+            int slot = slotIndex(currentTick, 0);
+            Node<T> node = slots[0][slot];
+            slots[0][slot] = null;
+
+            while (node != null) {
+                Node<T> next = node.next;
+                node.next = null;
+
+                if (node.deadlineNanos > tickTimeNanos(currentTick)) {
+                    // was too far ahead for the wheel when it was added
+                    place(node, currentTick + 1);
+                } else {
+                    size--;
+                    expiry.expired(node.item, node.deadlineNanos);
+                }
+
+                node = next;
+            }
+        }
+    }
+
+    /**
+     * 
+     * @return the number of items on the wheel
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * 
+     * @return the time at which the wheel should next be advanced
+     */
+    long nextTickNanos() {
+        return tickTimeNanos(currentTick + 1);
+    }
+
+    private void cascade(final int level, final int slot) {
+        Node<T> node = slots[level][slot];
+        slots[level][slot] = null;
+
+        while (node != null) {
+            Node<T> next = node.next;
+            node.next = null;
+            // cascading happens before the current tick's slot is expired,
+            // so that slot can still be used
+            place(node, currentTick);
+            node = next;
+        }
+    }
+
+    /**
+     * 
+     * @param node
+     * @param earliestTick
+     *            The earliest tick whose slot hasn't been expired yet, where
+     *            items which are already due go
+     */
+    private void place(final Node<T> node, final long earliestTick) {
+        long deadlineTick = ceilTick(node.deadlineNanos);
+
+        if (deadlineTick < earliestTick) {
+            deadlineTick = earliestTick;
+        } else if (deadlineTick - currentTick > MAX_TICKS_AHEAD) {
+            deadlineTick = currentTick + MAX_TICKS_AHEAD;
+        }
+
+        long ticksAhead = deadlineTick - currentTick;
+        int level = 0;
+
+        while (ticksAhead >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+
+        int slot = slotIndex(deadlineTick, level);
+        node.next = slots[level][slot];
+        slots[level][slot] = node;
+    }
+
+    private long ceilTick(final long deadlineNanos) {
+        long sinceStart = deadlineNanos - startNanos;
+
+        if (sinceStart <= 0) {
+            return 0;
+        }
+
+        return (sinceStart + tickNanos - 1) / tickNanos;
+    }
+
+    private long tickTimeNanos(final long tick) {
+        return startNanos + tick * tickNanos;
+    }
+
+    private static int slotIndex(final long tick, final int level) {
+        return (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+    }
+
+    private static final class Node<T> {
+        private final T item;
+        private final long deadlineNanos;
+        private Node<T> next;
+
+        private Node(final T item, final long deadlineNanos) {
+            this.item = item;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+}
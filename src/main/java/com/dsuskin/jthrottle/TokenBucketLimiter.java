@@ -0,0 +1,123 @@
+package com.dsuskin.jthrottle;
+
+/**
+ * {@link Algorithm#TOKEN_BUCKET}; see {@link TokenBucketState}. Times are
+ * ticks.
+ *
+ */
+final class TokenBucketLimiter implements Limiter {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final int refillTokensPerSecond;
+    private final int tokenCapacity;
+
+    TokenBucketLimiter(final int refillTokensPerSecond, final int tokenCapacity) {
+        this.refillTokensPerSecond = refillTokensPerSecond;
+        this.tokenCapacity = tokenCapacity;
+    }
+
+    @Override
+    public Limiter forBucket() {
+        return this;
+    }
+
+    @Override
+    public Algorithm getAlgorithm() {
+        return Algorithm.TOKEN_BUCKET;
+    }
+
+    @Override
+    public long now(final long nanoTime) {
+        return TokenBucketState.tickAt(nanoTime);
+    }
+
+    @Override
+    public long pack(final long tokens, final long now) {
+        return TokenBucketState.pack((int) tokens, (int) now);
+    }
+
+    @Override
+    public long refill(final long state, final long now) {
+        return TokenBucketState.refill(state, (int) now,
+                refillTokensPerSecond, tokenCapacity);
+    }
+
+    @Override
+    public long tokens(final long state, final long now) {
+        return TokenBucketState.tokens(state);
+    }
+
+    @Override
+    public long take(final long state, final long now, final long tokens) {
+        long remaining = TokenBucketState.tokens(state) - tokens;
+
+        // the lowest token counts are left alone, so that a bucket deep in
+        // debt can't be mistaken for a retired one
+        if (remaining <= Integer.MIN_VALUE / 2) {
+            return OVERFLOW;
+        }
+
+        return TokenBucketState.pack((int) remaining,
+                TokenBucketState.tick(state));
+    }
+
+    @Override
+    public long waitNanos(final long state, final long nanoTime) {
+        long readyNanos = TokenBucketState.readyNanos(state,
+                -(long) TokenBucketState.tokens(state), refillTokensPerSecond);
+
+        if (readyNanos == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+
+        return Math.max(0, readyNanos - nanoTime);
+    }
+
+    @Override
+    public long refund(final long state, final long now, final long tokens) {
+        return TokenBucketState.pack(
+                (int) Math.min(tokenCapacity, TokenBucketState.tokens(state)
+                        + tokens), TokenBucketState.tick(state));
+    }
+
+    @Override
+    public long drain(final long state, final long now, final long tokens) {
+        int current = TokenBucketState.tokens(state);
+
+        // a bucket already in debt is left there
+        return TokenBucketState.pack(
+                (int) Math.min(current, Math.max(0, current - tokens)),
+                TokenBucketState.tick(state));
+    }
+
+    @Override
+    public boolean isFull(final long state, final long now) {
+        return TokenBucketState.tokens(state) >= tokenCapacity;
+    }
+
+    @Override
+    public boolean needsRefill() {
+        return true;
+    }
+
+    @Override
+    public long nextRefillNanos(final long state) {
+        return TokenBucketState.nextRefillNanos(state, refillTokensPerSecond);
+    }
+
+    @Override
+    public int getTokenCapacity() {
+        return tokenCapacity;
+    }
+
+    @Override
+    public long getRefillTokens() {
+        return refillTokensPerSecond;
+    }
+
+    @Override
+    public long getRefillPeriodNanos() {
+        return NANOS_PER_SECOND;
+    }
+}
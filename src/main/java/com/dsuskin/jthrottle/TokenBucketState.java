@@ -0,0 +1,207 @@
+package com.dsuskin.jthrottle;
+
+/**
+ * The arithmetic behind a token bucket whose whole state is one long: the
+ * token count in the upper half, and the time of the last refill in the lower
+ * half. Kept apart from {@link Bucket} so that buckets which don't live in
+ * their own objects (see {@link CompactBucketStore}) work exactly the same.
+ * 
+ */
+final class TokenBucketState {
+
+    /**
+     * We want a maximum number of divisions of the token refill rate, so we
+     * adjust tick times, rounding down to the nearest increment. Also limits
+     * the maximum number of ticks per second.
+     */
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final long NANOS_PER_MILLI = 1000000;
+    static final long TICK_SNAP_INCREMENT_NANOS = NANOS_PER_MILLI * 100;
+    static final int MAX_TICKS_PER_SECOND = (int) (NANOS_PER_SECOND / TICK_SNAP_INCREMENT_NANOS);
+
+    /**
+     * Tick times are stored as a number of snap increments since this point,
+     * which lets them fit into the lower half of the state word. 32 bits of
+     * 100ms increments last for more than a decade of uptime. The epoch is
+     * one increment in the past, so that the current tick is never 0, and
+     * neither is any state.
+     */
+    private static final long EPOCH_NANOS = System.nanoTime()
+            - TICK_SNAP_INCREMENT_NANOS;
+
+    private static final long TICK_MASK = 0xFFFFFFFFL;
+
+    /**
+     * State of a bucket which has been evicted. It has the lowest possible
+     * token count, so a retired bucket throttles everything, and refilling
+     * leaves it alone.
+     */
+    static final long RETIRED = Long.MIN_VALUE;
+
+    private TokenBucketState() {
+    }
+
+    /**
+     * 
+     * @return time elapsed since the epoch, rounded down to the nearest
+     *         specified increment
+     */
+    static int currentTick() {
+        return tickAt(System.nanoTime());
+    }
+
+    /**
+     * 
+     * @param nanoTime
+     *            A {@link System#nanoTime()}
+     * @return the tick that time falls in
+     */
+    static int tickAt(long nanoTime) {
+        // times read before the epoch was, while this class was loading,
+        // count as the first tick
+        return (int) Math.max(1, (nanoTime - EPOCH_NANOS)
+                / TICK_SNAP_INCREMENT_NANOS);
+    }
+
+    static long pack(int tokens, int tick) {
+        return ((long) tokens << 32) | (tick & TICK_MASK);
+    }
+
+    static int tokens(long state) {
+        return (int) (state >> 32);
+    }
+
+    static int tick(long state) {
+        return (int) state;
+    }
+
+    /**
+     *
+     * @param state
+     * @return the {@link System#nanoTime()} at which the bucket was last
+     *         refilled
+     */
+    static long tickNanos(long state) {
+        return EPOCH_NANOS + (tick(state) & TICK_MASK)
+                * TICK_SNAP_INCREMENT_NANOS;
+    }
+
+    /**
+     * Works out the state the bucket should be in at the given tick. The last
+     * tick time is only moved forward if tokens are to be added. If tokens are
+     * not to be added, the bucket will keep counting up for the time since the
+     * last tick, so that it counts the number of tokens to add correctly when
+     * it is time to add them.
+     * 
+     * @param current
+     *            The current state of the bucket
+     * @param currentTick
+     *            The number of snap increments elapsed since the epoch
+     * @param refillTokensPerSecond
+     * @param tokenCapacity
+     * @return the refilled state, or the current state if nothing changed
+     */
+    static long refill(long current, int currentTick,
+            int refillTokensPerSecond, int tokenCapacity) {
+        if (current == RETIRED) {
+            return current;
+        }
+
+        long lastTick = tick(current) & TICK_MASK;
+        long nowTick = Math.max(lastTick, currentTick & TICK_MASK);
+
+        // NOTE tokens are counted as earned since the epoch, rather than since
+        // the last tick, so the fraction of a token left over when the refill
+        // rate doesn't divide evenly by the tick interval isn't thrown away; it
+        // is still owed next time. The last tick time can then be moved all
+        // the way up to now, and the observed rate is the configured one, to
+        // within a token.
+        long tokensToAdd = earned(nowTick, refillTokensPerSecond)
+                - earned(lastTick, refillTokensPerSecond);
+
+        if (tokensToAdd <= 0) {
+            return current;
+        }
+
+        long tokenCount = Math.min(tokenCapacity, tokens(current)
+                + tokensToAdd);
+
+        return pack((int) tokenCount, currentTick);
+    }
+
+    /**
+     * 
+     * @param tick
+     * @param refillTokensPerSecond
+     * @return the number of whole tokens earned from the epoch up to the tick
+     */
+    private static long earned(long tick, int refillTokensPerSecond) {
+        // split up so that it can't overflow, however long we've been up
+        return tick / MAX_TICKS_PER_SECOND * refillTokensPerSecond
+                + tick % MAX_TICKS_PER_SECOND * refillTokensPerSecond
+                / MAX_TICKS_PER_SECOND;
+    }
+
+    /**
+     * 
+     * @param tokens
+     *            A number of tokens earned since the epoch; not negative
+     * @param refillTokensPerSecond
+     *            Must be positive
+     * @return the first tick by which that many tokens have been earned
+     */
+    private static long tickEarning(long tokens, int refillTokensPerSecond) {
+        return tokens / refillTokensPerSecond * MAX_TICKS_PER_SECOND
+                + (tokens % refillTokensPerSecond * MAX_TICKS_PER_SECOND
+                        + refillTokensPerSecond - 1) / refillTokensPerSecond;
+    }
+
+    /**
+     * 
+     * @param current
+     * @param refillTokensPerSecond
+     * @return the {@link System#nanoTime()} at which a refill will next add
+     *         tokens to the bucket, or {@link Long#MAX_VALUE} if it never will
+     */
+    static long nextRefillNanos(long current, int refillTokensPerSecond) {
+        if (current == RETIRED || refillTokensPerSecond <= 0) {
+            return Long.MAX_VALUE;
+        }
+
+        // the fraction of a token carried over from the last refill counts
+        // towards the next one
+        long lastTick = tick(current) & TICK_MASK;
+
+        return EPOCH_NANOS
+                + tickEarning(earned(lastTick, refillTokensPerSecond) + 1,
+                        refillTokensPerSecond) * TICK_SNAP_INCREMENT_NANOS;
+    }
+
+    /**
+     * 
+     * @param current
+     * @param tokens
+     *            The number of tokens wanted, on top of any already in the
+     *            bucket; must be positive
+     * @param refillTokensPerSecond
+     * @return the {@link System#nanoTime()} by which refilling will have added
+     *         that many tokens to the bucket, or {@link Long#MAX_VALUE} if it
+     *         never will
+     */
+    static long readyNanos(long current, long tokens,
+            int refillTokensPerSecond) {
+        if (current == RETIRED || refillTokensPerSecond <= 0) {
+            return Long.MAX_VALUE;
+        }
+
+        if (tokens <= 0) {
+            return tickNanos(current);
+        }
+
+        long lastTick = tick(current) & TICK_MASK;
+
+        return EPOCH_NANOS
+                + tickEarning(earned(lastTick, refillTokensPerSecond) + tokens,
+                        refillTokensPerSecond) * TICK_SNAP_INCREMENT_NANOS;
+    }
+}
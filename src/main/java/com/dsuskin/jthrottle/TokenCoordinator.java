@@ -0,0 +1,32 @@
+package com.dsuskin.jthrottle;
+
+/**
+ * Holds the cluster-wide buckets for a {@link LeasedThrottler}, and hands their
+ * tokens out to nodes in chunks. How it does that, whether in process, over
+ * the network, or backed by some shared store, is up to the implementation;
+ * {@link ThrottlerTokenCoordinator} is the simplest one.
+ * 
+ * Implementations must be thread safe.
+ * 
+ */
+public interface TokenCoordinator {
+
+    /**
+     * Takes tokens from several operations' buckets at once.
+     * 
+     * @param operationNames
+     * @param tokens
+     *            How many tokens each operation would like
+     * @return how many tokens each operation was given, between 0 and the
+     *         number asked for; 0 if no rule matches it
+     */
+    int[] lease(String[] operationNames, int[] tokens);
+
+    /**
+     * Gives back tokens which were leased but not used.
+     * 
+     * @param operationName
+     * @param tokens
+     */
+    void release(String operationName, int tokens);
+}
@@ -0,0 +1,105 @@
+package com.dsuskin.jthrottle;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The tokens a {@link LeasedThrottler} node holds for one operation, taken
+ * from the coordinator's bucket for it.
+ * 
+ */
+final class TokenLease {
+
+    /**
+     * Token count of a lease which has been given back. Like a retired
+     * bucket, it throttles everything, and callers who see it should look up
+     * the lease again.
+     */
+    private static final int RELEASED = Integer.MIN_VALUE;
+
+    private final String operationName;
+    private final AtomicInteger tokens = new AtomicInteger();
+    private final AtomicInteger renewing = new AtomicInteger();
+    private volatile long lastUsedNanos = System.nanoTime();
+
+    TokenLease(final String operationName) {
+        this.operationName = operationName;
+    }
+
+    String getOperationName() {
+        return operationName;
+    }
+
+    /**
+     * 
+     * @return true if a token was taken
+     */
+    boolean tryTake() {
+        lastUsedNanos = System.nanoTime();
+
+        int current;
+        do {
+            current = tokens.get();
+
+            if (current <= 0) {
+                return false;
+            }
+        } while (!tokens.compareAndSet(current, current - 1));
+
+        return true;
+    }
+
+    /**
+     * 
+     * @param granted
+     * @return false if the lease has been released, in which case the
+     *         tokens weren't added
+     */
+    boolean add(final int granted) {
+        int current;
+        do {
+            current = tokens.get();
+
+            if (current == RELEASED) {
+                return false;
+            }
+        } while (!tokens.compareAndSet(current, current + granted));
+
+        return true;
+    }
+
+    int getTokens() {
+        return Math.max(0, tokens.get());
+    }
+
+    /**
+     * Stops the lease from handing out any more tokens.
+     * 
+     * @return the tokens it had left, or -1 if it had already been released
+     */
+    int release() {
+        int left = tokens.getAndSet(RELEASED);
+
+        return left == RELEASED ? -1 : left;
+    }
+
+    boolean isReleased() {
+        return tokens.get() == RELEASED;
+    }
+
+    /**
+     * 
+     * @return true if the lease wasn't already waiting to be renewed, and the
+     *         caller should queue it
+     */
+    boolean markRenewing() {
+        return renewing.compareAndSet(0, 1);
+    }
+
+    void clearRenewing() {
+        renewing.set(0);
+    }
+
+    long getLastUsedNanos() {
+        return lastUsedNanos;
+    }
+}
@@ -0,0 +1,61 @@
+package com.dsuskin.jthrottle.server;
+
+/**
+ * The wire format spoken by {@link ThrottleServer} and
+ * {@link ThrottleClient}. Everything is big-endian, and a client may send
+ * as many messages as it likes without waiting for replies.
+ *
+ * A client first defines a number for each operation name it uses:
+ *
+ * <pre>
+ * byte 1 (DEFINE) | int handle | unsigned short name length | UTF-8 name
+ * </pre>
+ *
+ * and then asks for decisions in batches:
+ *
+ * <pre>
+ * byte 2 (BATCH) | int batch id | unsigned short count | count * (int handle | int permits)
+ * </pre>
+ *
+ * where permits of 0 stand for the cost of a call under the operation's
+ * rule, as {@code throttle} takes. Each batch gets one reply, in the order
+ * the batches were sent:
+ *
+ * <pre>
+ * byte 2 (BATCH) | int batch id | unsigned short count | (count + 7) / 8 bytes
+ * </pre>
+ *
+ * where bit i % 8 of byte i / 8 is set if call i should be throttled. Calls
+ * to handles which haven't been defined are throttled. Anything else which
+ * doesn't follow the format closes the connection.
+ *
+ */
+final class Protocol {
+
+    static final byte DEFINE = 1;
+    static final byte BATCH = 2;
+
+    static final int HEADER_SIZE = 1 + 4 + 2;
+    static final int ENTRY_SIZE = 4 + 4;
+
+    static final int MAX_NAME_LENGTH = 1024;
+    static final int MAX_BATCH_SIZE = 4096;
+    static final int MAX_HANDLES = 1 << 16;
+
+    /**
+     * Big enough for the largest message and the largest reply.
+     */
+    static final int BUFFER_SIZE = 1 << 16;
+
+    private Protocol() {
+    }
+
+    /**
+     *
+     * @param count
+     * @return the size of the reply to a batch of that many calls
+     */
+    static int replySize(final int count) {
+        return HEADER_SIZE + (count + 7) / 8;
+    }
+}
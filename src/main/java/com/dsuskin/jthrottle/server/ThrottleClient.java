@@ -0,0 +1,262 @@
+package com.dsuskin.jthrottle.server;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Asks a {@link ThrottleServer} for decisions over one connection. Each
+ * operation name is sent once, the first time it is used, and numbered from
+ * then on. A batch bigger than the protocol allows is sent as several
+ * batches one after the other, and the replies read afterwards, so a big
+ * batch costs about one round trip.
+ *
+ * Calls are serialized, so a client can be shared between threads, but
+ * threads which decide a lot should have one each.
+ *
+ */
+public class ThrottleClient implements Closeable {
+
+    /**
+     * How many batches are sent before their replies are read. The replies
+     * fit in the server's buffer, so it never has to stop reading while the
+     * client is still writing.
+     */
+    private static final int MAX_PENDING_BATCHES = Protocol.BUFFER_SIZE
+            / Protocol.replySize(Protocol.MAX_BATCH_SIZE) / 2;
+
+    private final SocketChannel channel;
+    private final ByteBuffer out = ByteBuffer.allocateDirect(Protocol.BUFFER_SIZE);
+    private final ByteBuffer in = ByteBuffer.allocateDirect(Protocol.BUFFER_SIZE);
+    private final Map<String, Integer> handles = new HashMap<String, Integer>();
+    private int nextBatchId;
+
+    /**
+     *
+     * @param address
+     * @throws IOException
+     *             if the server can't be reached
+     */
+    public ThrottleClient(final InetSocketAddress address) throws IOException {
+        this.channel = SocketChannel.open(address);
+        this.channel.socket().setTcpNoDelay(true);
+        // nothing read yet
+        this.in.flip();
+    }
+
+    /**
+     *
+     * @param operationName
+     * @return true if the call should be throttled
+     * @throws IOException
+     *             if the connection fails
+     * @see com.dsuskin.jthrottle.Throttler#throttle(String)
+     */
+    public boolean throttle(final String operationName) throws IOException {
+        return decide(new String[] { operationName }, null)[0];
+    }
+
+    /**
+     *
+     * @param operationName
+     * @param permits
+     *            The number of tokens to take; must be positive
+     * @return true if the call should go ahead, false if it should be
+     *         throttled
+     * @throws IOException
+     *             if the connection fails
+     * @see com.dsuskin.jthrottle.Throttler#tryAcquire(String, int)
+     */
+    public boolean tryAcquire(final String operationName, final int permits)
+            throws IOException {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("Permits must be positive: "
+                    + permits);
+        }
+
+        return !decide(new String[] { operationName }, new int[] { permits })[0];
+    }
+
+    /**
+     *
+     * @param operationNames
+     * @return for each operation name, true if that call should be throttled
+     * @throws IOException
+     *             if the connection fails
+     */
+    public boolean[] throttleAll(final String[] operationNames)
+            throws IOException {
+        return decide(operationNames, null);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     *
+     * @param operationNames
+     * @param permits
+     *            The tokens for each call, or null for each call's cost
+     * @return for each call, true if it should be throttled
+     * @throws IOException
+     */
+    private synchronized boolean[] decide(final String[] operationNames,
+            final int[] permits) throws IOException {
+        final int count = operationNames.length;
+        final int batchCount = (count + Protocol.MAX_BATCH_SIZE - 1)
+                / Protocol.MAX_BATCH_SIZE;
+        final boolean[] shouldThrottle = new boolean[count];
+
+        // nothing is sent unless all of it can be
+        for (String operationName : operationNames) {
+            checkName(operationName);
+        }
+
+        for (int group = 0; group < batchCount; group += MAX_PENDING_BATCHES) {
+            int groupEnd = Math.min(batchCount, group + MAX_PENDING_BATCHES);
+            int firstBatchId = nextBatchId;
+
+            for (int batch = group; batch < groupEnd; batch++) {
+                send(operationNames, permits, batch);
+            }
+
+            flush();
+
+            for (int batch = group; batch < groupEnd; batch++) {
+                receive(shouldThrottle, batch, firstBatchId + batch - group);
+            }
+        }
+
+        return shouldThrottle;
+    }
+
+    private void send(final String[] operationNames, final int[] permits,
+            final int batch) throws IOException {
+        int from = batch * Protocol.MAX_BATCH_SIZE;
+        int to = Math.min(operationNames.length, from
+                + Protocol.MAX_BATCH_SIZE);
+        int[] ids = new int[to - from];
+
+        for (int i = from; i < to; i++) {
+            ids[i - from] = define(operationNames[i]);
+        }
+
+        ensureRoom(Protocol.HEADER_SIZE + ids.length * Protocol.ENTRY_SIZE);
+        out.put(Protocol.BATCH);
+        out.putInt(nextBatchId++);
+        out.putShort((short) ids.length);
+
+        for (int i = from; i < to; i++) {
+            out.putInt(ids[i - from]);
+            out.putInt(permits == null ? 0 : permits[i]);
+        }
+    }
+
+    private void receive(final boolean[] shouldThrottle, final int batch,
+            final int batchId) throws IOException {
+        int from = batch * Protocol.MAX_BATCH_SIZE;
+        int size = Math.min(shouldThrottle.length, from
+                + Protocol.MAX_BATCH_SIZE)
+                - from;
+
+        fill(Protocol.replySize(size));
+
+        if (in.get() != Protocol.BATCH || in.getInt() != batchId
+                || (in.getShort() & 0xFFFF) != size) {
+            close();
+            throw new IOException("Unexpected reply");
+        }
+
+        for (int i = 0; i < size; i += 8) {
+            int bits = in.get();
+
+            for (int bit = 0; bit < 8 && i + bit < size; bit++) {
+                shouldThrottle[from + i + bit] = (bits & (1 << bit)) != 0;
+            }
+        }
+    }
+
+    private void checkName(final String operationName) {
+        if (handles.containsKey(operationName)) {
+            return;
+        }
+
+        if (operationName.getBytes(StandardCharsets.UTF_8).length > Protocol.MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Operation name too long: "
+                    + operationName);
+        }
+
+        if (handles.size() >= Protocol.MAX_HANDLES) {
+            throw new IllegalStateException("Too many operations: "
+                    + operationName);
+        }
+    }
+
+    /**
+     *
+     * @param operationName
+     * @return the operation's number, sending it to the server first if it
+     *         hasn't been yet
+     * @throws IOException
+     */
+    private int define(final String operationName) throws IOException {
+        Integer id = handles.get(operationName);
+
+        if (id != null) {
+            return id;
+        }
+
+        byte[] name = operationName.getBytes(StandardCharsets.UTF_8);
+        id = handles.size();
+        ensureRoom(Protocol.HEADER_SIZE + name.length);
+        out.put(Protocol.DEFINE);
+        out.putInt(id);
+        out.putShort((short) name.length);
+        out.put(name);
+        handles.put(operationName, id);
+
+        return id;
+    }
+
+    private void ensureRoom(final int size) throws IOException {
+        if (out.remaining() < size) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        out.flip();
+
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+
+        out.clear();
+    }
+
+    /**
+     * Reads until the buffer holds at least the given number of bytes.
+     *
+     * @param size
+     * @throws IOException
+     */
+    private void fill(final int size) throws IOException {
+        in.compact();
+
+        while (in.position() < size) {
+            if (channel.read(in) < 0) {
+                throw new EOFException("Server closed the connection");
+            }
+        }
+
+        in.flip();
+    }
+}
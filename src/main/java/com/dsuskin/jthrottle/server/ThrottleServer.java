@@ -0,0 +1,487 @@
+package com.dsuskin.jthrottle.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.dsuskin.jthrottle.OperationHandle;
+import com.dsuskin.jthrottle.Throttler;
+
+/**
+ * Serves a {@link Throttler}'s decisions over TCP, so that several processes
+ * on a host, in whatever language, can share its limits. Talk to it with a
+ * {@link ThrottleClient}, or anything else which speaks the format described
+ * in {@link Protocol}. It is meant for loopback: there is no authentication.
+ *
+ * Each connection belongs to one of the server's I/O threads, which reads
+ * whatever has arrived, decides every complete batch in it, and writes all
+ * of the replies in one go. A connection's operation names are resolved to
+ * {@link OperationHandle}s once, when the client defines them, so deciding
+ * a call is an array lookup and a bucket update. A connection which isn't
+ * reading its replies isn't read from until it catches up.
+ *
+ */
+public class ThrottleServer {
+
+    private final Throttler throttler;
+    private final InetSocketAddress address;
+    private final EventLoop[] loops;
+
+    private ServerSocketChannel serverChannel;
+    private int nextLoop;
+
+    /**
+     * Serves from one I/O thread.
+     *
+     * @param throttler
+     * @param address
+     *            Such as 127.0.0.1 on some port, or port 0 for any free one
+     */
+    public ThrottleServer(final Throttler throttler,
+            final InetSocketAddress address) {
+        this(throttler, address, 1);
+    }
+
+    /**
+     *
+     * @param throttler
+     * @param address
+     *            Such as 127.0.0.1 on some port, or port 0 for any free one
+     * @param threadCount
+     *            The number of I/O threads to spread connections over
+     */
+    public ThrottleServer(final Throttler throttler,
+            final InetSocketAddress address, final int threadCount) {
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException(
+                    "Thread count must be positive: " + threadCount);
+        }
+
+        this.throttler = throttler;
+        this.address = address;
+        this.loops = new EventLoop[threadCount];
+    }
+
+    /**
+     * Binds the address, and starts the I/O threads as daemons.
+     *
+     * @throws IOException
+     *             if the address can't be bound
+     */
+    public synchronized void start() throws IOException {
+        if (serverChannel != null) {
+            return;
+        }
+
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.bind(address);
+            channel.configureBlocking(false);
+
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(i);
+            }
+
+            channel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            channel.close();
+
+            for (EventLoop loop : loops) {
+                if (loop != null) {
+                    loop.selector.close();
+                }
+            }
+            throw e;
+        }
+
+        serverChannel = channel;
+
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    /**
+     * Stops accepting, and closes every connection.
+     */
+    public synchronized void stop() {
+        if (serverChannel == null) {
+            return;
+        }
+
+        for (EventLoop loop : loops) {
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+
+        for (EventLoop loop : loops) {
+            try {
+                loop.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            // nothing more we can do; we're stopping either way
+        }
+
+        serverChannel = null;
+    }
+
+    /**
+     *
+     * @return the address the server is listening on, with the port it was
+     *         given if it asked for any free one
+     * @throws IOException
+     *             if the server isn't running
+     */
+    public synchronized InetSocketAddress getAddress() throws IOException {
+        if (serverChannel == null) {
+            throw new IOException("Not running");
+        }
+
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    /**
+     * Only called by the first loop, which is the one accepting.
+     *
+     * @return the loop to hand the next connection to
+     */
+    private EventLoop nextLoop() {
+        EventLoop loop = loops[nextLoop];
+        nextLoop = (nextLoop + 1) % loops.length;
+
+        return loop;
+    }
+
+    /**
+     * One I/O thread, and the connections it owns.
+     */
+    private final class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<SocketChannel>();
+        private volatile boolean running = true;
+
+        EventLoop(final int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "jthrottle-server-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         * Can be called from any thread.
+         *
+         * @param channel
+         */
+        void add(final SocketChannel channel) {
+            accepted.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    registerAccepted();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys()
+                            .iterator();
+
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handle(key);
+                    }
+                }
+            } catch (IOException e) {
+                // the selector is broken, so this loop's connections are
+                // closed below
+            } catch (ClosedSelectorException e) {
+                // stopped
+            } finally {
+                closeAll();
+            }
+        }
+
+        private void registerAccepted() {
+            SocketChannel channel;
+
+            while ((channel = accepted.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    channel.register(selector, SelectionKey.OP_READ,
+                            new Connection());
+                } catch (IOException e) {
+                    close(channel);
+                }
+            }
+        }
+
+        private void handle(final SelectionKey key) {
+            if (!key.isValid()) {
+                return;
+            }
+
+            if (key.isAcceptable()) {
+                accept((ServerSocketChannel) key.channel());
+                return;
+            }
+
+            SocketChannel channel = (SocketChannel) key.channel();
+            Connection connection = (Connection) key.attachment();
+
+            try {
+                if (key.isReadable() && channel.read(connection.in) < 0) {
+                    close(key);
+                    return;
+                }
+
+                while (true) {
+                    int handled = connection.process();
+
+                    if (handled < 0) {
+                        close(key);
+                        return;
+                    }
+
+                    connection.flush(channel);
+
+                    // writing may have made room for batches which were
+                    // waiting for it
+                    if (handled == 0 || connection.out.position() > 0) {
+                        break;
+                    }
+                }
+
+                // stop reading until the client takes its replies
+                key.interestOps(connection.out.position() > 0 ? SelectionKey.OP_WRITE
+                        : SelectionKey.OP_READ);
+            } catch (IOException e) {
+                close(key);
+            }
+        }
+
+        private void accept(final ServerSocketChannel channel) {
+            try {
+                SocketChannel accepted;
+
+                while ((accepted = channel.accept()) != null) {
+                    nextLoop().add(accepted);
+                }
+            } catch (IOException e) {
+                // the client went away before we got to it
+            }
+        }
+
+        private void closeAll() {
+            for (SelectionKey key : selector.keys()) {
+                if (key.channel() instanceof SocketChannel) {
+                    close((SocketChannel) key.channel());
+                }
+            }
+
+            SocketChannel channel;
+            while ((channel = accepted.poll()) != null) {
+                close(channel);
+            }
+
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // nothing more we can do
+            }
+        }
+
+        private void close(final SelectionKey key) {
+            key.cancel();
+            close((SocketChannel) key.channel());
+        }
+
+        private void close(final SocketChannel channel) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing more we can do
+            }
+        }
+    }
+
+    /**
+     * A client's buffers, and the handles it has defined.
+     */
+    private final class Connection {
+
+        private final ByteBuffer in = ByteBuffer
+                .allocateDirect(Protocol.BUFFER_SIZE);
+        private final ByteBuffer out = ByteBuffer
+                .allocateDirect(Protocol.BUFFER_SIZE);
+        private OperationHandle[] handles = new OperationHandle[16];
+
+        /**
+         * Decides every complete batch which has been read, as long as
+         * there's room for the replies.
+         *
+         * @return the number of messages handled, or -1 if the client broke
+         *         the protocol
+         */
+        int process() {
+            int handled = 0;
+            in.flip();
+
+            try {
+                while (in.remaining() >= Protocol.HEADER_SIZE) {
+                    int start = in.position();
+                    byte type = in.get(start);
+                    int id = in.getInt(start + 1);
+                    int length = in.getShort(start + 5) & 0xFFFF;
+
+                    if (type == Protocol.DEFINE) {
+                        if (length > Protocol.MAX_NAME_LENGTH || id < 0
+                                || id >= Protocol.MAX_HANDLES) {
+                            return -1;
+                        }
+
+                        if (in.remaining() < Protocol.HEADER_SIZE + length) {
+                            break;
+                        }
+
+                        define(id, start + Protocol.HEADER_SIZE, length);
+                        in.position(start + Protocol.HEADER_SIZE + length);
+                    } else if (type == Protocol.BATCH) {
+                        if (length > Protocol.MAX_BATCH_SIZE) {
+                            return -1;
+                        }
+
+                        if (in.remaining() < Protocol.HEADER_SIZE + length
+                                * Protocol.ENTRY_SIZE
+                                || out.remaining() < Protocol
+                                        .replySize(length)) {
+                            break;
+                        }
+
+                        if (!decide(id, start + Protocol.HEADER_SIZE, length)) {
+                            return -1;
+                        }
+
+                        in.position(start + Protocol.HEADER_SIZE + length
+                                * Protocol.ENTRY_SIZE);
+                    } else {
+                        return -1;
+                    }
+
+                    handled++;
+                }
+            } finally {
+                in.compact();
+            }
+
+            return handled;
+        }
+
+        private void define(final int id, final int position, final int length) {
+            byte[] name = new byte[length];
+
+            for (int i = 0; i < length; i++) {
+                name[i] = in.get(position + i);
+            }
+
+            if (id >= handles.length) {
+                handles = Arrays.copyOf(handles, Math.max(id + 1,
+                        Math.min(Protocol.MAX_HANDLES, handles.length * 2)));
+            }
+
+            handles[id] = throttler.handle(new String(name,
+                    StandardCharsets.UTF_8));
+        }
+
+        /**
+         *
+         * @param batchId
+         * @param position
+         *            Where the batch's calls start
+         * @param count
+         * @return false if a call asked for a negative number of permits, in
+         *         which case none of the batch's calls are decided
+         */
+        private boolean decide(final int batchId, final int position,
+                final int count) {
+            for (int i = 0; i < count; i++) {
+                if (in.getInt(position + i * Protocol.ENTRY_SIZE + 4) < 0) {
+                    return false;
+                }
+            }
+
+            out.put(Protocol.BATCH);
+            out.putInt(batchId);
+            out.putShort((short) count);
+
+            int bits = 0;
+
+            for (int i = 0; i < count; i++) {
+                int entry = position + i * Protocol.ENTRY_SIZE;
+                int id = in.getInt(entry);
+                int permits = in.getInt(entry + 4);
+
+                if (shouldThrottle(id, permits)) {
+                    bits |= 1 << (i & 7);
+                }
+
+                if ((i & 7) == 7 || i == count - 1) {
+                    out.put((byte) bits);
+                    bits = 0;
+                }
+            }
+
+            return true;
+        }
+
+        private boolean shouldThrottle(final int id, final int permits) {
+            OperationHandle handle = id >= 0 && id < handles.length ? handles[id]
+                    : null;
+
+            if (handle == null) {
+                return true;
+            }
+
+            if (permits == 0) {
+                return throttler.throttle(handle);
+            }
+
+            return !throttler.tryAcquire(handle, permits);
+        }
+
+        /**
+         * Writes as many replies as the socket will take.
+         *
+         * @param channel
+         * @throws IOException
+         */
+        void flush(final SocketChannel channel) throws IOException {
+            out.flip();
+            try {
+                channel.write(out);
+            } finally {
+                out.compact();
+            }
+        }
+    }
+}
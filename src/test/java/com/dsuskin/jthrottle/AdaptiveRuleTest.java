@@ -0,0 +1,193 @@
+package com.dsuskin.jthrottle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Adaptive rules should slow down when calls are slow or fail, speed back up
+ * when they aren't, and stay within their bounds.
+ *
+ */
+public class AdaptiveRuleTest {
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private Rule rule;
+
+    @Before
+    public void setUp() {
+        // between 10 and 100 calls a second, aiming for 10ms calls
+        rule = new Rule("api", 100, 1, TimeUnit.SECONDS, 100).asAdaptive(10,
+                1, TimeUnit.SECONDS, 10, TimeUnit.MILLISECONDS);
+    }
+
+    @After
+    public void tearDown() {
+        rule = null;
+    }
+
+    @Test
+    public void shouldSlowDownOnceForEachSlowCall() {
+        AdaptiveLimiter limiter = (AdaptiveLimiter) rule.getLimiter()
+                .forBucket();
+        long start = System.nanoTime();
+
+        assertEquals("Starts at the top", 10 * NANOS_PER_MILLI,
+                limiter.getIntervalNanos());
+
+        limiter.onComplete(50 * NANOS_PER_MILLI, false, start
+                + NANOS_PER_SECOND);
+        long slowed = limiter.getIntervalNanos();
+        assertTrue("A tenth slower: " + slowed, slowed > 11 * NANOS_PER_MILLI
+                && slowed < 12 * NANOS_PER_MILLI);
+
+        // started before the rate was cut
+        limiter.onComplete(50 * NANOS_PER_MILLI, false, start
+                + NANOS_PER_SECOND + NANOS_PER_MILLI);
+        assertEquals("Not cut twice", slowed, limiter.getIntervalNanos());
+
+        limiter.onComplete(0, true, start + 2 * NANOS_PER_SECOND);
+        assertTrue("Failures slow it down too",
+                limiter.getIntervalNanos() > slowed);
+    }
+
+    @Test
+    public void shouldStayWithinItsBounds() {
+        AdaptiveLimiter limiter = (AdaptiveLimiter) rule.getLimiter()
+                .forBucket();
+        long now = System.nanoTime();
+
+        for (int i = 0; i < 100; i++) {
+            now += NANOS_PER_SECOND;
+            limiter.onComplete(0, true, now);
+        }
+
+        assertEquals("Slowest", 100 * NANOS_PER_MILLI,
+                limiter.getIntervalNanos());
+        assertEquals("Capacity shrinks with the rate", 10, limiter.tokens(
+                limiter.pack(100, 1), 1));
+
+        for (int i = 0; i < 200; i++) {
+            now += NANOS_PER_SECOND;
+            limiter.onComplete(NANOS_PER_MILLI, false, now);
+        }
+
+        assertEquals("Fastest", 10 * NANOS_PER_MILLI,
+                limiter.getIntervalNanos());
+        assertEquals("Full capacity again", 100, limiter.tokens(
+                limiter.pack(100, 1), 1));
+    }
+
+    @Test
+    public void shouldAdaptEachBucketSeparately() {
+        AdaptiveLimiter first = (AdaptiveLimiter) rule.getLimiter()
+                .forBucket();
+        AdaptiveLimiter second = (AdaptiveLimiter) rule.getLimiter()
+                .forBucket();
+
+        first.onComplete(0, true, System.nanoTime() + NANOS_PER_SECOND);
+
+        assertTrue("Slowed", first.getIntervalNanos() > 10 * NANOS_PER_MILLI);
+        assertEquals("Untouched", 10 * NANOS_PER_MILLI,
+                second.getIntervalNanos());
+    }
+
+    @Test
+    public void shouldThrottleHarderAfterErrors() throws InterruptedException {
+        Throttler throttler = new Throttler(ThrottlerRuleUpdateTest.rules(new Rule(
+                "api", 100, 1, TimeUnit.SECONDS, 100).asAdaptive(1, 1,
+                TimeUnit.SECONDS, 1, TimeUnit.MILLISECONDS)));
+
+        assertFalse("Bucket made", throttler.throttle("api"));
+
+        for (int i = 0; i < 50; i++) {
+            Thread.sleep(2);
+            throttler.onError("api", 1, TimeUnit.MILLISECONDS);
+        }
+
+        assertFalse("One call left", throttler.throttle("api"));
+        assertTrue("Instead of a hundred", throttler.throttle("api"));
+    }
+
+    @Test
+    public void shouldAdaptAggregatesFromTheirOperations()
+            throws InterruptedException {
+        Throttler throttler = new Throttler(ThrottlerRuleUpdateTest.rules(
+                new Rule("api", 100, 1, TimeUnit.SECONDS, 100).asAdaptive(1,
+                        1, TimeUnit.SECONDS, 1, TimeUnit.MILLISECONDS)
+                        .asAggregate(), new Rule(
+                        "api/", 1000, 1000)));
+
+        assertFalse("Bucket made", throttler.throttle("api/a"));
+
+        for (int i = 0; i < 50; i++) {
+            Thread.sleep(2);
+            throttler.onError("api/a", 1, TimeUnit.MILLISECONDS);
+        }
+
+        assertFalse("One call left", throttler.throttle("api/b"));
+        assertTrue("For every operation", throttler.throttle("api/c"));
+    }
+
+    @Test
+    public void shouldIgnoreFeedbackForOtherRules() {
+        Throttler throttler = new Throttler(ThrottlerRuleUpdateTest.rules(new Rule(
+                "api", 0, 1)));
+
+        throttler.onError("api", 1, TimeUnit.SECONDS);
+        assertFalse("Bucket made", throttler.throttle("api"));
+        throttler.onError("api", 1, TimeUnit.SECONDS);
+        throttler.onComplete("other", 1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void shouldParseAdaptiveRules() throws Exception {
+        Rule parsed = RuleFactory.parseRules(
+                new StringReader("[{\"operation\": \"api\", "
+                        + "\"algorithm\": \"adaptive\", \"refillRate\": 100, "
+                        + "\"minRefillRate\": 10, \"targetLatency\": 0.05, "
+                        + "\"capacity\": 100}]")).get("api");
+        String json = new ObjectMapper()
+                .writeValueAsString(new Rule[] { parsed });
+        Rule written = RuleFactory.parseRules(new StringReader(json))
+                .get("api");
+
+        assertEquals("Adaptive", Algorithm.ADAPTIVE, parsed.getAlgorithm());
+        // in lowest terms, like the rate
+        assertEquals("Minimum", 1, parsed.getMinRefillTokens());
+        assertEquals("Every 100ms", 100 * NANOS_PER_MILLI,
+                parsed.getMinRefillPeriodNanos());
+        assertEquals("Target", 50 * NANOS_PER_MILLI,
+                parsed.getTargetLatencyNanos());
+        assertEquals("Written", Algorithm.ADAPTIVE, written.getAlgorithm());
+        assertEquals("Minimum written", 1, written.getMinRefillTokens());
+        assertEquals("Period written", 100 * NANOS_PER_MILLI,
+                written.getMinRefillPeriodNanos());
+        assertEquals("Target written", 50 * NANOS_PER_MILLI,
+                written.getTargetLatencyNanos());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectAdaptiveRulesWithoutBounds() {
+        RuleFactory.parseRules(new StringReader("[{\"operation\": \"api\", "
+                + "\"algorithm\": \"adaptive\", \"refillRate\": 100, "
+                + "\"capacity\": 100}]"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectMinimumsAboveTheRate() {
+        new Rule("api", 10, 10).asAdaptive(11, 1, TimeUnit.SECONDS, 1,
+                TimeUnit.SECONDS);
+    }
+}
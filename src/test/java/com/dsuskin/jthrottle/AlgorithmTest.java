@@ -0,0 +1,147 @@
+package com.dsuskin.jthrottle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Rules should be able to pick their algorithm, and every algorithm should
+ * work wherever buckets are kept.
+ *
+ */
+public class AlgorithmTest {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private Rule slidingWindow;
+
+    @Before
+    public void setUp() {
+        // 10 calls a second, in 1 second windows
+        slidingWindow = new Rule("test/window", Algorithm.SLIDING_WINDOW, 10,
+                1, TimeUnit.SECONDS, 10);
+    }
+
+    @After
+    public void tearDown() {
+        slidingWindow = null;
+    }
+
+    @Test
+    public void shouldParseAlgorithms() {
+        ConcurrentNavigableMap<String, Rule> rules = RuleFactory
+                .parseRules(new StringReader("[{\"operation\": \"a\", "
+                        + "\"algorithm\": \"slidingWindow\", "
+                        + "\"refillRate\": 5, \"capacity\": 10}, "
+                        + "{\"operation\": \"b\", \"algorithm\": \"gcra\", "
+                        + "\"refillRate\": 5, \"capacity\": 10}, "
+                        + "{\"operation\": \"c\", \"refillRate\": 5, "
+                        + "\"capacity\": 10}]"));
+
+        assertEquals("Sliding window", Algorithm.SLIDING_WINDOW,
+                rules.get("a").getAlgorithm());
+        assertEquals("GCRA", Algorithm.GCRA, rules.get("b").getAlgorithm());
+        assertEquals("Token bucket by default", Algorithm.TOKEN_BUCKET,
+                rules.get("c").getAlgorithm());
+    }
+
+    @Test
+    public void shouldWriteAlgorithmsWhichParseBack() throws Exception {
+        String json = new ObjectMapper()
+                .writeValueAsString(new Rule[] { slidingWindow });
+
+        Rule parsed = RuleFactory.parseRules(new StringReader(json)).get(
+                "test/window");
+
+        assertEquals("Algorithm", Algorithm.SLIDING_WINDOW,
+                parsed.getAlgorithm());
+        assertEquals("Rate", 10, parsed.getTokenBucketRefilledTokensPerSecond());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectUnknownAlgorithms() {
+        RuleFactory.parseRules(new StringReader("[{\"operation\": \"a\", "
+                + "\"algorithm\": \"leakyBucket\", \"refillRate\": 5, "
+                + "\"capacity\": 10}]"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectFractionalTokenBuckets() {
+        new Rule("a", Algorithm.TOKEN_BUCKET, 1, 2, TimeUnit.SECONDS, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectWindowsLongerThanAnHour() {
+        new Rule("a", Algorithm.SLIDING_WINDOW, 1, 1, TimeUnit.HOURS, 2);
+    }
+
+    @Test
+    public void shouldWeightThePreviousWindow() {
+        Limiter limiter = slidingWindow.getLimiter();
+        long start = 10 * NANOS_PER_SECOND;
+        long state = limiter.pack(10, start);
+
+        state = limiter.take(state, start, 10);
+        assertEquals("Empty", 0, limiter.tokens(state, start));
+
+        // a quarter of the way into the next window, three quarters of the
+        // last window's calls still count
+        long later = start + NANOS_PER_SECOND + NANOS_PER_SECOND / 4;
+        assertEquals("Partly slid out", 2, limiter.tokens(state, later));
+        assertEquals("Full two windows on", 10,
+                limiter.tokens(state, start + 2 * NANOS_PER_SECOND));
+    }
+
+    @Test
+    public void shouldWaitForCallsToSlideOut() {
+        Limiter limiter = slidingWindow.getLimiter();
+        long nanoTime = System.nanoTime();
+        long now = limiter.now(nanoTime);
+        long state = limiter.take(limiter.pack(10, now), now, 11);
+        long wait = limiter.waitNanos(state, nanoTime);
+
+        assertTrue("Within two windows: " + wait, wait > 0
+                && wait <= 2 * NANOS_PER_SECOND);
+        assertEquals("Out of debt", 0, limiter.tokens(state, now + wait));
+        assertEquals("Not a moment before", -1,
+                limiter.tokens(state, now + wait - 1));
+    }
+
+    @Test
+    public void shouldThrottleWithEveryAlgorithm() {
+        for (Algorithm algorithm : Algorithm.values()) {
+            Bucket bucket = new Bucket("test/foo", new Rule("test/foo",
+                    algorithm, 1, 1, TimeUnit.SECONDS, 2), null, 2);
+
+            assertFalse(algorithm + " full", bucket.refillAndThrottle());
+            assertFalse(algorithm + " one left", bucket.refillAndThrottle());
+            assertTrue(algorithm + " empty", bucket.refillAndThrottle());
+            assertTrue(algorithm + " retires", bucket.retire());
+            assertTrue(algorithm + " throttles once retired", bucket.throttle());
+        }
+    }
+
+    @Test
+    public void shouldKeepEveryAlgorithmCompact() {
+        for (Algorithm algorithm : Algorithm.values()) {
+            CompactBucketStore store = new CompactBucketStore(
+                    ThrottlerRuleUpdateTest.rules(new Rule("a", algorithm, 1,
+                            1, TimeUnit.SECONDS, 2)), 16);
+            int rule = store.ruleIndex("a/1");
+
+            assertTrue(algorithm + " full", store.tryAcquire(rule, 7, 2));
+            assertTrue(algorithm + " empty", store.throttle(rule, 7));
+            assertFalse(algorithm + " other keys", store.throttle(rule, 8));
+        }
+    }
+}
@@ -122,4 +122,52 @@ public class BucketTest {
         assertEquals("Successful calls equals number of available tokens",
                 successfulCalls.intValue(), CAPACITY);
     }
+
+    /**
+     * Many threads hammering the same bucket should together get exactly as
+     * many tokens as the bucket holds.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void shouldHandOutExactlyCapacityTokensUnderContention()
+            throws Exception {
+        final int capacity = 10000;
+        final Bucket contendedBucket = new Bucket(OPERATION, 0, capacity);
+        int threadCount = 64;
+        final CountDownLatch latch = new CountDownLatch(threadCount);
+        final AtomicInteger successfulCalls = new AtomicInteger();
+        final List<Thread> threads = new ArrayList<Thread>(threadCount);
+
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    latch.countDown();
+                    try {
+                        latch.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    for (int j = 0; j < capacity; j++) {
+                        if (!contendedBucket.throttle()) {
+                            successfulCalls.incrementAndGet();
+                        }
+                    }
+                }
+            });
+
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread t : threads) {
+            t.join(10000);
+        }
+
+        assertEquals("Successful calls equals number of available tokens",
+                capacity, successfulCalls.intValue());
+    }
 }
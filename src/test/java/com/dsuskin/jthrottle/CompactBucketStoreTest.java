@@ -0,0 +1,228 @@
+package com.dsuskin.jthrottle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Keys in a compact store should get a bucket each, and behave like buckets
+ * held by a lazily refilled throttler.
+ *
+ */
+public class CompactBucketStoreTest {
+
+    private Rule rule;
+    private ConcurrentNavigableMap<String, Rule> storeRules;
+    private CompactBucketStore store;
+    private int ruleIndex;
+
+    @Before
+    public void setUp() {
+        rule = new Rule("test", 100, 10);
+        storeRules = new ConcurrentSkipListMap<String, Rule>();
+        storeRules.put(rule.getOperationName(), rule);
+        storeRules.put("slow", new Rule("slow", 0, 1));
+        store = new CompactBucketStore(storeRules, 1000);
+        ruleIndex = store.ruleIndex("test/");
+    }
+
+    @After
+    public void tearDown() {
+        rule = null;
+        storeRules = null;
+        store = null;
+    }
+
+    @Test
+    public void shouldThrottleUnknownOperation() {
+        assertEquals("No rule", -1, store.ruleIndex("unknown/"));
+        assertTrue("Unknown operation throttled", store.throttle(-1, 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectBadRuleIndex() {
+        store.throttle(storeRules.size(), 1);
+    }
+
+    @Test
+    public void shouldCreateSeparateBucketsPerKey() {
+        depleteTokensForKey(1);
+        depleteTokensForKey(2);
+        depleteTokensForKey(-1);
+        depleteTokensForKey(0);
+
+        assertEquals("Bucket count", 4, store.size());
+    }
+
+    @Test
+    public void shouldSeparateRulesWithTheSameKey() {
+        int slowIndex = store.ruleIndex("slow");
+
+        depleteTokensForKey(1);
+        assertFalse("Other rule has its own bucket", store.throttle(slowIndex, 1));
+        assertTrue("Other rule's bucket empty", store.throttle(slowIndex, 1));
+    }
+
+    @Test
+    public void shouldRefillLazily() throws InterruptedException {
+        depleteTokensForKey(1);
+
+        Thread.sleep(250);
+
+        assertFalse("Refilled on use", store.throttle(ruleIndex, 1));
+    }
+
+    @Test
+    public void shouldTakeAllPermitsOrNone() {
+        assertTrue("Acquired",
+                store.tryAcquire(ruleIndex, 1, rule.getTokenBucketCapacity() - 1));
+        assertFalse("Too many", store.tryAcquire(ruleIndex, 1, 2));
+        assertTrue("Last one", store.tryAcquire(ruleIndex, 1, 1));
+    }
+
+    @Test
+    public void shouldTakeOverFullestBucketWhenSetIsFull() {
+        // small enough for a single set
+        store = new CompactBucketStore(storeRules, 4);
+        int slowIndex = store.ruleIndex("slow");
+
+        for (long key = 0; key < 7; key++) {
+            assertFalse("Bucket created", store.throttle(slowIndex, key));
+        }
+
+        // creates a bucket, but leaves it full
+        assertFalse("Too many", store.tryAcquire(slowIndex, 7, 2));
+        assertEquals("Bucket count", 8, store.size());
+
+        assertFalse("Took over full bucket", store.throttle(slowIndex, 8));
+
+        for (long key = 0; key < 7; key++) {
+            assertTrue("Bucket kept", store.throttle(slowIndex, key));
+        }
+
+        assertEquals("Bucket count", 8, store.size());
+    }
+
+    @Test
+    public void shouldThrottleNewKeysWhenNoBucketIsFull() {
+        store = new CompactBucketStore(storeRules, 4);
+        int slowIndex = store.ruleIndex("slow");
+
+        for (long key = 0; key < 8; key++) {
+            assertFalse("Bucket created", store.throttle(slowIndex, key));
+        }
+
+        for (long key = 8; key < 100; key++) {
+            assertTrue("No bucket to take over", store.throttle(slowIndex, key));
+        }
+
+        for (long key = 0; key < 8; key++) {
+            assertTrue("Bucket kept", store.throttle(slowIndex, key));
+        }
+
+        assertEquals("Bucket count", 8, store.size());
+        assertEquals("Overflows", 92, store.getOverflows());
+    }
+
+    @Test
+    public void shouldGiveRacingNewKeysOneBucket() throws InterruptedException {
+        final int threads = 8;
+        final int slowIndex = store.ruleIndex("slow");
+        final AtomicInteger allowed = new AtomicInteger();
+
+        for (int round = 0; round < 200; round++) {
+            // a single set, filled with full buckets
+            store = new CompactBucketStore(storeRules, 4);
+            for (long key = 0; key < 8; key++) {
+                assertFalse("Left full", store.tryAcquire(slowIndex, key, 2));
+            }
+
+            final CountDownLatch start = new CountDownLatch(1);
+            Thread[] workers = new Thread[threads];
+            allowed.set(0);
+
+            for (int i = 0; i < threads; i++) {
+                workers[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+
+                        if (!store.throttle(slowIndex, 100)) {
+                            allowed.incrementAndGet();
+                        }
+                    }
+                };
+                workers[i].start();
+            }
+
+            start.countDown();
+
+            for (Thread worker : workers) {
+                worker.join();
+            }
+
+            assertEquals("One call for the new key", 1, allowed.get());
+            assertEquals("Bucket count", 8, store.size());
+        }
+    }
+
+    @Test
+    public void shouldNotOverAdmitUnderContention() throws InterruptedException {
+        store = new CompactBucketStore(storeRules, 100000);
+        final int threads = 16;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger allowed = new AtomicInteger();
+        final int slowIndex = store.ruleIndex("slow");
+        Thread[] workers = new Thread[threads];
+
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    for (long key = 0; key < 1000; key++) {
+                        if (!store.throttle(slowIndex, key)) {
+                            allowed.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            workers[i].start();
+        }
+
+        start.countDown();
+
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals("One call per key", 1000, allowed.get());
+        assertEquals("Bucket count", 1000, store.size());
+    }
+
+    private void depleteTokensForKey(long key) {
+        for (int i = 0; i < rule.getTokenBucketCapacity(); i++) {
+            assertFalse("Should still have tokens", store.throttle(ruleIndex, key));
+        }
+
+        assertTrue("Should be throttled", store.throttle(ruleIndex, key));
+    }
+}
@@ -0,0 +1,206 @@
+package com.dsuskin.jthrottle;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compiled rules should find the same rules a {@link RuleTrie} of them does,
+ * and turn back into the rules they were compiled from.
+ *
+ */
+public class CompiledRulesTest {
+
+    private Path directory;
+    private Path file;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("jthrottle");
+        file = directory.resolve("rules.bin");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    @Test
+    public void shouldFindTheSameRulesAsATrie() throws IOException {
+        List<Rule> rules = new ArrayList<Rule>();
+        String[] names = { "", "a", "ab", "abc", "abd", "b/", "b/x/", "b/y",
+                "\u00e9", "\ud83d\ude00", "\uffff" };
+
+        for (int i = 0; i < names.length; i++) {
+            Rule rule = new Rule(names[i], i, 10);
+            rules.add(i % 3 == 0 ? rule.asAggregate() : rule);
+        }
+
+        CompiledRules.compile(rules, file);
+        CompiledRules compiled = CompiledRules.open(file);
+        RuleTrie trie = new RuleTrie(rules);
+        String[] operations = { "", "a", "aa", "abc", "abcd", "abe", "ac",
+                "b", "b/", "b/x", "b/x/1", "b/y/1", "c", "\u00e9t\u00e9",
+                "\ud83d\ude00!", "\uffff\uffff" };
+
+        assertEquals("Size", names.length, compiled.size());
+
+        for (String operation : operations) {
+            assertEquals("Longest prefix of " + operation, trie
+                    .findLongestPrefixRule(operation).getOperationName(),
+                    compiled.findLongestPrefixRule(operation)
+                            .getOperationName());
+            assertArrayEquals("Aggregates of " + operation,
+                    names(trie.findAggregateRules(operation)),
+                    names(compiled.findAggregateRules(operation)));
+        }
+    }
+
+    @Test
+    public void shouldFindNothingWithoutAPrefix() throws IOException {
+        CompiledRules.compile(ThrottlerRuleUpdateTest.rules(new Rule("b", 1,
+                1), new Rule("d", 1, 1)).values(), file);
+        CompiledRules compiled = CompiledRules.open(file);
+
+        assertNull("Before every rule", compiled.findLongestPrefixRule("a"));
+        assertNull("Between rules", compiled.findLongestPrefixRule("c"));
+        assertEquals("No aggregates", 0,
+                compiled.findAggregateRules("b").length);
+    }
+
+    @Test
+    public void shouldDecodeTheRulesTheyWereCompiledFrom() throws IOException {
+        CompiledRules.compile(new StringReader("[{\"operation\": \"api/\", "
+                + "\"refillRate\": 0.5, \"capacity\": 10, \"cost\": 2, "
+                + "\"suffixCosts\": {\"/export\": 8, \"/\u00e9\": 3}}, "
+                + "{\"operation\": \"api\", \"refillRate\": 0, "
+                + "\"capacity\": 100, \"aggregate\": true}, "
+                + "{\"operation\": \"window\", \"algorithm\": \"slidingWindow\", "
+                + "\"refillRate\": 10, \"capacity\": 20}, "
+                + "{\"operation\": \"adaptive\", \"algorithm\": \"adaptive\", "
+                + "\"refillRate\": 100, \"minRefillRate\": 10, "
+                + "\"targetLatency\": 0.05, \"capacity\": 100}]"), file);
+        CompiledRules compiled = CompiledRules.open(file);
+
+        Rule api = compiled.findLongestPrefixRule("api/a");
+        assertEquals("GCRA", Algorithm.GCRA, api.getAlgorithm());
+        assertEquals("Tokens", 1, api.getRefillTokens());
+        assertEquals("Period", TimeUnit.SECONDS.toNanos(2),
+                api.getRefillPeriodNanos());
+        assertEquals("Capacity", 10, api.getTokenBucketCapacity());
+        assertEquals("Cost", 2, api.getCost("api/a"));
+        assertEquals("Suffix cost", 8, api.getCost("api/a/export"));
+        assertEquals("Unicode suffix", 3, api.getCost("api/a/\u00e9"));
+        assertFalse("Not an aggregate", api.isAggregate());
+        assertSame("Decoded once", api, compiled.findLongestPrefixRule("api/b"));
+
+        Rule aggregate = compiled.findLongestPrefixRule("api");
+        assertEquals("Token bucket", Algorithm.TOKEN_BUCKET,
+                aggregate.getAlgorithm());
+        assertEquals("No refill", 0,
+                aggregate.getTokenBucketRefilledTokensPerSecond());
+        assertTrue("Aggregate", aggregate.isAggregate());
+
+        assertEquals("Sliding window", Algorithm.SLIDING_WINDOW, compiled
+                .findLongestPrefixRule("window").getAlgorithm());
+
+        Rule adaptive = compiled.findLongestPrefixRule("adaptive");
+        assertEquals("Adaptive", Algorithm.ADAPTIVE, adaptive.getAlgorithm());
+        assertEquals("Minimum", 1, adaptive.getMinRefillTokens());
+        assertEquals("Minimum period", TimeUnit.MILLISECONDS.toNanos(100),
+                adaptive.getMinRefillPeriodNanos());
+        assertEquals("Target", TimeUnit.MILLISECONDS.toNanos(50),
+                adaptive.getTargetLatencyNanos());
+    }
+
+    @Test
+    public void shouldThrottleWithCompiledRules() throws IOException {
+        CompiledRules.compile(ThrottlerRuleUpdateTest.rules(
+                new Rule("api", 0, 3).asAggregate(),
+                new Rule("api/", 0, 2)).values(), file);
+        Throttler throttler = new Throttler(CompiledRules.open(file));
+
+        assertFalse("First", throttler.throttle("api/a"));
+        assertFalse("Second", throttler.throttle("api/a"));
+        assertTrue("Own bucket used up", throttler.throttle("api/a"));
+        assertFalse("Another user", throttler.throttle("api/b"));
+        assertTrue("Aggregate used up", throttler.throttle("api/c"));
+        assertTrue("Unmatched", throttler.throttle("other"));
+        assertEquals("Counted lazily", 2, throttler.getMetrics().getRules()
+                .size());
+    }
+
+    @Test
+    public void shouldUpdateToCompiledRules() throws IOException {
+        Throttler throttler = new Throttler(ThrottlerRuleUpdateTest.rules(new Rule(
+                "api/", 0, 2)));
+        assertFalse("Half used", throttler.throttle("api/a"));
+
+        CompiledRules.compile(ThrottlerRuleUpdateTest.rules(new Rule("api/",
+                0, 10)).values(), file);
+        throttler.updateRules(CompiledRules.open(file));
+
+        assertTrue("Half of the bigger bucket",
+                throttler.tryAcquire("api/a", 5));
+        assertTrue("Used up", throttler.throttle("api/a"));
+    }
+
+    @Test
+    public void shouldShardCompiledRules() throws IOException {
+        CompiledRules.compile(ThrottlerRuleUpdateTest.rules(new Rule("api/",
+                0, 1)).values(), file);
+        ShardedThrottler throttler = new ShardedThrottler(
+                CompiledRules.open(file), 4, EvictionPolicy.NONE);
+        try {
+            assertFalse("First", throttler.throttle("api/a"));
+            assertTrue("Used up", throttler.throttle("api/a"));
+        } finally {
+            throttler.stop();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectOtherFiles() throws IOException {
+        Files.write(file, new byte[32]);
+        CompiledRules.open(file);
+    }
+
+    @Test
+    public void shouldStreamEmptyRuleFiles() {
+        assertTrue("Empty array",
+                RuleFactory.parseRules(new StringReader("[]")).isEmpty());
+        assertTrue("Null", RuleFactory.parseRules(new StringReader("null"))
+                .isEmpty());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectRuleFilesWhichArentArrays() {
+        RuleFactory.parseRules(new StringReader("{\"operation\": \"a\"}"));
+    }
+
+    private static String[] names(final Rule[] rules) {
+        String[] names = new String[rules.length];
+
+        for (int i = 0; i < rules.length; i++) {
+            names[i] = rules[i].getOperationName();
+        }
+
+        return names;
+    }
+}
@@ -0,0 +1,148 @@
+package com.dsuskin.jthrottle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Nodes leasing tokens from the same coordinator should never let through
+ * more calls between them than the coordinator's bucket holds.
+ *
+ */
+public class LeasedThrottlerTest {
+
+    private ThrottlerTokenCoordinator coordinator;
+    private LeasedThrottler first;
+    private LeasedThrottler second;
+
+    @Before
+    public void setUp() {
+        coordinator = new ThrottlerTokenCoordinator(
+                ThrottlerRuleUpdateTest.rules(new Rule("a", 0, 100)));
+        first = new LeasedThrottler(coordinator, 10);
+        second = new LeasedThrottler(coordinator, 10);
+    }
+
+    @After
+    public void tearDown() {
+        coordinator = null;
+        first = null;
+        second = null;
+    }
+
+    @Test
+    public void shouldLeaseOnFirstCall() {
+        for (int i = 0; i < 10; i++) {
+            assertFalse("Leased", first.throttle("a/1"));
+        }
+
+        assertTrue("Lease used up", first.throttle("a/1"));
+    }
+
+    @Test
+    public void shouldThrottleUnknownOperation() {
+        assertTrue("No rule", first.throttle("b"));
+    }
+
+    @Test
+    public void shouldRenewInBatches() {
+        for (int i = 0; i < 6; i++) {
+            assertFalse("Leased", first.throttle("a/1"));
+            assertFalse("Leased", first.throttle("a/2"));
+        }
+
+        first.renew();
+
+        for (int i = 0; i < 10; i++) {
+            assertFalse("Renewed", first.throttle("a/1"));
+            assertFalse("Renewed", first.throttle("a/2"));
+        }
+    }
+
+    @Test
+    public void shouldShareLimitBetweenNodes() {
+        int allowed = 0;
+
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 10; i++) {
+                if (!first.throttle("a/1")) {
+                    allowed++;
+                }
+                if (!second.throttle("a/1")) {
+                    allowed++;
+                }
+            }
+
+            first.renew();
+            second.renew();
+        }
+
+        assertEquals("Whole bucket used, and no more", 100, allowed);
+    }
+
+    @Test
+    public void shouldCountLeasesRatherThanTokens() {
+        Throttler throttler = new Throttler(ThrottlerRuleUpdateTest
+                .rules(new Rule("a", 0, 15)), RefillMode.LAZY);
+        coordinator = new ThrottlerTokenCoordinator(throttler);
+        String[] names = { "a/1" };
+        int[] tokens = { 10 };
+
+        assertEquals("Whole lease", 10, coordinator.lease(names, tokens)[0]);
+        assertEquals("Rest of the bucket", 5,
+                coordinator.lease(names, tokens)[0]);
+        assertEquals("Nothing left", 0, coordinator.lease(names, tokens)[0]);
+
+        RuleStats stats = throttler.getMetrics().getRules().get(0);
+        assertEquals("Leases granted", 2, stats.getAllowedCount());
+        assertEquals("Leases refused", 1, stats.getThrottledCount());
+    }
+
+    @Test
+    public void shouldGiveBackIdleLeases() {
+        assertFalse("Leased", first.throttle("a/1"));
+
+        first.releaseIdle(System.nanoTime() + 1);
+
+        assertEquals("Released", 0, first.getLeaseCount());
+
+        // everything the first node didn't use is back with the coordinator
+        int allowed = 0;
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 10; i++) {
+                if (!second.throttle("a/1")) {
+                    allowed++;
+                }
+            }
+            second.renew();
+        }
+
+        assertEquals("Rest of the bucket", 99, allowed);
+    }
+
+    @Test
+    public void shouldRenewInBackground() throws InterruptedException {
+        first.start();
+
+        try {
+            int allowed = 0;
+            long deadline = System.currentTimeMillis() + 10000;
+
+            while (allowed < 100 && System.currentTimeMillis() < deadline) {
+                if (!first.throttle("a/1")) {
+                    allowed++;
+                } else {
+                    Thread.sleep(1);
+                }
+            }
+
+            assertEquals("Whole bucket", 100, allowed);
+        } finally {
+            first.stop();
+        }
+    }
+}
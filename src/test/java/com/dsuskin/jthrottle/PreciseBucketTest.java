@@ -0,0 +1,145 @@
+package com.dsuskin.jthrottle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Precise buckets should refill at rates which aren't a whole number per
+ * second, without ticking, and without losing fractions of a token.
+ *
+ */
+public class PreciseBucketTest {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private Bucket bucket;
+
+    @Before
+    public void setUp() {
+        bucket = new Bucket("test/foo", 1, 200, TimeUnit.MILLISECONDS, 1);
+    }
+
+    @After
+    public void tearDown() {
+        bucket = null;
+    }
+
+    @Test
+    public void shouldRefillWithoutTicking() throws InterruptedException {
+        assertFalse("Full", bucket.throttle());
+        assertTrue("Empty", bucket.throttle());
+
+        Thread.sleep(250);
+
+        assertFalse("Refilled", bucket.throttle());
+    }
+
+    @Test
+    public void shouldNotRefillEarly() {
+        bucket = new Bucket("test/foo", 1, 1, TimeUnit.MINUTES, 2);
+
+        assertTrue("Full", bucket.tryAcquire(2));
+        assertTrue("Empty", bucket.throttle());
+    }
+
+    @Test
+    public void shouldKeepFractionsOfTokens() {
+        // a third of a second per token
+        long refillTokens = 3;
+
+        assertEquals("Whole period", 3, GcraState.tokensFor(
+                NANOS_PER_SECOND, refillTokens, NANOS_PER_SECOND, false));
+        assertEquals("Just short", 2, GcraState.tokensFor(
+                NANOS_PER_SECOND - 1, refillTokens, NANOS_PER_SECOND, false));
+        assertEquals("Costs add up", NANOS_PER_SECOND,
+                GcraState.cost(3, refillTokens, NANOS_PER_SECOND));
+
+        // a token a minute, for an hour
+        assertEquals("No drift", 60, GcraState.tokensFor(
+                3600 * NANOS_PER_SECOND, 1, 60 * NANOS_PER_SECOND, false));
+    }
+
+    @Test
+    public void shouldCountTokensTakenOneAtATime() {
+        long refillTokens = 3;
+        long state = GcraState.pack(3, 0, 3, refillTokens,
+                NANOS_PER_SECOND);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("Tokens left", 3 - i, GcraState.tokens(
+                    state, 0, 3, refillTokens, NANOS_PER_SECOND));
+            state = GcraState.take(state, 0, 1, refillTokens,
+                    NANOS_PER_SECOND);
+        }
+
+        assertEquals("Empty", 0, GcraState.tokens(state, 0, 3,
+                refillTokens, NANOS_PER_SECOND));
+        assertEquals("Full a second later", 3, GcraState.tokens(
+                state, NANOS_PER_SECOND, 3, refillTokens, NANOS_PER_SECOND));
+    }
+
+    @Test
+    public void shouldWaitForPreciseRefill() throws InterruptedException {
+        Throttler throttler = new Throttler(
+                ThrottlerRuleUpdateTest.rules(new Rule("a", 1, 100,
+                        TimeUnit.MILLISECONDS, 1)));
+
+        assertTrue("Full", throttler.tryAcquire("a/1", 1, 0,
+                TimeUnit.MILLISECONDS));
+
+        long start = System.nanoTime();
+        assertTrue("Waited", throttler.tryAcquire("a/1", 1, 1,
+                TimeUnit.SECONDS));
+        long waited = System.nanoTime() - start;
+
+        assertTrue("Waited for the next token: " + waited,
+                waited >= TimeUnit.MILLISECONDS.toNanos(90));
+    }
+
+    @Test
+    public void shouldParseFractionalRates() throws Exception {
+        Rule rule = RuleFactory.parseRules(
+                new StringReader("[{\"operation\": \"a\", \"refillRate\": 0.5, "
+                        + "\"capacity\": 1}, {\"operation\": \"b\", "
+                        + "\"refillRate\": 1, \"refillPeriod\": 60, "
+                        + "\"capacity\": 1}]")).get("a");
+
+        assertEquals("GCRA", Algorithm.GCRA, rule.getAlgorithm());
+        assertEquals("Tokens", 1, rule.getRefillTokens());
+        assertEquals("Period", 2 * NANOS_PER_SECOND,
+                rule.getRefillPeriodNanos());
+    }
+
+    @Test
+    public void shouldWriteRulesWhichParseBack() throws Exception {
+        Rule source = new Rule("b", 1, 1, TimeUnit.MINUTES, 1);
+        String json = new ObjectMapper().writeValueAsString(new Rule[] {
+                source, new Rule("c", 5, 10) });
+
+        Rule parsed = RuleFactory.parseRules(new StringReader(json)).get("b");
+        Rule whole = RuleFactory.parseRules(new StringReader(json)).get("c");
+
+        assertEquals("GCRA", Algorithm.GCRA, parsed.getAlgorithm());
+        assertEquals("Tokens", 1, parsed.getRefillTokens());
+        assertEquals("Period", 60 * NANOS_PER_SECOND,
+                parsed.getRefillPeriodNanos());
+        assertEquals("Token bucket", Algorithm.TOKEN_BUCKET,
+                whole.getAlgorithm());
+        assertEquals("Rate", 5, whole.getTokenBucketRefilledTokensPerSecond());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectPreciseRulesWhichNeverRefill() {
+        new Rule("a", 0, 1, TimeUnit.SECONDS, 1);
+    }
+}
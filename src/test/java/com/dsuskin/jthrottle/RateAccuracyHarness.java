@@ -0,0 +1,337 @@
+package com.dsuskin.jthrottle;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Calls a throttle decision as fast as it can from several threads, on keys
+ * picked from a distribution, and measures for each key which was asked for
+ * more than its rule allows what rate it let calls through at once it was
+ * first held back, and for every key its burst: the most calls it let
+ * through in any stretch of time over what the configured rate earns in
+ * that time. A rule holds to its capacity if that never goes over it. The
+ * calls can also come in spells with pauses in between, so that buckets
+ * fill up and sit idle before each spell.
+ *
+ * Run the accuracy tests for longer to make the rates more precise, for
+ * instance with -Djthrottle.accuracy.millis=10000.
+ *
+ */
+final class RateAccuracyHarness {
+
+    static final long DURATION_NANOS = TimeUnit.MILLISECONDS.toNanos(Long
+            .getLong("jthrottle.accuracy.millis", 2000));
+
+    /**
+     * How keys are picked for each call.
+     */
+    enum KeyDistribution {
+
+        /**
+         * Every key as often as any other.
+         */
+        UNIFORM,
+
+        /**
+         * The key ranked k picked in proportion to 1 / k, so a few keys are
+         * hot and most are cold.
+         */
+        ZIPFIAN
+    }
+
+    /**
+     * The decision being measured.
+     */
+    interface Decider {
+
+        /**
+         *
+         * @param key
+         *            From 0 up to the number of keys
+         * @return true if the call should be throttled
+         */
+        boolean throttle(int key);
+    }
+
+    private final int threadCount;
+    private final int keyCount;
+    private final double[] cumulative;
+    private final long activeNanos;
+    private final long pauseNanos;
+
+    /**
+     * Calls without pausing.
+     *
+     * @param threadCount
+     * @param keyCount
+     * @param distribution
+     */
+    RateAccuracyHarness(final int threadCount, final int keyCount,
+            final KeyDistribution distribution) {
+        this(threadCount, keyCount, distribution, DURATION_NANOS, 0);
+    }
+
+    /**
+     * Calls in spells. The rates measured then include the pauses, so only
+     * the bursts say anything.
+     *
+     * @param threadCount
+     * @param keyCount
+     * @param distribution
+     * @param activeNanos
+     *            How long each spell of calls lasts
+     * @param pauseNanos
+     *            How long every thread stops calling for after each spell
+     */
+    RateAccuracyHarness(final int threadCount, final int keyCount,
+            final KeyDistribution distribution, final long activeNanos,
+            final long pauseNanos) {
+        this.threadCount = threadCount;
+        this.keyCount = keyCount;
+        this.cumulative = new double[keyCount];
+        this.activeNanos = activeNanos;
+        this.pauseNanos = pauseNanos;
+
+        double total = 0;
+        for (int i = 0; i < keyCount; i++) {
+            total += distribution == KeyDistribution.ZIPFIAN ? 1.0 / (i + 1)
+                    : 1.0;
+            cumulative[i] = total;
+        }
+
+        for (int i = 0; i < keyCount; i++) {
+            cumulative[i] /= total;
+        }
+    }
+
+    /**
+     *
+     * @param decider
+     * @param refillTokensPerSecond
+     *            The rate the rule is configured with
+     * @param capacity
+     *            The burst the rule is configured with
+     * @return how close the keys came to the rule
+     * @throws InterruptedException
+     */
+    Result run(final Decider decider, final double refillTokensPerSecond,
+            final int capacity) throws InterruptedException {
+        final AtomicLongArray attempts = new AtomicLongArray(keyCount);
+        final AtomicLongArray firstCalledNanos = new AtomicLongArray(keyCount);
+        final AtomicLongArray admitted = new AtomicLongArray(keyCount);
+        final AtomicLongArray firstThrottledNanos = new AtomicLongArray(
+                keyCount);
+        final AtomicLongArray admittedBeforeThrottled = new AtomicLongArray(
+                keyCount);
+        // the least any key has been ahead of the rate just before letting a
+        // call through, which is where its biggest burst so far began
+        final AtomicLongArray lowest = new AtomicLongArray(keyCount);
+        final AtomicLongArray burst = new AtomicLongArray(keyCount);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(threadCount);
+        final long[] window = new long[2];
+
+        for (int t = 0; t < threadCount; t++) {
+            Thread thread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        long started = window[0];
+                        long deadline = window[1];
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        long now;
+
+                        while ((now = System.nanoTime()) < deadline) {
+                            long phase = (now - started)
+                                    % (activeNanos + pauseNanos);
+
+                            if (phase >= activeNanos) {
+                                LockSupport.parkNanos(activeNanos + pauseNanos
+                                        - phase);
+                                continue;
+                            }
+
+                            int key = pick(random.nextDouble());
+                            attempts.incrementAndGet(key);
+
+                            if (firstCalledNanos.get(key) == 0) {
+                                firstCalledNanos.compareAndSet(key, 0, now);
+                            }
+
+                            if (!decider.throttle(key)) {
+                                long count = admitted.incrementAndGet(key);
+                                long first = firstCalledNanos.get(key);
+
+                                // the clock is read before deciding for
+                                // where a burst begins, and after counting
+                                // for where it ends, so that a thread
+                                // descheduled on the way can only make the
+                                // burst look smaller
+                                lower(lowest, key, count - 1
+                                        - earned(refillTokensPerSecond, now
+                                                - first));
+                                long ahead = count
+                                        - earned(refillTokensPerSecond,
+                                                System.nanoTime() - first);
+                                raise(burst, key, ahead - lowest.get(key));
+                            } else if (firstThrottledNanos.get(key) == 0
+                                    && firstThrottledNanos.compareAndSet(key,
+                                            0, now)) {
+                                admittedBeforeThrottled.set(key,
+                                        admitted.get(key));
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        finished.countDown();
+                    }
+                }
+            }, "accuracy-" + t);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        window[0] = System.nanoTime();
+        window[1] = window[0] + DURATION_NANOS;
+        start.countDown();
+        finished.await();
+
+        List<Double> rateErrors = new ArrayList<Double>();
+        long maxBurst = 0;
+        long minBurst = Long.MAX_VALUE;
+        long ceiling = (long) (capacity + refillTokensPerSecond
+                * DURATION_NANOS / 1e9);
+
+        for (int key = 0; key < keyCount; key++) {
+            maxBurst = Math.max(maxBurst, burst.get(key));
+
+            long throttledAt = firstThrottledNanos.get(key);
+            long steadyNanos = window[1] - throttledAt;
+
+            // only keys which were held back for most of the run say
+            // anything about the rate
+            if (throttledAt == 0 || steadyNanos < DURATION_NANOS / 2
+                    || attempts.get(key) < 2 * ceiling) {
+                continue;
+            }
+
+            double rate = (admitted.get(key) - admittedBeforeThrottled
+                    .get(key)) * 1e9 / steadyNanos;
+            rateErrors.add((rate - refillTokensPerSecond)
+                    / refillTokensPerSecond);
+            minBurst = Math.min(minBurst, burst.get(key));
+        }
+
+        double[] errors = new double[rateErrors.size()];
+        for (int i = 0; i < errors.length; i++) {
+            errors[i] = rateErrors.get(i);
+        }
+        Arrays.sort(errors);
+
+        return new Result(refillTokensPerSecond, capacity, errors,
+                rateErrors.isEmpty() ? 0 : minBurst, maxBurst);
+    }
+
+    private static long earned(final double refillTokensPerSecond,
+            final long nanos) {
+        return (long) (refillTokensPerSecond * nanos / 1e9);
+    }
+
+    private static void lower(final AtomicLongArray values, final int index,
+            final long value) {
+        long current;
+
+        while ((current = values.get(index)) > value
+                && !values.compareAndSet(index, current, value)) {
+        }
+    }
+
+    private static void raise(final AtomicLongArray values, final int index,
+            final long value) {
+        long current;
+
+        while ((current = values.get(index)) < value
+                && !values.compareAndSet(index, current, value)) {
+        }
+    }
+
+    private int pick(final double uniform) {
+        int index = Arrays.binarySearch(cumulative, uniform);
+
+        return Math.min(keyCount - 1, index < 0 ? -index - 1 : index);
+    }
+
+    /**
+     * The admitted rates of the keys which were held back, as fractions over
+     * (positive) or under (negative) the configured rate, the smallest burst
+     * of those keys, and the biggest of any key.
+     */
+    static final class Result {
+
+        private final double refillTokensPerSecond;
+        private final int capacity;
+        private final double[] rateErrors;
+        private final long minBurst;
+        private final long maxBurst;
+
+        Result(final double refillTokensPerSecond, final int capacity,
+                final double[] rateErrors, final long minBurst,
+                final long maxBurst) {
+            this.refillTokensPerSecond = refillTokensPerSecond;
+            this.capacity = capacity;
+            this.rateErrors = rateErrors;
+            this.minBurst = minBurst;
+            this.maxBurst = maxBurst;
+        }
+
+        int getSaturatedKeys() {
+            return rateErrors.length;
+        }
+
+        /**
+         *
+         * @param percentile
+         *            From 0 to 100
+         * @return the rate error at that percentile, from most under to most
+         *         over the configured rate
+         */
+        double getRateError(final double percentile) {
+            if (rateErrors.length == 0) {
+                return Double.NaN;
+            }
+
+            int index = (int) Math.ceil(percentile / 100 * rateErrors.length) - 1;
+
+            return rateErrors[Math.max(0, Math.min(rateErrors.length - 1,
+                    index))];
+        }
+
+        long getMinBurst() {
+            return minBurst;
+        }
+
+        long getMaxBurst() {
+            return maxBurst;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d saturated keys at %.1f/s: rate error "
+                    + "min %+.1f%% p50 %+.1f%% p90 %+.1f%% p99 %+.1f%% "
+                    + "max %+.1f%%, burst %d-%d of %d", rateErrors.length,
+                    refillTokensPerSecond, 100 * getRateError(0),
+                    100 * getRateError(50), 100 * getRateError(90),
+                    100 * getRateError(99), 100 * getRateError(100),
+                    minBurst, maxBurst, capacity);
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package com.dsuskin.jthrottle;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Timer;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.dsuskin.jthrottle.RateAccuracyHarness.Decider;
+import com.dsuskin.jthrottle.RateAccuracyHarness.KeyDistribution;
+import com.dsuskin.jthrottle.RateAccuracyHarness.Result;
+
+/**
+ * The rates and bursts calls are let through at, under contention, should be
+ * the ones the rules are configured with.
+ *
+ * Token buckets are refilled in 100ms steps, so over a two second run their
+ * measured rate can be out by a step either way, and they can get a step
+ * ahead of the rate on top of their capacity. Rates which aren't a multiple
+ * of ten a second earn a fraction of a token some steps, which has to be
+ * carried over rather than lost for them to come out right. GCRA buckets are
+ * refilled to the nanosecond, and should be much closer.
+ *
+ */
+public class RateAccuracyTest {
+
+    private static final int THREADS = 4;
+
+    /**
+     * How far over or under the rate a token bucket may go: a step in a
+     * second, the shortest time a key is measured for.
+     */
+    private static final double STEP = 0.1;
+
+    /**
+     * Rates which don't divide evenly into steps, either way round. A key
+     * may also be out by a token in the second it is measured for, which is
+     * more than a step at rates under ten a second.
+     */
+    private static final int[] UNEVEN_RATES = { 15, 7 };
+
+    /**
+     * Long enough for an emptied 200/s bucket of 40 to fill up, and then to
+     * sit idle.
+     */
+    private static final long SPELL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long PAUSE_NANOS = TimeUnit.MILLISECONDS.toNanos(400);
+    private static final String[] KEYS = new String[1000];
+
+    static {
+        for (int i = 0; i < KEYS.length; i++) {
+            KEYS[i] = "key/" + i;
+        }
+    }
+
+    private Timer timer;
+
+    @Before
+    public void setUp() {
+        timer = new Timer(true);
+    }
+
+    @After
+    public void tearDown() {
+        timer.cancel();
+    }
+
+    @Test
+    public void lazyTokenBucketsUniform() throws InterruptedException {
+        Result result = run(new Throttler(ThrottlerRuleUpdateTest.rules(new Rule(
+                "key/", 1000, 100)), RefillMode.LAZY), 16,
+                KeyDistribution.UNIFORM, 1000, 100);
+
+        assertRate(result, STEP, STEP);
+        assertBurst(result, 100 + 100);
+    }
+
+    @Test
+    public void lazyTokenBucketsZipfian() throws InterruptedException {
+        Result result = run(new Throttler(ThrottlerRuleUpdateTest.rules(new Rule(
+                "key/", 1000, 100)), RefillMode.LAZY), KEYS.length,
+                KeyDistribution.ZIPFIAN, 1000, 100);
+
+        assertRate(result, STEP, STEP);
+        assertBurst(result, 100 + 100);
+    }
+
+    @Test
+    public void tickedTokenBuckets() throws InterruptedException {
+        Throttler throttler = new Throttler(ThrottlerRuleUpdateTest
+                .rules(new Rule("key/", 1000, 100)));
+        timer.scheduleAtFixedRate(new ThrottlerTick(throttler), 0, 10);
+
+        Result result = run(throttler, 16, KeyDistribution.UNIFORM, 1000, 100);
+
+        assertRate(result, STEP, STEP);
+        assertBurst(result, 100 + 100);
+    }
+
+    @Test
+    public void scheduledTokenBuckets() throws InterruptedException {
+        RefillScheduler scheduler = new RefillScheduler();
+        scheduler.start();
+
+        try {
+            Result result = run(new Throttler(ThrottlerRuleUpdateTest
+                    .rules(new Rule("key/", 1000, 100)), scheduler),
+                    KEYS.length, KeyDistribution.ZIPFIAN, 1000, 100);
+
+            assertRate(result, STEP, STEP);
+            assertBurst(result, 100 + 100);
+        } finally {
+            scheduler.stop();
+        }
+    }
+
+    @Test
+    public void shardedTokenBuckets() throws InterruptedException {
+        final ShardedThrottler throttler = new ShardedThrottler(
+                ThrottlerRuleUpdateTest.rules(new Rule("key/", 1000, 100)), 4);
+
+        try {
+            Result result = run(new Decider() {
+
+                @Override
+                public boolean throttle(int key) {
+                    return throttler.throttle(KEYS[key]);
+                }
+            }, KEYS.length, KeyDistribution.ZIPFIAN, 1000, 100);
+
+            assertRate(result, STEP, STEP);
+            assertBurst(result, 100 + 100);
+        } finally {
+            throttler.stop();
+        }
+    }
+
+    @Test
+    public void lazyTokenBucketsAtUnevenRates() throws InterruptedException {
+        for (int rate : UNEVEN_RATES) {
+            Result result = run(new Throttler(ThrottlerRuleUpdateTest
+                    .rules(new Rule("key/", rate, rate)), RefillMode.LAZY), 16,
+                    KeyDistribution.UNIFORM, rate, rate);
+
+            assertRate(result, unevenTolerance(rate), unevenTolerance(rate));
+            assertBurst(result, rate + 2);
+        }
+    }
+
+    @Test
+    public void scheduledTokenBucketsAtUnevenRates()
+            throws InterruptedException {
+        RefillScheduler scheduler = new RefillScheduler();
+        scheduler.start();
+
+        try {
+            for (int rate : UNEVEN_RATES) {
+                Result result = run(new Throttler(ThrottlerRuleUpdateTest
+                        .rules(new Rule("key/", rate, rate)), scheduler), 16,
+                        KeyDistribution.UNIFORM, rate, rate);
+
+                assertRate(result, unevenTolerance(rate),
+                        unevenTolerance(rate));
+                assertBurst(result, rate + 2);
+            }
+        } finally {
+            scheduler.stop();
+        }
+    }
+
+    @Test
+    public void shardedTokenBucketsAtUnevenRates()
+            throws InterruptedException {
+        for (int rate : UNEVEN_RATES) {
+            final ShardedThrottler throttler = new ShardedThrottler(
+                    ThrottlerRuleUpdateTest.rules(new Rule("key/", rate, rate)),
+                    4);
+
+            try {
+                Result result = run(new Decider() {
+
+                    @Override
+                    public boolean throttle(int key) {
+                        return throttler.throttle(KEYS[key]);
+                    }
+                }, 16, KeyDistribution.UNIFORM, rate, rate);
+
+                assertRate(result, unevenTolerance(rate),
+                        unevenTolerance(rate));
+                assertBurst(result, rate + 2);
+            } finally {
+                throttler.stop();
+            }
+        }
+    }
+
+    @Test
+    public void scheduledTokenBucketsAfterIdling() throws InterruptedException {
+        RefillScheduler scheduler = new RefillScheduler();
+        scheduler.start();
+
+        try {
+            final Throttler throttler = new Throttler(ThrottlerRuleUpdateTest
+                    .rules(new Rule("key/", 200, 40)), scheduler);
+
+            Result result = run(new Decider() {
+
+                @Override
+                public boolean throttle(int key) {
+                    return throttler.throttle(KEYS[key]);
+                }
+            }, new RateAccuracyHarness(THREADS, 16, KeyDistribution.UNIFORM,
+                    SPELL_NANOS, PAUSE_NANOS), 200, 40);
+
+            assertBurst(result, 40 + 20);
+        } finally {
+            scheduler.stop();
+        }
+    }
+
+    @Test
+    public void shardedTokenBucketsAfterIdling() throws InterruptedException {
+        final ShardedThrottler throttler = new ShardedThrottler(
+                ThrottlerRuleUpdateTest.rules(new Rule("key/", 200, 40)), 4);
+
+        try {
+            Result result = run(new Decider() {
+
+                @Override
+                public boolean throttle(int key) {
+                    return throttler.throttle(KEYS[key]);
+                }
+            }, new RateAccuracyHarness(THREADS, 16, KeyDistribution.UNIFORM,
+                    SPELL_NANOS, PAUSE_NANOS), 200, 40);
+
+            assertBurst(result, 40 + 20);
+        } finally {
+            throttler.stop();
+        }
+    }
+
+    @Test
+    public void gcraBucketsZipfian() throws InterruptedException {
+        Result result = run(new Throttler(ThrottlerRuleUpdateTest.rules(new Rule(
+                "key/", 1500, 1, TimeUnit.SECONDS, 50))), KEYS.length,
+                KeyDistribution.ZIPFIAN, 1500, 50);
+
+        assertRate(result, 0.05, 0.05);
+        assertBurst(result, 50 + 2);
+    }
+
+    @Test
+    public void contendedTokenBucket() throws InterruptedException {
+        final Bucket bucket = new Bucket("hot", 2000, 200);
+
+        Result result = run(new Decider() {
+
+            @Override
+            public boolean throttle(int key) {
+                return bucket.refillAndThrottle();
+            }
+        }, 1, KeyDistribution.UNIFORM, 2000, 200);
+
+        assertRate(result, STEP, STEP);
+        assertBurst(result, 200 + 200);
+    }
+
+    @Test
+    public void contendedGcraBucket() throws InterruptedException {
+        final Bucket bucket = new Bucket("hot", 2500, 1, TimeUnit.SECONDS, 20);
+
+        Result result = run(new Decider() {
+
+            @Override
+            public boolean throttle(int key) {
+                return bucket.throttle();
+            }
+        }, 1, KeyDistribution.UNIFORM, 2500, 20);
+
+        assertRate(result, 0.05, 0.05);
+        assertBurst(result, 20 + 2);
+    }
+
+    private Result run(final Throttler throttler, final int keyCount,
+            final KeyDistribution distribution,
+            final double refillTokensPerSecond, final int capacity)
+            throws InterruptedException {
+        return run(new Decider() {
+
+            @Override
+            public boolean throttle(int key) {
+                return throttler.throttle(KEYS[key]);
+            }
+        }, keyCount, distribution, refillTokensPerSecond, capacity);
+    }
+
+    private Result run(final Decider decider, final int keyCount,
+            final KeyDistribution distribution,
+            final double refillTokensPerSecond, final int capacity)
+            throws InterruptedException {
+        return run(decider, new RateAccuracyHarness(THREADS, keyCount,
+                distribution), refillTokensPerSecond, capacity);
+    }
+
+    private Result run(final Decider decider,
+            final RateAccuracyHarness harness,
+            final double refillTokensPerSecond, final int capacity)
+            throws InterruptedException {
+        Result result = harness.run(decider, refillTokensPerSecond, capacity);
+
+        // the report is the point when running for longer; otherwise it's
+        // only in the failure messages
+        if (System.getProperty("jthrottle.accuracy.millis") != null) {
+            System.out.println(result);
+        }
+
+        return result;
+    }
+
+    private static double unevenTolerance(final int rate) {
+        return Math.max(STEP, 1.0 / rate);
+    }
+
+    /**
+     *
+     * @param result
+     * @param under
+     *            How far under the configured rate any key may go
+     * @param over
+     *            How far over the configured rate any key may go
+     */
+    private static void assertRate(final Result result, final double under,
+            final double over) {
+        assertTrue("Some keys held back: " + result,
+                result.getSaturatedKeys() > 0);
+        assertTrue("Not too slow: " + result, result.getRateError(0) >= -under);
+        assertTrue("Not too fast: " + result,
+                result.getRateError(100) <= over);
+    }
+
+    /**
+     *
+     * @param result
+     * @param max
+     *            How far ahead of the configured rate any key may get
+     */
+    private static void assertBurst(final Result result, final long max) {
+        assertTrue("Burst: " + result, result.getMaxBurst() <= max);
+    }
+}
@@ -0,0 +1,158 @@
+package com.dsuskin.jthrottle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A throttler using a refill scheduler should have its buckets refilled
+ * without being ticked, and only while they are below capacity.
+ * 
+ */
+public class RefillSchedulerTest {
+
+    private static final String OPERATION = "test/foo";
+
+    private Rule rule;
+    private RefillScheduler scheduler;
+    private Throttler throttler;
+
+    @Before
+    public void setUp() {
+        rule = new Rule("test", 10, 2);
+        ConcurrentNavigableMap<String, Rule> throttlerRules = new ConcurrentSkipListMap<String, Rule>();
+        throttlerRules.put(rule.getOperationName(), rule);
+        scheduler = new RefillScheduler();
+        scheduler.start();
+        throttler = new Throttler(throttlerRules, scheduler);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.stop();
+        scheduler = null;
+        throttler = null;
+        rule = null;
+    }
+
+    @Test
+    public void shouldNotScheduleFullBuckets() {
+        assertEquals("Nothing scheduled", 0,
+                scheduler.getScheduledBucketCount());
+    }
+
+    @Test
+    public void shouldRefillDrainedBuckets() throws Exception {
+        depleteTokens();
+        assertEquals("Drained bucket scheduled", 1,
+                scheduler.getScheduledBucketCount());
+
+        Thread.sleep(500);
+
+        assertFalse("Tokens added by scheduler", throttler.throttle(OPERATION));
+    }
+
+    @Test
+    public void shouldUnscheduleBucketsOnceFull() throws Exception {
+        depleteTokens();
+
+        Thread.sleep(500);
+
+        assertEquals("Full bucket unscheduled", 0,
+                scheduler.getScheduledBucketCount());
+        depleteTokens();
+    }
+
+    @Test
+    public void shouldNotCreditIdleTimeToFullBuckets() throws Exception {
+        depleteTokens();
+
+        // refilled and unscheduled, and then idle for a while
+        Thread.sleep(1500);
+
+        int admitted = 0;
+        long end = System.nanoTime() + 50 * 1000000L;
+        while (System.nanoTime() < end) {
+            if (!throttler.throttle(OPERATION)) {
+                admitted++;
+            }
+        }
+
+        assertTrue("At most the capacity and one refill step: " + admitted,
+                admitted <= rule.getTokenBucketCapacity() + 1);
+    }
+
+    @Test
+    public void shouldUnscheduleBucketsRetiredBeforeTheyReachTheWheel()
+            throws Exception {
+        // drained and replaced straight away, before the scheduler thread
+        // has picked the drained bucket up
+        depleteTokens();
+        throttler.updateRules(ThrottlerRuleUpdateTest.rules(new Rule("test",
+                10, 4)));
+
+        Thread.sleep(1000);
+
+        assertEquals("Nothing left scheduled", 0,
+                scheduler.getScheduledBucketCount());
+    }
+
+    /**
+     * Rates which don't divide evenly by the tick interval earn a fraction of
+     * a token some ticks, which should count towards when the bucket is next
+     * due. A bucket which only holds one token loses any refill which comes
+     * late.
+     */
+    @Test
+    public void shouldRefillAtRatesWhichArentMultiplesOfTheTickRate()
+            throws Exception {
+        assertEquals("15 a second", 30, admittedOverTwoSeconds(15, 15), 2);
+        assertEquals("7 a second, one at a time", 14,
+                admittedOverTwoSeconds(7, 1), 2);
+    }
+
+    /**
+     * 
+     * @param refillTokensPerSecond
+     * @param capacity
+     * @return the number of calls let through by a drained bucket called
+     *         every millisecond for two seconds
+     */
+    private int admittedOverTwoSeconds(final int refillTokensPerSecond,
+            final int capacity) throws InterruptedException {
+        throttler = new Throttler(ThrottlerRuleUpdateTest.rules(new Rule(
+                "fraction", refillTokensPerSecond, capacity)), scheduler);
+
+        while (!throttler.throttle("fraction")) {
+        }
+
+        int admitted = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+
+        while (System.nanoTime() < deadline) {
+            if (!throttler.throttle("fraction")) {
+                admitted++;
+            }
+            Thread.sleep(1);
+        }
+
+        return admitted;
+    }
+
+    private void depleteTokens() {
+        for (int i = 0; i < rule.getTokenBucketCapacity(); i++) {
+            assertFalse("Bucket should have more tokens",
+                    throttler.throttle(OPERATION));
+        }
+
+        assertTrue("Bucket should be empty", throttler.throttle(OPERATION));
+    }
+}
@@ -0,0 +1,91 @@
+package com.dsuskin.jthrottle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A throttler behind a rule file watcher should pick up changes to the file.
+ *
+ */
+public class RuleFileWatcherTest {
+
+    private Path directory;
+    private Path file;
+    private Throttler throttler;
+    private RuleFileWatcher watcher;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("jthrottle");
+        file = directory.resolve("rules.json");
+        writeRules(file, 1);
+        throttler = new Throttler(ThrottlerRuleUpdateTest.rules(new Rule("a",
+                0, 1)));
+        watcher = new RuleFileWatcher(file, throttler);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        watcher.stop();
+        FileUtils.deleteDirectory(directory.toFile());
+        throttler = null;
+        watcher = null;
+    }
+
+    @Test
+    public void shouldReloadOnRequest() throws IOException {
+        writeRules(file, 5);
+
+        assertTrue("Reloaded", watcher.reload());
+        assertTrue("New capacity", throttler.tryAcquire("a/1", 5));
+    }
+
+    @Test
+    public void shouldKeepRulesWhenFileIsBroken() throws IOException {
+        Files.write(file, "[{\"operation\": ".getBytes(StandardCharsets.UTF_8));
+
+        assertFalse("Not reloaded", watcher.reload());
+        assertNotNull("Error kept", watcher.getLastError());
+        assertFalse("Old capacity", throttler.tryAcquire("a/1", 2));
+        assertTrue("Old rule", throttler.tryAcquire("a/1", 1));
+    }
+
+    @Test
+    public void shouldReloadWhenFileIsReplaced() throws Exception {
+        watcher.start();
+
+        Path replacement = directory.resolve("rules.json.tmp");
+        writeRules(replacement, 5);
+        Files.move(replacement, file, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        // some platforms poll for changes rather than being told
+        long deadline = System.currentTimeMillis() + 30000;
+        while (watcher.getReloadCount() == 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals("Reloaded", 1, watcher.getReloadCount());
+        assertTrue("New capacity", throttler.tryAcquire("a/1", 5));
+    }
+
+    private static void writeRules(Path path, int capacity) throws IOException {
+        String json = "[{\"operation\": \"a\", \"refillRate\": 0, \"capacity\": "
+                + capacity + "}]";
+        Files.write(path, json.getBytes(StandardCharsets.UTF_8));
+    }
+}
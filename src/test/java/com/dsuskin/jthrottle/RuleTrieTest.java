@@ -0,0 +1,75 @@
+package com.dsuskin.jthrottle;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * The trie should always find the rule with the longest matching prefix.
+ * 
+ */
+public class RuleTrieTest {
+
+    @Test
+    public void shouldFindNothingWithoutRules() {
+        RuleTrie trie = new RuleTrie(Collections.<Rule> emptyList());
+
+        assertNull("No rule matches", trie.findLongestPrefixRule("foo"));
+    }
+
+    @Test
+    public void shouldMatchEverythingWithEmptyRule() {
+        Rule catchAll = new Rule("", 1, 1);
+        RuleTrie trie = new RuleTrie(Collections.singletonList(catchAll));
+
+        assertSame("Empty rule matches", catchAll,
+                trie.findLongestPrefixRule("foo"));
+        assertSame("Empty rule matches empty operation", catchAll,
+                trie.findLongestPrefixRule(""));
+    }
+
+    @Test
+    public void shouldMatchExactOperationName() {
+        List<Rule> rules = TestUtils.generateRules(100);
+        RuleTrie trie = new RuleTrie(rules);
+
+        for (Rule rule : rules) {
+            assertSame("Rule matches its own operation", rule,
+                    trie.findLongestPrefixRule(rule.getOperationName()));
+        }
+    }
+
+    /**
+     * "foo/test1" is a prefix of "foo/test10" through "foo/test19", so
+     * children of those must not fall back to it.
+     */
+    @Test
+    public void shouldPreferLongestOfNestedRules() {
+        List<Rule> rules = TestUtils.generateRules(20);
+        RuleTrie trie = new RuleTrie(rules);
+
+        assertSame("Longest rule matches", rules.get(12),
+                trie.findLongestPrefixRule("foo/test12/child"));
+        assertSame("Shorter rule matches", rules.get(1),
+                trie.findLongestPrefixRule("foo/test1/child"));
+        assertSame("Shorter rule matches without delimiter", rules.get(1),
+                trie.findLongestPrefixRule("foo/test1x"));
+        assertNull("Partial rule name doesn't match",
+                trie.findLongestPrefixRule("foo/tes"));
+    }
+
+    @Test
+    public void shouldMatchRegardlessOfRuleOrder() {
+        List<Rule> rules = new ArrayList<Rule>(TestUtils.generateRules(20));
+        Collections.reverse(rules);
+        RuleTrie trie = new RuleTrie(rules);
+
+        assertSame("Longest rule matches", rules.get(7),
+                trie.findLongestPrefixRule("foo/test12/child"));
+    }
+}
@@ -0,0 +1,88 @@
+package com.dsuskin.jthrottle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A sharded throttler should behave just like a single throttler.
+ * 
+ */
+public class ShardedThrottlerTest {
+
+    private Rule rule;
+    private ConcurrentNavigableMap<String, Rule> throttlerRules;
+    private ShardedThrottler throttler;
+
+    @Before
+    public void setUp() {
+        rule = new Rule("test", 10, 10);
+        throttlerRules = new ConcurrentSkipListMap<String, Rule>();
+        throttlerRules.put(rule.getOperationName(), rule);
+        throttler = new ShardedThrottler(throttlerRules, 4);
+    }
+
+    @After
+    public void tearDown() {
+        throttler.stop();
+        rule = null;
+        throttlerRules = null;
+        throttler = null;
+    }
+
+    @Test
+    public void shouldRoundShardCountUpToPowerOfTwo() {
+        ShardedThrottler roundedThrottler = new ShardedThrottler(
+                throttlerRules, 3);
+        roundedThrottler.stop();
+
+        assertEquals("Shard count rounded", 4,
+                roundedThrottler.getShardCount());
+    }
+
+    @Test
+    public void shouldThrottleWhenUnknownOperationIsCalled() {
+        assertTrue("Unknown operation should be throttled",
+                throttler.throttle("unknown"));
+    }
+
+    @Test
+    public void shouldCreateSeparateBucketsBasedOnInput() {
+        for (int i = 0; i < 100; i++) {
+            depleteTokensForSingleOperation(rule.getOperationName() + "/" + i);
+        }
+
+        assertEquals("One bucket per operation", 100,
+                throttler.getBucketCount());
+    }
+
+    @Test
+    public void shouldRefillBucketsInEachShard() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            depleteTokensForSingleOperation(rule.getOperationName() + "/" + i);
+        }
+
+        Thread.sleep(500);
+
+        for (int i = 0; i < 100; i++) {
+            assertFalse("Bucket refilled",
+                    throttler.throttle(rule.getOperationName() + "/" + i));
+        }
+    }
+
+    private void depleteTokensForSingleOperation(String operationName) {
+        for (int i = 0; i < rule.getTokenBucketCapacity(); i++) {
+            assertFalse("Bucket should have more tokens",
+                    throttler.throttle(operationName));
+        }
+
+        assertTrue("Bucket should be empty", throttler.throttle(operationName));
+    }
+}
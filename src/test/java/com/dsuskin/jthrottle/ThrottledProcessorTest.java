@@ -0,0 +1,273 @@
+package com.dsuskin.jthrottle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A throttled processor should pass elements on no faster than its rule
+ * allows, and only ask upstream for what its strategy needs.
+ *
+ */
+public class ThrottledProcessorTest {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private Throttler throttler;
+
+    @Before
+    public void setUp() {
+        // 10 at once, and then one every 10ms
+        throttler = new Throttler(ThrottlerRuleUpdateTest.rules(new Rule(
+                "stream", 100, 1, TimeUnit.SECONDS, 10), new Rule("fixed", 0,
+                5)));
+    }
+
+    @After
+    public void tearDown() {
+        throttler = null;
+    }
+
+    @Test
+    public void shouldDelayToTheRate() throws InterruptedException {
+        ThrottledProcessor<Integer> processor = new ThrottledProcessor<Integer>(
+                throttler.handle("stream"), OverflowStrategy.DELAY);
+        RangePublisher source = new RangePublisher(30);
+        CollectingSubscriber sink = new CollectingSubscriber(Long.MAX_VALUE);
+
+        long start = System.nanoTime();
+        source.subscribe(processor);
+        processor.subscribe(sink);
+
+        assertTrue("Completed", sink.completed.await(TIMEOUT_SECONDS,
+                TimeUnit.SECONDS));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+                - start);
+
+        assertEquals("Everything", 30, sink.items.size());
+        assertEquals("In order", Integer.valueOf(29), sink.items.get(29));
+        assertTrue("20 after the burst take 200ms: " + elapsedMillis,
+                elapsedMillis >= 150);
+        assertTrue("Only asked for what there were tokens for: "
+                + source.maxOutstanding.get(),
+                source.maxOutstanding.get() <= 10);
+    }
+
+    @Test
+    public void shouldBufferAhead() throws InterruptedException {
+        ThrottledProcessor<Integer> processor = new ThrottledProcessor<Integer>(
+                throttler.handle("stream"), OverflowStrategy.BUFFER, 16, 4,
+                Runnable::run);
+        RangePublisher source = new RangePublisher(30);
+        CollectingSubscriber sink = new CollectingSubscriber(Long.MAX_VALUE);
+
+        source.subscribe(processor);
+        processor.subscribe(sink);
+
+        assertTrue("Asked for a buffer's worth straight away",
+                source.requested.get() >= 16);
+        assertTrue("Completed", sink.completed.await(TIMEOUT_SECONDS,
+                TimeUnit.SECONDS));
+        assertEquals("Everything", 30, sink.items.size());
+        assertEquals("In order", Integer.valueOf(29), sink.items.get(29));
+        assertEquals("Nothing dropped", 0, processor.getDroppedCount());
+    }
+
+    @Test
+    public void shouldDropWithoutTokens() throws InterruptedException {
+        ThrottledProcessor<Integer> processor = new ThrottledProcessor<Integer>(
+                throttler.handle("fixed"), OverflowStrategy.DROP);
+        CollectingSubscriber sink = new CollectingSubscriber(Long.MAX_VALUE);
+
+        new RangePublisher(20).subscribe(processor);
+        processor.subscribe(sink);
+
+        assertTrue("Completed", sink.completed.await(TIMEOUT_SECONDS,
+                TimeUnit.SECONDS));
+        assertEquals("A bucketful", 5, sink.items.size());
+        assertEquals("The rest", 15, processor.getDroppedCount());
+    }
+
+    @Test
+    public void shouldDropWithoutDemand() throws InterruptedException {
+        ThrottledProcessor<Integer> processor = new ThrottledProcessor<Integer>(
+                throttler.handle("stream"), OverflowStrategy.DROP);
+        CollectingSubscriber sink = new CollectingSubscriber(2);
+
+        new RangePublisher(20).subscribe(processor);
+        processor.subscribe(sink);
+
+        assertTrue("Completed", sink.completed.await(TIMEOUT_SECONDS,
+                TimeUnit.SECONDS));
+        assertEquals("Only what was asked for", 2, sink.items.size());
+        assertTrue("Tokens left", throttler.tryAcquire("stream", 8));
+    }
+
+    @Test
+    public void shouldGiveTokensBackWhenCancelled() throws InterruptedException {
+        ThrottledProcessor<Integer> processor = new ThrottledProcessor<Integer>(
+                throttler.handle("fixed"), OverflowStrategy.DELAY);
+        // never sends anything
+        RangePublisher source = new RangePublisher(0) {
+
+            @Override
+            void send(final long n) {
+            }
+        };
+        CollectingSubscriber sink = new CollectingSubscriber(5);
+
+        source.subscribe(processor);
+        processor.subscribe(sink);
+
+        assertEquals("Paid for and asked for", 5, source.requested.get());
+        assertTrue("Taken", throttler.throttle("fixed"));
+
+        sink.subscription.cancel();
+
+        assertTrue("Upstream cancelled", source.cancelled);
+        assertTrue("Given back", throttler.tryAcquire("fixed", 5));
+    }
+
+    @Test
+    public void shouldRejectSecondSubscribers() throws InterruptedException {
+        ThrottledProcessor<Integer> processor = new ThrottledProcessor<Integer>(
+                throttler.handle("stream"), OverflowStrategy.DELAY);
+        CollectingSubscriber second = new CollectingSubscriber(1);
+
+        processor.subscribe(new CollectingSubscriber(1));
+        processor.subscribe(second);
+
+        assertTrue("Failed", second.completed.await(TIMEOUT_SECONDS,
+                TimeUnit.SECONDS));
+        assertTrue("Already subscribed",
+                second.error instanceof IllegalStateException);
+    }
+
+    @Test
+    public void shouldRejectRequestsWhichArentPositive()
+            throws InterruptedException {
+        ThrottledProcessor<Integer> processor = new ThrottledProcessor<Integer>(
+                throttler.handle("stream"), OverflowStrategy.DELAY);
+        CollectingSubscriber sink = new CollectingSubscriber(0);
+
+        new RangePublisher(20).subscribe(processor);
+        processor.subscribe(sink);
+        sink.subscription.request(0);
+
+        assertTrue("Failed", sink.completed.await(TIMEOUT_SECONDS,
+                TimeUnit.SECONDS));
+        assertTrue("Bad request",
+                sink.error instanceof IllegalArgumentException);
+    }
+
+    /**
+     * Sends the numbers from 0 as they are asked for, on the thread asking.
+     */
+    static class RangePublisher implements Flow.Publisher<Integer> {
+
+        private final int count;
+        private Flow.Subscriber<? super Integer> subscriber;
+        private int next;
+        private long owed;
+        private boolean sending;
+
+        final AtomicLong requested = new AtomicLong();
+        final AtomicLong maxOutstanding = new AtomicLong();
+        volatile boolean cancelled;
+
+        RangePublisher(final int count) {
+            this.count = count;
+        }
+
+        @Override
+        public void subscribe(final Flow.Subscriber<? super Integer> subscriber) {
+            this.subscriber = subscriber;
+            subscriber.onSubscribe(new Flow.Subscription() {
+
+                @Override
+                public void request(long n) {
+                    requested.addAndGet(n);
+                    send(n);
+                }
+
+                @Override
+                public void cancel() {
+                    cancelled = true;
+                }
+            });
+        }
+
+        synchronized void send(final long n) {
+            owed += n;
+            maxOutstanding.set(Math.max(maxOutstanding.get(), owed));
+
+            if (sending) {
+                return;
+            }
+
+            sending = true;
+            try {
+                while (owed > 0 && next < count && !cancelled) {
+                    owed--;
+                    subscriber.onNext(next++);
+                }
+
+                if (next == count && !cancelled) {
+                    next++;
+                    subscriber.onComplete();
+                }
+            } finally {
+                sending = false;
+            }
+        }
+    }
+
+    static class CollectingSubscriber implements Flow.Subscriber<Integer> {
+
+        private final long initialRequest;
+
+        final List<Integer> items = new CopyOnWriteArrayList<Integer>();
+        final CountDownLatch completed = new CountDownLatch(1);
+        volatile Flow.Subscription subscription;
+        volatile Throwable error;
+
+        CollectingSubscriber(final long initialRequest) {
+            this.initialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(final Flow.Subscription subscription) {
+            this.subscription = subscription;
+
+            if (initialRequest > 0) {
+                subscription.request(initialRequest);
+            }
+        }
+
+        @Override
+        public void onNext(final Integer item) {
+            items.add(item);
+        }
+
+        @Override
+        public void onError(final Throwable throwable) {
+            error = throwable;
+            completed.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+    }
+}
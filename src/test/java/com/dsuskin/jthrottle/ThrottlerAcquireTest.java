@@ -0,0 +1,120 @@
+package com.dsuskin.jthrottle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Callers which would rather wait than be throttled should wait just as long
+ * as their bucket needs to earn their tokens.
+ *
+ */
+public class ThrottlerAcquireTest {
+
+    private Throttler throttler;
+
+    @Before
+    public void setUp() {
+        // a token every 100ms
+        throttler = new Throttler(ThrottlerRuleUpdateTest.rules(new Rule("a",
+                10, 1), new Rule("never", 0, 1)), RefillMode.LAZY);
+    }
+
+    @After
+    public void tearDown() {
+        throttler = null;
+    }
+
+    @Test
+    public void shouldNotWaitForAvailableTokens() throws InterruptedException {
+        long start = System.nanoTime();
+
+        assertTrue("Acquired", throttler.acquire("a/1"));
+        assertTrue("Quick", System.nanoTime() - start < 50000000L);
+    }
+
+    @Test
+    public void shouldWaitForNextToken() throws InterruptedException {
+        assertTrue("First", throttler.acquire("a/1"));
+
+        long start = System.nanoTime();
+        assertTrue("Second", throttler.acquire("a/1"));
+        long waited = System.nanoTime() - start;
+
+        assertTrue("Waited: " + waited, waited > 0 && waited <= 250000000L);
+        assertTrue("Throttled while others wait", throttler.throttle("a/1"));
+    }
+
+    @Test
+    public void shouldNotWaitForeverOnBucketsWhichNeverRefill()
+            throws InterruptedException {
+        assertTrue("First", throttler.acquire("never/1"));
+        assertFalse("Never refills", throttler.acquire("never/1"));
+        assertFalse("No rule", throttler.acquire("unknown"));
+    }
+
+    @Test
+    public void shouldGiveUpOnLongWaits() throws InterruptedException {
+        assertTrue("First", throttler.acquire("a/1"));
+        assertFalse("Too long",
+                throttler.tryAcquire("a/1", 10, 10, TimeUnit.MILLISECONDS));
+        assertTrue("Nothing reserved",
+                throttler.tryAcquire("a/1", 1, 1, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = InterruptedException.class)
+    public void shouldStopWaitingWhenInterrupted() throws InterruptedException {
+        assertTrue("First", throttler.acquire("a/1"));
+
+        Thread.currentThread().interrupt();
+        throttler.acquire("a/1");
+    }
+
+    @Test
+    public void shouldServeWaitersInOrder() throws Exception {
+        assertTrue("First", throttler.acquire("a/1"));
+
+        final ConcurrentLinkedQueue<Integer> order = new ConcurrentLinkedQueue<Integer>();
+        List<CompletableFuture<Void>> done = new ArrayList<CompletableFuture<Void>>();
+
+        for (int i = 0; i < 3; i++) {
+            final int waiter = i;
+            done.add(throttler.acquireAsync("a/1").thenAccept(
+                    new Consumer<Boolean>() {
+
+                        @Override
+                        public void accept(Boolean acquired) {
+                            assertTrue("Acquired", acquired);
+                            order.add(waiter);
+                        }
+                    }));
+        }
+
+        long start = System.nanoTime();
+        for (CompletableFuture<Void> future : done) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        long waited = System.nanoTime() - start;
+
+        assertEquals("In order", "[0, 1, 2]", order.toString());
+        assertTrue("Waited for three refills: " + waited,
+                waited >= 150000000L);
+    }
+
+    @Test
+    public void shouldCompleteAsyncAcquiresStraightAway() throws Exception {
+        assertTrue("Available", throttler.acquireAsync("a/1").isDone());
+        assertFalse("No rule", throttler.acquireAsync("unknown").get());
+    }
+}
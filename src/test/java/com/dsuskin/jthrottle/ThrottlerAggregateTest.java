@@ -0,0 +1,169 @@
+package com.dsuskin.jthrottle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Aggregate rules should limit every operation they cover together, on top
+ * of each operation's own limit.
+ *
+ */
+public class ThrottlerAggregateTest {
+
+    private Throttler throttler;
+
+    @Before
+    public void setUp() {
+        // 2 calls per user, 3 between them, and no refilling
+        throttler = new Throttler(ThrottlerRuleUpdateTest.rules(
+                new Rule("api", 0, 3).asAggregate(), new Rule("api/", 0, 2)));
+    }
+
+    @After
+    public void tearDown() {
+        throttler = null;
+    }
+
+    @Test
+    public void shouldLimitEveryOperationTogether() {
+        assertFalse("First user", throttler.throttle("api/a"));
+        assertFalse("First user again", throttler.throttle("api/a"));
+        assertTrue("First user's own limit", throttler.throttle("api/a"));
+
+        assertFalse("Second user", throttler.throttle("api/b"));
+        assertTrue("Aggregate limit", throttler.throttle("api/b"));
+        assertTrue("Other users too", throttler.throttle("api/c"));
+    }
+
+    @Test
+    public void shouldShareTheBucketOfTheLongestRule() {
+        throttler = new Throttler(ThrottlerRuleUpdateTest.rules(new Rule(
+                "api", 0, 2).asAggregate()));
+
+        assertFalse("First", throttler.throttle("api/a"));
+        assertFalse("Second", throttler.throttle("api/b"));
+        assertTrue("Shared", throttler.throttle("api/c"));
+        assertTrue("Including the rule's own name", throttler.throttle("api"));
+    }
+
+    @Test
+    public void shouldGiveBackTokensWhenAnAggregateRunsShort() {
+        throttler = new Throttler(ThrottlerRuleUpdateTest.rules(new Rule(
+                "a", 0, 1).asAggregate(), new Rule("a/b", 0, 5).asAggregate(),
+                new Rule("a/b/", 0, 5)));
+
+        assertFalse("Within every limit", throttler.throttle("a/b/1"));
+        assertTrue("Outer aggregate empty", throttler.throttle("a/b/1"));
+        assertTrue("Still empty", throttler.throttle("a/b/1"));
+
+        // without the outer aggregate, only the tokens actually used are gone
+        throttler.updateRules(ThrottlerRuleUpdateTest.rules(new Rule("a/b",
+                0, 5).asAggregate(), new Rule("a/b/", 0, 5)));
+
+        for (int i = 0; i < 4; i++) {
+            assertFalse("Given back " + i, throttler.throttle("a/b/1"));
+        }
+
+        assertTrue("Used up", throttler.throttle("a/b/1"));
+    }
+
+    @Test
+    public void shouldGiveBackReservationsWhenAnAggregateWouldWait()
+            throws InterruptedException {
+        assertTrue("Reserved", throttler.tryAcquire("api/a", 2, 0,
+                TimeUnit.MILLISECONDS));
+        assertFalse("Aggregate never refills", throttler.tryAcquire("api/b",
+                2, 10, TimeUnit.MILLISECONDS));
+
+        assertFalse("Second user's tokens given back",
+                throttler.throttle("api/b"));
+    }
+
+    @Test
+    public void shouldLimitKeyedCalls() {
+        RuleHandle handle = throttler.ruleHandle("api/");
+
+        assertTrue("Three keys", throttler.tryAcquire(handle, 1, 2));
+        assertFalse("Still within the key's limit, but not the aggregate's",
+                throttler.tryAcquire(handle, 2, 2));
+        assertFalse("Within both", throttler.throttle(handle, 2));
+        assertTrue("Aggregate empty", throttler.throttle(handle, 3));
+    }
+
+    @Test
+    public void shouldLimitAcrossShards() {
+        ShardedThrottler sharded = new ShardedThrottler(
+                ThrottlerRuleUpdateTest.rules(new Rule("api", 0, 4)
+                        .asAggregate(), new Rule("api/", 0, 1)), 4);
+
+        try {
+            int allowed = 0;
+
+            for (int i = 0; i < 16; i++) {
+                if (!sharded.throttle("api/" + i)) {
+                    allowed++;
+                }
+            }
+
+            assertEquals("Shared between shards", 4, allowed);
+        } finally {
+            sharded.stop();
+        }
+    }
+
+    @Test
+    public void shouldScheduleReplacedAggregates() throws Exception {
+        RefillScheduler scheduler = new RefillScheduler();
+        scheduler.start();
+
+        try {
+            throttler = new Throttler(ThrottlerRuleUpdateTest.rules(new Rule(
+                    "api", 10, 10).asAggregate()), scheduler);
+
+            for (int i = 0; i < 10; i++) {
+                assertFalse("Draining", throttler.throttle("api/" + i));
+            }
+            assertTrue("Drained", throttler.throttle("api/x"));
+
+            throttler.updateRules(ThrottlerRuleUpdateTest.rules(new Rule(
+                    "api", 20, 20).asAggregate()));
+
+            // the retired bucket is dropped at its next refill, and the
+            // empty replacement takes a second to fill
+            Thread.sleep(300);
+
+            assertEquals("Replacement scheduled", 1,
+                    scheduler.getScheduledBucketCount());
+            assertFalse("Refilled", throttler.throttle("api/x"));
+        } finally {
+            scheduler.stop();
+        }
+    }
+
+    @Test
+    public void shouldParseAggregateRules() throws Exception {
+        Rule parsed = RuleFactory.parseRules(
+                new StringReader("[{\"operation\": \"api\", \"refillRate\": 5, "
+                        + "\"capacity\": 10, \"aggregate\": true}]"))
+                .get("api");
+        String json = new ObjectMapper().writeValueAsString(new Rule[] {
+                parsed, new Rule("api/", 5, 10) });
+
+        assertTrue("Aggregate", parsed.isAggregate());
+        assertTrue("Written", RuleFactory.parseRules(new StringReader(json))
+                .get("api").isAggregate());
+        assertFalse("Not by default",
+                RuleFactory.parseRules(new StringReader(json)).get("api/")
+                        .isAggregate());
+    }
+}
@@ -0,0 +1,106 @@
+package com.dsuskin.jthrottle;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Taking several tokens at once, for one operation or for many.
+ * 
+ */
+public class ThrottlerBatchTest {
+
+    private Rule rule;
+    private ConcurrentNavigableMap<String, Rule> throttlerRules;
+    private Throttler throttler;
+
+    @Before
+    public void setUp() {
+        rule = new Rule("test", 100, 3);
+        throttlerRules = new ConcurrentSkipListMap<String, Rule>();
+        throttlerRules.put(rule.getOperationName(), rule);
+        throttler = new Throttler(throttlerRules);
+    }
+
+    @After
+    public void tearDown() {
+        rule = null;
+        throttlerRules = null;
+        throttler = null;
+    }
+
+    @Test
+    public void shouldAcquireSeveralPermitsAtOnce() {
+        assertTrue("Permits acquired", throttler.tryAcquire("test/foo", 2));
+        assertTrue("Last permit acquired", throttler.tryAcquire("test/foo", 1));
+        assertTrue("Bucket empty", throttler.throttle("test/foo"));
+    }
+
+    @Test
+    public void shouldTakeNothingWhenNotEnoughPermits() {
+        assertFalse("Too many permits", throttler.tryAcquire("test/foo", 4));
+        assertTrue("Bucket still full", throttler.tryAcquire("test/foo", 3));
+    }
+
+    @Test
+    public void shouldNotAcquireForUnknownOperation() {
+        assertFalse("Unknown operation", throttler.tryAcquire("unknown", 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectNonPositivePermits() {
+        throttler.tryAcquire("test/foo", 0);
+    }
+
+    @Test
+    public void shouldThrottleBatch() {
+        boolean[] shouldThrottle = throttler.throttleAll(new String[] {
+                "test/foo", "unknown", "test/bar" });
+
+        assertArrayEquals("Only unknown operation throttled", new boolean[] {
+                false, true, false }, shouldThrottle);
+    }
+
+    /**
+     * The bucket only has room for the first three calls to the repeated
+     * operation.
+     */
+    @Test
+    public void shouldHandleRepeatedOperationsInBatch() {
+        boolean[] shouldThrottle = throttler.throttleAll(new String[] {
+                "test/foo", "test/bar", "test/foo", "test/foo", "test/foo",
+                "test/foo" });
+
+        assertArrayEquals("Later repeats throttled", new boolean[] { false,
+                false, false, false, true, true }, shouldThrottle);
+        assertTrue("Bucket empty", throttler.throttle("test/foo"));
+        assertFalse("Other bucket untouched", throttler.tryAcquire("test/bar",
+                3));
+    }
+
+    @Test
+    public void shouldThrottleBatchAcrossShards() {
+        ShardedThrottler shardedThrottler = new ShardedThrottler(
+                throttlerRules, 4);
+        try {
+            String[] operationNames = new String[40];
+            boolean[] expected = new boolean[40];
+            for (int i = 0; i < operationNames.length; i++) {
+                operationNames[i] = "test/" + (i % 10);
+                expected[i] = i >= 30;
+            }
+
+            assertArrayEquals("Fourth call to each operation throttled",
+                    expected, shardedThrottler.throttleAll(operationNames));
+        } finally {
+            shardedThrottler.stop();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.dsuskin.jthrottle;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Calls should take as many tokens as their rule says they cost, all at once.
+ *
+ */
+public class ThrottlerCostTest {
+
+    private Throttler throttler;
+
+    @Before
+    public void setUp() {
+        // exports cost 4 of the 10 tokens, and never refill
+        throttler = new Throttler(ThrottlerRuleUpdateTest.rules(new Rule(
+                "api/", 0, 10).withSuffixCost("/export", 4)));
+    }
+
+    @After
+    public void tearDown() {
+        throttler = null;
+    }
+
+    @Test
+    public void shouldTakeTheCostOfEachCall() {
+        assertFalse("First export", throttler.throttle("api/a/export"));
+        assertFalse("Second export", throttler.throttle("api/a/export"));
+        assertTrue("Only 2 tokens left", throttler.throttle("api/a/export"));
+        assertTrue("Which a caller can still ask for",
+                throttler.tryAcquire("api/a/export", 2));
+
+        for (int i = 0; i < 10; i++) {
+            assertFalse("Reads cost 1: " + i, throttler.throttle("api/a/read"));
+        }
+
+        assertTrue("Reads used up", throttler.throttle("api/a/read"));
+    }
+
+    @Test
+    public void shouldPreferTheLongestSuffix() {
+        Rule rule = new Rule("api/", 0, 10).withCost(2)
+                .withSuffixCost("export", 4).withSuffixCost("/bulk/export", 8);
+
+        assertEquals("Rule's cost", 2, rule.getCost("api/a/read"));
+        assertEquals("Suffix", 4, rule.getCost("api/a/export"));
+        assertEquals("Longest suffix", 8, rule.getCost("api/a/bulk/export"));
+    }
+
+    @Test
+    public void shouldOnlyLetThroughWholeCallsInABatch() {
+        throttler = new Throttler(ThrottlerRuleUpdateTest.rules(new Rule(
+                "api/", 0, 10).withCost(3)));
+
+        assertArrayEquals("Three calls fit", new boolean[] { false, false,
+                false, true }, throttler.throttleAll(new String[] { "api/a",
+                "api/a", "api/a", "api/a" }));
+        assertTrue("The last token is still there",
+                throttler.tryAcquire("api/a", 1));
+    }
+
+    @Test
+    public void shouldTakeTheCostFromAggregatesToo() {
+        throttler = new Throttler(ThrottlerRuleUpdateTest.rules(
+                new Rule("api", 0, 6).asAggregate(),
+                new Rule("api/", 0, 10).withCost(3)));
+
+        assertFalse("First user", throttler.throttle("api/a"));
+        assertFalse("Second user", throttler.throttle("api/b"));
+        assertTrue("Aggregate used up", throttler.throttle("api/c"));
+    }
+
+    @Test
+    public void shouldTakeTheCostOfKeyedCalls() {
+        throttler = new Throttler(ThrottlerRuleUpdateTest.rules(new Rule(
+                "api/", 0, 10).withCost(5)));
+        RuleHandle handle = throttler.ruleHandle("api/");
+
+        assertFalse("First", throttler.throttle(handle, 1));
+        assertFalse("Second", throttler.throttle(handle, 1));
+        assertTrue("Used up", throttler.throttle(handle, 1));
+    }
+
+    @Test
+    public void shouldReplaceBucketsWhenTheCostChanges() {
+        assertFalse("Costs 4", throttler.throttle("api/a/export"));
+
+        throttler.updateRules(ThrottlerRuleUpdateTest.rules(new Rule("api/",
+                0, 10).withSuffixCost("/export", 7)));
+
+        assertTrue("Costs 7 now", throttler.throttle("api/a/export"));
+    }
+
+    @Test
+    public void shouldTakeTheCostFromCompactBuckets() {
+        CompactBucketStore store = new CompactBucketStore(
+                ThrottlerRuleUpdateTest.rules(new Rule("api/", 0, 10)
+                        .withCost(5)), 16);
+        int rule = store.ruleIndex("api/");
+
+        assertFalse("First", store.throttle(rule, 1));
+        assertFalse("Second", store.throttle(rule, 1));
+        assertTrue("Used up", store.throttle(rule, 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectCostsWhichArentPositive() {
+        new Rule("api/", 0, 10).withCost(0);
+    }
+
+    @Test
+    public void shouldParseCosts() throws Exception {
+        Rule parsed = RuleFactory.parseRules(
+                new StringReader("[{\"operation\": \"api/\", \"refillRate\": 5, "
+                        + "\"capacity\": 10, \"cost\": 2, "
+                        + "\"suffixCosts\": {\"/export\": 8}}]")).get("api/");
+        String json = new ObjectMapper().writeValueAsString(new Rule[] {
+                parsed, new Rule("other", 5, 10) });
+
+        assertEquals("Cost", 2, parsed.getCost("api/a/read"));
+        assertEquals("Suffix cost", 8, parsed.getCost("api/a/export"));
+        assertEquals("Written", 8, RuleFactory.parseRules(new StringReader(json))
+                .get("api/").getCost("api/a/export"));
+        assertEquals("1 by default", 1, RuleFactory
+                .parseRules(new StringReader(json)).get("other").getCost());
+        assertFalse("Not written by default", json.contains("\"cost\":1"));
+    }
+}
@@ -0,0 +1,170 @@
+package com.dsuskin.jthrottle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Throttlers should let go of buckets according to their eviction policy.
+ * 
+ */
+public class ThrottlerEvictionTest {
+
+    private static final long IDLE_TIMEOUT_MILLIS = 100;
+    private static final int MAX_BUCKETS = 10;
+
+    private Rule rule;
+    private Rule neverRefillingRule;
+    private ConcurrentNavigableMap<String, Rule> throttlerRules;
+
+    @Before
+    public void setUp() {
+        rule = new Rule("test", 100, 10);
+        neverRefillingRule = new Rule("empty", 0, 1);
+        throttlerRules = new ConcurrentSkipListMap<String, Rule>();
+        throttlerRules.put(rule.getOperationName(), rule);
+        throttlerRules.put(neverRefillingRule.getOperationName(),
+                neverRefillingRule);
+    }
+
+    @After
+    public void tearDown() {
+        rule = null;
+        neverRefillingRule = null;
+        throttlerRules = null;
+    }
+
+    @Test
+    public void shouldEvictFullIdleBuckets() throws Exception {
+        Throttler throttler = new Throttler(throttlerRules, RefillMode.LAZY,
+                new EvictionPolicy(IDLE_TIMEOUT_MILLIS, MAX_BUCKETS));
+        throttler.throttle("test/foo");
+
+        throttler.tick();
+        Thread.sleep(IDLE_TIMEOUT_MILLIS * 2);
+        throttler.tick();
+
+        assertEquals("Idle bucket evicted", 0, throttler.getBucketCount());
+    }
+
+    @Test
+    public void shouldNotEvictRecentlyUsedBuckets() throws Exception {
+        Throttler throttler = new Throttler(throttlerRules, RefillMode.LAZY,
+                new EvictionPolicy(IDLE_TIMEOUT_MILLIS, MAX_BUCKETS));
+        throttler.throttle("test/foo");
+
+        throttler.tick();
+        Thread.sleep(IDLE_TIMEOUT_MILLIS * 2);
+        throttler.throttle("test/foo");
+        throttler.tick();
+
+        assertEquals("Used bucket kept", 1, throttler.getBucketCount());
+    }
+
+    /**
+     * A drained bucket would come back full if it were evicted, which would
+     * hand out tokens the rule doesn't allow.
+     */
+    @Test
+    public void shouldNotEvictIdleBucketsWhichAreNotFull() throws Exception {
+        Throttler throttler = new Throttler(throttlerRules, RefillMode.LAZY,
+                new EvictionPolicy(IDLE_TIMEOUT_MILLIS, MAX_BUCKETS));
+        assertFalse("Bucket has a token", throttler.throttle("empty/foo"));
+
+        throttler.tick();
+        Thread.sleep(IDLE_TIMEOUT_MILLIS * 2);
+        throttler.tick();
+
+        assertEquals("Drained bucket kept", 1, throttler.getBucketCount());
+        assertTrue("Bucket still empty", throttler.throttle("empty/foo"));
+    }
+
+    @Test
+    public void shouldNotHoldMoreThanMaxBuckets() {
+        Throttler throttler = new Throttler(throttlerRules, RefillMode.TICK,
+                new EvictionPolicy(0, MAX_BUCKETS));
+
+        for (int i = 0; i < MAX_BUCKETS * 10; i++) {
+            assertFalse("New bucket should not be throttled",
+                    throttler.throttle("test/" + i));
+        }
+
+        assertEquals("Bucket count capped", MAX_BUCKETS,
+                throttler.getBucketCount());
+    }
+
+    /**
+     * A drained bucket would come back full if it were evicted to make room,
+     * so a throttled key could get round its limit by waiting for new keys to
+     * push it out.
+     */
+    @Test
+    public void shouldNotEvictDrainedBucketsToMakeRoom() {
+        Throttler throttler = new Throttler(throttlerRules, RefillMode.TICK,
+                new EvictionPolicy(0, MAX_BUCKETS));
+        assertFalse("Bucket has a token", throttler.throttle("empty/foo"));
+
+        for (int i = 0; i < MAX_BUCKETS * 100; i++) {
+            // full buckets, which are fine to evict
+            throttler.handle("test/" + i);
+
+            if (i % MAX_BUCKETS == 0) {
+                assertTrue("Bucket still empty",
+                        throttler.throttle("empty/foo"));
+            }
+        }
+
+        assertEquals("Bucket count capped", MAX_BUCKETS,
+                throttler.getBucketCount());
+    }
+
+    /**
+     * An insert only moves the clock hand on a few steps, however many
+     * recently used buckets it has to pass, and ticks carry on from there.
+     */
+    @Test
+    public void shouldSpreadSweepsOverInsertsAndTicks() {
+        int maxBuckets = MAX_BUCKETS * 100;
+        Throttler throttler = new Throttler(throttlerRules, RefillMode.TICK,
+                new EvictionPolicy(0, maxBuckets));
+
+        for (int i = 0; i <= maxBuckets; i++) {
+            throttler.throttle("test/" + i);
+        }
+
+        assertEquals("Every bucket recently used", maxBuckets + 1,
+                throttler.getBucketCount());
+
+        throttler.tick();
+
+        assertEquals("Bucket count capped", maxBuckets,
+                throttler.getBucketCount());
+    }
+
+    /**
+     * Recently used buckets get a second chance, so a hot bucket survives a
+     * stream of one-off operations.
+     */
+    @Test
+    public void shouldPreferEvictingBucketsWhichAreNotInUse() {
+        Throttler throttler = new Throttler(throttlerRules, RefillMode.TICK,
+                new EvictionPolicy(0, MAX_BUCKETS));
+        assertFalse("Hot bucket has tokens", throttler.throttle("test/hot"));
+
+        for (int i = 0; i < MAX_BUCKETS * 10; i++) {
+            throttler.throttle("test/" + i);
+            throttler.throttle("test/hot");
+        }
+
+        // the hot bucket was drained well past its capacity, and would be
+        // full again had it been evicted
+        assertTrue("Hot bucket kept its state", throttler.throttle("test/hot"));
+    }
+}
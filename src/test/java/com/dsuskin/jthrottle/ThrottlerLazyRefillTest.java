@@ -0,0 +1,117 @@
+package com.dsuskin.jthrottle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A lazily refilled throttler should refill its buckets without ever being
+ * ticked.
+ * 
+ */
+public class ThrottlerLazyRefillTest {
+
+    private static final String OPERATION = "test/foo";
+
+    private Rule rule;
+    private ConcurrentNavigableMap<String, Rule> throttlerRules;
+    private Throttler throttler;
+
+    @Before
+    public void setUp() {
+        rule = new Rule("test", 10, 2);
+        throttlerRules = new ConcurrentSkipListMap<String, Rule>();
+        throttlerRules.put(rule.getOperationName(), rule);
+        throttler = new Throttler(throttlerRules, RefillMode.LAZY);
+    }
+
+    @After
+    public void tearDown() {
+        rule = null;
+        throttlerRules = null;
+        throttler = null;
+    }
+
+    @Test
+    public void shouldRefillWithoutTicking() throws Exception {
+        depleteTokens();
+
+        Thread.sleep(500);
+
+        assertFalse("Tokens added on throttle", throttler.throttle(OPERATION));
+    }
+
+    @Test
+    public void shouldStopRefillingAtCapacity() throws Exception {
+        depleteTokens();
+
+        Thread.sleep(500);
+
+        depleteTokens();
+    }
+
+    @Test
+    public void shouldIgnoreTicks() throws Exception {
+        depleteTokens();
+
+        throttler.tick();
+
+        assertTrue("Bucket still empty", throttler.throttle(OPERATION));
+    }
+
+    /**
+     * A rate which doesn't divide evenly by the tick interval earns a fraction
+     * of a token each tick, which should be kept for the next refill rather
+     * than thrown away.
+     */
+    @Test
+    public void shouldKeepFractionsOfTokensBetweenRefills() throws Exception {
+        assertEquals("15 a second", 30, admittedOverTwoSeconds(15), 2);
+        assertEquals("7 a second", 14, admittedOverTwoSeconds(7), 2);
+    }
+
+    /**
+     * 
+     * @param refillTokensPerSecond
+     * @return the number of calls let through by a drained bucket called
+     *         every millisecond for two seconds
+     */
+    private int admittedOverTwoSeconds(final int refillTokensPerSecond)
+            throws InterruptedException {
+        throttler = new Throttler(ThrottlerRuleUpdateTest.rules(new Rule(
+                "fraction", refillTokensPerSecond, refillTokensPerSecond)),
+                RefillMode.LAZY);
+
+        while (!throttler.throttle("fraction")) {
+        }
+
+        int admitted = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+
+        while (System.nanoTime() < deadline) {
+            if (!throttler.throttle("fraction")) {
+                admitted++;
+            }
+            Thread.sleep(1);
+        }
+
+        return admitted;
+    }
+
+    private void depleteTokens() {
+        for (int i = 0; i < rule.getTokenBucketCapacity(); i++) {
+            assertFalse("Bucket should have more tokens",
+                    throttler.throttle(OPERATION));
+        }
+
+        assertTrue("Bucket should be empty", throttler.throttle(OPERATION));
+    }
+}
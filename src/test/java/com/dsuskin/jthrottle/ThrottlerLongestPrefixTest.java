@@ -11,9 +11,8 @@ import org.junit.Before;
 import org.junit.Test;
 
 /**
- * This test demonstrates some of the delimiters that can be used
- * to get longest-prefix matching behavior. It also shows the restriction
- * imposed by the current implementation.
+ * This test demonstrates that operations inherit from the rule with the
+ * longest matching prefix, whether or not a delimiter is used.
  *
  * @author dsuskin
  *
@@ -58,13 +57,26 @@ public class ThrottlerLongestPrefixTest {
     }
 
     /**
-     * This is imposed because we don't use a real Trie for rule matching.
-     * Fortunately, we can get Trie-like behavior by using delimiters.
+     * "ab" sorts between "a" and "ac", which used to hide "a" from "ac".
      */
     @Test
-    public void shouldNotMatchWhenThereIsPrefixMatchIfThereIsNoDelimiter() {
+    public void shouldSelectLongestPrefixWhenThereIsNoDelimiter() {
         String operationName = "ac";
 
+        depleteTokensForSingleOperation(operationName, ruleA);
+    }
+
+    @Test
+    public void shouldSelectLongerRuleWhenBothMatch() {
+        String operationName = "abc";
+
+        depleteTokensForSingleOperation(operationName, ruleB);
+    }
+
+    @Test
+    public void shouldNotMatchWhenNoRuleIsAPrefix() {
+        String operationName = "b";
+
         assertTrue("Expected the operation to not match a bucket", throttler.throttle(operationName));
     }
 
@@ -0,0 +1,155 @@
+package com.dsuskin.jthrottle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Throttlers should count the calls they see against the rule which decided
+ * them.
+ *
+ */
+public class ThrottlerMetricsTest {
+
+    private ConcurrentNavigableMap<String, Rule> throttlerRules;
+    private Throttler throttler;
+
+    @Before
+    public void setUp() {
+        throttlerRules = new ConcurrentSkipListMap<String, Rule>();
+        throttlerRules.put("a", new Rule("a", 0, 2));
+        throttlerRules.put("b", new Rule("b", 0, 5));
+        throttler = new Throttler(throttlerRules);
+    }
+
+    @After
+    public void tearDown() {
+        throttlerRules = null;
+        throttler = null;
+    }
+
+    @Test
+    public void shouldCountCallsPerRule() {
+        for (int i = 0; i < 3; i++) {
+            throttler.throttle("a/1");
+        }
+        throttler.throttle("b/1");
+        throttler.throttle("b/2");
+        throttler.throttle("c");
+
+        List<RuleStats> rules = throttler.getMetrics().getRules();
+
+        assertEquals("Rule count", 2, rules.size());
+        assertStats(rules.get(0), "a", 2, 1, 1);
+        assertStats(rules.get(1), "b", 2, 0, 2);
+
+        ThrottlerMetrics metrics = throttler.getMetrics();
+        assertEquals("Allowed", 4, metrics.getAllowedCount());
+        assertEquals("Throttled, including unmatched", 2,
+                metrics.getThrottledCount());
+        assertEquals("Unmatched", 1, metrics.getUnmatchedCount());
+        assertEquals("Buckets", 3, metrics.getBucketCount());
+    }
+
+    @Test
+    public void shouldCountEachCallInBatches() {
+        throttler.throttleAll(new String[] { "a/1", "a/1", "a/1", "b/1" });
+        throttler.tryAcquire("b/1", 5);
+        throttler.tryAcquire("b/1", 4);
+
+        List<RuleStats> rules = throttler.getMetrics().getRules();
+
+        assertStats(rules.get(0), "a", 2, 1, 1);
+        assertStats(rules.get(1), "b", 2, 1, 1);
+    }
+
+    @Test
+    public void shouldCountKeyedCalls() {
+        RuleHandle handle = throttler.ruleHandle("a/");
+
+        throttler.throttle(handle, 1);
+        throttler.throttle(handle, 2);
+        throttler.throttle(throttler.ruleHandle("c/"), 1);
+
+        assertStats(throttler.getMetrics().getRules().get(0), "a", 2, 0, 2);
+        assertEquals("Unmatched", 1, throttler.getMetrics().getUnmatchedCount());
+    }
+
+    @Test
+    public void shouldStopCountingEvictedBuckets() {
+        throttler = new Throttler(throttlerRules, RefillMode.LAZY,
+                new EvictionPolicy(0, 2));
+
+        for (int i = 0; i < 10; i++) {
+            throttler.throttle("b/" + i);
+        }
+
+        assertEquals("Buckets", throttler.getBucketCount(), throttler
+                .getMetrics().getBucketCount());
+    }
+
+    @Test
+    public void shouldTimeTicks() {
+        throttler.throttle("a/1");
+        throttler.tick();
+        throttler.tick();
+
+        ThrottlerMetrics metrics = throttler.getMetrics();
+
+        assertEquals("Ticks", 2, metrics.getTickCount());
+        assertTrue("Max at least mean",
+                metrics.getTickMaxNanos() >= metrics.getTickMeanNanos());
+        assertTrue("Percentile at most max",
+                metrics.getTickPercentileNanos(50) <= metrics.getTickMaxNanos());
+    }
+
+    @Test
+    public void shouldShareMetricsBetweenShards() {
+        ShardedThrottler sharded = new ShardedThrottler(throttlerRules, 4);
+
+        try {
+            for (int i = 0; i < 10; i++) {
+                sharded.throttle("b/" + i);
+            }
+
+            assertStats(sharded.getMetrics().getRules().get(1), "b", 10, 0, 10);
+        } finally {
+            sharded.stop();
+        }
+    }
+
+    @Test
+    public void shouldRegisterMBean() throws Exception {
+        throttler.throttle("a/1");
+
+        ObjectName name = throttler.getMetrics().registerMBean("test");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        try {
+            assertEquals("Allowed", 1L,
+                    server.getAttribute(name, "AllowedCount"));
+            assertEquals("Buckets", 1L, server.getAttribute(name, "BucketCount"));
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    private static void assertStats(RuleStats stats, String operationName,
+            long allowed, long throttled, long buckets) {
+        assertEquals("Operation", operationName, stats.getOperationName());
+        assertEquals("Allowed", allowed, stats.getAllowedCount());
+        assertEquals("Throttled", throttled, stats.getThrottledCount());
+        assertEquals("Buckets", buckets, stats.getBucketCount());
+    }
+}
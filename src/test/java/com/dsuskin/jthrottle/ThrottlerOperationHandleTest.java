@@ -0,0 +1,104 @@
+package com.dsuskin.jthrottle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Calls through an operation handle should throttle exactly as calls by name
+ * do, even after the handle's bucket is evicted or its rule changes.
+ *
+ */
+public class ThrottlerOperationHandleTest {
+
+    private static final long IDLE_TIMEOUT_MILLIS = 50;
+
+    private Throttler throttler;
+
+    @Before
+    public void setUp() {
+        throttler = new Throttler(ThrottlerRuleUpdateTest.rules(new Rule(
+                "api/", 0, 2)));
+    }
+
+    @After
+    public void tearDown() {
+        throttler = null;
+    }
+
+    @Test
+    public void shouldShareTheBucketWithCallsByName() {
+        OperationHandle handle = throttler.handle("api/a");
+
+        assertFalse("Through the handle", throttler.throttle(handle));
+        assertFalse("By name", throttler.throttle("api/a"));
+        assertTrue("Used up", throttler.throttle(handle));
+        assertEquals("One bucket", 1, throttler.getBucketCount());
+    }
+
+    @Test
+    public void shouldFollowRuleUpdates() {
+        OperationHandle handle = throttler.handle("api/a");
+        assertFalse("Half used", throttler.throttle(handle));
+
+        throttler.updateRules(ThrottlerRuleUpdateTest.rules(new Rule("api/",
+                0, 10)));
+
+        assertTrue("Half of the bigger bucket",
+                throttler.tryAcquire(handle, 5));
+        assertTrue("Used up", throttler.throttle(handle));
+        assertTrue("By name too", throttler.throttle("api/a"));
+    }
+
+    @Test
+    public void shouldComeBackAfterEviction() throws InterruptedException {
+        throttler = new Throttler(ThrottlerRuleUpdateTest.rules(new Rule(
+                "api/", 100, 2)), RefillMode.LAZY, new EvictionPolicy(
+                IDLE_TIMEOUT_MILLIS, 10));
+        OperationHandle handle = throttler.handle("api/a");
+
+        throttler.tick();
+        Thread.sleep(IDLE_TIMEOUT_MILLIS * 2);
+        throttler.tick();
+        assertEquals("Evicted", 0, throttler.getBucketCount());
+
+        assertFalse("New bucket", throttler.throttle(handle));
+        assertEquals("Back in the throttler", 1, throttler.getBucketCount());
+    }
+
+    @Test
+    public void shouldPickUpRulesAddedLater() {
+        OperationHandle handle = throttler.handle("other");
+        assertTrue("Unmatched", throttler.throttle(handle));
+
+        throttler.updateRules(ThrottlerRuleUpdateTest.rules(new Rule("other",
+                0, 1)));
+
+        assertFalse("Matched", throttler.throttle(handle));
+        assertTrue("Used up", throttler.throttle(handle));
+    }
+
+    @Test
+    public void shouldShardHandles() {
+        ShardedThrottler sharded = new ShardedThrottler(
+                ThrottlerRuleUpdateTest.rules(new Rule("api/", 0, 1)), 4);
+        try {
+            OperationHandle handle = sharded.handle("api/a");
+
+            assertFalse("First", sharded.throttle(handle));
+            assertTrue("Used up", sharded.throttle("api/a"));
+        } finally {
+            sharded.stop();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectOtherThrottlersHandles() {
+        new Throttler(ThrottlerRuleUpdateTest.rules(new Rule("api/", 0, 2)))
+                .throttle(throttler.handle("api/a"));
+    }
+}
@@ -0,0 +1,149 @@
+package com.dsuskin.jthrottle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Keyed calls through a rule handle should get a bucket per key, just like
+ * calls made with operation name strings.
+ * 
+ */
+public class ThrottlerRuleHandleTest {
+
+    private Rule rule;
+    private ConcurrentNavigableMap<String, Rule> throttlerRules;
+    private Throttler throttler;
+    private RuleHandle handle;
+
+    @Before
+    public void setUp() {
+        rule = new Rule("test", 100, 10);
+        throttlerRules = new ConcurrentSkipListMap<String, Rule>();
+        throttlerRules.put(rule.getOperationName(), rule);
+        throttler = new Throttler(throttlerRules, RefillMode.LAZY);
+        handle = throttler.ruleHandle("test/");
+    }
+
+    @After
+    public void tearDown() {
+        rule = null;
+        throttlerRules = null;
+        throttler = null;
+        handle = null;
+    }
+
+    @Test
+    public void shouldReuseHandles() {
+        assertSame("Same handle", handle, throttler.ruleHandle("test/"));
+    }
+
+    @Test
+    public void shouldThrottleUnknownOperation() {
+        RuleHandle unknown = throttler.ruleHandle("unknown/");
+
+        assertTrue("Unknown operation throttled", throttler.throttle(unknown, 1));
+    }
+
+    @Test
+    public void shouldCreateSeparateBucketsPerKey() {
+        depleteTokensForKey(1);
+        depleteTokensForKey(2);
+        depleteTokensForKey(-1);
+        depleteTokensForKey(0);
+    }
+
+    @Test
+    public void shouldHoldManyKeys() {
+        // never refills, however long this takes
+        throttler = new Throttler(throttlerRules);
+        handle = throttler.ruleHandle("test/");
+
+        for (long key = 0; key < 10000; key++) {
+            assertTrue("Bucket created", throttler.tryAcquire(handle, key * 31,
+                    rule.getTokenBucketCapacity()));
+        }
+
+        for (long key = 0; key < 10000; key++) {
+            assertTrue("Bucket reused", throttler.throttle(handle, key * 31));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectHandlesFromOtherThrottlers() {
+        Throttler other = new Throttler(throttlerRules);
+
+        other.throttle(handle, 1);
+    }
+
+    @Test
+    public void shouldEvictIdleKeyedBuckets() throws Exception {
+        Throttler evictingThrottler = new Throttler(throttlerRules,
+                RefillMode.LAZY, new EvictionPolicy(50, Integer.MAX_VALUE));
+        RuleHandle evictingHandle = evictingThrottler.ruleHandle("test/");
+        evictingThrottler.throttle(evictingHandle, 1);
+
+        evictingThrottler.tick();
+        Thread.sleep(200);
+        evictingThrottler.tick();
+
+        assertEquals("Idle bucket evicted", 0, evictingHandle.getBuckets()
+                .size());
+    }
+
+    @Test
+    public void shouldCapKeyedBuckets() {
+        Throttler cappedThrottler = new Throttler(throttlerRules,
+                RefillMode.LAZY, new EvictionPolicy(0, 10));
+        RuleHandle cappedHandle = cappedThrottler.ruleHandle("test/");
+
+        for (long key = 0; key < 100; key++) {
+            cappedThrottler.throttle(cappedHandle, key);
+        }
+
+        assertEquals("Bucket count capped", 10, cappedHandle.getBuckets()
+                .size());
+    }
+
+    /**
+     * Only checked on JVMs which can count the bytes a thread allocates.
+     */
+    @Test
+    public void shouldNotAllocateOnceBucketExists() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        for (int i = 0; i < 20000; i++) {
+            throttler.throttle(handle, i & 7);
+        }
+
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 20000; i++) {
+            throttler.throttle(handle, i & 7);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    private void depleteTokensForKey(long key) {
+        for (int i = 0; i < rule.getTokenBucketCapacity(); i++) {
+            assertFalse("Bucket should have more tokens",
+                    throttler.throttle(handle, key));
+        }
+
+        assertTrue("Bucket should be empty", throttler.throttle(handle, key));
+    }
+}
@@ -0,0 +1,127 @@
+package com.dsuskin.jthrottle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Updating a throttler's rules should move existing buckets over to the new
+ * rules without losing track of how many tokens they had.
+ *
+ */
+public class ThrottlerRuleUpdateTest {
+
+    private Throttler throttler;
+
+    @Before
+    public void setUp() {
+        throttler = new Throttler(rules(new Rule("a", 0, 10)));
+    }
+
+    @After
+    public void tearDown() {
+        throttler = null;
+    }
+
+    @Test
+    public void shouldScaleTokensToNewCapacity() {
+        assertTrue("Half the tokens", throttler.tryAcquire("a/1", 5));
+
+        throttler.updateRules(rules(new Rule("a", 0, 100)));
+
+        assertTrue("Half the new capacity", throttler.tryAcquire("a/1", 50));
+        assertTrue("Empty", throttler.throttle("a/1"));
+    }
+
+    @Test
+    public void shouldCreateNewBucketsFromNewRules() {
+        throttler.updateRules(rules(new Rule("a", 0, 3)));
+
+        assertTrue("New capacity", throttler.tryAcquire("a/2", 3));
+        assertFalse("No more", throttler.tryAcquire("a/2", 1));
+    }
+
+    @Test
+    public void shouldKeepBucketsWhoseRuleIsUnchanged() {
+        assertTrue("Acquired", throttler.tryAcquire("a/1", 7));
+
+        throttler.updateRules(rules(new Rule("a", 0, 10), new Rule("b", 0, 1)));
+
+        assertTrue("Same tokens left", throttler.tryAcquire("a/1", 3));
+        assertTrue("Empty", throttler.throttle("a/1"));
+    }
+
+    @Test
+    public void shouldMoveBucketsToLongerRules() {
+        assertTrue("Acquired", throttler.tryAcquire("ab/1", 10));
+
+        throttler.updateRules(rules(new Rule("a", 0, 10), new Rule("ab", 0, 4)));
+
+        assertTrue("Still empty", throttler.throttle("ab/1"));
+        assertTrue("New rule for new buckets", throttler.tryAcquire("ab/2", 4));
+        assertFalse("New capacity", throttler.tryAcquire("ab/2", 1));
+        assertEquals("Counted against the new rule", 2, throttler.getMetrics()
+                .getRules().get(1).getBucketCount());
+    }
+
+    @Test
+    public void shouldEvictBucketsWithoutRules() {
+        throttler.throttle("a/1");
+
+        throttler.updateRules(rules(new Rule("b", 0, 10)));
+
+        assertTrue("No rule", throttler.throttle("a/1"));
+        assertEquals("Evicted", 0, throttler.getBucketCount());
+    }
+
+    @Test
+    public void shouldUpdateKeyedBuckets() {
+        RuleHandle handle = throttler.ruleHandle("a/");
+        assertTrue("Half the tokens", throttler.tryAcquire(handle, 1, 5));
+
+        throttler.updateRules(rules(new Rule("a", 0, 2)));
+
+        assertTrue("Half the new capacity", throttler.tryAcquire(handle, 1, 1));
+        assertTrue("Empty", throttler.throttle(handle, 1));
+        assertTrue("New capacity", throttler.tryAcquire(handle, 2, 2));
+        assertFalse("No more", throttler.tryAcquire(handle, 2, 1));
+    }
+
+    @Test
+    public void shouldUpdateEveryShard() {
+        ShardedThrottler sharded = new ShardedThrottler(rules(new Rule("a",
+                0, 10)), 4);
+
+        try {
+            for (int i = 0; i < 10; i++) {
+                assertTrue("Old capacity", sharded.tryAcquire("a/" + i, 10));
+            }
+
+            sharded.updateRules(rules(new Rule("a", 0, 20)));
+
+            for (int i = 0; i < 10; i++) {
+                assertTrue("Still empty", sharded.throttle("a/" + i));
+                assertTrue("New capacity", sharded.tryAcquire("a/new" + i, 20));
+            }
+        } finally {
+            sharded.stop();
+        }
+    }
+
+    static ConcurrentNavigableMap<String, Rule> rules(Rule... rules) {
+        ConcurrentNavigableMap<String, Rule> indexed = new ConcurrentSkipListMap<String, Rule>();
+
+        for (Rule rule : rules) {
+            indexed.put(rule.getOperationName(), rule);
+        }
+
+        return indexed;
+    }
+}
@@ -0,0 +1,144 @@
+package com.dsuskin.jthrottle;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A throttler restored from a snapshot should start its buckets where the
+ * snapshotted throttler left them, rather than full.
+ *
+ */
+public class ThrottlerSnapshotTest {
+
+    private Path directory;
+    private Path file;
+    private Throttler throttler;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("jthrottle");
+        file = directory.resolve("buckets.snapshot");
+        throttler = new Throttler(ThrottlerRuleUpdateTest.rules(new Rule("a",
+                0, 10)));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory.toFile());
+        throttler = null;
+    }
+
+    @Test
+    public void shouldRestoreTokens() throws IOException {
+        assertTrue("Acquired", throttler.tryAcquire("a/1", 7));
+        throttler.writeSnapshot(file);
+
+        Throttler restored = new Throttler(ThrottlerRuleUpdateTest.rules(new Rule(
+                "a", 0, 10)));
+        restored.restoreSnapshot(file);
+
+        assertTrue("Tokens left", restored.tryAcquire("a/1", 3));
+        assertTrue("Empty", restored.throttle("a/1"));
+        assertTrue("Not in the snapshot", restored.tryAcquire("a/2", 10));
+    }
+
+    @Test
+    public void shouldRestoreKeyedBuckets() throws IOException {
+        RuleHandle handle = throttler.ruleHandle("a/");
+        assertTrue("Acquired", throttler.tryAcquire(handle, 5, 10));
+        throttler.writeSnapshot(file);
+
+        Throttler restored = new Throttler(ThrottlerRuleUpdateTest.rules(new Rule(
+                "a", 0, 10)));
+        restored.restoreSnapshot(file);
+
+        assertTrue("Empty", restored.throttle(restored.ruleHandle("a/"), 5));
+        assertTrue("Same bucket by name", restored.throttle("a/5"));
+    }
+
+    @Test
+    public void shouldScaleTokensToNewCapacity() throws IOException {
+        assertTrue("Acquired", throttler.tryAcquire("a/1", 7));
+        throttler.writeSnapshot(file);
+
+        Throttler restored = new Throttler(ThrottlerRuleUpdateTest.rules(new Rule(
+                "a", 0, 100)));
+        restored.restoreSnapshot(file);
+
+        assertTrue("Same proportion", restored.tryAcquire("a/1", 30));
+        assertTrue("Empty", restored.throttle("a/1"));
+    }
+
+    @Test
+    public void shouldAddTokensEarnedSinceSnapshot()
+            throws IOException, InterruptedException {
+        throttler = new Throttler(ThrottlerRuleUpdateTest.rules(new Rule("a",
+                10, 10)), RefillMode.LAZY);
+        assertTrue("Acquired", throttler.tryAcquire("a/1", 10));
+        throttler.writeSnapshot(file);
+
+        Thread.sleep(350);
+
+        Throttler restored = new Throttler(ThrottlerRuleUpdateTest.rules(new Rule(
+                "a", 10, 10)), RefillMode.LAZY);
+        restored.restoreSnapshot(file);
+
+        assertTrue("Earned while down", restored.tryAcquire("a/1", 2));
+        assertFalse("Not full", restored.tryAcquire("a/1", 8));
+    }
+
+    @Test
+    public void shouldRestoreShardsIntoOneThrottler() throws IOException {
+        ShardedThrottler sharded = new ShardedThrottler(
+                ThrottlerRuleUpdateTest.rules(new Rule("a", 0, 10)), 4);
+
+        try {
+            for (int i = 0; i < 20; i++) {
+                assertTrue("Acquired", sharded.tryAcquire("a/" + i, 10));
+            }
+            sharded.writeSnapshot(file);
+        } finally {
+            sharded.stop();
+        }
+
+        throttler.restoreSnapshot(file);
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue("Empty", throttler.throttle("a/" + i));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectOtherFiles() throws IOException {
+        Files.write(file, "not a snapshot, but long enough to be one"
+                .getBytes(StandardCharsets.UTF_8));
+
+        throttler.restoreSnapshot(file);
+    }
+
+    @Test
+    public void shouldWriteFromTask() throws IOException {
+        assertTrue("Acquired", throttler.tryAcquire("a/1", 10));
+
+        ThrottlerSnapshotTask task = new ThrottlerSnapshotTask(throttler, file);
+        task.run();
+        assertNull("Written", task.getLastError());
+
+        Throttler restored = new Throttler(ThrottlerRuleUpdateTest.rules(new Rule(
+                "a", 0, 10)));
+        restored.restoreSnapshot(file);
+
+        assertTrue("Empty", restored.throttle("a/1"));
+    }
+}
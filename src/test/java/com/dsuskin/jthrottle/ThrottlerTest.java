@@ -13,8 +13,8 @@ import org.junit.Test;
 /**
  * TODO should ideally reuse all of the Bucket tests
  * 
- * TODO ideally should also have correctness tests which ensure that the
- * throttle rates match desired throttle rates
+ * Whether the rates calls are let through at match the rules is checked by
+ * {@link RateAccuracyTest}.
  * 
  * @author dsuskin
  * 
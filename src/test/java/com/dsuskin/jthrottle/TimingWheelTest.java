@@ -0,0 +1,113 @@
+package com.dsuskin.jthrottle;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Items should come off the wheel no earlier than their deadlines, and no
+ * later than the tick after.
+ * 
+ */
+public class TimingWheelTest {
+
+    private static final long TICK = 10;
+    private static final long START = 1000;
+
+    private TimingWheel<Long> wheel;
+    private List<Long> expired;
+    private TimingWheel.Expiry<Long> expiry;
+
+    @Before
+    public void setUp() {
+        wheel = new TimingWheel<Long>(TICK, START);
+        expired = new ArrayList<Long>();
+        expiry = new TimingWheel.Expiry<Long>() {
+
+            @Override
+            public void expired(Long item, long deadlineNanos) {
+                expired.add(item);
+            }
+        };
+    }
+
+    @Test
+    public void shouldNotExpireBeforeDeadline() {
+        wheel.add(1L, START + 55);
+
+        wheel.advance(START + 50, expiry);
+
+        assertTrue("Nothing expired yet", expired.isEmpty());
+        assertEquals("Item still on the wheel", 1, wheel.size());
+    }
+
+    @Test
+    public void shouldExpireAtFirstTickAfterDeadline() {
+        wheel.add(1L, START + 55);
+
+        wheel.advance(START + 60, expiry);
+
+        assertEquals("Item expired", 1, expired.size());
+        assertEquals("Wheel empty", 0, wheel.size());
+    }
+
+    @Test
+    public void shouldExpireOverdueItemsAtNextTick() {
+        wheel.advance(START + 100, expiry);
+        wheel.add(1L, START);
+
+        wheel.advance(START + 110, expiry);
+
+        assertEquals("Item expired", 1, expired.size());
+    }
+
+    /**
+     * Deadlines spread over every level of the wheel, and beyond the end of
+     * it, should still come out in order and on time.
+     */
+    @Test
+    public void shouldExpireAcrossLevelsInOrder() {
+        long[] deadlines = { 5, 640, 650, 40960, 40965, 2621440, 167772160,
+                167772160L * 10 };
+
+        for (int i = deadlines.length - 1; i >= 0; i--) {
+            wheel.add(deadlines[i], START + deadlines[i]);
+        }
+
+        for (int i = 0; i < deadlines.length; i++) {
+            long due = START + ((deadlines[i] + TICK - 1) / TICK) * TICK;
+
+            wheel.advance(due - TICK, expiry);
+            assertEquals("Not expired early: " + deadlines[i], i,
+                    expired.size());
+
+            wheel.advance(due, expiry);
+            assertEquals("Expired on time: " + deadlines[i], i + 1,
+                    expired.size());
+            assertEquals(Long.valueOf(deadlines[i]), expired.get(i));
+        }
+
+        assertEquals("Wheel empty", 0, wheel.size());
+    }
+
+    @Test
+    public void shouldAllowExpiryToAddItems() {
+        wheel.add(1L, START + 10);
+
+        wheel.advance(START + 10, new TimingWheel.Expiry<Long>() {
+
+            @Override
+            public void expired(Long item, long deadlineNanos) {
+                wheel.add(item + 1, deadlineNanos + 10);
+            }
+        });
+        wheel.advance(START + 20, expiry);
+
+        assertEquals("Re-added item expired", Long.valueOf(2), expired.get(0));
+    }
+}
@@ -0,0 +1,155 @@
+package com.dsuskin.jthrottle.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.dsuskin.jthrottle.Rule;
+import com.dsuskin.jthrottle.Throttler;
+
+/**
+ * Decisions over the wire should be the ones the server's throttler would
+ * have made for calls in the same order.
+ *
+ */
+public class ThrottleServerTest {
+
+    private Throttler throttler;
+    private ThrottleServer server;
+    private ThrottleClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        ConcurrentNavigableMap<String, Rule> rules = new ConcurrentSkipListMap<String, Rule>();
+        rules.put("api/", new Rule("api/", 0, 3));
+        rules.put("bulk", new Rule("bulk", 0, 10000));
+
+        throttler = new Throttler(rules);
+        server = new ThrottleServer(throttler, new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), 0), 2);
+        server.start();
+        client = new ThrottleClient(server.getAddress());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.close();
+        server.stop();
+    }
+
+    @Test
+    public void shouldDecideLikeTheThrottler() throws IOException {
+        assertFalse("First", client.throttle("api/a"));
+        assertFalse("Second", client.throttle("api/a"));
+        assertFalse("Third", client.throttle("api/a"));
+        assertTrue("Used up", client.throttle("api/a"));
+        assertTrue("Server side too", throttler.throttle("api/a"));
+        assertFalse("Own bucket", client.throttle("api/b"));
+        assertTrue("Unmatched", client.throttle("other"));
+    }
+
+    @Test
+    public void shouldTakePermits() throws IOException {
+        assertTrue("Two", client.tryAcquire("api/a", 2));
+        assertFalse("Not two more", client.tryAcquire("api/a", 2));
+        assertTrue("One", client.tryAcquire("api/a", 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectPermitsWhichArentPositive() throws IOException {
+        client.tryAcquire("api/a", 0);
+    }
+
+    @Test
+    public void shouldSplitBigBatches() throws IOException {
+        String[] names = new String[3 * Protocol.MAX_BATCH_SIZE + 5];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = i % 2 == 0 ? "bulk" : "api/" + (i % 7);
+        }
+
+        boolean[] shouldThrottle = client.throttleAll(names);
+
+        int throttled = 0;
+        for (int i = 0; i < names.length; i++) {
+            if (shouldThrottle[i]) {
+                assertTrue("Only the small buckets", names[i].startsWith("api/"));
+                throttled++;
+            }
+        }
+
+        // the calls to bulk all fit; 7 api buckets let 3 each through
+        assertEquals("Throttled", names.length / 2 - 7 * 3, throttled);
+        assertFalse("Still usable", client.throttle("bulk"));
+    }
+
+    @Test
+    public void shouldShareLimitsBetweenClients() throws IOException {
+        ThrottleClient other = new ThrottleClient(server.getAddress());
+        try {
+            assertFalse("First", client.throttle("api/a"));
+            assertFalse("Second", other.throttle("api/a"));
+            assertFalse("Third", client.throttle("api/a"));
+            assertTrue("Used up for both", other.throttle("api/a"));
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void shouldCloseOnProtocolErrors() throws IOException {
+        SocketChannel channel = SocketChannel.open(server.getAddress());
+        try {
+            ByteBuffer message = ByteBuffer.allocate(Protocol.HEADER_SIZE);
+            message.put((byte) 42).putInt(0).putShort((short) 0).flip();
+            channel.write(message);
+
+            assertEquals("Closed", -1, channel.read(ByteBuffer.allocate(16)));
+        } finally {
+            channel.close();
+        }
+
+        assertFalse("Others still served", client.throttle("api/a"));
+    }
+
+    @Test
+    public void shouldNotDecideAnyOfABatchWithNegativePermits()
+            throws IOException {
+        SocketChannel channel = SocketChannel.open(server.getAddress());
+        try {
+            byte[] name = "api/a".getBytes(StandardCharsets.UTF_8);
+            ByteBuffer message = ByteBuffer.allocate(2 * Protocol.HEADER_SIZE
+                    + name.length + 2 * Protocol.ENTRY_SIZE);
+            message.put(Protocol.DEFINE).putInt(0).putShort(
+                    (short) name.length).put(name);
+            message.put(Protocol.BATCH).putInt(1).putShort((short) 2);
+            message.putInt(0).putInt(1).putInt(0).putInt(-1).flip();
+            channel.write(message);
+
+            assertEquals("Closed", -1, channel.read(ByteBuffer.allocate(16)));
+        } finally {
+            channel.close();
+        }
+
+        assertTrue("No tokens taken", client.tryAcquire("api/a", 3));
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldCloseConnectionsWhenStopped() throws IOException {
+        server.stop();
+
+        client.throttle("api/a");
+    }
+}